@@ -0,0 +1,56 @@
+package com.bitzomax.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Lets the servlet container send a byte range of a local file itself, with sendfile
+ * ({@code FileChannel.transferTo} from the file to the socket). The bytes go from the page
+ * cache to the socket in the kernel, instead of being read into heap buffers and copied
+ * through the servlet output stream. Tomcat offers this on its NIO and NIO2 connectors
+ * (not over TLS), through the request attributes that its own DefaultServlet uses.
+ */
+final class Sendfile {
+
+    private static final String SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private Sendfile() {
+    }
+
+    /**
+     * Ask the container to send the bytes once the response headers are written. If it
+     * accepts, the caller sets the headers (including Content-Length) and writes no body
+     * @param minLength Ranges shorter than this are cheaper to copy than to hand over
+     * @return false if the resource isn't a local file, the range is short, the request is
+     *         a HEAD (the container would send the file anyway) or the container can't sendfile
+     */
+    static boolean offer(HttpOutputMessage outputMessage, Resource resource, long start, long length, long minLength)
+            throws IOException {
+        if (length < minLength || !resource.isFile() || !(outputMessage instanceof ServletServerHttpResponse)) {
+            return false;
+        }
+        if (!(RequestContextHolder.getRequestAttributes() instanceof ServletRequestAttributes attributes)) {
+            return false;
+        }
+        HttpServletRequest request = attributes.getRequest();
+        if (!HttpMethod.GET.matches(request.getMethod()) || !Boolean.TRUE.equals(request.getAttribute(SUPPORT_ATTR))) {
+            return false;
+        }
+        File file = resource.getFile();
+        request.setAttribute(FILENAME_ATTR, file.getAbsolutePath());
+        request.setAttribute(START_ATTR, start);
+        request.setAttribute(END_ATTR, start + length);
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+package com.bitzomax.config;
+
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+
+import java.io.IOException;
+
+/**
+ * Writes whole files served as a {@link Resource} body with {@link Sendfile} when they are on
+ * local disk, and copies them through the output stream like Spring does otherwise
+ * (resources from an object store, small files, containers without sendfile)
+ */
+public class SendfileResourceHttpMessageConverter extends ResourceHttpMessageConverter {
+
+    private final long minLength;
+
+    public SendfileResourceHttpMessageConverter(long minLength) {
+        this.minLength = minLength;
+    }
+
+    @Override
+    protected void writeContent(Resource resource, HttpOutputMessage outputMessage) throws IOException {
+        // Content-Length has been set from the resource
+        if (!Sendfile.offer(outputMessage, resource, 0, resource.contentLength(), minLength)) {
+            super.writeContent(resource, outputMessage);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.bitzomax.config;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.ResourceRegionHttpMessageConverter;
+
+import java.io.IOException;
+
+/**
+ * Writes the single byte range of a 206 response with {@link Sendfile} when the file is on
+ * local disk, which is what players seeking through a video ask for. Several ranges in one
+ * multipart/byteranges response are still copied through the output stream
+ */
+public class SendfileResourceRegionHttpMessageConverter extends ResourceRegionHttpMessageConverter {
+
+    private final long minLength;
+
+    public SendfileResourceRegionHttpMessageConverter(long minLength) {
+        this.minLength = minLength;
+    }
+
+    @Override
+    protected void writeResourceRegion(ResourceRegion region, HttpOutputMessage outputMessage) throws IOException {
+        Resource resource = region.getResource();
+        long resourceLength = resource.contentLength();
+        long start = region.getPosition();
+        long end = Math.min(start + region.getCount() - 1, resourceLength - 1);
+        long rangeLength = end - start + 1;
+        if (!Sendfile.offer(outputMessage, resource, start, rangeLength, minLength)) {
+            super.writeResourceRegion(region, outputMessage);
+            return;
+        }
+        // The headers the superclass sets before copying the range
+        HttpHeaders headers = outputMessage.getHeaders();
+        headers.add(HttpHeaders.CONTENT_RANGE, "bytes " + start + '-' + end + '/' + resourceLength);
+        headers.setContentLength(rangeLength);
+    }
+}
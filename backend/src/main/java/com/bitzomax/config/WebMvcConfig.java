@@ -0,0 +1,40 @@
+package com.bitzomax.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.http.converter.ResourceRegionHttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+@Configuration
+public class WebMvcConfig implements WebMvcConfigurer {
+
+    private final boolean sendfileEnabled;
+    private final long sendfileMinLength;
+
+    public WebMvcConfig(
+            @Value("${file.serve.sendfile.enabled:true}") boolean sendfileEnabled,
+            @Value("${file.serve.sendfile.min-size-kb:48}") long sendfileMinSizeKb) {
+        this.sendfileEnabled = sendfileEnabled;
+        this.sendfileMinLength = sendfileMinSizeKb * 1024;
+    }
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        if (!sendfileEnabled) {
+            return;
+        }
+        // Replace Spring's resource converters in place, so they keep their precedence
+        for (int i = 0; i < converters.size(); i++) {
+            Class<?> converterClass = converters.get(i).getClass();
+            if (converterClass == ResourceHttpMessageConverter.class) {
+                converters.set(i, new SendfileResourceHttpMessageConverter(sendfileMinLength));
+            } else if (converterClass == ResourceRegionHttpMessageConverter.class) {
+                converters.set(i, new SendfileResourceRegionHttpMessageConverter(sendfileMinLength));
+            }
+        }
+    }
+}
@@ -1,10 +1,26 @@
 package com.bitzomax.controller;
 
+import com.bitzomax.dto.ConversionJobDTO;
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.ConversionProgress;
+import com.bitzomax.model.UploadSession;
 import com.bitzomax.model.WebMConversionResponse;
+import com.bitzomax.service.ConversionJobService;
+import com.bitzomax.service.CoverArtService;
 import com.bitzomax.service.FileStorageService;
+import com.bitzomax.service.MediaDerivativesService;
+import com.bitzomax.service.ProgressUpdateService;
+import com.bitzomax.service.StreamingEncoder;
+import com.bitzomax.service.UploadSessionService;
+import com.bitzomax.util.EntityDtoMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -13,8 +29,16 @@ import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import jakarta.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/admin/files")
@@ -24,6 +48,25 @@ public class FileController {
     @Autowired
     private FileStorageService fileStorageService;
 
+    @Autowired
+    private ConversionJobService conversionJobService;
+
+    @Autowired
+    private StreamingEncoder streamingEncoder;
+
+    @Autowired
+    private UploadSessionService uploadSessionService;
+
+    @Autowired
+    private ProgressUpdateService progressUpdateService;
+
+    @Autowired
+    private CoverArtService coverArtService;
+
+    // Resumable upload headers, named as in the tus protocol
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+    private static final String UPLOAD_LENGTH = "Upload-Length";
+
     @PostMapping("/upload/song")
     public ResponseEntity<Map<String, String>> uploadSongFile(@RequestParam("file") MultipartFile file) {
         String fileName = fileStorageService.storeSongFile(file);
@@ -61,24 +104,196 @@ public class FileController {
     }
     
     /**
-     * Convert a file to WebM format with progress tracking
+     * Open a resumable upload. The file is then sent with PUT requests carrying an
+     * Upload-Offset header, and completed with POST .../complete.
+     * @param target "song", "cover" or "convert"
+     */
+    @PostMapping("/upload/sessions")
+    public ResponseEntity<Map<String, String>> createUploadSession(
+            @RequestParam("filename") String originalFilename,
+            @RequestParam("length") long length,
+            @RequestParam(value = "target", defaultValue = "song") String target) {
+        
+        UploadSession session;
+        try {
+            session = uploadSessionService.create(originalFilename, length,
+                    UploadSession.Target.valueOf(target.toUpperCase(Locale.ROOT)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        String sessionUri = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/api/admin/files/upload/sessions/")
+                .path(session.getId())
+                .toUriString();
+        
+        Map<String, String> response = new HashMap<>();
+        response.put("sessionId", session.getId());
+        response.put("sessionUri", sessionUri);
+        response.put("offset", "0");
+        
+        return ResponseEntity.status(HttpStatus.CREATED)
+                .header(HttpHeaders.LOCATION, sessionUri)
+                .header(UPLOAD_OFFSET, "0")
+                .header(UPLOAD_LENGTH, String.valueOf(session.getTotalLength()))
+                .body(response);
+    }
+
+    /**
+     * Current offset of a resumable upload, to continue after a dropped connection
+     */
+    @RequestMapping(value = "/upload/sessions/{sessionId}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> getUploadOffset(@PathVariable String sessionId) {
+        return uploadSessionService.findSession(sessionId)
+                .map(session -> ResponseEntity.ok()
+                        .header(UPLOAD_OFFSET, String.valueOf(uploadSessionService.getOffset(session)))
+                        .header(UPLOAD_LENGTH, String.valueOf(session.getTotalLength()))
+                        .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                        .<Void>build())
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Append a chunk to a resumable upload. Upload-Offset must equal the current offset,
+     * otherwise 409 is returned together with the offset to resume from.
+     * The body is the raw chunk (application/offset+octet-stream or application/octet-stream).
+     */
+    @PutMapping(value = "/upload/sessions/{sessionId}",
+            consumes = { "application/offset+octet-stream", MediaType.APPLICATION_OCTET_STREAM_VALUE })
+    public ResponseEntity<Void> uploadChunk(
+            @PathVariable String sessionId,
+            @RequestHeader(UPLOAD_OFFSET) long offset,
+            HttpServletRequest request) throws IOException {
+        
+        UploadSession session = uploadSessionService.findSession(sessionId).orElse(null);
+        if (session == null) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        try {
+            long newOffset = uploadSessionService.appendChunk(session, offset, request.getInputStream());
+            return ResponseEntity.noContent()
+                    .header(UPLOAD_OFFSET, String.valueOf(newOffset))
+                    .build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .header(UPLOAD_OFFSET, String.valueOf(uploadSessionService.getOffset(session)))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .header(UPLOAD_OFFSET, String.valueOf(uploadSessionService.getOffset(session)))
+                    .build();
+        }
+    }
+
+    /**
+     * Finish a resumable upload. Songs and covers are stored like a regular upload;
+     * conversion uploads are queued under the session ID as file ID (202).
+     */
+    @PostMapping("/upload/sessions/{sessionId}/complete")
+    public ResponseEntity<Map<String, String>> completeUploadSession(
+            @PathVariable String sessionId,
+            @RequestParam(value = "priority", defaultValue = "interactive") String priority,
+            HttpServletRequest request) {
+        UploadSession session = uploadSessionService.findSession(sessionId).orElse(null);
+        if (session == null) {
+            return ResponseEntity.notFound().build();
+        }
+        ConversionJob.Priority jobPriority = parsePriority(priority);
+        if (jobPriority == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        try {
+            session = uploadSessionService.complete(session, submitterOf(request), jobPriority);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "30")
+                    .build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .header(UPLOAD_OFFSET, String.valueOf(uploadSessionService.getOffset(session)))
+                    .build();
+        }
+        
+        Map<String, String> response = new HashMap<>();
+        response.put("size", String.valueOf(session.getTotalLength()));
+        HttpStatus status = HttpStatus.OK;
+        
+        if (session.getTarget() == UploadSession.Target.CONVERT) {
+            ConversionJob job = conversionJobService.findJob(session.getResultName()).orElse(null);
+            if (job == null) {
+                return ResponseEntity.notFound().build();
+            }
+            response.put("fileId", job.getFileId());
+            response.put("fileName", job.getOutputName());
+            response.put("fileDownloadUri", ServletUriComponentsBuilder.fromCurrentContextPath()
+                    .path("/api/admin/files/converted/")
+                    .path(job.getOutputName())
+                    .toUriString());
+            response.put("fileType", "video/webm");
+            status = job.getStatus() == ConversionJob.Status.DONE ? HttpStatus.OK : HttpStatus.ACCEPTED;
+        } else {
+            String path = session.getTarget() == UploadSession.Target.COVER ? "/api/admin/files/cover/" : "/api/admin/files/song/";
+            response.put("fileName", session.getResultName());
+            response.put("fileDownloadUri", ServletUriComponentsBuilder.fromCurrentContextPath()
+                    .path(path)
+                    .path(session.getResultName())
+                    .toUriString());
+        }
+        
+        return ResponseEntity.status(status).body(response);
+    }
+
+    /**
+     * Abort a resumable upload and discard the received bytes
+     */
+    @DeleteMapping("/upload/sessions/{sessionId}")
+    public ResponseEntity<Void> abortUploadSession(@PathVariable String sessionId) {
+        UploadSession session = uploadSessionService.findSession(sessionId).orElse(null);
+        if (session == null) {
+            return ResponseEntity.notFound().build();
+        }
+        uploadSessionService.abort(session);
+        return ResponseEntity.noContent().build();
+    }
+    
+    /**
+     * Queue a file for WebM conversion. Returns 202 as soon as the upload is stored;
+     * progress and the result file are published on /topic/conversion/{fileId}.
+     * Returns 200 if an identical upload was already converted.
+     * Bulk imports should pass priority=backfill, so they wait behind interactive uploads.
      */
     @PostMapping("/convert-to-webm")
     public ResponseEntity<WebMConversionResponse> convertToWebM(
             @RequestParam("file") MultipartFile file,
-            @RequestParam(value = "fileId", required = false) String clientFileId) {
+            @RequestParam(value = "fileId", required = false) String clientFileId,
+            @RequestParam(value = "priority", defaultValue = "interactive") String priority,
+            HttpServletRequest request) {
+        
+        ConversionJob.Priority jobPriority = parsePriority(priority);
+        if (jobPriority == null) {
+            return ResponseEntity.badRequest().build();
+        }
         
         // If client provided a fileId, use it; otherwise, generate one
         String fileId = (clientFileId != null && !clientFileId.isEmpty()) ? clientFileId : null;
         
-        String fileName = fileStorageService.convertToWebM(file, fileId);
-        
-        // If no clientFileId was provided, extract fileId from fileName (remove .webm extension)
-        if (fileId == null) {
-            fileId = fileName.substring(0, fileName.lastIndexOf('.'));
+        ConversionJob job;
+        try {
+            job = conversionJobService.submit(file, fileId, submitterOf(request), jobPriority);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "30")
+                    .build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
         }
         
-        // Create download URI for the converted file
+        fileId = job.getFileId();
+        String fileName = job.getOutputName();
+        
+        // Create download URI for the converted file (available once the job completes)
         String fileDownloadUri = ServletUriComponentsBuilder.fromCurrentContextPath()
                 .path("/api/admin/files/converted/")
                 .path(fileName)
@@ -92,17 +307,121 @@ public class FileController {
             String.valueOf(file.getSize())
         );
         
-        return ResponseEntity.ok(response);
+        HttpStatus status = job.getStatus() == ConversionJob.Status.DONE ? HttpStatus.OK : HttpStatus.ACCEPTED;
+        return ResponseEntity.status(status).body(response);
+    }
+
+    /**
+     * Convert a raw request body while it uploads. The body is piped into the encoder
+     * instead of being written to disk first; only containers that can be read front to
+     * back (WebM, MKV, MPEG-TS, MP3, ...) are accepted, MP4/MOV need /convert-to-webm.
+     */
+    @PostMapping("/convert-to-webm/stream")
+    public ResponseEntity<WebMConversionResponse> convertStreamToWebM(
+            @RequestParam("filename") String originalFilename,
+            @RequestParam(value = "fileId", required = false) String clientFileId,
+            HttpServletRequest request) throws IOException {
+        
+        if (!streamingEncoder.isStreamable(originalFilename)) {
+            return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).build();
+        }
+        
+        String fileId = (clientFileId != null && !clientFileId.isEmpty()) ? clientFileId : null;
+        
+        ConversionJob job;
+        try {
+            job = conversionJobService.submitStream(request.getInputStream(), request.getContentLengthLong(), fileId,
+                    submitterOf(request));
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "30")
+                    .build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        
+        String fileDownloadUri = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/api/admin/files/converted/")
+                .path(job.getOutputName())
+                .toUriString();
+        
+        WebMConversionResponse response = new WebMConversionResponse(
+            job.getOutputName(), 
+            job.getFileId(), 
+            fileDownloadUri, 
+            "video/webm", 
+            String.valueOf(request.getContentLengthLong())
+        );
+        
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+    }
+
+    /**
+     * Get the persisted state of a conversion job
+     */
+    @GetMapping("/conversions/{fileId}")
+    public ResponseEntity<ConversionJobDTO> getConversionJob(@PathVariable String fileId) {
+        return conversionJobService.findJob(fileId)
+                .map(EntityDtoMapper::toConversionJobDto)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Cancel a queued or running conversion. The encoder is stopped and its partial
+     * output deleted; subscribers receive a "cancelled" progress update.
+     */
+    @PostMapping("/conversions/{fileId}/cancel")
+    public ResponseEntity<Void> cancelConversion(@PathVariable String fileId) {
+        if (conversionJobService.cancel(fileId)) {
+            return ResponseEntity.accepted().build();
+        }
+        // Unknown, or already finished
+        return conversionJobService.findJob(fileId).isPresent()
+                ? ResponseEntity.status(HttpStatus.CONFLICT).build()
+                : ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Get the last progress update published for a conversion, for clients that
+     * missed it on the WebSocket topic
+     */
+    @GetMapping("/conversions/{fileId}/progress")
+    public ResponseEntity<ConversionProgress> getConversionProgress(@PathVariable String fileId) {
+        return progressUpdateService.getLatestProgress(fileId)
+                .map(progress -> ResponseEntity.ok()
+                        .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                        .body(progress))
+                .orElse(ResponseEntity.notFound().build());
     }
 
     @GetMapping("/song/{fileName:.+}")
     public ResponseEntity<Resource> downloadSongFile(@PathVariable String fileName, HttpServletRequest request) {
-        return downloadFile(fileName, request, fileStorageService.loadSongAsResource(fileName));
+        return downloadFile(fileName, request, fileStorageService.loadSongAsResource(fileName), true, false);
     }
 
+    /**
+     * Get a cover image. With {@code size}, a WebP scaled to fit a size x size box is returned
+     * instead of the original, e.g. {@code ?size=64} for song lists; the original is served if
+     * the cover can't be scaled. That stand-in is revalidated on every use, so clients pick up
+     * the scaled cover once it can be made
+     */
     @GetMapping("/cover/{fileName:.+}")
-    public ResponseEntity<Resource> downloadCoverFile(@PathVariable String fileName, HttpServletRequest request) {
-        return downloadFile(fileName, request, fileStorageService.loadCoverArtAsResource(fileName));
+    public ResponseEntity<Resource> downloadCoverFile(
+            @PathVariable String fileName,
+            @RequestParam(value = "size", required = false) Integer size,
+            HttpServletRequest request) {
+        if (size != null) {
+            if (size <= 0) {
+                return ResponseEntity.badRequest().build();
+            }
+            Optional<Path> derivative = coverArtService.findDerivative(fileName, size);
+            if (derivative.isPresent()) {
+                FileSystemResource resource = new FileSystemResource(derivative.get());
+                return downloadFile(resource.getFilename(), request, resource, true, false);
+            }
+        }
+        return downloadFile(fileName, request, fileStorageService.loadCoverArtAsResource(fileName), size == null, false);
     }
     
     /**
@@ -111,7 +430,66 @@ public class FileController {
     @GetMapping("/converted/{fileName:.+}")
     public ResponseEntity<Resource> downloadConvertedFile(@PathVariable String fileName, HttpServletRequest request) {
         Resource resource = fileStorageService.loadConvertedFileAsResource(fileName);
-        return downloadFile(fileName, request, resource);
+        return downloadFile(fileName, request, resource, false, false);
+    }
+
+    /**
+     * Get the audio-only rendition of a converted file, for players that only need the sound.
+     * 404 if the source had no audio, or was converted before renditions were produced
+     */
+    @GetMapping("/converted/{fileName:.+}/audio")
+    public ResponseEntity<Resource> downloadConvertedAudio(@PathVariable String fileName, HttpServletRequest request) {
+        return fileStorageService.findAudioRendition(fileName)
+                .map(resource -> downloadFile(FileStorageService.audioRenditionName(fileName), request, resource, false, false))
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Get an asset derived from a converted file during its conversion:
+     * {@code poster} (JPEG), {@code sprite} (JPEG of tiled thumbnails), {@code thumbnails}
+     * (WebVTT track pointing into the sprite) or {@code peaks} (waveform JSON).
+     * 404 if the media has nothing to derive it from, or was converted before assets were derived
+     */
+    @GetMapping("/converted/{fileName:.+}/{derivative:poster|sprite|thumbnails|peaks}")
+    public ResponseEntity<Resource> downloadDerivative(@PathVariable String fileName, @PathVariable String derivative) {
+        String derivativeName;
+        MediaType contentType;
+        switch (derivative) {
+            case "poster" -> {
+                derivativeName = MediaDerivativesService.posterName(fileName);
+                contentType = MediaType.IMAGE_JPEG;
+            }
+            case "sprite" -> {
+                derivativeName = MediaDerivativesService.spriteName(fileName);
+                contentType = MediaType.IMAGE_JPEG;
+            }
+            case "thumbnails" -> {
+                derivativeName = MediaDerivativesService.thumbnailsName(fileName);
+                contentType = MediaType.parseMediaType("text/vtt");
+            }
+            default -> {
+                derivativeName = MediaDerivativesService.peaksName(fileName);
+                contentType = MediaType.APPLICATION_JSON;
+            }
+        }
+        return fileStorageService.findDerivative(derivativeName)
+                .map(resource -> ResponseEntity.ok().contentType(contentType).body(resource))
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Get the DASH manifest ({@code manifest.mpd}) of a converted file, or one of the
+     * segments it references. 404 until the file has been packaged for adaptive streaming
+     */
+    @GetMapping("/converted/{fileName:.+}/dash/{asset:.+}")
+    public ResponseEntity<Resource> downloadAdaptiveStreamingAsset(@PathVariable String fileName,
+                                                                   @PathVariable String asset) {
+        MediaType contentType = asset.endsWith(".mpd")
+                ? MediaType.parseMediaType("application/dash+xml")
+                : MediaType.parseMediaType("video/webm");
+        return fileStorageService.findAdaptiveStreamingAsset(fileName, asset)
+                .map(resource -> ResponseEntity.ok().contentType(contentType).body(resource))
+                .orElse(ResponseEntity.notFound().build());
     }
 
     /**
@@ -136,25 +514,113 @@ public class FileController {
         }
         
         Resource resource = fileStorageService.loadConvertedFileAsResource(fileName);
-        return downloadFile(fileName, request, resource);
+        return downloadFile(fileName, request, resource, false, true);
     }
 
-    private ResponseEntity<Resource> downloadFile(String fileName, HttpServletRequest request, Resource resource) {
-        String contentType;
-        try {
-            contentType = request.getServletContext().getMimeType(resource.getFile().getAbsolutePath());
-        } catch (IOException ex) {
+    /**
+     * Serve a stored file for playback. Players seek with {@code Range} requests, answered with
+     * 206 and only the requested byte ranges (several as multipart/byteranges), and replays
+     * revalidate with {@code If-None-Match}/{@code If-Modified-Since} and get a 304. A range is
+     * only served if {@code If-Range} still matches, otherwise the whole file is sent again.
+     * @param immutable true if the name is the hash of the file's own content (songs, covers),
+     *        so browsers may cache it for good. Converted files are named after their source
+     *        and can be re-encoded in place, so they are revalidated on every use instead
+     * @param attachment true to make browsers save the file rather than play it
+     */
+    private ResponseEntity<Resource> downloadFile(String fileName, HttpServletRequest request, Resource resource,
+                                                  boolean immutable, boolean attachment) {
+        // By name: resources from an object store have no file
+        String contentType = request.getServletContext().getMimeType(fileName);
+        if (contentType == null) {
             contentType = "application/octet-stream";
         }
 
         // For WebM files
         if (fileName.toLowerCase().endsWith(".webm")) {
-            contentType = "video/webm";
+            contentType = fileName.toLowerCase().endsWith(".audio.webm") ? "audio/webm" : "video/webm";
+        }
+
+        long contentLength;
+        long lastModified;
+        try {
+            contentLength = resource.contentLength();
+            // HTTP dates have a resolution of seconds
+            lastModified = resource.lastModified() / 1000 * 1000;
+        } catch (IOException ex) {
+            return ResponseEntity.notFound().build();
+        }
+        String eTag = entityTag(resource.getFilename(), immutable, contentLength, lastModified);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(contentType));
+        headers.setContentDisposition((attachment ? ContentDisposition.attachment() : ContentDisposition.inline())
+                .filename(resource.getFilename())
+                .build());
+        headers.setETag(eTag);
+        headers.setLastModified(lastModified);
+        headers.setCacheControl(immutable
+                ? CacheControl.maxAge(Duration.ofDays(365)).cachePrivate().immutable()
+                : CacheControl.noCache().cachePrivate());
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        // Spring answers Range requests for a Resource body (and 304/412 from the validators set
+        // above), but doesn't know If-Range; a body it can't split makes it send everything
+        if (request.getHeader(HttpHeaders.RANGE) != null && !ifRangeMatches(request, eTag, lastModified)) {
+            try {
+                headers.setContentLength(contentLength);
+                return ResponseEntity.ok().headers(headers).body(new InputStreamResource(resource.getInputStream()));
+            } catch (IOException ex) {
+                return ResponseEntity.notFound().build();
+            }
+        }
+        return ResponseEntity.ok().headers(headers).body(resource);
+    }
+
+    /**
+     * Strong entity tag of a stored file. Content-addressed names are the hash of the content;
+     * other files add their size and modification time, which change whenever the file is replaced
+     */
+    private static String entityTag(String fileName, boolean immutable, long contentLength, long lastModified) {
+        int dot = fileName.indexOf('.');
+        String hash = dot > 0 ? fileName.substring(0, dot) : fileName;
+        return "\"" + (immutable
+                ? hash
+                : hash + "-" + Long.toHexString(contentLength) + "-" + Long.toHexString(lastModified)) + "\"";
+    }
+
+    /**
+     * @return true if the request has no {@code If-Range}, or if it names the current version of
+     *         the file: its entity tag (strong comparison) or its exact modification date
+     */
+    private static boolean ifRangeMatches(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(eTag);
         }
+        try {
+            return ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() == lastModified;
+        } catch (DateTimeParseException ex) {
+            return false;
+        }
+    }
 
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + resource.getFilename() + "\"")
-                .body(resource);
+    /**
+     * Who a conversion is accounted to for fair sharing: the logged-in user, or the
+     * client address for uploads that come without a login
+     */
+    private String submitterOf(HttpServletRequest request) {
+        return request.getUserPrincipal() != null ? request.getUserPrincipal().getName() : request.getRemoteAddr();
+    }
+
+    private ConversionJob.Priority parsePriority(String priority) {
+        try {
+            return ConversionJob.Priority.valueOf(priority.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
-}
\ No newline at end of file
+}
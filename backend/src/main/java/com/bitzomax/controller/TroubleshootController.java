@@ -1,11 +1,12 @@
 package com.bitzomax.controller;
 
+import com.bitzomax.service.MediaToolchain;
+import com.bitzomax.service.StorageJanitor;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
@@ -23,43 +24,69 @@ import java.util.zip.ZipInputStream;
 @CrossOrigin(origins = "*")
 public class TroubleshootController {
 
+    @Autowired
+    private MediaToolchain mediaToolchain;
+
+    @Autowired
+    private StorageJanitor storageJanitor;
+
     /**
-     * Check if FFmpeg is installed and available in the system PATH
+     * Check if FFmpeg is installed and available in the system PATH.
+     * Uses the cached toolchain probe; pass refresh=true to probe again.
      */
     @GetMapping("/check-ffmpeg")
-    public ResponseEntity<Map<String, Object>> checkFfmpeg() {
+    public ResponseEntity<Map<String, Object>> checkFfmpeg(
+            @RequestParam(value = "refresh", defaultValue = "false") boolean refresh) {
         Map<String, Object> response = new HashMap<>();
         
-        try {
-            Process process = Runtime.getRuntime().exec("ffmpeg -version");
-            int exitCode = process.waitFor();
-            
-            // Read the output
-            StringBuilder output = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append("\n");
-                }
-            }
-            
-            // Check if FFmpeg is installed
-            if (exitCode == 0) {
-                response.put("installed", true);
-                response.put("output", output.toString());
-            } else {
-                response.put("installed", false);
-                response.put("error", "FFmpeg is not installed or not found in PATH");
-            }
-        } catch (IOException | InterruptedException e) {
+        if (refresh) {
+            mediaToolchain.refresh();
+        }
+        
+        // Check if FFmpeg is installed
+        if (mediaToolchain.isFfmpegAvailable()) {
+            response.put("installed", true);
+            response.put("output", mediaToolchain.getFfmpegVersionOutput());
+        } else {
             response.put("installed", false);
-            response.put("error", "Error checking FFmpeg: " + e.getMessage());
+            response.put("error", "FFmpeg is not installed or not found in PATH");
         }
         
+        response.put("ffmpegPath", mediaToolchain.getFfmpegPath());
+        response.put("ffprobePath", mediaToolchain.getFfprobePath());
+        response.put("ffprobeInstalled", mediaToolchain.isFfprobeAvailable());
+        
+        Map<String, Boolean> encoders = new HashMap<>();
+        encoders.put(MediaToolchain.ENCODER_VP9, mediaToolchain.hasEncoder(MediaToolchain.ENCODER_VP9));
+        encoders.put(MediaToolchain.ENCODER_OPUS, mediaToolchain.hasEncoder(MediaToolchain.ENCODER_OPUS));
+        encoders.put(MediaToolchain.ENCODER_VORBIS, mediaToolchain.hasEncoder(MediaToolchain.ENCODER_VORBIS));
+        encoders.put(MediaToolchain.ENCODER_AV1, mediaToolchain.hasEncoder(MediaToolchain.ENCODER_AV1));
+        response.put("encoders", encoders);
+        
         return ResponseEntity.ok(response);
     }
 
+    /**
+     * Files and bytes the storage janitor has reclaimed since startup, per category
+     * (staged inputs, partial outputs, upload sessions, temp files), and its last sweep
+     */
+    @GetMapping("/storage")
+    public ResponseEntity<Map<String, Object>> storageStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("reclaimedFiles", storageJanitor.getReclaimedFiles());
+        response.put("reclaimedBytes", storageJanitor.getReclaimedBytes());
+        response.put("lastSweep", storageJanitor.getLastSweep());
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Run a storage sweep now instead of waiting for the next scheduled one
+     */
+    @PostMapping("/storage/sweep")
+    public ResponseEntity<StorageJanitor.Sweep> sweepStorage() {
+        return ResponseEntity.ok(storageJanitor.sweep());
+    }
+
     /**
      * Attempt to download and install FFmpeg for Windows
      * Note: This is a simplified implementation primarily for Windows
@@ -39,6 +39,8 @@ public class WebSocketTestController {
             @RequestParam("fileId") String fileId,
             @RequestParam(value = "duration", defaultValue = "10") int durationSeconds) {
 
+        progressUpdateService.beginConversion(fileId);
+
         // Start a background task to send progress updates
         CompletableFuture.runAsync(() -> {
             try {
@@ -78,6 +80,8 @@ public class WebSocketTestController {
             @RequestParam("fileId") String fileId,
             @RequestParam("message") String errorMessage) {
 
+        progressUpdateService.beginConversion(fileId);
+
         // Start a background task to simulate a failed conversion
         CompletableFuture.runAsync(() -> {
             try {
@@ -0,0 +1,54 @@
+package com.bitzomax.dto;
+
+public class ConversionJobDTO {
+    private String fileId;
+    private String status;
+    private String outputName;
+    private String priority;
+    private String errorMessage;
+
+    // Default constructor
+    public ConversionJobDTO() {
+    }
+
+    // Getters and setters
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getOutputName() {
+        return outputName;
+    }
+
+    public void setOutputName(String outputName) {
+        this.outputName = outputName;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    public void setPriority(String priority) {
+        this.priority = priority;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+}
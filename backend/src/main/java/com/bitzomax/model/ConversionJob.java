@@ -0,0 +1,217 @@
+package com.bitzomax.model;
+
+import com.bitzomax.util.MediaInfoConverter;
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Persistent record of a WebM conversion, so queued and running work
+ * survives an application restart.
+ */
+@Entity
+@Table(name = "conversion_jobs", indexes = @Index(name = "idx_conversion_jobs_source_hash", columnList = "source_hash"))
+public class ConversionJob {
+
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED,
+        CANCELLED
+    }
+
+    /**
+     * Scheduling class: interactive uploads are served before backfill work
+     */
+    public enum Priority {
+        INTERACTIVE,
+        BACKFILL
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(name = "file_id", nullable = false, unique = true)
+    private String fileId;
+    
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private Status status = Status.QUEUED;
+    
+    @Column(name = "input_path", nullable = false, length = 1024)
+    private String inputPath;
+    
+    @Column(name = "output_name", nullable = false)
+    private String outputName;
+    
+    // SHA-256 of the uploaded source, identical uploads share one converted output
+    @Column(name = "source_hash", length = 64)
+    private String sourceHash;
+    
+    @Column(nullable = false)
+    private int attempts;
+    
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private Priority priority = Priority.INTERACTIVE;
+    
+    // User name, or client address for anonymous uploads; the scheduler shares workers fairly between them
+    @Column(name = "submitted_by")
+    private String submittedBy;
+    
+    // Chosen from the queue backlog when a worker starts the encode
+    @Enumerated(EnumType.STRING)
+    @Column(name = "encoder_preset")
+    private EncoderPreset encoderPreset;
+    
+    // The staged input was kept so the output can be re-encoded with the QUALITY preset when idle
+    @Column(name = "upgrade_pending", nullable = false)
+    private boolean upgradePending;
+    
+    // Probed once when the upload is accepted
+    @Convert(converter = MediaInfoConverter.class)
+    @Column(name = "media_info", length = 2048)
+    private MediaInfo mediaInfo;
+    
+    @Column(name = "error_message", length = 1024)
+    private String errorMessage;
+    
+    @Column(name = "created_at")
+    private LocalDateTime createdAt = LocalDateTime.now();
+    
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt = LocalDateTime.now();
+
+    // Default constructor
+    public ConversionJob() {
+    }
+    
+    // Constructor with essential fields
+    public ConversionJob(String fileId, String inputPath, String outputName) {
+        this.fileId = fileId;
+        this.inputPath = inputPath;
+        this.outputName = outputName;
+    }
+
+    // Getters and setters
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getInputPath() {
+        return inputPath;
+    }
+
+    public void setInputPath(String inputPath) {
+        this.inputPath = inputPath;
+    }
+
+    public String getOutputName() {
+        return outputName;
+    }
+
+    public void setOutputName(String outputName) {
+        this.outputName = outputName;
+    }
+
+    public String getSourceHash() {
+        return sourceHash;
+    }
+
+    public void setSourceHash(String sourceHash) {
+        this.sourceHash = sourceHash;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    public String getSubmittedBy() {
+        return submittedBy;
+    }
+
+    public void setSubmittedBy(String submittedBy) {
+        this.submittedBy = submittedBy;
+    }
+
+    public EncoderPreset getEncoderPreset() {
+        return encoderPreset;
+    }
+
+    public void setEncoderPreset(EncoderPreset encoderPreset) {
+        this.encoderPreset = encoderPreset;
+    }
+
+    public boolean isUpgradePending() {
+        return upgradePending;
+    }
+
+    public void setUpgradePending(boolean upgradePending) {
+        this.upgradePending = upgradePending;
+    }
+
+    public MediaInfo getMediaInfo() {
+        return mediaInfo;
+    }
+
+    public void setMediaInfo(MediaInfo mediaInfo) {
+        this.mediaInfo = mediaInfo;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -8,9 +8,12 @@ public class ConversionProgress {
     
     private String fileId;
     private int percentComplete;
-    private String status; // "processing", "complete", "error"
+    private String status; // "queued", "processing", "preview", "complete", "error", "cancelled"
     private String message;
-    private String resultFile; // Only set when status is "complete"
+    private String resultFile; // The full-quality file once "complete", the preview before that if one is playable
+    private String priority; // Scheduling class, set while queued and when a worker picks the job up
+    private Integer queuePosition; // 1 = next to run, only set while queued
+    private Long queueWaitMillis; // Time spent waiting for a worker so far
     
     public ConversionProgress() {
         // Required empty constructor for Jackson serialization
@@ -63,6 +66,30 @@ public class ConversionProgress {
         this.resultFile = resultFile;
     }
     
+    public String getPriority() {
+        return priority;
+    }
+
+    public void setPriority(String priority) {
+        this.priority = priority;
+    }
+
+    public Integer getQueuePosition() {
+        return queuePosition;
+    }
+
+    public void setQueuePosition(Integer queuePosition) {
+        this.queuePosition = queuePosition;
+    }
+
+    public Long getQueueWaitMillis() {
+        return queueWaitMillis;
+    }
+
+    public void setQueueWaitMillis(Long queueWaitMillis) {
+        this.queueWaitMillis = queueWaitMillis;
+    }
+    
     @Override
     public String toString() {
         return "ConversionProgress{" +
@@ -71,6 +98,9 @@ public class ConversionProgress {
                 ", status='" + status + '\'' +
                 ", message='" + message + '\'' +
                 ", resultFile='" + resultFile + '\'' +
+                ", priority='" + priority + '\'' +
+                ", queuePosition=" + queuePosition +
+                ", queueWaitMillis=" + queueWaitMillis +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package com.bitzomax.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * VP9 speed/quality trade-offs, from best compression to fastest encode.
+ * QUALITY keeps the quality target every conversion used before presets were adaptive
+ * (CRF 30, "good" deadline), but at cpu-used 1 with row multithreading instead of the
+ * libvpx default of cpu-used 0 on a single row thread.
+ */
+public enum EncoderPreset {
+    QUALITY("good", 1, 30, 2.0),
+    BALANCED("good", 3, 31, 1.0),
+    FAST("good", 5, 33, 0.5),
+    REALTIME("realtime", 8, 36, 0.25);
+
+    private final String deadline;
+    private final int cpuUsed;
+    private final int crf;
+    private final double initialEncodeFactor;
+
+    EncoderPreset(String deadline, int cpuUsed, int crf, double initialEncodeFactor) {
+        this.deadline = deadline;
+        this.cpuUsed = cpuUsed;
+        this.crf = crf;
+        this.initialEncodeFactor = initialEncodeFactor;
+    }
+
+    public String getDeadline() {
+        return deadline;
+    }
+
+    public int getCpuUsed() {
+        return cpuUsed;
+    }
+
+    public int getCrf() {
+        return crf;
+    }
+
+    /**
+     * @return Assumed encode time per second of media until real encodes have been measured
+     */
+    public double getInitialEncodeFactor() {
+        return initialEncodeFactor;
+    }
+
+    /**
+     * @return libvpx-vp9 options for the FFmpeg CLI, in constant quality mode
+     */
+    public List<String> ffmpegVideoOptions() {
+        List<String> options = new ArrayList<>(ffmpegSpeedOptions());
+        options.addAll(List.of("-crf", String.valueOf(crf), "-b:v", "0"));
+        return options;
+    }
+
+    /**
+     * @return Only the libvpx-vp9 speed options, for encodes that set their own rate control
+     */
+    public List<String> ffmpegSpeedOptions() {
+        return List.of(
+            "-deadline", deadline,
+            "-cpu-used", String.valueOf(cpuUsed),
+            "-row-mt", "1"
+        );
+    }
+}
@@ -0,0 +1,67 @@
+package com.bitzomax.model;
+
+import java.util.List;
+
+/**
+ * Result of probing a media file once: container, stream codecs and basic stream properties.
+ * Shared by progress calculation, conversion strategy selection and song metadata.
+ *
+ * @param durationMillis Duration of the file, 0 if unknown
+ * @param formatName Container format as reported by FFmpeg (e.g. "mov,mp4,m4a,3gp,3g2,mj2")
+ * @param videoCodecs Codec names of all video streams, excluding attached pictures
+ * @param audioCodecs Codec names of all audio streams
+ * @param width Width of the first video stream, 0 if there is none
+ * @param height Height of the first video stream, 0 if there is none
+ * @param frameRate Frame rate of the first video stream, 0 if unknown
+ * @param bitRate Overall bit rate in bits per second, 0 if unknown
+ * @param sampleRate Sample rate of the first audio stream, 0 if there is none
+ * @param channels Channel count of the first audio stream, 0 if there is none
+ */
+public record MediaInfo(
+        long durationMillis,
+        String formatName,
+        List<String> videoCodecs,
+        List<String> audioCodecs,
+        int width,
+        int height,
+        double frameRate,
+        long bitRate,
+        int sampleRate,
+        int channels) {
+
+    public static final MediaInfo UNKNOWN = new MediaInfo(0, null, List.of(), List.of(), 0, 0, 0, 0, 0, 0);
+
+    public MediaInfo {
+        videoCodecs = videoCodecs != null ? List.copyOf(videoCodecs) : List.of();
+        audioCodecs = audioCodecs != null ? List.copyOf(audioCodecs) : List.of();
+    }
+
+    public boolean hasVideo() {
+        return !videoCodecs.isEmpty();
+    }
+
+    public boolean hasAudio() {
+        return !audioCodecs.isEmpty();
+    }
+
+    /**
+     * @return Codec of the first video stream, or null for audio-only files
+     */
+    public String videoCodec() {
+        return hasVideo() ? videoCodecs.get(0) : null;
+    }
+
+    /**
+     * @return Codec of the first audio stream, or null for silent files
+     */
+    public String audioCodec() {
+        return hasAudio() ? audioCodecs.get(0) : null;
+    }
+
+    /**
+     * @return Duration rounded to whole seconds, or null if unknown
+     */
+    public Integer durationSeconds() {
+        return durationMillis > 0 ? (int) Math.round(durationMillis / 1000.0) : null;
+    }
+}
@@ -0,0 +1,130 @@
+package com.bitzomax.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * A resumable upload that is sent in offset-addressed chunks.
+ * The bytes received so far live in a part file; its size is the current offset.
+ */
+@Entity
+@Table(name = "upload_sessions")
+public class UploadSession {
+
+    public enum Status {
+        ACTIVE,
+        COMPLETED,
+        ABORTED
+    }
+
+    public enum Target {
+        SONG,
+        COVER,
+        CONVERT
+    }
+
+    @Id
+    @Column(length = 36)
+    private String id;
+    
+    @Column(name = "file_name", nullable = false)
+    private String fileName;
+    
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private Target target;
+    
+    @Column(name = "total_length", nullable = false)
+    private long totalLength;
+    
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private Status status = Status.ACTIVE;
+    
+    // Stored file name (or conversion file ID) once the upload is complete
+    @Column(name = "result_name")
+    private String resultName;
+    
+    @Column(name = "created_at")
+    private LocalDateTime createdAt = LocalDateTime.now();
+    
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt = LocalDateTime.now();
+
+    // Default constructor
+    public UploadSession() {
+    }
+    
+    // Constructor with essential fields
+    public UploadSession(String id, String fileName, Target target, long totalLength) {
+        this.id = id;
+        this.fileName = fileName;
+        this.target = target;
+        this.totalLength = totalLength;
+    }
+
+    // Getters and setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public Target getTarget() {
+        return target;
+    }
+
+    public void setTarget(Target target) {
+        this.target = target;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public void setTotalLength(long totalLength) {
+        this.totalLength = totalLength;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getResultName() {
+        return resultName;
+    }
+
+    public void setResultName(String resultName) {
+        this.resultName = resultName;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,28 @@
+package com.bitzomax.repository;
+
+import com.bitzomax.model.ConversionJob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface ConversionJobRepository extends JpaRepository<ConversionJob, Long> {
+    
+    Optional<ConversionJob> findByFileId(String fileId);
+    
+    Optional<ConversionJob> findFirstByOutputNameAndStatusOrderByUpdatedAtDesc(String outputName, ConversionJob.Status status);
+    
+    Optional<ConversionJob> findFirstBySourceHashAndStatusOrderByUpdatedAtDesc(String sourceHash, ConversionJob.Status status);
+    
+    // Jobs that were queued or running when the application stopped
+    List<ConversionJob> findByStatusInOrderByCreatedAtAsc(Collection<ConversionJob.Status> statuses);
+    
+    // Oldest output still waiting for a re-encode with the QUALITY preset
+    Optional<ConversionJob> findFirstByStatusAndUpgradePendingTrueOrderByUpdatedAtAsc(ConversionJob.Status status);
+    
+    // Latest job converting a staged input, to tell whether the input is still needed
+    Optional<ConversionJob> findFirstByInputPathOrderByUpdatedAtDesc(String inputPath);
+}
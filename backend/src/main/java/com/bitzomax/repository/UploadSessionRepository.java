@@ -0,0 +1,15 @@
+package com.bitzomax.repository;
+
+import com.bitzomax.model.UploadSession;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface UploadSessionRepository extends JpaRepository<UploadSession, String> {
+    
+    // Sessions nobody has written to for a while, candidates for cleanup
+    List<UploadSession> findByStatusAndUpdatedAtBefore(UploadSession.Status status, LocalDateTime cutoff);
+}
@@ -0,0 +1,102 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Picks the VP9 preset for each encode from the work waiting behind it.
+ * The queue should drain within {@code conversion.presets.target-drain-seconds}; the
+ * slowest (best compressing) preset that achieves this is used. How long a preset
+ * takes per second of media is learned from finished single FFmpeg encodes, starting
+ * from the preset's built-in estimate.
+ * With {@code conversion.presets.upgrade-when-idle}, outputs encoded with a faster preset
+ * are re-encoded with the QUALITY preset once the workers have nothing else to do.
+ */
+@Service
+public class AdaptivePresetSelector {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptivePresetSelector.class);
+
+    // Weight of the newest measurement in the moving average
+    private static final double SMOOTHING = 0.3;
+
+    private final boolean adaptive;
+    private final double targetDrainSeconds;
+    private final boolean upgradeWhenIdle;
+
+    // Encode seconds per second of media, per preset
+    private final Map<EncoderPreset, Double> encodeFactors = new EnumMap<>(EncoderPreset.class);
+
+    public AdaptivePresetSelector(
+            @Value("${conversion.presets.adaptive:true}") boolean adaptive,
+            @Value("${conversion.presets.target-drain-seconds:900}") double targetDrainSeconds,
+            @Value("${conversion.presets.upgrade-when-idle:false}") boolean upgradeWhenIdle) {
+        this.adaptive = adaptive;
+        this.targetDrainSeconds = targetDrainSeconds;
+        this.upgradeWhenIdle = upgradeWhenIdle;
+        for (EncoderPreset preset : EncoderPreset.values()) {
+            encodeFactors.put(preset, preset.getInitialEncodeFactor());
+        }
+    }
+
+    /**
+     * @param backlogSeconds Media duration of the jobs still waiting in the queue
+     * @param jobSeconds Media duration of the job about to be encoded
+     * @param workers Number of encodes that run at the same time
+     * @return The slowest preset that drains the queue within the target time; QUALITY
+     *         if nothing is waiting, since then a slow encode delays nobody
+     */
+    public synchronized EncoderPreset choose(double backlogSeconds, double jobSeconds, int workers) {
+        if (!adaptive || backlogSeconds <= 0) {
+            return EncoderPreset.QUALITY;
+        }
+        double mediaSeconds = backlogSeconds + jobSeconds;
+        for (EncoderPreset preset : EncoderPreset.values()) {
+            if (mediaSeconds * encodeFactors.get(preset) / Math.max(1, workers) <= targetDrainSeconds) {
+                return preset;
+            }
+        }
+        return EncoderPreset.REALTIME;
+    }
+
+    /**
+     * @return true if outputs of the preset are re-encoded with the QUALITY preset when idle,
+     *         so their staged inputs have to be kept
+     */
+    public boolean isUpgradable(EncoderPreset preset) {
+        return upgradeWhenIdle && preset != EncoderPreset.QUALITY;
+    }
+
+    public boolean isUpgradeWhenIdle() {
+        return upgradeWhenIdle;
+    }
+
+    /**
+     * Learn from a finished single FFmpeg encode how fast its preset is on this machine
+     * @param preset The preset the encode used
+     * @param mediaMillis Duration of the encoded media
+     * @param encodeMillis Wall-clock time the encode took
+     */
+    public synchronized void recordEncode(EncoderPreset preset, long mediaMillis, long encodeMillis) {
+        if (mediaMillis <= 0 || encodeMillis <= 0) {
+            return;
+        }
+        double measured = (double) encodeMillis / mediaMillis;
+        double factor = encodeFactors.get(preset) * (1 - SMOOTHING) + measured * SMOOTHING;
+        encodeFactors.put(preset, factor);
+        logger.debug("{} preset now encodes at {}x media duration", preset, String.format("%.2f", factor));
+    }
+
+    /**
+     * @return Current encode time per second of media of every preset
+     */
+    public synchronized Map<EncoderPreset, Double> getEncodeFactors() {
+        return new EnumMap<>(encodeFactors);
+    }
+}
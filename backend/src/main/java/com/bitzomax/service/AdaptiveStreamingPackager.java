@@ -0,0 +1,190 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import com.bitzomax.model.MediaInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Packages a converted video for adaptive bitrate playback: a ladder of VP9 renditions
+ * plus audio, cut into WebM segments and described by a DASH manifest, so players can
+ * start after the first segment and switch quality with the connection.
+ * All renditions come from a single FFmpeg process, so the source is decoded once.
+ * WebM segments can only be described by DASH; HLS would need MP4 segments.
+ */
+@Service
+public class AdaptiveStreamingPackager {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveStreamingPackager.class);
+
+    public static final String MANIFEST_NAME = "manifest.mpd";
+
+    @Autowired
+    private MediaToolchain mediaToolchain;
+
+    /**
+     * One rendition of the ladder
+     * @param height Frame height; the width follows the source aspect ratio
+     * @param bitrate Target video bit rate in FFmpeg notation, e.g. "1000k"
+     */
+    public record Rung(int height, String bitrate) {
+    }
+
+    private final boolean enabled;
+    private final List<Rung> ladder;
+    private final int segmentSeconds;
+
+    public AdaptiveStreamingPackager(
+            @Value("${conversion.abr.enabled:false}") boolean enabled,
+            @Value("${conversion.abr.ladder:240:400k,480:1000k,720:2500k}") String ladder,
+            @Value("${conversion.abr.segment-seconds:4}") int segmentSeconds) {
+        this.enabled = enabled;
+        this.ladder = parseLadder(ladder);
+        this.segmentSeconds = Math.max(1, segmentSeconds);
+    }
+
+    /**
+     * @param mediaInfo Probe result of a converted file
+     * @return true if the file should be packaged: packaging is on, the FFmpeg CLI can encode
+     *         VP9 and the file has video (audio-only files have nothing to adapt)
+     */
+    public boolean isApplicable(MediaInfo mediaInfo) {
+        return enabled && mediaInfo != null && mediaInfo.hasVideo() && mediaToolchain.canEncodeWebM();
+    }
+
+    /**
+     * Encode the ladder and write the manifest with its segments
+     * @param source The converted WebM
+     * @param mediaInfo Probe result of the source
+     * @param outputDir Empty directory to write the manifest and segments to
+     * @param preset Speed preset of the rendition encodes
+     * @param cancellation Cancellation token; cancelling kills the FFmpeg process
+     * @return true if packaging succeeded
+     */
+    public boolean packageForStreaming(File source, MediaInfo mediaInfo, Path outputDir, EncoderPreset preset,
+                                       ConversionCancellation cancellation) {
+        List<Rung> rungs = rungsFor(mediaInfo);
+        Process process = null;
+        try {
+            process = cancellation.register(new ProcessBuilder(command(source, mediaInfo, outputDir, rungs, preset))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start());
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                logger.warn("Packaging {} for adaptive streaming failed with exit code {}", source, exitCode);
+            }
+            return exitCode == 0 && Files.exists(outputDir.resolve(MANIFEST_NAME));
+        } catch (IOException e) {
+            logger.warn("Packaging {} for adaptive streaming failed: {}", source, e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            // Shutting down; don't leave the encoder running behind us
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return The rungs no taller than the source; the lowest rung at source height
+     *         if the source is smaller than all of them
+     */
+    private List<Rung> rungsFor(MediaInfo mediaInfo) {
+        List<Rung> rungs = ladder.stream()
+            .filter(rung -> mediaInfo.height() <= 0 || rung.height() <= mediaInfo.height())
+            .toList();
+        if (rungs.isEmpty()) {
+            return List.of(new Rung(mediaInfo.height(), ladder.get(0).bitrate()));
+        }
+        return rungs;
+    }
+
+    private List<String> command(File source, MediaInfo mediaInfo, Path outputDir, List<Rung> rungs,
+                                 EncoderPreset preset) {
+        // Decode once, split the frames and scale each copy to its rung
+        StringBuilder filter = new StringBuilder("[0:v:0]split=").append(rungs.size());
+        for (int i = 0; i < rungs.size(); i++) {
+            filter.append("[s").append(i).append(']');
+        }
+        for (int i = 0; i < rungs.size(); i++) {
+            filter.append(";[s").append(i).append("]scale=-2:").append(rungs.get(i).height()).append("[v").append(i).append(']');
+        }
+
+        List<String> command = new ArrayList<>(List.of(
+            mediaToolchain.getFfmpegPath(), "-y",
+            "-i", source.getAbsolutePath(),
+            "-filter_complex", filter.toString()
+        ));
+        for (int i = 0; i < rungs.size(); i++) {
+            command.addAll(List.of("-map", "[v" + i + "]"));
+        }
+        if (mediaInfo.hasAudio()) {
+            command.addAll(List.of("-map", "0:a:0", "-c:a", mediaToolchain.getWebMAudioEncoder()));
+        }
+
+        // Keyframes on every segment boundary, at the same times in every rendition, so
+        // players can switch between renditions at any segment
+        command.addAll(List.of("-c:v", MediaToolchain.ENCODER_VP9));
+        command.addAll(preset.ffmpegSpeedOptions());
+        command.addAll(List.of(
+            "-crf", String.valueOf(preset.getCrf()),
+            "-force_key_frames", "expr:gte(t,n_forced*" + segmentSeconds + ")"
+        ));
+        for (int i = 0; i < rungs.size(); i++) {
+            // Constrained quality: the rung's bit rate caps the constant quality encode
+            command.addAll(List.of("-b:v:" + i, rungs.get(i).bitrate()));
+        }
+
+        command.addAll(List.of(
+            "-f", "dash",
+            "-dash_segment_type", "webm",
+            "-seg_duration", String.valueOf(segmentSeconds),
+            "-use_template", "1",
+            "-use_timeline", "1",
+            "-adaptation_sets", mediaInfo.hasAudio() ? "id=0,streams=v id=1,streams=a" : "id=0,streams=v",
+            "-init_seg_name", "init-$RepresentationID$.webm",
+            "-media_seg_name", "chunk-$RepresentationID$-$Number%05d$.webm",
+            outputDir.resolve(MANIFEST_NAME).toString()
+        ));
+        return command;
+    }
+
+    /**
+     * @param ladder Rungs as "height:bitrate", comma separated, e.g. "240:400k,480:1000k"
+     * @return The rungs, lowest first
+     * @throws IllegalArgumentException if the ladder can't be parsed
+     */
+    private static List<Rung> parseLadder(String ladder) {
+        List<Rung> rungs = new ArrayList<>();
+        for (String entry : ladder.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2 || !parts[0].trim().matches("\\d{1,5}")
+                    || !parts[1].trim().toLowerCase(Locale.ROOT).matches("\\d+[km]?")) {
+                throw new IllegalArgumentException("Invalid ladder rung '" + entry + "', expected height:bitrate");
+            }
+            int height = Integer.parseInt(parts[0].trim());
+            if (height <= 0) {
+                throw new IllegalArgumentException("Invalid ladder rung '" + entry + "', the height must be positive");
+            }
+            rungs.add(new Rung(height, parts[1].trim()));
+        }
+        if (rungs.isEmpty()) {
+            throw new IllegalArgumentException("The adaptive streaming ladder is empty");
+        }
+        rungs.sort(Comparator.comparingInt(Rung::height));
+        return List.copyOf(rungs);
+    }
+}
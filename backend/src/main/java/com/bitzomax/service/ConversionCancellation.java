@@ -0,0 +1,119 @@
+package com.bitzomax.service;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cancellation token of one conversion. Encoders register the processes they start
+ * and poll {@link #isCancelled()} between frames or steps; cancelling kills every
+ * registered process tree at once, so the CPU is freed without waiting for the encoder.
+ */
+public class ConversionCancellation {
+
+    private enum State {
+        PENDING,
+        RUNNING,
+        CANCELLED
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.PENDING);
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    private final Set<ConversionCancellation> attempts = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Mark the conversion as started by a worker
+     * @return false if it was cancelled while it was still queued
+     */
+    public boolean start() {
+        return state.compareAndSet(State.PENDING, State.RUNNING);
+    }
+
+    /**
+     * Cancel the conversion and kill its encoder processes
+     * @return true if the conversion had not started yet, so the caller has to clean up after it;
+     *         false if a worker is running it and will clean up itself
+     */
+    public boolean cancel() {
+        State previous = state.getAndSet(State.CANCELLED);
+        if (previous == State.RUNNING) {
+            processes.forEach(ConversionCancellation::destroyTree);
+        }
+        attempts.forEach(ConversionCancellation::cancel);
+        return previous == State.PENDING;
+    }
+
+    /**
+     * Start a token for one attempt at the conversion that can be given up on its own, such as
+     * the concurrent segment encodes of a parallel encode that fails over to another encoder.
+     * Cancelling the conversion cancels the attempt too
+     * @return A running token; pass it to {@link #endAttempt} once the attempt is over
+     */
+    public ConversionCancellation startAttempt() {
+        ConversionCancellation attempt = new ConversionCancellation();
+        attempt.start();
+        attempts.add(attempt);
+        if (isCancelled()) {
+            attempt.cancel();
+        }
+        return attempt;
+    }
+
+    /**
+     * End an attempt, successful or not: kill the processes it still runs and wait for them
+     * to exit, so they stop using CPU and the caller can delete their working files
+     * @param timeoutMillis How long to wait for the killed processes
+     */
+    public void endAttempt(ConversionCancellation attempt, long timeoutMillis) {
+        attempts.remove(attempt);
+        attempt.cancel();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Process process : List.copyOf(attempt.processes)) {
+            try {
+                process.onExit().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                // Killed forcibly, it is gone shortly
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return state.get() == State.CANCELLED;
+    }
+
+    /**
+     * @throws CancellationException if the conversion was cancelled
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Conversion was cancelled");
+        }
+    }
+
+    /**
+     * Track an encoder process so cancelling kills it. A process registered after
+     * cancellation is killed right away
+     * @return The process, for chaining
+     */
+    public Process register(Process process) {
+        processes.add(process);
+        if (isCancelled()) {
+            destroyTree(process);
+        }
+        process.onExit().thenRun(() -> processes.remove(process));
+        return process;
+    }
+
+    private static void destroyTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+}
@@ -0,0 +1,822 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.EncoderPreset;
+import com.bitzomax.model.MediaInfo;
+import com.bitzomax.repository.ConversionJobRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs WebM conversions on a bounded worker pool so that encodes never
+ * hold a servlet request thread.
+ * At most {@code conversion.worker-threads} encodes run at the same time and at most
+ * {@code conversion.queue-capacity} more wait for a worker; anything beyond that is rejected.
+ * Every job is persisted as a {@link ConversionJob}, and jobs left queued or running by a
+ * previous shutdown are re-queued when the application starts.
+ * Waiting jobs are ordered by {@link FairShareScheduler}, so one user's bulk upload
+ * does not hold back everybody else's. The encoder preset of each job is picked from the
+ * backlog when a worker starts it ({@link AdaptivePresetSelector}).
+ */
+@Service
+public class ConversionJobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversionJobService.class);
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private ProgressUpdateService progressUpdateService;
+
+    @Autowired
+    private ConversionJobRepository conversionJobRepository;
+
+    @Autowired
+    private MediaProbeService mediaProbeService;
+
+    @Autowired
+    private StreamingEncoder streamingEncoder;
+
+    @Autowired
+    private AdaptivePresetSelector adaptivePresetSelector;
+
+    @Autowired
+    private AdaptiveStreamingPackager adaptiveStreamingPackager;
+
+    private final FairShareScheduler scheduler = new FairShareScheduler();
+
+    private final ThreadPoolExecutor executor;
+    private final int workers;
+
+    // Admission control: running + queued jobs may not exceed this
+    private final int capacity;
+    private final AtomicInteger pendingJobs = new AtomicInteger();
+
+    // Backfill work on finished jobs (DASH packaging, preset upgrades), queued or running.
+    // Counted apart from pendingJobs, so it never takes a slot admission control keeps for uploads
+    private final AtomicInteger pendingBackfill = new AtomicInteger();
+    private final Set<FairShareScheduler.Task> backfillTasks = ConcurrentHashMap.newKeySet();
+
+    private final int maxAttempts;
+
+    // File IDs of submissions between their check for a conversion in progress and saving their job
+    private final Set<String> submitting = ConcurrentHashMap.newKeySet();
+
+    // Cancellation tokens of jobs that are queued or running, by file ID
+    private final Map<String, ConversionCancellation> cancellations = new ConcurrentHashMap<>();
+
+    private final long streamingStartTimeoutSeconds;
+
+    // Input path recorded for streaming jobs, which have no staged input to recover from
+    private static final String STREAM_INPUT = "pipe:0";
+
+    public ConversionJobService(
+            @Value("${conversion.worker-threads:2}") int workerThreads,
+            @Value("${conversion.queue-capacity:20}") int queueCapacity,
+            @Value("${conversion.max-attempts:3}") int maxAttempts,
+            @Value("${conversion.streaming.start-timeout-seconds:10}") long streamingStartTimeoutSeconds) {
+
+        this.workers = Math.max(1, workerThreads);
+        AtomicInteger threadCounter = new AtomicInteger();
+
+        this.executor = new ThreadPoolExecutor(
+            workers, workers,
+            0L, TimeUnit.MILLISECONDS,
+            scheduler.getQueue(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "webm-conversion-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.capacity = workers + Math.max(0, queueCapacity);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.streamingStartTimeoutSeconds = streamingStartTimeoutSeconds;
+    }
+
+    /**
+     * Accept an upload for conversion and return immediately.
+     * The upload is staged on the calling thread, the encode runs on the worker pool.
+     * If an identical upload was converted before, the job completes at once with that result.
+     *
+     * @param file The video file to convert
+     * @param providedFileId Optional client-provided file ID for tracking progress
+     * @param submittedBy The user (or client address) the job is accounted to for fair sharing
+     * @param priority Scheduling class of the job
+     * @return The accepted job, carrying the file ID progress updates are published under
+     *         and the name of the converted file
+     * @throws RejectedExecutionException if the worker pool and its queue are full
+     * @throws IllegalStateException if a job with the same file ID is still queued or running
+     */
+    public ConversionJob submit(MultipartFile file, String providedFileId,
+                                String submittedBy, ConversionJob.Priority priority) {
+        return submit(providedFileId, submittedBy, priority,
+            fileId -> fileStorageService.stageForConversion(file, fileId));
+    }
+
+    /**
+     * Accept a completely received resumable upload for conversion.
+     * The part file is moved into the staging location instead of being copied.
+     *
+     * @param assembledFile The complete part file of an upload session
+     * @param originalFilename The name the client gave the upload
+     * @param providedFileId Optional client-provided file ID for tracking progress
+     * @param submittedBy The user (or client address) the job is accounted to for fair sharing
+     * @param priority Scheduling class of the job
+     * @return The accepted job
+     * @throws RejectedExecutionException if the worker pool and its queue are full
+     * @throws IllegalStateException if a job with the same file ID is still queued or running
+     */
+    public ConversionJob submitAssembled(Path assembledFile, String originalFilename, String providedFileId,
+                                         String submittedBy, ConversionJob.Priority priority) {
+        return submit(providedFileId, submittedBy, priority,
+            fileId -> fileStorageService.stageAssembledFile(assembledFile, originalFilename, fileId));
+    }
+
+    private ConversionJob submit(String providedFileId, String submittedBy, ConversionJob.Priority priority,
+                                 Function<String, FileStorageService.StagedUpload> stager) {
+        String fileId = providedFileId != null ? providedFileId : UUID.randomUUID().toString();
+
+        Optional<ConversionJob> existing = claim(fileId);
+        try {
+            if (pendingJobs.incrementAndGet() > capacity) {
+                pendingJobs.decrementAndGet();
+                throw new RejectedExecutionException("Conversion queue is full, try again later");
+            }
+            return admit(fileId, existing.orElseGet(ConversionJob::new), submittedBy, priority, stager);
+        } finally {
+            submitting.remove(fileId);
+        }
+    }
+
+    /**
+     * Stage, probe and queue an upload that holds a queue slot. The slot is given back if
+     * anything on the way fails, or if the job completes at once with an earlier result
+     */
+    private ConversionJob admit(String fileId, ConversionJob job, String submittedBy, ConversionJob.Priority priority,
+                                Function<String, FileStorageService.StagedUpload> stager) {
+        FileStorageService.StagedUpload stagedUpload = null;
+        ConversionJob queuedJob = null;
+        boolean dispatched = false;
+        try {
+            progressUpdateService.beginConversion(fileId);
+            stagedUpload = stager.apply(fileId);
+
+            job.setFileId(fileId);
+            job.setInputPath(stagedUpload.path().toString());
+            job.setOutputName(stagedUpload.outputFileName());
+            job.setSourceHash(stagedUpload.contentHash());
+            job.setSubmittedBy(submittedBy);
+            job.setPriority(priority);
+            job.setEncoderPreset(null);
+            job.setUpgradePending(false);
+            job.setAttempts(0);
+            job.setErrorMessage(null);
+            job.setCreatedAt(LocalDateTime.now());
+            job.setUpdatedAt(LocalDateTime.now());
+
+            // Identical source already converted: reuse the result without touching the encoder
+            if (fileStorageService.hasConvertedFile(stagedUpload.outputFileName())) {
+                conversionJobRepository.findFirstBySourceHashAndStatusOrderByUpdatedAtDesc(
+                        stagedUpload.contentHash(), ConversionJob.Status.DONE)
+                    .ifPresent(previous -> job.setMediaInfo(previous.getMediaInfo()));
+                job.setStatus(ConversionJob.Status.DONE);
+                ConversionJob reused = conversionJobRepository.save(job);
+                deleteQuietly(stagedUpload.path());
+                progressUpdateService.sendCompletionUpdate(fileId, reused.getOutputName());
+                return reused;
+            }
+
+            job.setStatus(ConversionJob.Status.QUEUED);
+            job.setMediaInfo(mediaProbeService.probe(stagedUpload.path().toFile()));
+            queuedJob = conversionJobRepository.save(job);
+            dispatch(queuedJob);
+            dispatched = true;
+        } catch (RuntimeException e) {
+            cancellations.remove(fileId);
+            if (stagedUpload != null) {
+                deleteQuietly(stagedUpload.path());
+            }
+            if (queuedJob != null) {
+                conversionJobRepository.delete(queuedJob);
+            }
+            throw e instanceof DataIntegrityViolationException ? alreadyInProgress(fileId, e) : e;
+        } finally {
+            // Once dispatched, runConversion() gives the slot back
+            if (!dispatched) {
+                pendingJobs.decrementAndGet();
+            }
+        }
+
+        publishQueuePositions();
+        return queuedJob;
+    }
+
+    /**
+     * Reserve a file ID while a job is submitted under it. Until the job is saved as queued,
+     * the check for a conversion in progress can't see it, so a concurrent submission with
+     * the same ID would pass that check too. The caller releases the ID from {@link #submitting}
+     * once the job is saved or the submission has failed.
+     * @return The job recorded under the file ID before, if any
+     * @throws IllegalStateException if a job with the file ID is being submitted, queued or running
+     */
+    private Optional<ConversionJob> claim(String fileId) {
+        if (!submitting.add(fileId)) {
+            throw alreadyInProgress(fileId, null);
+        }
+        try {
+            Optional<ConversionJob> existing = conversionJobRepository.findByFileId(fileId);
+            if (existing.isPresent() && isActive(existing.get())) {
+                throw alreadyInProgress(fileId, null);
+            }
+            return existing;
+        } catch (RuntimeException e) {
+            submitting.remove(fileId);
+            throw e;
+        }
+    }
+
+    /**
+     * @param cause The unique constraint on the file ID, when another node saved a job with it first
+     */
+    private static IllegalStateException alreadyInProgress(String fileId, Exception cause) {
+        return new IllegalStateException("A conversion for file " + fileId + " is already in progress", cause);
+    }
+
+    /**
+     * Convert a request body while it is still arriving: the bytes are piped into the
+     * encoder's stdin on the calling thread, so nothing is written to disk before encoding
+     * starts. Needs a free worker right away, because the encoder has to consume the body.
+     * The content hash (and with it the output name) is only known once the body is consumed,
+     * so identical uploads are still encoded, but end up sharing one output file.
+     *
+     * @param body The raw upload
+     * @param contentLength Length of the upload, or -1 if unknown (used for progress only)
+     * @param providedFileId Optional client-provided file ID for tracking progress
+     * @param submittedBy The user (or client address) the job is accounted to
+     * @return The accepted job; the encoder may still be finishing its last frames
+     * @throws RejectedExecutionException if no worker became free in time
+     * @throws IllegalStateException if a job with the same file ID is still queued or running
+     */
+    public ConversionJob submitStream(InputStream body, long contentLength, String providedFileId,
+                                      String submittedBy) throws IOException {
+        String fileId = providedFileId != null ? providedFileId : UUID.randomUUID().toString();
+
+        CompletableFuture<Process> encoderStarted = new CompletableFuture<>();
+        CompletableFuture<String> contentHash = new CompletableFuture<>();
+        ConversionCancellation cancellation = new ConversionCancellation();
+        ConversionJob streamingJob;
+        Optional<ConversionJob> existing = claim(fileId);
+        try {
+            if (!streamingEncoder.isAvailable()) {
+                throw new RejectedExecutionException("Streaming conversion needs the FFmpeg CLI");
+            }
+            if (pendingJobs.incrementAndGet() > capacity) {
+                pendingJobs.decrementAndGet();
+                throw new RejectedExecutionException("Conversion queue is full, try again later");
+            }
+            streamingJob = admitStream(fileId, existing.orElseGet(ConversionJob::new), submittedBy,
+                encoderStarted, contentHash, cancellation);
+        } finally {
+            submitting.remove(fileId);
+        }
+
+        Process encoder;
+        try {
+            encoder = encoderStarted.get(streamingStartTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // Withdraw the job; the worker sees the cancelled future and skips it
+            encoderStarted.cancel(false);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RejectedExecutionException("No conversion worker became free for streaming", e);
+        }
+
+        MessageDigest digest = FileStorageService.newContentDigest();
+        try (OutputStream encoderInput = encoder.getOutputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            long transferred = 0;
+            int lastPercent = 5;
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                encoderInput.write(buffer, 0, read);
+                transferred += read;
+
+                if (contentLength > 0) {
+                    int percent = (int) Math.min(89, 5 + transferred * 84 / contentLength);
+                    if (percent > lastPercent) {
+                        lastPercent = percent;
+                        progressUpdateService.sendProgressUpdate(fileId, percent, "processing",
+                            "Encoding while the upload streams in: " + percent + "%");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            contentHash.completeExceptionally(e);
+            if (cancellation.isCancelled()) {
+                // The encoder was killed on purpose; the worker reports the cancellation
+                return streamingJob;
+            }
+            // Client went away or the encoder exited early; the worker reports the failure
+            encoder.destroy();
+            throw e;
+        }
+
+        String hash = HexFormat.of().formatHex(digest.digest());
+        contentHash.complete(hash);
+        streamingJob.setSourceHash(hash);
+        streamingJob.setOutputName(hash + ".webm");
+        return streamingJob;
+    }
+
+    /**
+     * Queue a streaming job that holds a queue slot, for the next free worker to start its
+     * encoder. The slot is given back if the job can't be queued
+     */
+    private ConversionJob admitStream(String fileId, ConversionJob job, String submittedBy,
+                                      CompletableFuture<Process> encoderStarted,
+                                      CompletableFuture<String> contentHash,
+                                      ConversionCancellation cancellation) {
+        ConversionJob streamingJob = null;
+        boolean dispatched = false;
+        try {
+            progressUpdateService.beginConversion(fileId);
+
+            Path workingFile = fileStorageService.streamingWorkingFile(fileId);
+            job.setFileId(fileId);
+            job.setInputPath(STREAM_INPUT);
+            job.setOutputName(workingFile.getFileName().toString());
+            job.setSourceHash(null);
+            job.setMediaInfo(null);
+            job.setSubmittedBy(submittedBy);
+            job.setPriority(ConversionJob.Priority.INTERACTIVE);
+            job.setEncoderPreset(null);
+            job.setUpgradePending(false);
+            job.setAttempts(0);
+            job.setErrorMessage(null);
+            job.setStatus(ConversionJob.Status.QUEUED);
+            job.setCreatedAt(LocalDateTime.now());
+            job.setUpdatedAt(LocalDateTime.now());
+            streamingJob = conversionJobRepository.save(job);
+
+            Long jobId = streamingJob.getId();
+            cancellations.put(fileId, cancellation);
+            executor.execute(scheduler.schedule(streamingJob, true, task -> runStreamingConversion(
+                jobId, workingFile, encoderStarted, contentHash, cancellation, task)));
+            dispatched = true;
+            return streamingJob;
+        } catch (RuntimeException e) {
+            cancellations.remove(fileId);
+            if (streamingJob != null) {
+                conversionJobRepository.delete(streamingJob);
+            }
+            throw e instanceof DataIntegrityViolationException ? alreadyInProgress(fileId, e) : e;
+        } finally {
+            // Once dispatched, runStreamingConversion() gives the slot back
+            if (!dispatched) {
+                pendingJobs.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Re-queue jobs that were queued or running when the application last stopped.
+     * Their staged inputs are still on disk, so only the encode has to be repeated.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recoverOrphanedJobs() {
+        List<ConversionJob> orphaned = conversionJobRepository.findByStatusInOrderByCreatedAtAsc(
+            EnumSet.of(ConversionJob.Status.QUEUED, ConversionJob.Status.RUNNING));
+
+        for (ConversionJob job : orphaned) {
+            if (STREAM_INPUT.equals(job.getInputPath())) {
+                deleteQuietly(fileStorageService.streamingWorkingFile(job.getFileId()));
+                markFailed(job, "Streaming upload was interrupted and has to be sent again");
+                continue;
+            }
+            if (!Files.exists(Paths.get(job.getInputPath()))) {
+                markFailed(job, "Staged input was lost before the conversion could finish");
+                continue;
+            }
+            if (job.getAttempts() >= maxAttempts) {
+                markFailed(job, "Giving up after " + job.getAttempts() + " attempt(s)");
+                continue;
+            }
+
+            logger.info("Re-queueing conversion {} interrupted while {}", job.getFileId(), job.getStatus());
+            job.setStatus(ConversionJob.Status.QUEUED);
+            job.setUpdatedAt(LocalDateTime.now());
+            conversionJobRepository.save(job);
+
+            // Recovered work is always accepted, even beyond the normal queue capacity
+            pendingJobs.incrementAndGet();
+            dispatch(job);
+        }
+    }
+
+    /**
+     * @param fileId The file ID returned by {@link #submit}
+     * @return The persisted job for the file ID, if any
+     */
+    public Optional<ConversionJob> findJob(String fileId) {
+        return conversionJobRepository.findByFileId(fileId);
+    }
+
+    /**
+     * @return Number of jobs waiting for a worker
+     */
+    public int getQueuedJobCount() {
+        return scheduler.size();
+    }
+
+    /**
+     * @return Number of jobs currently being encoded
+     */
+    public int getActiveJobCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return File IDs of the conversions that are queued or running; their working files are in use
+     */
+    public Set<String> getActiveFileIds() {
+        return Set.copyOf(cancellations.keySet());
+    }
+
+    /**
+     * Cancel a queued or running conversion. A running encoder is killed at once and
+     * its partial output deleted; a "cancelled" progress update is published either way.
+     *
+     * @param fileId The file ID of the conversion
+     * @return false if there is no queued or running conversion for the file ID
+     */
+    public boolean cancel(String fileId) {
+        ConversionCancellation cancellation = cancellations.get(fileId);
+        if (cancellation == null) {
+            return false;
+        }
+
+        logger.info("Cancelling conversion {}", fileId);
+        if (cancellation.cancel()) {
+            // Still queued: nothing runs yet, so clean up here instead of waiting for a worker
+            cancellations.remove(fileId);
+            if (scheduler.remove(task -> task.getFileId().equals(fileId) && !backfillTasks.contains(task))) {
+                // Taken off the queue before a worker saw it, so runConversion() will not count it down
+                pendingJobs.decrementAndGet();
+            }
+            conversionJobRepository.findByFileId(fileId).ifPresent(this::finishCancelled);
+            publishQueuePositions();
+        }
+        return true;
+    }
+
+    private void dispatch(ConversionJob job) {
+        Long jobId = job.getId();
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellations.put(job.getFileId(), cancellation);
+        executor.execute(scheduler.schedule(job, false, task -> runConversion(jobId, cancellation, task)));
+    }
+
+    /**
+     * Tell every waiting job where it stands in the queue
+     */
+    private void publishQueuePositions() {
+        // Backfill work belongs to jobs that have finished already, their subscribers saw them complete
+        List<FairShareScheduler.Task> waiting = scheduler.snapshot().stream()
+            .filter(task -> !backfillTasks.contains(task))
+            .toList();
+        for (int i = 0; i < waiting.size(); i++) {
+            FairShareScheduler.Task task = waiting.get(i);
+            progressUpdateService.recordScheduling(task.getFileId(), task.getPriorityLabel(),
+                i + 1, task.getQueueWaitMillis());
+            progressUpdateService.sendProgressUpdate(task.getFileId(), 0, "queued",
+                "Waiting for a free conversion worker: position " + (i + 1) + " of " + waiting.size()
+                    + " (" + task.getPriorityLabel() + ")");
+        }
+    }
+
+    /**
+     * Report that a worker picked a job up, and move everyone behind it up one place
+     */
+    private void reportStarted(FairShareScheduler.Task task) {
+        long waitMillis = task.getQueueWaitMillis();
+        logger.info("Conversion {} of {} started after {} ms in the {} queue",
+            task.getFileId(), task.getSubmitter(), waitMillis, task.getPriorityLabel());
+        progressUpdateService.recordScheduling(task.getFileId(), task.getPriorityLabel(), null, waitMillis);
+        progressUpdateService.sendProgressUpdate(task.getFileId(), 0, "processing",
+            "Picked up by a conversion worker after " + (waitMillis / 1000) + "s in the queue ("
+                + task.getPriorityLabel() + ")");
+        publishQueuePositions();
+    }
+
+    private void runConversion(Long jobId, ConversionCancellation cancellation, FairShareScheduler.Task task) {
+        try {
+            ConversionJob job = conversionJobRepository.findById(jobId).orElse(null);
+            if (job == null || !cancellation.start()) {
+                // Cancelled while queued, cancel() has cleaned up already
+                return;
+            }
+            reportStarted(task);
+            EncoderPreset preset = choosePreset(task);
+
+            job.setStatus(ConversionJob.Status.RUNNING);
+            job.setEncoderPreset(preset);
+            job.setAttempts(job.getAttempts() + 1);
+            job.setUpdatedAt(LocalDateTime.now());
+            conversionJobRepository.save(job);
+
+            try {
+                MediaInfo mediaInfo = job.getMediaInfo();
+                if (mediaInfo == null) {
+                    mediaInfo = mediaProbeService.probe(Paths.get(job.getInputPath()).toFile());
+                    job.setMediaInfo(mediaInfo);
+                }
+                Path input = Paths.get(job.getInputPath());
+                fileStorageService.convertStagedFile(input, job.getFileId(),
+                    job.getOutputName(), mediaInfo, preset, cancellation);
+                // The input is only left behind if the output is to be re-encoded later
+                job.setUpgradePending(Files.exists(input));
+                job.setStatus(ConversionJob.Status.DONE);
+                job.setErrorMessage(null);
+                job.setUpdatedAt(LocalDateTime.now());
+                conversionJobRepository.save(job);
+                schedulePackaging(job);
+            } catch (CancellationException e) {
+                finishCancelled(job);
+            } catch (Exception e) {
+                logger.error("Conversion of {} failed: {}", job.getFileId(), e.getMessage(), e);
+                markFailed(job, e.getMessage());
+            }
+        } finally {
+            cancellations.values().remove(cancellation);
+            pendingJobs.decrementAndGet();
+        }
+    }
+
+    private void runStreamingConversion(Long jobId, Path workingFile,
+                                        CompletableFuture<Process> encoderStarted,
+                                        CompletableFuture<String> contentHash,
+                                        ConversionCancellation cancellation,
+                                        FairShareScheduler.Task task) {
+        try {
+            ConversionJob job = conversionJobRepository.findById(jobId).orElse(null);
+            if (job == null) {
+                return;
+            }
+            if (encoderStarted.isCancelled()) {
+                markFailed(job, "No conversion worker became free for streaming");
+                return;
+            }
+            if (!cancellation.start()) {
+                encoderStarted.cancel(false);
+                return;
+            }
+            reportStarted(task);
+            EncoderPreset preset = choosePreset(task);
+
+            job.setStatus(ConversionJob.Status.RUNNING);
+            job.setEncoderPreset(preset);
+            job.setAttempts(job.getAttempts() + 1);
+            job.setUpdatedAt(LocalDateTime.now());
+            conversionJobRepository.save(job);
+
+            try {
+                StreamingEncoder.Encode encode = streamingEncoder.start(job.getFileId(), workingFile.toFile(), preset);
+                Process encoder = cancellation.register(encode.process());
+                if (!encoderStarted.complete(encoder)) {
+                    // The request gave up waiting for a worker
+                    encoder.destroyForcibly();
+                    markFailed(job, "No conversion worker became free for streaming");
+                    return;
+                }
+
+                int exitCode = encoder.waitFor();
+                if (cancellation.isCancelled()) {
+                    deleteQuietly(workingFile);
+                    finishCancelled(job);
+                    return;
+                }
+                String hash = contentHash.get();
+                if (exitCode != 0) {
+                    String errorTail = encode.errorTail();
+                    throw new IOException("FFmpeg streaming conversion failed with exit code: " + exitCode
+                        + (errorTail.isEmpty() ? "" : "\n" + errorTail));
+                }
+
+                String outputName = hash + ".webm";
+                fileStorageService.publishConvertedFile(workingFile, outputName);
+
+                job.setSourceHash(hash);
+                job.setOutputName(outputName);
+                job.setMediaInfo(fileStorageService.findStoredMediaFile(outputName)
+                    .map(mediaProbeService::probe)
+                    .orElse(null));
+                if (job.getMediaInfo() != null) {
+                    fileStorageService.createAudioRendition(outputName, job.getMediaInfo());
+                    fileStorageService.createDerivatives(outputName, job.getMediaInfo());
+                }
+                job.setStatus(ConversionJob.Status.DONE);
+                job.setErrorMessage(null);
+                job.setUpdatedAt(LocalDateTime.now());
+                conversionJobRepository.save(job);
+
+                progressUpdateService.sendCompletionUpdate(job.getFileId(), outputName);
+                schedulePackaging(job);
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                encoderStarted.completeExceptionally(e);
+                deleteQuietly(workingFile);
+                logger.error("Streaming conversion of {} failed: {}", job.getFileId(), e.getMessage(), e);
+                markFailed(job, e.getMessage());
+            }
+        } finally {
+            cancellations.values().remove(cancellation);
+            pendingJobs.decrementAndGet();
+        }
+    }
+
+    /**
+     * Pick the encoder preset for a job a worker has just taken, from the work still queued behind it
+     */
+    private EncoderPreset choosePreset(FairShareScheduler.Task task) {
+        double backlogSeconds = scheduler.backlogSeconds();
+        EncoderPreset preset = adaptivePresetSelector.choose(backlogSeconds, task.getCostSeconds(), workers);
+        logger.info("Encoding {} with the {} preset ({} job(s), {}s of media queued)",
+            task.getFileId(), preset, scheduler.size(), Math.round(backlogSeconds));
+        return preset;
+    }
+
+    /**
+     * Queue the adaptive streaming ladder of a finished conversion as backfill. The converted
+     * file is playable already, so the ladder waits behind every upload still to be converted.
+     */
+    private void schedulePackaging(ConversionJob job) {
+        if (!adaptiveStreamingPackager.isApplicable(job.getMediaInfo())) {
+            return;
+        }
+        Long jobId = job.getId();
+        scheduleBackfill(job, task -> runPackaging(jobId, task));
+    }
+
+    /**
+     * Queue work on a finished job behind every upload still to be converted. It is not
+     * subject to admission control, and the job keeps the priority it was converted with
+     */
+    private void scheduleBackfill(ConversionJob job, Consumer<FairShareScheduler.Task> work) {
+        pendingBackfill.incrementAndGet();
+        FairShareScheduler.Task backfillTask = scheduler.schedule(job, ConversionJob.Priority.BACKFILL, false, task -> {
+            try {
+                work.accept(task);
+            } finally {
+                backfillTasks.remove(task);
+                pendingBackfill.decrementAndGet();
+            }
+        });
+        backfillTasks.add(backfillTask);
+        try {
+            executor.execute(backfillTask);
+        } catch (RejectedExecutionException e) {
+            backfillTasks.remove(backfillTask);
+            pendingBackfill.decrementAndGet();
+            logger.warn("Could not queue backfill work on {}: {}", job.getOutputName(), e.getMessage());
+        }
+    }
+
+    private void runPackaging(Long jobId, FairShareScheduler.Task task) {
+        ConversionJob job = conversionJobRepository.findById(jobId).orElse(null);
+        if (job == null || job.getStatus() != ConversionJob.Status.DONE) {
+            return;
+        }
+
+        EncoderPreset preset = choosePreset(task);
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellation.start();
+        long started = System.currentTimeMillis();
+        boolean packaged = fileStorageService.packageAdaptiveStreaming(job.getOutputName(),
+            job.getMediaInfo(), preset, cancellation);
+        if (packaged) {
+            logger.info("Packaged {} for adaptive streaming in {} ms",
+                job.getOutputName(), System.currentTimeMillis() - started);
+        } else {
+            logger.warn("Packaging {} for adaptive streaming failed; the single WebM is served instead",
+                job.getOutputName());
+        }
+    }
+
+    /**
+     * When nothing is queued or running, re-encode one output that was encoded with a fast
+     * preset under load. It goes through the queue as backfill, so new uploads still come first.
+     */
+    @Scheduled(fixedDelayString = "${conversion.presets.upgrade-check-interval-ms:60000}")
+    public void upgradeWhenIdle() {
+        if (!adaptivePresetSelector.isUpgradeWhenIdle() || pendingJobs.get() > 0 || pendingBackfill.get() > 0) {
+            return;
+        }
+        conversionJobRepository.findFirstByStatusAndUpgradePendingTrueOrderByUpdatedAtAsc(ConversionJob.Status.DONE)
+            .ifPresent(job -> {
+                Long jobId = job.getId();
+                scheduleBackfill(job, task -> runUpgrade(jobId));
+            });
+    }
+
+    private void runUpgrade(Long jobId) {
+        ConversionJob job = conversionJobRepository.findById(jobId).orElse(null);
+        if (job == null || job.getStatus() != ConversionJob.Status.DONE || !job.isUpgradePending()) {
+            return;
+        }
+
+        logger.info("Re-encoding {} with the {} preset, it was encoded with {}",
+            job.getOutputName(), EncoderPreset.QUALITY, job.getEncoderPreset());
+        boolean upgraded = fileStorageService.reencodeConvertedFile(Paths.get(job.getInputPath()),
+            job.getOutputName(), EncoderPreset.QUALITY, new ConversionCancellation());
+        if (upgraded) {
+            job.setEncoderPreset(EncoderPreset.QUALITY);
+        }
+        job.setUpgradePending(false);
+        job.setUpdatedAt(LocalDateTime.now());
+        conversionJobRepository.save(job);
+    }
+
+    /**
+     * Record a cancelled job and tell its subscribers. The encoders have already
+     * deleted their partial output; the staged input is removed here
+     */
+    private void finishCancelled(ConversionJob job) {
+        if (!STREAM_INPUT.equals(job.getInputPath())) {
+            deleteQuietly(Paths.get(job.getInputPath()));
+        }
+        job.setStatus(ConversionJob.Status.CANCELLED);
+        job.setErrorMessage(null);
+        job.setUpdatedAt(LocalDateTime.now());
+        conversionJobRepository.save(job);
+        progressUpdateService.sendCancelledUpdate(job.getFileId());
+    }
+
+    private boolean isActive(ConversionJob job) {
+        return job.getStatus() == ConversionJob.Status.QUEUED || job.getStatus() == ConversionJob.Status.RUNNING;
+    }
+
+    /**
+     * Record a failed job and tell its subscribers, so they don't wait for an update that
+     * never comes; the error also becomes the snapshot replayed to clients that subscribe later
+     */
+    private void markFailed(ConversionJob job, String errorMessage) {
+        job.setStatus(ConversionJob.Status.FAILED);
+        job.setErrorMessage(errorMessage != null && errorMessage.length() > 1024
+            ? errorMessage.substring(0, 1024) : errorMessage);
+        job.setUpdatedAt(LocalDateTime.now());
+        conversionJobRepository.save(job);
+        progressUpdateService.sendErrorUpdate(job.getFileId(), "Conversion failed: " + errorMessage);
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (Exception e) {
+            logger.warn("Could not delete staged input {}: {}", path, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
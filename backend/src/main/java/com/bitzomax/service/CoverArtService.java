@@ -0,0 +1,241 @@
+package com.bitzomax.service;
+
+import jakarta.annotation.PreDestroy;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_COLOR;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMWRITE_WEBP_QUALITY;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imencode;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Downscaled WebP copies of uploaded cover art, so song lists don't download a full-size
+ * album image to show a thumbnail. Every configured size is created in the background
+ * after an upload; a size that is missing (e.g. for covers uploaded before, or after the
+ * sizes changed) is created on the first request and cached on disk.
+ * Derivatives live in {@code covers/derived/}, sharded like the covers themselves
+ * ({@code ab/cd/<name>-<size>.webp}); the cover names are content hashes, so a derivative
+ * never goes stale.
+ */
+@Service
+public class CoverArtService {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoverArtService.class);
+
+    @Autowired
+    private StorageBackend storageBackend;
+
+    private final Path derivedStorageLocation;
+    private final List<Integer> sizes;
+    private final int webpQuality;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cover-derivatives");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CoverArtService(
+            @Value("${file.upload.covers}") String coverUploadDir,
+            @Value("${covers.derivatives.sizes:64,128,256,512}") String sizes,
+            @Value("${covers.derivatives.webp-quality:80}") int webpQuality) {
+        this.derivedStorageLocation = Paths.get(coverUploadDir, "derived").toAbsolutePath().normalize();
+        this.sizes = parseSizes(sizes);
+        this.webpQuality = Math.max(1, Math.min(100, webpQuality));
+
+        try {
+            Files.createDirectories(this.derivedStorageLocation);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not create the cover derivatives directory", ex);
+        }
+    }
+
+    /**
+     * Create every configured size of a newly stored cover, without delaying the upload
+     * @param fileName The stored cover name
+     */
+    public void createDerivativesAsync(String fileName) {
+        try {
+            executor.execute(() -> {
+                for (int size : sizes) {
+                    findDerivative(fileName, size);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the sizes are created when first requested
+        }
+    }
+
+    /**
+     * Find a cover derivative, creating it if it doesn't exist yet
+     * @param fileName The stored cover name
+     * @param requestedSize Longest edge the client wants to display, in pixels
+     * @return The WebP derivative at the smallest configured size that is at least the requested
+     *         one (the largest size for bigger requests); empty if the cover doesn't exist or
+     *         can't be decoded, so the original has to be served. Cover names are content
+     *         hashes, so an existing derivative is served without looking at the original
+     */
+    public Optional<Path> findDerivative(String fileName, int requestedSize) {
+        if (fileName.contains("/") || fileName.contains("\\")) {
+            return Optional.empty();
+        }
+        int size = snapSize(requestedSize);
+        String derivativeName = stripExtension(fileName) + "-" + size + ".webp";
+        Path derivative = LocalStorageBackend.shardedPath(this.derivedStorageLocation, derivativeName);
+        if (Files.isRegularFile(derivative)) {
+            return Optional.of(derivative);
+        }
+
+        Optional<Path> original = storageBackend.localFile(StorageBackend.Area.COVERS, fileName);
+        if (original.isPresent()) {
+            return createDerivative(original.get(), derivative, size) ? Optional.of(derivative) : Optional.empty();
+        }
+        return createDerivativeFromCopy(fileName, derivative, size) ? Optional.of(derivative) : Optional.empty();
+    }
+
+    /**
+     * Scale a temporary copy of a cover, for storage backends that keep no local files. Each
+     * node caches the derivatives it serves
+     */
+    private boolean createDerivativeFromCopy(String fileName, Path derivative, int size) {
+        if (!storageBackend.exists(StorageBackend.Area.COVERS, fileName)) {
+            return false;
+        }
+        Path copy = null;
+        try {
+            copy = Files.createTempFile(this.derivedStorageLocation, "cover-", ".part");
+            try (InputStream content = storageBackend.openStream(StorageBackend.Area.COVERS, fileName)) {
+                Files.copy(content, copy, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return createDerivative(copy, derivative, size);
+        } catch (IOException e) {
+            logger.warn("Could not fetch cover {}: {}", fileName, e.getMessage());
+            return false;
+        } finally {
+            if (copy != null) {
+                try {
+                    Files.deleteIfExists(copy);
+                } catch (IOException e) {
+                    logger.debug("Could not delete {}: {}", copy, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Scale the original to fit a size x size box (never up) and encode it as WebP. Concurrent
+     * requests for the same missing size may both encode it; each writes its own temporary file
+     * and the last rename wins, with identical content
+     */
+    private boolean createDerivative(Path original, Path derivative, int size) {
+        long started = System.currentTimeMillis();
+        Path workingFile = null;
+        try (Mat image = imread(original.toString(), IMREAD_COLOR)) {
+            if (image.empty()) {
+                logger.warn("Cover {} is not an image that can be scaled, serving the original", original.getFileName());
+                return false;
+            }
+
+            double scale = Math.min(1.0, (double) size / Math.max(image.cols(), image.rows()));
+            int width = Math.max(1, (int) Math.round(image.cols() * scale));
+            int height = Math.max(1, (int) Math.round(image.rows() * scale));
+            try (Mat scaled = new Mat();
+                 Size targetSize = new Size(width, height);
+                 IntPointer params = new IntPointer(IMWRITE_WEBP_QUALITY, webpQuality);
+                 BytePointer encoded = new BytePointer()) {
+                // Area interpolation averages the source pixels, which avoids aliasing when shrinking
+                resize(image, scaled, targetSize, 0, 0, INTER_AREA);
+                if (!imencode(".webp", scaled, encoded, params)) {
+                    logger.warn("Could not encode cover {} as WebP", original.getFileName());
+                    return false;
+                }
+
+                byte[] bytes = new byte[(int) encoded.limit()];
+                encoded.get(bytes);
+                workingFile = Files.createTempFile(this.derivedStorageLocation, "cover-", ".part");
+                Files.write(workingFile, bytes);
+                Files.createDirectories(derivative.getParent());
+                Files.move(workingFile, derivative, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            logger.debug("Created {} ({}x{}) in {} ms", derivative.getFileName(), width, height,
+                System.currentTimeMillis() - started);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Could not store cover derivative {}: {}", derivative.getFileName(), e.getMessage());
+            return false;
+        } finally {
+            if (workingFile != null) {
+                try {
+                    Files.deleteIfExists(workingFile);
+                } catch (IOException e) {
+                    logger.debug("Could not delete {}: {}", workingFile, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private int snapSize(int requestedSize) {
+        for (int size : sizes) {
+            if (size >= requestedSize) {
+                return size;
+            }
+        }
+        return sizes.get(sizes.size() - 1);
+    }
+
+    private static String stripExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    /**
+     * @param sizes Comma separated edge lengths, e.g. "64,128,256"
+     * @return The sizes, smallest first
+     * @throws IllegalArgumentException if a size is not a positive number
+     */
+    private static List<Integer> parseSizes(String sizes) {
+        List<Integer> parsed = new ArrayList<>();
+        for (String entry : sizes.split(",")) {
+            int size;
+            try {
+                size = Integer.parseInt(entry.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cover size '" + entry + "'");
+            }
+            if (size <= 0) {
+                throw new IllegalArgumentException("Invalid cover size '" + entry + "'");
+            }
+            parsed.add(size);
+        }
+        parsed.sort(null);
+        return List.copyOf(parsed);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,226 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionJob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Orders queued conversions for the worker pool.
+ * Jobs are served by scheduling class first (streaming uploads, which hold an open
+ * request, then interactive uploads, then backfill). Within a class, workers are shared
+ * fairly between submitters with weighted fair queueing: every job gets a virtual finish
+ * tag of {@code max(virtual time, submitter's previous tag) + cost}, where cost is the
+ * probed duration. A bulk upload therefore interleaves with other users' jobs instead
+ * of running ahead of them, and short jobs overtake long ones. Every class keeps its own
+ * virtual time and tags, so a user's backfill work never delays their own uploads.
+ */
+public class FairShareScheduler {
+
+    // Cost of jobs whose duration could not be probed
+    private static final double DEFAULT_COST_SECONDS = 300;
+
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Streaming, interactive and backfill
+    private static final int RANKS = 3;
+
+    // Per rank: virtual time advances to the start tag of each job handed to a worker
+    private final double[] virtualTimes = new double[RANKS];
+    private final List<Map<String, Double>> lastFinishTags = new ArrayList<>();
+
+    public FairShareScheduler() {
+        for (int rank = 0; rank < RANKS; rank++) {
+            lastFinishTags.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * A unit of work waiting in the queue
+     */
+    public final class Task implements Runnable, Comparable<Task> {
+
+        private final String fileId;
+        private final String submitter;
+        private final int rank;
+        private final String priorityLabel;
+        private final double startTag;
+        private final double finishTag;
+        private final long sequenceNumber;
+        private final long enqueuedAt = System.currentTimeMillis();
+        private final Consumer<Task> work;
+        private volatile long startedAt;
+
+        private Task(String fileId, String submitter, int rank, String priorityLabel,
+                     double startTag, double finishTag, Consumer<Task> work) {
+            this.fileId = fileId;
+            this.submitter = submitter;
+            this.rank = rank;
+            this.priorityLabel = priorityLabel;
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.sequenceNumber = sequence.incrementAndGet();
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            startedAt = System.currentTimeMillis();
+            advanceVirtualTime(rank, startTag);
+            work.accept(this);
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (rank != other.rank) {
+                return Integer.compare(rank, other.rank);
+            }
+            if (finishTag != other.finishTag) {
+                return Double.compare(finishTag, other.finishTag);
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public String getSubmitter() {
+            return submitter;
+        }
+
+        public String getPriorityLabel() {
+            return priorityLabel;
+        }
+
+        /**
+         * @return Probed duration of the job in seconds, or the default cost if unknown
+         */
+        public double getCostSeconds() {
+            return finishTag - startTag;
+        }
+
+        /**
+         * @return Time spent waiting for a worker, up to now or up to the start of the job
+         */
+        public long getQueueWaitMillis() {
+            long end = startedAt > 0 ? startedAt : System.currentTimeMillis();
+            return end - enqueuedAt;
+        }
+    }
+
+    /**
+     * @return The queue to hand to the worker pool
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BlockingQueue<Runnable> getQueue() {
+        return (BlockingQueue) queue;
+    }
+
+    /**
+     * Tag a job for the queue
+     * @param job The job to schedule
+     * @param streaming true if a request is streaming into the job and needs a worker at once
+     * @param work What the worker runs, given the task so it can report its queue wait
+     * @return The task to pass to the worker pool
+     */
+    public Task schedule(ConversionJob job, boolean streaming, Consumer<Task> work) {
+        return schedule(job, job.getPriority(), streaming, work);
+    }
+
+    /**
+     * Tag work on a job for the queue in a scheduling class of its own, e.g. backfill
+     * work on a job that has been converted already
+     * @param priority Scheduling class of the task, regardless of the job's
+     */
+    public synchronized Task schedule(ConversionJob job, ConversionJob.Priority priority, boolean streaming,
+                                      Consumer<Task> work) {
+        String submitter = job.getSubmittedBy() != null ? job.getSubmittedBy() : "anonymous";
+        if (priority == null) {
+            priority = ConversionJob.Priority.INTERACTIVE;
+        }
+
+        double cost = job.getMediaInfo() != null && job.getMediaInfo().durationMillis() > 0
+            ? job.getMediaInfo().durationMillis() / 1000.0
+            : DEFAULT_COST_SECONDS;
+        int rank = streaming ? 0 : priority == ConversionJob.Priority.INTERACTIVE ? 1 : 2;
+        Map<String, Double> finishTags = lastFinishTags.get(rank);
+        double startTag = Math.max(virtualTimes[rank], finishTags.getOrDefault(submitter, 0.0));
+        double finishTag = startTag + cost;
+        finishTags.put(submitter, finishTag);
+
+        String label = streaming ? "streaming" : priority.name().toLowerCase(Locale.ROOT);
+        return new Task(job.getFileId(), submitter, rank, label, startTag, finishTag, work);
+    }
+
+    /**
+     * @return The queued tasks in the order workers will take them
+     */
+    public List<Task> snapshot() {
+        Task[] tasks = queue.toArray(new Task[0]);
+        Arrays.sort(tasks);
+        return Arrays.asList(tasks);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return Total media duration of the queued jobs in seconds
+     */
+    public double backlogSeconds() {
+        double total = 0;
+        for (Task task : queue) {
+            total += task.getCostSeconds();
+        }
+        return total;
+    }
+
+    /**
+     * Take tasks off the queue before a worker picks them up. The submitter is no longer
+     * charged for them, so their next jobs are tagged as if these had never been queued
+     * @return true if a matching task was still queued
+     */
+    public synchronized boolean remove(Predicate<Task> filter) {
+        boolean removed = false;
+        for (Task task : queue.toArray(new Task[0])) {
+            if (filter.test(task) && queue.remove(task)) {
+                rollBack(task);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private void rollBack(Task task) {
+        Map<String, Double> finishTags = lastFinishTags.get(task.rank);
+        Double lastTag = finishTags.get(task.submitter);
+        if (lastTag == null) {
+            return;
+        }
+        double rolledBack = lastTag - task.getCostSeconds();
+        if (rolledBack <= virtualTimes[task.rank]) {
+            finishTags.remove(task.submitter);
+        } else {
+            finishTags.put(task.submitter, rolledBack);
+        }
+    }
+
+    private synchronized void advanceVirtualTime(int rank, double startTag) {
+        double virtualTime = Math.max(virtualTimes[rank], startTag);
+        virtualTimes[rank] = virtualTime;
+        // Submitters with nothing queued beyond the virtual time start over, so the map stays small
+        lastFinishTags.get(rank).values().removeIf(tag -> tag <= virtualTime);
+    }
+}
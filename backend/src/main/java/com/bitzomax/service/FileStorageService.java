@@ -1,5 +1,7 @@
 package com.bitzomax.service;
 
+import com.bitzomax.model.EncoderPreset;
+import com.bitzomax.model.MediaInfo;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
@@ -8,37 +10,84 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
-import org.bytedeco.javacv.*;
-import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.javacpp.Loader;
-import org.bytedeco.ffmpeg.global.avutil;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 @Service
 public class FileStorageService {
 
+    // Working file of a conversion's output: <hash>.webm.<fileId>.part, .audio.part or .preview.part
+    private static final Pattern OUTPUT_WORKING_FILE = Pattern.compile("[0-9a-f]+\\.webm\\.(.+)\\.part");
+
     private final Path songStorageLocation;
     private final Path coverArtStorageLocation;
     private final Path convertedStorageLocation;
+    private final Path uploadSessionLocation;
+    private final Path stagingLocation;
     
     @Autowired
     private ProgressUpdateService progressUpdateService;
 
+    @Autowired
+    private ParallelSegmentEncoder parallelSegmentEncoder;
+
+    @Autowired
+    private StreamCopyRemuxer streamCopyRemuxer;
+
+    @Autowired
+    private MediaToolchain mediaToolchain;
+
+    @Autowired
+    private MediaProbeService mediaProbeService;
+
+    @Autowired
+    private PipelinedJavaCVTranscoder pipelinedJavaCVTranscoder;
+
+    @Autowired
+    private AdaptivePresetSelector adaptivePresetSelector;
+
+    @Autowired
+    private AdaptiveStreamingPackager adaptiveStreamingPackager;
+
+    @Autowired
+    private PreviewTranscoder previewTranscoder;
+
+    @Autowired
+    private MediaDerivativesService mediaDerivativesService;
+
+    @Autowired
+    private CoverArtService coverArtService;
+
+    @Autowired
+    private StorageBackend storageBackend;
+
     public FileStorageService(
             @Value("${file.upload.songs}") String songUploadDir,
             @Value("${file.upload.covers}") String coverUploadDir) {
@@ -46,22 +95,57 @@ public class FileStorageService {
         this.songStorageLocation = Paths.get(songUploadDir).toAbsolutePath().normalize();
         this.coverArtStorageLocation = Paths.get(coverUploadDir).toAbsolutePath().normalize();
         this.convertedStorageLocation = Paths.get(songUploadDir, "converted").toAbsolutePath().normalize();
+        this.uploadSessionLocation = Paths.get(songUploadDir, "sessions").toAbsolutePath().normalize();
+        this.stagingLocation = Paths.get(songUploadDir, "staging").toAbsolutePath().normalize();
         
         try {
             Files.createDirectories(this.songStorageLocation);
             Files.createDirectories(this.coverArtStorageLocation);
             Files.createDirectories(this.convertedStorageLocation);
+            Files.createDirectories(this.uploadSessionLocation);
+            Files.createDirectories(this.stagingLocation);
         } catch (IOException ex) {
             throw new RuntimeException("Could not create upload directories", ex);
         }
     }
 
     public String storeSongFile(MultipartFile file) {
-        return storeFile(file, this.songStorageLocation);
+        return storeFile(file, StorageBackend.Area.SONGS);
     }
 
     public String storeCoverArtFile(MultipartFile file) {
-        return storeFile(file, this.coverArtStorageLocation);
+        String filename = storeFile(file, StorageBackend.Area.COVERS);
+        coverArtService.createDerivativesAsync(filename);
+        return filename;
+    }
+
+    /**
+     * @param sessionId The ID of a resumable upload session
+     * @return The part file the chunks of the session are appended to
+     */
+    public Path uploadSessionFile(String sessionId) {
+        return this.uploadSessionLocation.resolve(sessionId + ".part");
+    }
+
+    /**
+     * Store a fully received resumable upload as a song file. The part file is
+     * moved into place, not copied
+     * @param assembledFile The complete part file of an upload session
+     * @param originalFilename The name the client gave the upload
+     * @return The content-addressed name of the stored file
+     */
+    public String storeAssembledSongFile(Path assembledFile, String originalFilename) {
+        return storeAssembledFile(assembledFile, originalFilename, StorageBackend.Area.SONGS);
+    }
+
+    /**
+     * Store a fully received resumable upload as a cover art file
+     * @see #storeAssembledSongFile
+     */
+    public String storeAssembledCoverArtFile(Path assembledFile, String originalFilename) {
+        String filename = storeAssembledFile(assembledFile, originalFilename, StorageBackend.Area.COVERS);
+        coverArtService.createDerivativesAsync(filename);
+        return filename;
     }
     
     /**
@@ -71,199 +155,684 @@ public class FileStorageService {
      * @return The name of the converted file
      */
     public String convertToWebM(MultipartFile file, String providedFileId) {
-        String originalFilename = StringUtils.cleanPath(file.getOriginalFilename());
         String baseFileName = providedFileId != null ? providedFileId : UUID.randomUUID().toString();
+        StagedUpload stagedUpload = stageForConversion(file, baseFileName);
+        try {
+            return convertStagedFile(stagedUpload.path(), baseFileName, stagedUpload.outputFileName(),
+                mediaProbeService.probe(stagedUpload.path().toFile()), EncoderPreset.QUALITY, new ConversionCancellation());
+        } catch (RuntimeException ex) {
+            // No job refers to the input, so nothing would ever retry it
+            deleteQuietly(stagedUpload.path());
+            progressUpdateService.sendErrorUpdate(baseFileName, "Conversion failed: " + ex.getMessage());
+            throw ex;
+        }
+    }
+
+    /**
+     * An upload copied into the staging location, waiting to be converted
+     * @param path Path of the staged input
+     * @param contentHash Hex SHA-256 of the upload, computed while it was copied
+     */
+    public record StagedUpload(Path path, String contentHash) {
+
+        /**
+         * @return The content-addressed name of the converted file
+         */
+        public String outputFileName() {
+            return contentHash + ".webm";
+        }
+    }
+
+    /**
+     * Copy an upload into the staging location so it can be converted after
+     * the request has completed (the multipart temp file is removed with the request).
+     * The content hash is computed while copying, so identical uploads map to the same output.
+     * @param file The uploaded video file
+     * @param baseFileName The file ID used for the staged input
+     * @return The staged input and its content hash
+     */
+    public StagedUpload stageForConversion(MultipartFile file, String baseFileName) {
+        String originalFilename = StringUtils.cleanPath(file.getOriginalFilename());
         String tempFileName = baseFileName + getFileExtension(originalFilename);
-        String outputFileName = baseFileName + ".webm";
+
+        try {
+            Path targetLocation = this.stagingLocation.resolve(tempFileName);
+            String contentHash = copyAndHash(file.getInputStream(), targetLocation);
+            return new StagedUpload(targetLocation, contentHash);
+        } catch (IOException ex) {
+            progressUpdateService.sendErrorUpdate(baseFileName, "Conversion failed: " + ex.getMessage());
+            throw new RuntimeException("Could not store the file for WebM conversion", ex);
+        }
+    }
+
+    /**
+     * Stage a fully received resumable upload for conversion by moving its part file
+     * into the staging location
+     * @param assembledFile The complete part file of an upload session
+     * @param originalFilename The name the client gave the upload
+     * @param baseFileName The file ID used for the staged input
+     * @return The staged input and its content hash
+     */
+    public StagedUpload stageAssembledFile(Path assembledFile, String originalFilename, String baseFileName) {
+        String tempFileName = baseFileName + getFileExtension(StringUtils.cleanPath(originalFilename));
+
+        try {
+            String contentHash = hashFile(assembledFile);
+            Path targetLocation = this.stagingLocation.resolve(tempFileName);
+            Files.move(assembledFile, targetLocation, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new StagedUpload(targetLocation, contentHash);
+        } catch (IOException ex) {
+            progressUpdateService.sendErrorUpdate(baseFileName, "Conversion failed: " + ex.getMessage());
+            throw new RuntimeException("Could not store the file for WebM conversion", ex);
+        }
+    }
+
+    /**
+     * @param outputFileName Name of a converted file
+     * @return true if the converted file exists, here or (converted by another node) in the
+     *         storage backend. Outputs are moved into place only once complete, so an
+     *         existing file is always a finished conversion
+     */
+    public boolean hasConvertedFile(String outputFileName) {
+        return Files.isRegularFile(convertedPath(outputFileName))
+            || storageBackend.exists(StorageBackend.Area.CONVERTED, outputFileName);
+    }
+
+    /**
+     * @param outputFileName Name of a converted file, e.g. {@code <hash>.webm}
+     * @return Name of its audio-only rendition, e.g. {@code <hash>.audio.webm}
+     */
+    public static String audioRenditionName(String outputFileName) {
+        return baseName(outputFileName) + ".audio.webm";
+    }
+
+    /**
+     * @param outputFileName Name of a converted file, e.g. {@code <hash>.webm}
+     * @return Name of its low-resolution preview, e.g. {@code <hash>.preview.webm}
+     */
+    public static String previewName(String outputFileName) {
+        return baseName(outputFileName) + ".preview.webm";
+    }
+
+    /**
+     * @param outputFileName Name of a converted file, e.g. {@code <hash>.webm}
+     * @return The directory holding its DASH manifest and segments, e.g. {@code <hash>.dash}
+     */
+    public Path adaptiveStreamingDirectory(String outputFileName) {
+        return convertedPath(baseName(outputFileName) + ".dash");
+    }
+
+    /**
+     * @param name Name of a converted file or of one of its assets
+     * @return Where it is published: sharded like stored uploads (see {@link LocalStorageBackend#shardedPath}),
+     *         so all assets of an output share its directory, or flat where earlier versions put it.
+     *         Working files stay flat in the converted location, where the janitor looks for them
+     */
+    private Path convertedPath(String name) {
+        Path sharded = LocalStorageBackend.shardedPath(this.convertedStorageLocation, name);
+        if (!Files.exists(sharded)) {
+            Path flat = this.convertedStorageLocation.resolve(name);
+            if (Files.exists(flat)) {
+                return flat;
+            }
+        }
+        return sharded;
+    }
+
+    /**
+     * Atomically move a finished working file (or directory) to its published path
+     */
+    private static void publish(Path workingPath, Path publishedPath) throws IOException {
+        Files.createDirectories(publishedPath.getParent());
+        Files.move(workingPath, publishedPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Copy published converted files to the storage backend, so nodes that didn't convert them
+     * can serve them too. Does nothing with the local backend, which holds them already
+     * @param names Names of converted files or assets; those that don't exist are skipped
+     * @throws IOException if a file could not be copied
+     */
+    private void replicate(String... names) throws IOException {
+        for (String name : names) {
+            Path path = convertedPath(name);
+            if (Files.isRegularFile(path)) {
+                storageBackend.copy(StorageBackend.Area.CONVERTED, name, path);
+            }
+        }
+    }
+
+    /**
+     * {@link #replicate} for assets a conversion doesn't depend on; failures are only logged
+     */
+    private void replicateQuietly(String... names) {
+        try {
+            replicate(names);
+        } catch (IOException e) {
+            System.out.println("Could not copy " + String.join(", ", names) + " to storage: " + e.getMessage());
+        }
+    }
+
+    static String baseName(String outputFileName) {
+        return outputFileName.endsWith(".webm")
+            ? outputFileName.substring(0, outputFileName.length() - ".webm".length())
+            : outputFileName;
+    }
+
+    /**
+     * Package a converted file for adaptive streaming. The ladder is written to a working
+     * directory that is renamed into place once complete, so a manifest is never served
+     * before all its segments exist.
+     * @param outputFileName Name of the converted file
+     * @param mediaInfo Probe result of the converted file
+     * @param preset Speed preset of the rendition encodes
+     * @param cancellation Cancellation token; cancelling kills the encoder
+     * @return true if the file is packaged, now or by an earlier identical upload
+     */
+    public boolean packageAdaptiveStreaming(String outputFileName, MediaInfo mediaInfo, EncoderPreset preset,
+                                            ConversionCancellation cancellation) {
+        Path directory = adaptiveStreamingDirectory(outputFileName);
+        String manifestName = directory.getFileName() + "/" + AdaptiveStreamingPackager.MANIFEST_NAME;
+        if (Files.exists(directory.resolve(AdaptiveStreamingPackager.MANIFEST_NAME))
+                || storageBackend.exists(StorageBackend.Area.CONVERTED, manifestName)) {
+            return true;
+        }
+        if (!Files.isRegularFile(convertedPath(outputFileName))) {
+            // Converted on another node, which packages it
+            return false;
+        }
         
+        Path workingDirectory = this.convertedStorageLocation.resolve(directory.getFileName() + ".part");
+        try {
+            deleteRecursively(workingDirectory);
+            Files.createDirectories(workingDirectory);
+            boolean packaged = adaptiveStreamingPackager.packageForStreaming(
+                convertedPath(outputFileName).toFile(), mediaInfo, workingDirectory,
+                preset, cancellation);
+            if (packaged) {
+                deleteRecursively(directory);
+                publish(workingDirectory, directory);
+                replicateDirectory(directory, manifestName);
+            }
+            return packaged;
+        } catch (IOException e) {
+            System.out.println("Could not package " + outputFileName + " for adaptive streaming: " + e.getMessage());
+            return false;
+        } finally {
+            deleteRecursively(workingDirectory);
+        }
+    }
+
+    /**
+     * Copy a DASH directory to the storage backend, the manifest last so other nodes
+     * never find it before its segments
+     */
+    private void replicateDirectory(Path directory, String manifestName) throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            files = paths.filter(Files::isRegularFile).toList();
+        }
+        for (Path file : files) {
+            String name = directory.getFileName() + "/" + directory.relativize(file).toString().replace(File.separatorChar, '/');
+            if (!name.equals(manifestName)) {
+                storageBackend.copy(StorageBackend.Area.CONVERTED, name, file);
+            }
+        }
+        storageBackend.copy(StorageBackend.Area.CONVERTED, manifestName,
+            directory.resolve(AdaptiveStreamingPackager.MANIFEST_NAME));
+    }
+
+    /**
+     * @param outputFileName Name of a converted file
+     * @param assetName The manifest or one of the segments it references
+     * @return The asset, if the file has been packaged for adaptive streaming
+     */
+    public Optional<Resource> findAdaptiveStreamingAsset(String outputFileName, String assetName) {
+        Path directory = adaptiveStreamingDirectory(outputFileName).normalize();
+        Path assetPath = directory.resolve(assetName).normalize();
+        if (!directory.startsWith(this.convertedStorageLocation) || !assetPath.startsWith(directory)) {
+            return Optional.empty();
+        }
+        return findConverted(directory.getFileName() + "/" + directory.relativize(assetPath));
+    }
+
+    /**
+     * Create the audio-only rendition of an output that was encoded without one, by copying
+     * its audio stream (no re-encode). Used for streaming conversions, whose input streams
+     * are not known before the encoder starts.
+     * @param outputFileName Name of the converted file
+     * @param outputInfo Probe result of the converted file
+     */
+    public void createAudioRendition(String outputFileName, MediaInfo outputInfo) {
+        Path outputPath = convertedPath(outputFileName);
+        Path audioPath = convertedPath(audioRenditionName(outputFileName));
+        if (!outputInfo.hasAudio() || Files.exists(audioPath)) {
+            return;
+        }
+        if (!outputInfo.hasVideo()) {
+            linkAudioRendition(outputPath, audioPath);
+            replicateQuietly(audioRenditionName(outputFileName));
+            return;
+        }
+        if (!mediaToolchain.isFfmpegAvailable()) {
+            return;
+        }
+        
+        Path workingPath = this.convertedStorageLocation.resolve(audioRenditionName(outputFileName) + ".part");
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(
+                mediaToolchain.getFfmpegPath(),
+                "-y",
+                "-i", outputPath.toString(),
+                "-map", "0:a:0",
+                "-c", "copy",
+                "-f", "webm",
+                workingPath.toString()
+            );
+            processBuilder.redirectErrorStream(true);
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            if (processBuilder.start().waitFor() == 0) {
+                publish(workingPath, audioPath);
+                replicate(audioRenditionName(outputFileName));
+            }
+        } catch (IOException e) {
+            System.out.println("Could not create audio rendition of " + outputFileName + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            deleteQuietly(workingPath);
+        }
+    }
+
+    /**
+     * The output of an audio-only source is its own audio rendition; share the file
+     * instead of storing it twice
+     */
+    private void linkAudioRendition(Path outputPath, Path audioPath) {
+        try {
+            Files.deleteIfExists(audioPath);
+            Files.createDirectories(audioPath.getParent());
+            try {
+                Files.createLink(audioPath, outputPath);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(outputPath, audioPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not create audio rendition " + audioPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param fileId The file ID of a streaming conversion
+     * @return The working file a streaming encode writes to before its content hash is known
+     */
+    public Path streamingWorkingFile(String fileId) {
+        return this.convertedStorageLocation.resolve("stream-" + fileId + ".webm.part");
+    }
+
+    /**
+     * @param name Name of an entry in the converted files' directory
+     * @return The file IDs of the conversions the entry may be a working file of: the output
+     *         of a conversion ({@code <output>.<fileId>.part}, with {@code .audio.part} for its
+     *         audio rendition and {@code .preview.part} for its preview), a streaming encode
+     *         ({@code stream-<fileId>.webm.part}) or the segments of a parallel encode
+     *         ({@code <fileId>-segments...}). A file ID may end in {@code .audio} or
+     *         {@code .preview} itself, so a name can have two. Empty for other entries
+     */
+    public static Set<String> workingFileOwners(String name) {
+        if (name.startsWith("stream-") && name.endsWith(".webm.part")) {
+            return Set.of(name.substring("stream-".length(), name.length() - ".webm.part".length()));
+        }
+        int segments = name.lastIndexOf("-segments");
+        if (segments > 0 && !name.endsWith(".part")) {
+            return Set.of(name.substring(0, segments));
+        }
+        Matcher output = OUTPUT_WORKING_FILE.matcher(name);
+        if (!output.matches()) {
+            return Set.of();
+        }
+        Set<String> owners = new HashSet<>();
+        owners.add(output.group(1));
+        for (String rendition : List.of(".audio", ".preview")) {
+            if (output.group(1).endsWith(rendition)) {
+                owners.add(output.group(1).substring(0, output.group(1).length() - rendition.length()));
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * Move a finished working file into place under its content-addressed name.
+     * If that output already exists (identical source), the working file is dropped.
+     * @param workingFile The completed encoder output
+     * @param outputFileName Name of the converted file
+     */
+    public void publishConvertedFile(Path workingFile, String outputFileName) throws IOException {
+        Path outputPath = convertedPath(outputFileName);
+        if (Files.exists(outputPath)) {
+            Files.deleteIfExists(workingFile);
+        } else {
+            publish(workingFile, outputPath);
+            replicate(outputFileName);
+        }
+    }
+
+    /**
+     * @return A fresh digest for content-addressed file names
+     */
+    public static MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Convert a previously staged input file to WebM format with progress tracking
+     * @param targetLocation Path of the staged input returned by {@link #stageForConversion}
+     * @param baseFileName The file ID used for progress updates
+     * @param outputFileName Name of the converted file to create
+     * @param mediaInfo Probe result of the staged input
+     * @param preset Speed/quality preset of the video encode
+     * @param cancellation Cancellation token checked by every encoder
+     * @return The name of the converted file. Sources with video and audio also get an
+     *         audio-only rendition from the same encode, see {@link #audioRenditionName}.
+     *         The staged input is deleted, unless it is kept for a re-encode with the
+     *         QUALITY preset later
+     * @throws CancellationException if the conversion was cancelled; the partial output
+     *         and the staged input have been deleted
+     * @throws RuntimeException if no encoder could convert the input; no error update has
+     *         been sent, that is up to the caller, which records the failure
+     */
+    public String convertStagedFile(Path targetLocation, String baseFileName, String outputFileName, MediaInfo mediaInfo,
+                                    EncoderPreset preset, ConversionCancellation cancellation) {
+        Path workingPath = this.convertedStorageLocation.resolve(outputFileName + "." + baseFileName + ".part");
+        Path audioWorkingPath = this.convertedStorageLocation.resolve(outputFileName + "." + baseFileName + ".audio.part");
+        Path previewWorkingPath = this.convertedStorageLocation.resolve(outputFileName + "." + baseFileName + ".preview.part");
         try {
-            // Store the uploaded file
-            Path targetLocation = this.songStorageLocation.resolve(tempFileName);
-            Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
             File inputFile = targetLocation.toFile();
             
-            // Output path for the converted file
-            Path outputPath = this.convertedStorageLocation.resolve(outputFileName);
-            File outputFile = outputPath.toFile();
+            // An identical upload was converted before, reuse its result
+            if (hasConvertedFile(outputFileName)) {
+                Files.deleteIfExists(targetLocation);
+                progressUpdateService.sendCompletionUpdate(baseFileName, outputFileName);
+                return outputFileName;
+            }
+            
+            // Output path for the converted file. Encoders write to a per-job working file
+            // that is moved into place once complete, so concurrent identical uploads can't clash
+            Path outputPath = convertedPath(outputFileName);
+            File outputFile = workingPath.toFile();
+            
+            // Audio-only rendition, written by the same encoder process. An audio-only source
+            // needs none: its output already is one, and is linked under the rendition name
+            File audioFile = mediaInfo.hasVideo() && mediaInfo.hasAudio() ? audioWorkingPath.toFile() : null;
             
             // Initial progress update - starting conversion
             progressUpdateService.sendProgressUpdate(baseFileName, 0, "processing", "Starting conversion");
             
-            // Try with FFmpeg first
             boolean conversionSuccess = false;
-            try {
-                conversionSuccess = tryFFmpegConversionWithProgress(inputFile, outputFile, baseFileName);
-            } catch (Exception e) {
-                progressUpdateService.sendProgressUpdate(baseFileName, 10, "processing", 
-                    "FFmpeg conversion failed: " + e.getMessage() + ". Trying JavaCV...");
-                System.out.println("FFmpeg conversion failed: " + e.getMessage());
+            MediaDerivativesService.Collector derivatives = null;
+            
+            // Inputs that already carry WebM codecs only need a new container
+            if (streamCopyRemuxer.isWebMCompatible(mediaInfo)) {
+                progressUpdateService.sendProgressUpdate(baseFileName, 5, "processing", 
+                    "Input is already WebM-compatible, copying streams without re-encoding");
+                conversionSuccess = streamCopyRemuxer.remux(inputFile, outputFile, audioFile, cancellation);
+                if (conversionSuccess) {
+                    progressUpdateService.sendProgressUpdate(baseFileName, 90, "processing", "Stream copy completed");
+                }
+            }
+            
+            boolean remuxed = conversionSuccess;
+            
+            // A full encode takes minutes; give the user something to play in the meantime
+            if (!remuxed && previewTranscoder.isApplicable(mediaInfo)) {
+                createPreview(inputFile, baseFileName, outputFileName, mediaInfo, previewWorkingPath, cancellation);
+            }
+            
+            if (!remuxed && preset != EncoderPreset.QUALITY) {
+                progressUpdateService.sendProgressUpdate(baseFileName, 1, "processing",
+                    "Conversion queue is busy, encoding with the " + preset.name().toLowerCase(Locale.ROOT) + " preset");
+            }
+            
+            // Long inputs are split at keyframes and encoded segment-parallel
+            cancellation.throwIfCancelled();
+            if (!conversionSuccess && parallelSegmentEncoder.isApplicable(mediaInfo)) {
+                progressUpdateService.sendProgressUpdate(baseFileName, 2, "processing", "Using parallel segment encoding");
+                conversionSuccess = parallelSegmentEncoder.encode(inputFile, outputFile, baseFileName,
+                    mediaInfo.durationMillis(), preset, audioFile, cancellation);
+            }
+            cancellation.throwIfCancelled();
+            
+            // Otherwise (or if that fails) try a single FFmpeg encode
+            if (!conversionSuccess) {
+                try {
+                    long encodeStarted = System.currentTimeMillis();
+                    conversionSuccess = tryFFmpegConversionWithProgress(inputFile, outputFile, baseFileName,
+                        mediaInfo.durationMillis(), preset, audioFile, cancellation);
+                    // The presets are compared by this encode only: segment-parallel and JavaCV
+                    // encodes run at different speeds, so their times would skew the estimates
+                    if (conversionSuccess) {
+                        adaptivePresetSelector.recordEncode(preset, mediaInfo.durationMillis(),
+                            System.currentTimeMillis() - encodeStarted);
+                    }
+                } catch (Exception e) {
+                    progressUpdateService.sendProgressUpdate(baseFileName, 10, "processing", 
+                        "FFmpeg conversion failed: " + e.getMessage() + ". Trying JavaCV...");
+                    System.out.println("FFmpeg conversion failed: " + e.getMessage());
+                }
             }
             
+            cancellation.throwIfCancelled();
+            
             // If FFmpeg fails, try with JavaCV
             if (!conversionSuccess) {
                 try {
                     progressUpdateService.sendProgressUpdate(baseFileName, 20, "processing", "Using JavaCV for WebM conversion");
                     System.out.println("Using JavaCV for WebM conversion");
-                    convertWithJavaCVWithProgress(inputFile, outputFile, baseFileName);
+                    deleteQuietly(audioWorkingPath);
+                    derivatives = mediaDerivativesService.newCollector(mediaInfo);
+                    pipelinedJavaCVTranscoder.transcode(inputFile, outputFile, baseFileName, preset, audioFile,
+                        derivatives, cancellation);
                     conversionSuccess = true;
+                } catch (CancellationException e) {
+                    throw e;
                 } catch (Exception e) {
-                    progressUpdateService.sendProgressUpdate(baseFileName, 30, "processing", 
-                        "JavaCV conversion failed: " + e.getMessage() + ". Using fallback...");
                     System.out.println("JavaCV conversion failed: " + e.getMessage());
                     e.printStackTrace();
-                    
-                    // Last resort - copy the file
-                    if (!outputFile.exists()) {
-                        progressUpdateService.sendProgressUpdate(baseFileName, 40, "processing", "Using fallback file copy method");
-                        System.out.println("Using fallback file copy method for WebM conversion");
-                        copyFileAsWebm(inputFile, outputFile);
-                        progressUpdateService.sendProgressUpdate(baseFileName, 90, "processing", "Fallback copy completed");
-                    }
+                    // No encoder could convert it. The upload itself must not be published instead:
+                    // under its content-addressed name it would be reused for every identical upload
+                    throw new IOException("No encoder could convert the upload: " + e.getMessage(), e);
                 }
             }
             
-            // Delete temporary file after successful conversion
-            Files.deleteIfExists(targetLocation);
+            cancellation.throwIfCancelled();
+            
+            // Publish the finished output under its content-addressed name, the rendition first
+            // so it is there by the time clients learn about the output
+            Path audioPath = convertedPath(audioRenditionName(outputFileName));
+            if (Files.exists(audioWorkingPath)) {
+                publish(audioWorkingPath, audioPath);
+            }
+            publish(workingPath, outputPath);
+            if (!mediaInfo.hasVideo() && mediaInfo.hasAudio()) {
+                linkAudioRendition(outputPath, audioPath);
+            }
+            replacePreview(outputPath);
+            writeDerivatives(outputFileName, mediaInfo, derivatives);
+            
+            // Every node has to be able to serve the output before clients learn about it
+            replicate(audioRenditionName(outputFileName), outputFileName);
+            
+            // Delete temporary file after successful conversion, unless a better encode can follow
+            if (remuxed || !adaptivePresetSelector.isUpgradable(preset)) {
+                Files.deleteIfExists(targetLocation);
+            }
             
             // Final progress update - conversion complete
             progressUpdateService.sendCompletionUpdate(baseFileName, outputFileName);
             
             return outputFileName;
+        } catch (CancellationException ex) {
+            // Drop everything the cancelled conversion left behind
+            deleteQuietly(workingPath);
+            deleteQuietly(audioWorkingPath);
+            deleteQuietly(previewWorkingPath);
+            deleteQuietly(convertedPath(previewName(outputFileName)));
+            deleteQuietly(targetLocation);
+            throw ex;
         } catch (IOException ex) {
-            // Send error update
-            progressUpdateService.sendErrorUpdate(baseFileName, "Conversion failed: " + ex.getMessage());
-            throw new RuntimeException("Could not convert the file to WebM format", ex);
+            deleteQuietly(workingPath);
+            deleteQuietly(audioWorkingPath);
+            deleteQuietly(previewWorkingPath);
+            // The caller records the failure and sends the error update
+            throw new RuntimeException("Could not convert the file to WebM format: " + ex.getMessage(), ex);
         }
     }
 
     /**
-     * Overloaded method for backward compatibility
+     * Encode the low-resolution preview and announce it. A failed preview is no reason to
+     * fail the conversion, the user just waits for the full encode as before
      */
-    public String convertToWebM(MultipartFile file) {
-        return convertToWebM(file, null);
+    private void createPreview(File inputFile, String baseFileName, String outputFileName, MediaInfo mediaInfo,
+                               Path previewWorkingPath, ConversionCancellation cancellation) throws IOException {
+        progressUpdateService.sendProgressUpdate(baseFileName, 1, "processing", "Encoding a quick preview");
+        Path previewPath = convertedPath(previewName(outputFileName));
+        if (!Files.exists(previewPath)) {
+            if (!previewTranscoder.transcode(inputFile, previewWorkingPath.toFile(), mediaInfo, cancellation)) {
+                deleteQuietly(previewWorkingPath);
+                return;
+            }
+            publish(previewWorkingPath, previewPath);
+            // Other nodes keep serving the low-resolution copy after the full encode replaced it here
+            replicateQuietly(previewName(outputFileName));
+        }
+        progressUpdateService.sendPreviewUpdate(baseFileName, previewName(outputFileName));
     }
-    
+
     /**
-     * Convert video to WebM using JavaCV with progress updates
+     * Store the poster, thumbnails and peaks next to the output, before clients learn about it.
+     * They come from the frames the encode decoded if it ran in Java, and from a keyframe-only
+     * read of the output otherwise. Missing assets never fail the conversion
+     * @param derivatives What the encode collected, or null if its frames never passed through Java
      */
-    private void convertWithJavaCVWithProgress(File inputFile, File outputFile, String fileId) throws Exception {
-        // Input format
-        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile);
-        grabber.start();
-        
-        // Get total frames for progress calculation
-        int totalFrames = grabber.getLengthInFrames();
-        if (totalFrames <= 0) {
-            // If we can't get frame count, estimate based on duration and framerate
-            double duration = grabber.getLengthInTime() / 1000000.0; // convert to seconds
-            totalFrames = (int)(duration * grabber.getFrameRate());
-        }
-        
-        progressUpdateService.sendProgressUpdate(fileId, 30, "processing", "Starting JavaCV conversion");
-        
-        // Output format - WebM with VP9 codec
-        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
-            outputFile,
-            grabber.getImageWidth(),
-            grabber.getImageHeight(),
-            grabber.getAudioChannels()
-        );
-        
-        // Configure WebM settings for smaller file
-        recorder.setFormat("webm");
-        recorder.setVideoCodec(avcodec.AV_CODEC_ID_VP9);  // VP9 for better compression
-        
-        // Fix for audio codec sample rate issue - Opus only supports certain sample rates
-        // Instead of using Opus, use Vorbis which is more compatible with various sample rates
-        recorder.setAudioCodec(avcodec.AV_CODEC_ID_VORBIS); // Use Vorbis instead of Opus
-        
-        // Video quality settings (lower values = higher compression)
-        recorder.setVideoQuality(30); // Medium quality, high compression
-        recorder.setVideoBitrate(500000); // 500Kbps, adjust as needed
-        recorder.setFrameRate(grabber.getFrameRate());
-        
-        // Audio quality settings
-        recorder.setAudioBitrate(96000); // 96Kbps, adjust as needed
-        recorder.setAudioChannels(grabber.getAudioChannels());
-        
-        // Fix sample rate issues by checking for supported rates
-        int sampleRate = grabber.getSampleRate();
-        recorder.setSampleRate(sampleRate);
-        
-        recorder.start();
-        
-        progressUpdateService.sendProgressUpdate(fileId, 40, "processing", "JavaCV conversion started");
-        
-        // Convert each frame with progress tracking
-        Frame frame;
-        int frameCount = 0;
-        
-        while ((frame = grabber.grab()) != null) {
-            recorder.record(frame);
-            frameCount++;
-            
-            // Update progress every 10 frames
-            if (frameCount % 10 == 0 && totalFrames > 0) {
-                int progressPercent = Math.min(90, 40 + (frameCount * 50 / totalFrames));
-                progressUpdateService.sendProgressUpdate(fileId, progressPercent, "processing", 
-                    "Converting frame " + frameCount + "/" + totalFrames);
+    private void writeDerivatives(String outputFileName, MediaInfo mediaInfo, MediaDerivativesService.Collector derivatives) {
+        if (derivatives != null && derivatives.isFed()) {
+            try {
+                derivatives.write(convertedPath(outputFileName).getParent(), this.convertedStorageLocation, outputFileName);
+                replicateDerivatives(outputFileName);
+                return;
+            } catch (IOException e) {
+                System.out.println("Could not store poster, thumbnails and peaks of " + outputFileName + ": " + e.getMessage());
             }
         }
-        
-        // Clean up
-        progressUpdateService.sendProgressUpdate(fileId, 90, "processing", "Finalizing conversion");
-        recorder.stop();
-        recorder.release();
-        grabber.stop();
-        grabber.release();
-        
-        progressUpdateService.sendProgressUpdate(fileId, 95, "processing", "JavaCV conversion completed");
+        createDerivatives(outputFileName, mediaInfo);
+    }
+
+    /**
+     * Derive the poster, thumbnails and peaks of a converted file from the file itself,
+     * unless they exist already
+     * @param outputFileName Name of the converted file
+     * @param outputInfo Probe result of the converted file
+     */
+    public void createDerivatives(String outputFileName, MediaInfo outputInfo) {
+        Path outputPath = convertedPath(outputFileName);
+        if (!Files.isRegularFile(outputPath)
+                || Files.exists(convertedPath(MediaDerivativesService.posterName(outputFileName)))
+                || Files.exists(convertedPath(MediaDerivativesService.peaksName(outputFileName)))) {
+            return;
+        }
+        mediaDerivativesService.extract(outputPath.toFile(), outputInfo, outputPath.getParent(),
+            this.convertedStorageLocation, outputFileName);
+        replicateDerivatives(outputFileName);
+    }
+
+    private void replicateDerivatives(String outputFileName) {
+        replicateQuietly(MediaDerivativesService.posterName(outputFileName),
+            MediaDerivativesService.spriteName(outputFileName),
+            MediaDerivativesService.thumbnailsName(outputFileName),
+            MediaDerivativesService.peaksName(outputFileName));
+    }
+
+    /**
+     * @param derivativeName Name of an asset derived from a converted file, e.g. {@code <hash>.poster.jpg}
+     * @return The asset, if it was derived
+     */
+    public Optional<Resource> findDerivative(String derivativeName) {
+        return findConverted(derivativeName);
+    }
+
+    /**
+     * Point the preview name at the finished output, so players still holding the preview
+     * URL get full quality on their next request. The swap is a rename, so a request
+     * never finds the name missing
+     */
+    private void replacePreview(Path outputPath) {
+        Path previewPath = convertedPath(previewName(outputPath.getFileName().toString()));
+        if (!Files.exists(previewPath)) {
+            return;
+        }
+        // With the other working files, where the janitor finds it if we die before the swap
+        Path linkPath = this.convertedStorageLocation.resolve(previewPath.getFileName() + ".link");
+        try {
+            Files.deleteIfExists(linkPath);
+            Files.createLink(linkPath, outputPath);
+            Files.move(linkPath, previewPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (UnsupportedOperationException | IOException e) {
+            // Without hard links the preview can only go away
+            deleteQuietly(linkPath);
+            deleteQuietly(previewPath);
+        }
+    }
+
+    /**
+     * Overloaded method for backward compatibility
+     */
+    public String convertToWebM(MultipartFile file) {
+        return convertToWebM(file, null);
     }
     
     /**
      * Try to execute FFmpeg conversion with progress monitoring
+     * @param durationMillis Probed duration of the input, used for the progress percentage
+     * @param preset Speed/quality preset of the video encode
+     * @param audioFile Audio-only WebM to write alongside, or null
+     * @param cancellation Cancellation token; cancelling kills the FFmpeg process
      * @return true if conversion succeeded, false otherwise
      */
-    private boolean tryFFmpegConversionWithProgress(File inputFile, File outputFile, String fileId) {
+    private boolean tryFFmpegConversionWithProgress(File inputFile, File outputFile, String fileId, long durationMillis,
+                                                    EncoderPreset preset, File audioFile,
+                                                    ConversionCancellation cancellation) {
         try {
-            // Check if ffmpeg is available
-            Process checkProcess = Runtime.getRuntime().exec("ffmpeg -version");
-            int exitCode = checkProcess.waitFor();
-            if (exitCode != 0) {
+            // Check the cached toolchain capabilities instead of forking ffmpeg -version
+            if (!mediaToolchain.canEncodeWebM()) {
                 return false;
             }
             
             progressUpdateService.sendProgressUpdate(fileId, 5, "processing", "FFmpeg available, starting conversion");
             
             // FFmpeg is available, proceed with conversion
-            ProcessBuilder processBuilder = new ProcessBuilder(
-                "ffmpeg", 
-                "-i", inputFile.getAbsolutePath(),
-                "-c:v", "libvpx-vp9", // VP9 codec
-                "-crf", "30",         // Constant Rate Factor (quality)
-                "-b:v", "0",          // Use quality-based bitrate
-                "-c:a", "libopus",    // Opus audio codec
-                "-progress", "pipe:1", // Send progress information to stdout
-                outputFile.getAbsolutePath()
-            );
+            ProcessBuilder processBuilder = new ProcessBuilder(webMEncodeCommand(inputFile, outputFile, audioFile, preset));
             
             // Redirect error stream to output stream
             processBuilder.redirectErrorStream(true);
             
             // Start the process
-            Process process = processBuilder.start();
+            Process process = cancellation.register(processBuilder.start());
             
             // Read the process output in a separate thread to avoid blocking
             CompletableFuture.runAsync(() -> {
                 try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
                     String line;
                     String currentTime = "00:00:00.00";
-                    String totalDuration = getDuration(inputFile.getAbsolutePath());
+                    String totalDuration = millisToTime(durationMillis);
                     
                     while ((line = reader.readLine()) != null) {
                         if (line.startsWith("out_time=")) {
                             currentTime = line.substring("out_time=".length());
-                            int progressPercent = calculateProgressPercentage(currentTime, totalDuration);
+                            int progressPercent = calculateProgressPercentage(currentTime, durationMillis);
                             progressUpdateService.sendProgressUpdate(fileId, progressPercent, "processing", 
                                 "FFmpeg converting: " + currentTime + " / " + totalDuration);
                         }
@@ -290,13 +859,89 @@ public class FileStorageService {
         }
     }
     
+    /**
+     * Re-encode a kept staged input with a better preset and replace the published output
+     * in place, so its name and download links stay the same. The staged input is deleted
+     * whatever the outcome. Runs silently: the conversion has long been reported complete.
+     * @param stagedInput The input kept by {@link #convertStagedFile}
+     * @param outputFileName Name of the converted file to replace
+     * @param preset The preset to encode with
+     * @param cancellation Cancellation token; cancelling kills the FFmpeg process
+     * @return true if the output was replaced
+     */
+    public boolean reencodeConvertedFile(Path stagedInput, String outputFileName, EncoderPreset preset,
+                                         ConversionCancellation cancellation) {
+        Path workingPath = this.convertedStorageLocation.resolve(outputFileName + ".upgrade.part");
+        Process process = null;
+        try {
+            if (!mediaToolchain.canEncodeWebM() || !Files.exists(stagedInput) || !hasConvertedFile(outputFileName)) {
+                return false;
+            }
+            
+            // The audio rendition is unaffected by the video preset and stays as it is
+            ProcessBuilder processBuilder = new ProcessBuilder(
+                webMEncodeCommand(stagedInput.toFile(), workingPath.toFile(), null, preset));
+            processBuilder.redirectErrorStream(true);
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            process = cancellation.register(processBuilder.start());
+            if (process.waitFor() != 0 || cancellation.isCancelled()) {
+                return false;
+            }
+            
+            publish(workingPath, convertedPath(outputFileName));
+            replicate(outputFileName);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Re-encode of " + outputFileName + " failed: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            // Shutting down; don't leave the encoder running behind us
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            deleteQuietly(workingPath);
+            deleteQuietly(stagedInput);
+        }
+    }
+    
+    /**
+     * FFmpeg command for a single VP9/Opus WebM encode
+     * @param audioFile Audio-only WebM to write from the same decode, or null
+     */
+    private List<String> webMEncodeCommand(File inputFile, File outputFile, File audioFile, EncoderPreset preset) {
+        List<String> command = new ArrayList<>(List.of(
+            mediaToolchain.getFfmpegPath(),
+            "-y",                 // Overwrite partial output left by an interrupted attempt
+            "-i", inputFile.getAbsolutePath(),
+            "-c:v", MediaToolchain.ENCODER_VP9 // VP9 codec
+        ));
+        command.addAll(preset.ffmpegVideoOptions()); // Speed and constant quality settings
+        command.addAll(List.of(
+            "-c:a", mediaToolchain.getWebMAudioEncoder(), // Opus (or Vorbis) audio codec
+            "-progress", "pipe:1", // Send progress information to stdout
+            "-f", "webm",         // Output goes to a working file without a .webm extension
+            outputFile.getAbsolutePath()
+        ));
+        if (audioFile != null) {
+            // Second output of the same process: the first audio stream only
+            command.addAll(List.of(
+                "-map", "0:a:0",
+                "-vn",
+                "-c:a", mediaToolchain.getWebMAudioEncoder(),
+                "-f", "webm",
+                audioFile.getAbsolutePath()
+            ));
+        }
+        return command;
+    }
+    
     /**
      * Calculate progress percentage based on current time and total duration
      */
-    private int calculateProgressPercentage(String currentTime, String totalDuration) {
+    private int calculateProgressPercentage(String currentTime, long total) {
         try {
             long current = timeToMillis(currentTime);
-            long total = timeToMillis(totalDuration);
             
             if (total <= 0) return 0;
             
@@ -331,48 +976,13 @@ public class FileStorageService {
     }
     
     /**
-     * Get the duration of a media file using ffmpeg
+     * Convert milliseconds to the time format (HH:MM:SS.MS) FFmpeg reports progress in
      */
-    private String getDuration(String filePath) {
-        try {
-            Process process = Runtime.getRuntime().exec(new String[] {
-                "ffmpeg", "-i", filePath
-            });
-            
-            // FFmpeg outputs information to stderr
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-            String line;
-            Pattern durationPattern = Pattern.compile("Duration: (\\d+:\\d+:\\d+\\.\\d+)");
-            
-            while ((line = reader.readLine()) != null) {
-                Matcher matcher = durationPattern.matcher(line);
-                if (matcher.find()) {
-                    return matcher.group(1);
-                }
-            }
-            
-            // Default duration if we can't find it
-            return "00:00:00.00";
-        } catch (Exception e) {
-            return "00:00:00.00";
-        }
-    }
-    
-    /**
-     * Fallback method - copy the file as WebM
-     * This is a last resort if all conversion methods fail
-     */
-    private void copyFileAsWebm(File inputFile, File outputFile) throws IOException {
-        try (
-            InputStream in = Files.newInputStream(inputFile.toPath());
-            FileOutputStream out = new FileOutputStream(outputFile)
-        ) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-            }
-        }
+    private String millisToTime(long millis) {
+        long hours = millis / 3_600_000;
+        long minutes = (millis / 60_000) % 60;
+        double seconds = (millis % 60_000) / 1000.0;
+        return String.format(Locale.ROOT, "%02d:%02d:%05.2f", hours, minutes, seconds);
     }
     
     /**
@@ -384,31 +994,117 @@ public class FileStorageService {
         return filename.substring(filename.lastIndexOf("."));
     }
 
-    private String storeFile(MultipartFile file, Path storageLocation) {
+    /**
+     * Store an upload under the SHA-256 of its content, so identical uploads share one file
+     */
+    private String storeFile(MultipartFile file, StorageBackend.Area area) {
         String originalFilename = StringUtils.cleanPath(file.getOriginalFilename());
         String fileExtension = originalFilename.substring(originalFilename.lastIndexOf("."));
-        String filename = UUID.randomUUID().toString() + fileExtension;
 
+        if (fileExtension.contains("..")) {
+            throw new RuntimeException("Filename contains invalid path sequence " + originalFilename);
+        }
+
+        Path tempFile = null;
         try {
-            if (filename.contains("..")) {
-                throw new RuntimeException("Filename contains invalid path sequence " + filename);
-            }
+            tempFile = Files.createTempFile(uploadTempLocation(area), "upload-", ".part");
+            String filename = copyAndHash(file.getInputStream(), tempFile) + fileExtension.toLowerCase(Locale.ROOT);
             
-            Path targetLocation = storageLocation.resolve(filename);
-            Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
+            // Same content uploaded before is kept, and the temp file dropped
+            storageBackend.store(area, filename, tempFile);
+            return filename;
+        } catch (IOException ex) {
+            deleteQuietly(tempFile);
+            throw new RuntimeException("Could not store file " + originalFilename, ex);
+        }
+    }
 
+    /**
+     * Move an assembled upload under the SHA-256 of its content
+     */
+    private String storeAssembledFile(Path assembledFile, String originalFilename, StorageBackend.Area area) {
+        String cleanFilename = StringUtils.cleanPath(originalFilename);
+        String fileExtension = getFileExtension(cleanFilename);
+
+        if (fileExtension.contains("..")) {
+            throw new RuntimeException("Filename contains invalid path sequence " + cleanFilename);
+        }
+
+        try {
+            String filename = hashFile(assembledFile) + fileExtension.toLowerCase(Locale.ROOT);
+            storageBackend.store(area, filename, assembledFile);
             return filename;
         } catch (IOException ex) {
-            throw new RuntimeException("Could not store file " + filename, ex);
+            throw new RuntimeException("Could not store file " + cleanFilename, ex);
+        }
+    }
+
+    /**
+     * @return Local directory for uploads that are still being copied and hashed; files
+     *         left there by an interrupted copy are reclaimed by the {@link StorageJanitor}
+     */
+    private Path uploadTempLocation(StorageBackend.Area area) {
+        return area == StorageBackend.Area.COVERS ? this.coverArtStorageLocation : this.songStorageLocation;
+    }
+
+    /**
+     * Compute the SHA-256 of a file that is already on disk
+     * @return The hex-encoded SHA-256 of the content
+     */
+    private String hashFile(Path file) throws IOException {
+        MessageDigest digest = newContentDigest();
+
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Copy a stream to a file and compute the SHA-256 of the bytes on the way
+     * @return The hex-encoded SHA-256 of the content
+     */
+    private String copyAndHash(InputStream inputStream, Path target) throws IOException {
+        MessageDigest digest = newContentDigest();
+
+        try (InputStream in = new DigestInputStream(inputStream, digest)) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void deleteRecursively(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(this::deleteQuietly);
+        } catch (IOException e) {
+            System.out.println("Could not delete " + directory + ": " + e.getMessage());
+        }
+    }
+    
+    private void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.out.println("Could not delete " + path + ": " + e.getMessage());
         }
     }
 
     public Resource loadSongAsResource(String filename) {
-        return loadFileAsResource(filename, songStorageLocation);
+        return loadFileAsResource(filename, StorageBackend.Area.SONGS);
     }
 
     public Resource loadCoverArtAsResource(String filename) {
-        return loadFileAsResource(filename, coverArtStorageLocation);
+        return loadFileAsResource(filename, StorageBackend.Area.COVERS);
     }
     
     /**
@@ -417,20 +1113,53 @@ public class FileStorageService {
      * @return Resource for the WebM file
      */
     public Resource loadConvertedFileAsResource(String filename) {
-        return loadFileAsResource(filename, convertedStorageLocation);
+        return findConverted(filename)
+            .orElseThrow(() -> new RuntimeException("File not found " + filename));
     }
 
-    private Resource loadFileAsResource(String filename, Path storageLocation) {
-        try {
-            Path filePath = storageLocation.resolve(filename).normalize();
-            Resource resource = new UrlResource(filePath.toUri());
-            if(resource.exists()) {
-                return resource;
-            } else {
-                throw new RuntimeException("File not found " + filename);
+    /**
+     * @param outputFileName Name of a converted file
+     * @return Its audio-only rendition, if the source had audio and the rendition was created
+     */
+    public Optional<Resource> findAudioRendition(String outputFileName) {
+        return findConverted(audioRenditionName(outputFileName));
+    }
+
+    /**
+     * @param name Name of a converted file or of one of its assets
+     * @return The published file, from local disk if this node has it and from the storage
+     *         backend otherwise (converted on another node)
+     */
+    private Optional<Resource> findConverted(String name) {
+        Path path = convertedPath(name).normalize();
+        if (!path.startsWith(this.convertedStorageLocation)) {
+            return Optional.empty();
+        }
+        if (Files.isRegularFile(path)) {
+            try {
+                return Optional.of(new UrlResource(path.toUri()));
+            } catch (MalformedURLException e) {
+                return Optional.empty();
             }
-        } catch (MalformedURLException ex) {
-            throw new RuntimeException("File not found " + filename, ex);
         }
+        return storageBackend.find(StorageBackend.Area.CONVERTED, name);
+    }
+
+    /**
+     * Find a converted or uploaded media file by name
+     * @param filename The stored file name
+     * @return The file, if it exists in the converted or song storage location
+     */
+    public Optional<File> findStoredMediaFile(String filename) {
+        Path convertedFile = convertedPath(filename).normalize();
+        if (convertedFile.startsWith(convertedStorageLocation) && Files.isRegularFile(convertedFile)) {
+            return Optional.of(convertedFile.toFile());
+        }
+        return storageBackend.localFile(StorageBackend.Area.SONGS, filename).map(Path::toFile);
+    }
+
+    private Resource loadFileAsResource(String filename, StorageBackend.Area area) {
+        return storageBackend.find(area, filename)
+            .orElseThrow(() -> new RuntimeException("File not found " + filename));
     }
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+package com.bitzomax.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.UrlResource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Stores files on local disk under {@code file.upload.songs} and {@code file.upload.covers}
+ * (converted media in {@code songs/converted}, where the encoders publish it), sharded into two levels of subdirectories named after the leading characters of the file
+ * name ({@code ab/cd/abcd...mp3}). Names are content hashes, so files spread evenly and no
+ * directory holds more than about 1/65536 of them, which keeps lookups and listings fast
+ * where a single flat directory would hold hundreds of thousands of files.
+ * Files stored flat by earlier versions are still found where they are.
+ */
+@Service
+@ConditionalOnProperty(name = "storage.backend", havingValue = "local", matchIfMissing = true)
+public class LocalStorageBackend implements StorageBackend {
+
+    private final Path songStorageLocation;
+    private final Path coverArtStorageLocation;
+    private final Path convertedStorageLocation;
+
+    public LocalStorageBackend(
+            @Value("${file.upload.songs}") String songUploadDir,
+            @Value("${file.upload.covers}") String coverUploadDir) {
+        this.songStorageLocation = Paths.get(songUploadDir).toAbsolutePath().normalize();
+        this.coverArtStorageLocation = Paths.get(coverUploadDir).toAbsolutePath().normalize();
+        this.convertedStorageLocation = Paths.get(songUploadDir, "converted").toAbsolutePath().normalize();
+
+        try {
+            Files.createDirectories(this.songStorageLocation);
+            Files.createDirectories(this.coverArtStorageLocation);
+            Files.createDirectories(this.convertedStorageLocation);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not create upload directories", ex);
+        }
+    }
+
+    /**
+     * @param root A sharded directory
+     * @param name A file name, usually starting with a hex content hash
+     * @return Where the file belongs below the root, e.g. {@code root/ab/cd/abcd...}. Names
+     *         that don't start with four hex digits are sharded by the hash of the name
+     */
+    public static Path shardedPath(Path root, String name) {
+        String key = name.length() >= 4 && name.substring(0, 4).chars().allMatch(LocalStorageBackend::isHexDigit)
+            ? name.toLowerCase(Locale.ROOT)
+            : HexFormat.of().formatHex(FileStorageService.newContentDigest().digest(name.getBytes(StandardCharsets.UTF_8)));
+        return root.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(name);
+    }
+
+    private static boolean isHexDigit(int c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    @Override
+    public boolean exists(Area area, String name) {
+        return localFile(area, name).isPresent();
+    }
+
+    @Override
+    public void store(Area area, String name, Path file) throws IOException {
+        if (exists(area, name)) {
+            // Same content was stored before
+            Files.deleteIfExists(file);
+            return;
+        }
+        Path target = shardedPath(root(area), checkName(name));
+        Files.createDirectories(target.getParent());
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void copy(Area area, String name, Path file) throws IOException {
+        Path target = resolve(area, name);
+        if (Files.exists(target) && Files.isSameFile(target, file)) {
+            return;
+        }
+        try (InputStream content = Files.newInputStream(file)) {
+            write(area, name, content);
+        }
+    }
+
+    @Override
+    public void write(Area area, String name, InputStream content) throws IOException {
+        Path target = shardedPath(root(area), checkName(name));
+        Files.createDirectories(target.getParent());
+        // Same prefix as the temp files of uploads, so the janitor reclaims it if we die half way
+        Path tempFile = Files.createTempFile(root(area), "upload-", ".part");
+        try {
+            Files.copy(content, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Override
+    public InputStream openStream(Area area, String name) throws IOException {
+        return Files.newInputStream(resolve(area, name));
+    }
+
+    @Override
+    public Optional<Resource> find(Area area, String name) {
+        return localFile(area, name).flatMap(path -> {
+            try {
+                return Optional.of(new UrlResource(path.toUri()));
+            } catch (MalformedURLException e) {
+                return Optional.empty();
+            }
+        });
+    }
+
+    @Override
+    public Optional<Path> localFile(Area area, String name) {
+        if (!isValidName(name)) {
+            return Optional.empty();
+        }
+        Path path = resolve(area, name);
+        return Files.isRegularFile(path) ? Optional.of(path) : Optional.empty();
+    }
+
+    /**
+     * @return The sharded path of a name, or its flat path if it was stored flat by an earlier version
+     */
+    private Path resolve(Area area, String name) {
+        Path root = root(area);
+        Path sharded = shardedPath(root, checkName(name));
+        if (!Files.exists(sharded)) {
+            Path flat = root.resolve(name);
+            if (Files.isRegularFile(flat)) {
+                return flat;
+            }
+        }
+        return sharded;
+    }
+
+    private Path root(Area area) {
+        return switch (area) {
+            case SONGS -> songStorageLocation;
+            case COVERS -> coverArtStorageLocation;
+            case CONVERTED -> convertedStorageLocation;
+        };
+    }
+
+    private static String checkName(String name) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid file name " + name);
+        }
+        return name;
+    }
+
+    private static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.contains("\\")) {
+            return false;
+        }
+        for (String segment : name.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,418 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.MediaInfo;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Seek and waveform assets derived from the media itself, stored next to the converted file:
+ * <ul>
+ *   <li>{@code <hash>.poster.jpg}: a frame from early in the video</li>
+ *   <li>{@code <hash>.sprite.jpg}: thumbnails at fixed intervals, tiled into one image</li>
+ *   <li>{@code <hash>.thumbnails.vtt}: WebVTT track mapping each interval to its sprite tile</li>
+ *   <li>{@code <hash>.peaks.json}: audio peak amplitude per time bucket, for waveform views</li>
+ * </ul>
+ * A {@link Collector} picks what it needs from frames a conversion decodes anyway. Encodes that
+ * run in the FFmpeg CLI never hand frames to Java; their output is read back once afterwards,
+ * decoding the audio and only the pictures at the thumbnail times.
+ */
+@Service
+public class MediaDerivativesService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaDerivativesService.class);
+
+    private static final int POSTER_MAX_WIDTH = 1280;
+    private static final long POSTER_MAX_OFFSET_MICROS = 10_000_000;
+    // Caps the sprite size of long media; the interval grows instead
+    private static final int MAX_THUMBNAILS = 200;
+
+    private final boolean enabled;
+    private final long thumbnailIntervalMicros;
+    private final int thumbnailWidth;
+    private final int spriteColumns;
+    private final int peaksPerSecond;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public MediaDerivativesService(
+            @Value("${conversion.derivatives.enabled:true}") boolean enabled,
+            @Value("${conversion.derivatives.thumbnail-interval-seconds:10}") int thumbnailIntervalSeconds,
+            @Value("${conversion.derivatives.thumbnail-width:160}") int thumbnailWidth,
+            @Value("${conversion.derivatives.sprite-columns:10}") int spriteColumns,
+            @Value("${conversion.derivatives.peaks-per-second:10}") int peaksPerSecond) {
+        this.enabled = enabled;
+        this.thumbnailIntervalMicros = Math.max(1, thumbnailIntervalSeconds) * 1_000_000L;
+        this.thumbnailWidth = Math.max(16, thumbnailWidth);
+        this.spriteColumns = Math.max(1, spriteColumns);
+        this.peaksPerSecond = Math.max(1, peaksPerSecond);
+    }
+
+    public static String posterName(String outputFileName) {
+        return FileStorageService.baseName(outputFileName) + ".poster.jpg";
+    }
+
+    public static String spriteName(String outputFileName) {
+        return FileStorageService.baseName(outputFileName) + ".sprite.jpg";
+    }
+
+    public static String thumbnailsName(String outputFileName) {
+        return FileStorageService.baseName(outputFileName) + ".thumbnails.vtt";
+    }
+
+    public static String peaksName(String outputFileName) {
+        return FileStorageService.baseName(outputFileName) + ".peaks.json";
+    }
+
+    /**
+     * @param mediaInfo Probe result of the media about to be decoded
+     * @return A collector to feed the decoded frames to, or null if derivatives are off
+     */
+    public Collector newCollector(MediaInfo mediaInfo) {
+        if (!enabled || (!mediaInfo.hasVideo() && !mediaInfo.hasAudio())) {
+            return null;
+        }
+        return new Collector(mediaInfo.durationMillis() * 1000);
+    }
+
+    /**
+     * Derive the assets from a converted file, for encodes whose frames never passed through Java.
+     * The audio is decoded in full for the peaks, but pictures only at the thumbnail and poster times
+     * @param mediaFile The converted file
+     * @param mediaInfo Probe result of the converted file
+     * @param directory Where to write the assets
+     * @param workingDirectory Where the assets are written before they are moved into place;
+     *        must be on the same file system as the directory
+     * @param outputFileName Name of the converted file the assets are named after
+     */
+    public void extract(File mediaFile, MediaInfo mediaInfo, Path directory, Path workingDirectory,
+                        String outputFileName) {
+        Collector collector = newCollector(mediaInfo);
+        if (collector == null) {
+            return;
+        }
+        long started = System.currentTimeMillis();
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(mediaFile);
+        grabber.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+        try {
+            grabber.start();
+            Frame frame;
+            // Video packets are skipped without decoding
+            while ((frame = grabber.grabSamples()) != null) {
+                collector.accept(frame);
+            }
+            if (grabber.hasVideo()) {
+                for (long timestamp : collector.pictureTimestamps()) {
+                    grabber.setTimestamp(timestamp);
+                    frame = grabber.grabImage();
+                    if (frame == null) {
+                        break;
+                    }
+                    collector.accept(frame);
+                }
+            }
+            collector.write(directory, workingDirectory, outputFileName);
+            logger.info("Derived poster, thumbnails and peaks of {} in {} ms", outputFileName,
+                System.currentTimeMillis() - started);
+        } catch (Exception e) {
+            logger.warn("Could not derive poster, thumbnails and peaks of {}: {}", outputFileName, e.getMessage());
+        } finally {
+            try {
+                grabber.release();
+            } catch (Exception e) {
+                logger.warn("Could not release grabber for {}: {}", mediaFile, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gathers the poster, thumbnails and peaks from decoded frames, in decoding order.
+     * Frames are only read, never modified, so they can be recorded afterwards.
+     * Pictures must be YUV 4:2:0, the format the transcoders decode to.
+     */
+    public final class Collector {
+
+        private final long durationMicros;
+        private final long intervalMicros;
+        private final long posterAtMicros;
+        private final long bucketMicros;
+
+        private BufferedImage poster;
+        private final List<BufferedImage> thumbnails = new ArrayList<>();
+        private float[] peaks = new float[0];
+        private int peakCount;
+        private boolean fed;
+
+        private Collector(long durationMicros) {
+            this.durationMicros = durationMicros;
+            this.intervalMicros = durationMicros > 0
+                ? Math.max(thumbnailIntervalMicros, (durationMicros + MAX_THUMBNAILS - 1) / MAX_THUMBNAILS)
+                : thumbnailIntervalMicros;
+            // Early enough to be representative, late enough to skip fade-ins and black intros
+            this.posterAtMicros = Math.min(durationMicros / 10, POSTER_MAX_OFFSET_MICROS);
+            this.bucketMicros = 1_000_000L / peaksPerSecond;
+        }
+
+        /**
+         * @return The times of the pictures the collector still needs, in ascending order
+         */
+        public List<Long> pictureTimestamps() {
+            List<Long> timestamps = new ArrayList<>();
+            for (long slot = thumbnails.size(); slot < MAX_THUMBNAILS; slot++) {
+                long timestamp = slot * intervalMicros;
+                if (durationMicros > 0 ? timestamp >= durationMicros : slot > 0) {
+                    break;
+                }
+                timestamps.add(timestamp);
+            }
+            if (poster == null && !timestamps.contains(posterAtMicros)) {
+                timestamps.add(posterAtMicros);
+                timestamps.sort(null);
+            }
+            return timestamps;
+        }
+
+        /**
+         * @return true once any frame has been fed, i.e. the conversion went through Java
+         */
+        public boolean isFed() {
+            return fed;
+        }
+
+        public void accept(Frame frame) {
+            fed = true;
+            if (frame.image != null) {
+                acceptPicture(frame);
+            } else if (frame.samples != null) {
+                acceptSamples(frame);
+            }
+        }
+
+        private void acceptPicture(Frame frame) {
+            long timestamp = Math.max(0, frame.timestamp);
+            boolean needsPoster = poster == null && timestamp >= posterAtMicros;
+            // A frame covers every thumbnail slot it is the first frame at or after; with
+            // keyframes only, one frame can cover several slots
+            int slots = 0;
+            while ((thumbnails.size() + slots) * intervalMicros <= timestamp
+                    && thumbnails.size() + slots < MAX_THUMBNAILS) {
+                slots++;
+            }
+            if (!needsPoster && slots == 0) {
+                return;
+            }
+
+            BufferedImage image = toImage(frame);
+            if (needsPoster) {
+                poster = image.getWidth() > POSTER_MAX_WIDTH
+                    ? scale(image, POSTER_MAX_WIDTH, evenHeight(image, POSTER_MAX_WIDTH))
+                    : image;
+            }
+            if (slots > 0) {
+                BufferedImage thumbnail = scale(image, thumbnailWidth, evenHeight(image, thumbnailWidth));
+                for (int i = 0; i < slots; i++) {
+                    thumbnails.add(thumbnail);
+                }
+            }
+        }
+
+        private void acceptSamples(Frame frame) {
+            if (frame.sampleRate <= 0 || frame.audioChannels <= 0) {
+                return;
+            }
+            // Planar audio has one buffer per channel, interleaved audio one buffer in total
+            int channelsPerBuffer = frame.samples.length > 1 ? 1 : frame.audioChannels;
+            long timestamp = Math.max(0, frame.timestamp);
+            for (Buffer buffer : frame.samples) {
+                int count = buffer.limit() / channelsPerBuffer;
+                for (int i = 0; i < count; i++) {
+                    float amplitude = 0;
+                    for (int channel = 0; channel < channelsPerBuffer; channel++) {
+                        amplitude = Math.max(amplitude, amplitude(buffer, i * channelsPerBuffer + channel));
+                    }
+                    long sampleTime = timestamp + i * 1_000_000L / frame.sampleRate;
+                    addPeak((int) (sampleTime / bucketMicros), amplitude);
+                }
+            }
+        }
+
+        private void addPeak(int bucket, float amplitude) {
+            if (bucket >= peaks.length) {
+                peaks = Arrays.copyOf(peaks, Math.max(bucket + 1, peaks.length * 2));
+            }
+            peaks[bucket] = Math.max(peaks[bucket], amplitude);
+            peakCount = Math.max(peakCount, bucket + 1);
+        }
+
+        /**
+         * Write whatever was collected; a video without audio gets no peaks, audio without video no pictures
+         * @param workingDirectory Where the assets are written before they are moved into the
+         *        directory; must be on the same file system
+         */
+        public void write(Path directory, Path workingDirectory, String outputFileName) throws IOException {
+            if (poster != null) {
+                writeAtomically(directory.resolve(posterName(outputFileName)), workingDirectory,
+                    file -> ImageIO.write(poster, "jpg", file.toFile()));
+            }
+            if (!thumbnails.isEmpty()) {
+                writeSprite(directory, workingDirectory, outputFileName);
+            }
+            if (peakCount > 0) {
+                writePeaks(directory, workingDirectory, outputFileName);
+            }
+        }
+
+        private void writeSprite(Path directory, Path workingDirectory, String outputFileName) throws IOException {
+            int width = thumbnails.get(0).getWidth();
+            int height = thumbnails.get(0).getHeight();
+            int columns = Math.min(spriteColumns, thumbnails.size());
+            int rows = (thumbnails.size() + columns - 1) / columns;
+
+            BufferedImage sprite = new BufferedImage(width * columns, height * rows, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = sprite.createGraphics();
+            StringBuilder track = new StringBuilder("WEBVTT\n");
+            for (int i = 0; i < thumbnails.size(); i++) {
+                int x = (i % columns) * width;
+                int y = (i / columns) * height;
+                graphics.drawImage(thumbnails.get(i), x, y, width, height, null);
+
+                long start = i * intervalMicros;
+                long end = durationMicros > 0 ? Math.min(durationMicros, start + intervalMicros) : start + intervalMicros;
+                track.append('\n').append(cueTime(start)).append(" --> ").append(cueTime(Math.max(end, start + 1000)))
+                    .append('\n').append("sprite#xywh=").append(x).append(',').append(y).append(',')
+                    .append(width).append(',').append(height).append('\n');
+            }
+            graphics.dispose();
+
+            writeAtomically(directory.resolve(spriteName(outputFileName)), workingDirectory,
+                file -> ImageIO.write(sprite, "jpg", file.toFile()));
+            writeAtomically(directory.resolve(thumbnailsName(outputFileName)), workingDirectory,
+                file -> Files.writeString(file, track, StandardCharsets.UTF_8));
+        }
+
+        private void writePeaks(Path directory, Path workingDirectory, String outputFileName) throws IOException {
+            float[] values = new float[peakCount];
+            for (int i = 0; i < peakCount; i++) {
+                values[i] = Math.round(Math.min(1f, peaks[i]) * 1000) / 1000f;
+            }
+            Map<String, Object> document = new LinkedHashMap<>();
+            document.put("version", 1);
+            document.put("peaksPerSecond", peaksPerSecond);
+            document.put("durationMillis", durationMicros / 1000);
+            document.put("peaks", values);
+            writeAtomically(directory.resolve(peaksName(outputFileName)), workingDirectory,
+                file -> objectMapper.writeValue(file.toFile(), document));
+        }
+    }
+
+    /**
+     * Convert a YUV 4:2:0 picture to RGB. The grabber packs the planes without padding:
+     * Y at the frame stride, then U and V at half the stride and height
+     */
+    private static BufferedImage toImage(Frame frame) {
+        int width = frame.imageWidth;
+        int height = frame.imageHeight;
+        int lumaStride = frame.imageStride > 0 ? frame.imageStride : width;
+        int chromaStride = (lumaStride + 1) / 2;
+        int uOffset = lumaStride * height;
+        int vOffset = uOffset + chromaStride * ((height + 1) / 2);
+
+        // The buffer limit only covers the Y plane; the chroma planes follow up to the capacity
+        ByteBuffer data = ((ByteBuffer) frame.image[0]).duplicate();
+        data.clear();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            int chromaRow = (y / 2) * chromaStride;
+            for (int x = 0; x < width; x++) {
+                int luma = (data.get(y * lumaStride + x) & 0xFF) - 16;
+                int u = (data.get(uOffset + chromaRow + x / 2) & 0xFF) - 128;
+                int v = (data.get(vOffset + chromaRow + x / 2) & 0xFF) - 128;
+                // BT.601 limited range
+                int r = clamp((298 * luma + 409 * v + 128) >> 8);
+                int g = clamp((298 * luma - 100 * u - 208 * v + 128) >> 8);
+                int b = clamp((298 * luma + 516 * u + 128) >> 8);
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    private static int evenHeight(BufferedImage image, int width) {
+        int height = (int) Math.round((double) image.getHeight() * width / image.getWidth());
+        return Math.max(2, height - height % 2);
+    }
+
+    private static float amplitude(Buffer buffer, int index) {
+        if (buffer instanceof ShortBuffer shorts) {
+            return Math.abs(shorts.get(index) / 32768f);
+        }
+        if (buffer instanceof FloatBuffer floats) {
+            return Math.abs(floats.get(index));
+        }
+        return 0;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(255, value);
+    }
+
+    private static String cueTime(long micros) {
+        long millis = micros / 1000;
+        return String.format("%02d:%02d:%02d.%03d",
+            millis / 3_600_000, (millis / 60_000) % 60, (millis / 1000) % 60, millis % 1000);
+    }
+
+    private interface Writer {
+        void write(Path file) throws IOException;
+    }
+
+    /**
+     * Write to a working file and rename it to the target, so a half-written asset is never served
+     */
+    private static void writeAtomically(Path target, Path workingDirectory, Writer writer) throws IOException {
+        Path workingFile = workingDirectory.resolve(target.getFileName() + ".part");
+        try {
+            writer.write(workingFile);
+            Files.move(workingFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(workingFile);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.MediaInfo;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads container and stream properties of a media file in a single pass.
+ * Uses ffprobe's JSON output when the CLI is installed, otherwise opens the
+ * file with the JavaCV grabber (headers only, nothing is decoded).
+ */
+@Service
+public class MediaProbeService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaProbeService.class);
+
+    private static final long DEFAULT_PROBE_TIMEOUT_SECONDS = 30;
+
+    @Autowired
+    private MediaToolchain mediaToolchain;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private long probeTimeoutSeconds = DEFAULT_PROBE_TIMEOUT_SECONDS;
+
+    private final ExecutorService outputReaders;
+
+    public MediaProbeService() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.outputReaders = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ffprobe-output-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Probe a media file
+     * @param file The file to inspect
+     * @return The media properties, or {@link MediaInfo#UNKNOWN} if the file can't be read
+     */
+    public MediaInfo probe(File file) {
+        if (mediaToolchain.isFfprobeAvailable()) {
+            MediaInfo info = probeWithFfprobe(file);
+            if (info != null) {
+                return info;
+            }
+        }
+
+        MediaInfo info = probeWithJavaCV(file);
+        return info != null ? info : MediaInfo.UNKNOWN;
+    }
+
+    private MediaInfo probeWithFfprobe(File file) {
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(
+                mediaToolchain.getFfprobePath(),
+                "-v", "error",
+                "-print_format", "json",
+                "-show_format",
+                "-show_streams",
+                file.getAbsolutePath()
+            );
+            processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+            Process process = processBuilder.start();
+
+            // The output is read on another thread, so a hung ffprobe that keeps its stdout open
+            // can't block the caller past the deadline
+            JsonNode root;
+            Future<JsonNode> output = outputReaders.submit(() -> {
+                try (InputStream stdout = process.getInputStream()) {
+                    return objectMapper.readTree(stdout);
+                }
+            });
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(probeTimeoutSeconds);
+            try {
+                root = output.get(probeTimeoutSeconds, TimeUnit.SECONDS);
+                if (!process.waitFor(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    throw new TimeoutException();
+                }
+            } catch (TimeoutException e) {
+                logger.warn("ffprobe did not finish reading {} within {} seconds", file, probeTimeoutSeconds);
+                return null;
+            } finally {
+                if (process.isAlive()) {
+                    // Its stdout ends with it, and so does the reader
+                    process.destroyForcibly();
+                }
+            }
+            if (process.exitValue() != 0 || root == null) {
+                return null;
+            }
+
+            List<String> videoCodecs = new ArrayList<>();
+            List<String> audioCodecs = new ArrayList<>();
+            JsonNode firstVideo = null;
+            JsonNode firstAudio = null;
+
+            for (JsonNode stream : root.path("streams")) {
+                String codecType = stream.path("codec_type").asText();
+                String codecName = stream.path("codec_name").asText();
+                if ("video".equals(codecType)) {
+                    // Embedded cover art is reported as a single-frame video stream
+                    if (stream.path("disposition").path("attached_pic").asInt() == 1) {
+                        continue;
+                    }
+                    videoCodecs.add(codecName);
+                    if (firstVideo == null) {
+                        firstVideo = stream;
+                    }
+                } else if ("audio".equals(codecType)) {
+                    audioCodecs.add(codecName);
+                    if (firstAudio == null) {
+                        firstAudio = stream;
+                    }
+                }
+            }
+
+            JsonNode format = root.path("format");
+            return new MediaInfo(
+                (long) (format.path("duration").asDouble(0) * 1000),
+                format.path("format_name").asText(null),
+                videoCodecs,
+                audioCodecs,
+                firstVideo != null ? firstVideo.path("width").asInt(0) : 0,
+                firstVideo != null ? firstVideo.path("height").asInt(0) : 0,
+                firstVideo != null ? parseRational(firstVideo.path("avg_frame_rate").asText()) : 0,
+                format.path("bit_rate").asLong(0),
+                firstAudio != null ? firstAudio.path("sample_rate").asInt(0) : 0,
+                firstAudio != null ? firstAudio.path("channels").asInt(0) : 0
+            );
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.debug("ffprobe could not read {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private MediaInfo probeWithJavaCV(File file) {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(file);
+        try {
+            grabber.start();
+
+            List<String> videoCodecs = new ArrayList<>();
+            List<String> audioCodecs = new ArrayList<>();
+            AVFormatContext formatContext = grabber.getFormatContext();
+            for (int i = 0; i < formatContext.nb_streams(); i++) {
+                AVStream stream = formatContext.streams(i);
+                int codecType = stream.codecpar().codec_type();
+                String codecName = avcodec.avcodec_get_name(stream.codecpar().codec_id()).getString();
+                if (codecType == avutil.AVMEDIA_TYPE_VIDEO) {
+                    if ((stream.disposition() & avformat.AV_DISPOSITION_ATTACHED_PIC) == 0) {
+                        videoCodecs.add(codecName);
+                    }
+                } else if (codecType == avutil.AVMEDIA_TYPE_AUDIO) {
+                    audioCodecs.add(codecName);
+                }
+            }
+
+            return new MediaInfo(
+                grabber.getLengthInTime() / 1000,
+                grabber.getFormat(),
+                videoCodecs,
+                audioCodecs,
+                videoCodecs.isEmpty() ? 0 : grabber.getImageWidth(),
+                videoCodecs.isEmpty() ? 0 : grabber.getImageHeight(),
+                videoCodecs.isEmpty() ? 0 : grabber.getVideoFrameRate(),
+                formatContext.bit_rate(),
+                audioCodecs.isEmpty() ? 0 : grabber.getSampleRate(),
+                audioCodecs.isEmpty() ? 0 : grabber.getAudioChannels()
+            );
+        } catch (Exception e) {
+            logger.warn("Could not probe {}: {}", file, e.getMessage());
+            return null;
+        } finally {
+            try {
+                grabber.release();
+            } catch (Exception e) {
+                logger.debug("Could not release grabber for {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Parse an FFmpeg rational such as "30000/1001"
+     */
+    private double parseRational(String value) {
+        try {
+            int slash = value.indexOf('/');
+            if (slash < 0) {
+                return Double.parseDouble(value);
+            }
+            double denominator = Double.parseDouble(value.substring(slash + 1));
+            return denominator == 0 ? 0 : Double.parseDouble(value.substring(0, slash)) / denominator;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        outputReaders.shutdownNow();
+    }
+}
@@ -0,0 +1,242 @@
+package com.bitzomax.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Probes the ffmpeg/ffprobe executables once and caches what they can do,
+ * so the conversion pipeline can pick a strategy without forking a process per job.
+ * Call {@link #refresh()} after installing or upgrading FFmpeg.
+ */
+@Component
+public class MediaToolchain {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaToolchain.class);
+
+    public static final String ENCODER_VP9 = "libvpx-vp9";
+    public static final String ENCODER_OPUS = "libopus";
+    public static final String ENCODER_VORBIS = "libvorbis";
+    public static final String ENCODER_AV1 = "libaom-av1";
+
+    private static final long DEFAULT_PROBE_TIMEOUT_SECONDS = 10;
+
+    private final String configuredFfmpegPath;
+    private final String configuredFfprobePath;
+
+    private long probeTimeoutSeconds = DEFAULT_PROBE_TIMEOUT_SECONDS;
+
+    private volatile Capabilities capabilities = Capabilities.UNAVAILABLE;
+
+    // Not a single thread: a reader left blocked by a hung executable must not hold up the next probe
+    private final ExecutorService outputReaders = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ffmpeg-probe-output");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MediaToolchain(
+            @Value("${media.ffmpeg.path:ffmpeg}") String ffmpegPath,
+            @Value("${media.ffprobe.path:ffprobe}") String ffprobePath) {
+        this.configuredFfmpegPath = ffmpegPath;
+        this.configuredFfprobePath = ffprobePath;
+    }
+
+    @PostConstruct
+    public void init() {
+        refresh();
+    }
+
+    /**
+     * Probe the executables again and replace the cached capabilities
+     */
+    public synchronized void refresh() {
+        List<String> ffmpegVersion = runProbe(configuredFfmpegPath, "-hide_banner", "-version");
+        List<String> ffprobeVersion = runProbe(configuredFfprobePath, "-hide_banner", "-version");
+
+        Set<String> encoders = new LinkedHashSet<>();
+        if (ffmpegVersion != null) {
+            List<String> encoderLines = runProbe(configuredFfmpegPath, "-hide_banner", "-encoders");
+            if (encoderLines != null) {
+                // Encoder lines look like " V....D libvpx-vp9  libvpx VP9 (codec vp9)"
+                for (String line : encoderLines) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length >= 2 && fields[0].length() == 6 && !"=".equals(fields[1])) {
+                        encoders.add(fields[1]);
+                    }
+                }
+            }
+        }
+
+        this.capabilities = new Capabilities(
+            ffmpegVersion != null,
+            ffprobeVersion != null,
+            firstLine(ffmpegVersion),
+            firstLine(ffprobeVersion),
+            ffmpegVersion != null ? String.join("\n", ffmpegVersion) : null,
+            Collections.unmodifiableSet(encoders)
+        );
+
+        logger.info("Media toolchain: ffmpeg={}, ffprobe={}, vp9={}, opus={}, av1={}",
+            capabilities.ffmpegVersion, capabilities.ffprobeVersion,
+            hasEncoder(ENCODER_VP9), hasEncoder(ENCODER_OPUS), hasEncoder(ENCODER_AV1));
+    }
+
+    public boolean isFfmpegAvailable() {
+        return capabilities.ffmpegAvailable;
+    }
+
+    public boolean isFfprobeAvailable() {
+        return capabilities.ffprobeAvailable;
+    }
+
+    public String getFfmpegPath() {
+        return configuredFfmpegPath;
+    }
+
+    public String getFfprobePath() {
+        return configuredFfprobePath;
+    }
+
+    /**
+     * @return First line of {@code ffmpeg -version}, or null if ffmpeg is unavailable
+     */
+    public String getFfmpegVersion() {
+        return capabilities.ffmpegVersion;
+    }
+
+    /**
+     * @return First line of {@code ffprobe -version}, or null if ffprobe is unavailable
+     */
+    public String getFfprobeVersion() {
+        return capabilities.ffprobeVersion;
+    }
+
+    /**
+     * @return Full {@code ffmpeg -version} output, or null if ffmpeg is unavailable
+     */
+    public String getFfmpegVersionOutput() {
+        return capabilities.ffmpegVersionOutput;
+    }
+
+    public Set<String> getEncoders() {
+        return capabilities.encoders;
+    }
+
+    public boolean hasEncoder(String encoder) {
+        return capabilities.encoders.contains(encoder);
+    }
+
+    /**
+     * @return The Opus encoder if present, otherwise Vorbis (both are valid in WebM)
+     */
+    public String getWebMAudioEncoder() {
+        return hasEncoder(ENCODER_OPUS) || !hasEncoder(ENCODER_VORBIS) ? ENCODER_OPUS : ENCODER_VORBIS;
+    }
+
+    /**
+     * @return true if the FFmpeg CLI can produce VP9 WebM output
+     */
+    public boolean canEncodeWebM() {
+        return isFfmpegAvailable() && hasEncoder(ENCODER_VP9);
+    }
+
+    /**
+     * Run an executable and collect its output
+     * @return The output lines, or null if the executable is missing or failed
+     */
+    private List<String> runProbe(String executable, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(executable);
+        Collections.addAll(command, args);
+
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.redirectErrorStream(true);
+            Process process = processBuilder.start();
+
+            // Read on another thread, so an executable that hangs with its output open is
+            // given up on at the deadline
+            Future<List<String>> output = outputReaders.submit(() -> {
+                List<String> lines = new ArrayList<>();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lines.add(line);
+                    }
+                }
+                return lines;
+            });
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(probeTimeoutSeconds);
+            List<String> lines;
+            try {
+                lines = output.get(probeTimeoutSeconds, TimeUnit.SECONDS);
+                if (!process.waitFor(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    throw new TimeoutException();
+                }
+            } catch (TimeoutException e) {
+                logger.warn("{} did not finish within {} seconds", executable, probeTimeoutSeconds);
+                return null;
+            } finally {
+                if (process.isAlive()) {
+                    // Its output ends with it, and so does the reader
+                    process.destroyForcibly();
+                }
+            }
+            return process.exitValue() == 0 ? lines : null;
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.debug("Could not run {}: {}", executable, e.getMessage());
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        outputReaders.shutdownNow();
+    }
+
+    private String firstLine(List<String> lines) {
+        return lines != null && !lines.isEmpty() ? lines.get(0) : null;
+    }
+
+    private static final class Capabilities {
+
+        static final Capabilities UNAVAILABLE = new Capabilities(false, false, null, null, null, Set.of());
+
+        final boolean ffmpegAvailable;
+        final boolean ffprobeAvailable;
+        final String ffmpegVersion;
+        final String ffprobeVersion;
+        final String ffmpegVersionOutput;
+        final Set<String> encoders;
+
+        Capabilities(boolean ffmpegAvailable, boolean ffprobeAvailable, String ffmpegVersion,
+                     String ffprobeVersion, String ffmpegVersionOutput, Set<String> encoders) {
+            this.ffmpegAvailable = ffmpegAvailable;
+            this.ffprobeAvailable = ffprobeAvailable;
+            this.ffmpegVersion = ffmpegVersion;
+            this.ffprobeVersion = ffprobeVersion;
+            this.ffmpegVersionOutput = ffmpegVersionOutput;
+            this.encoders = encoders;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import com.bitzomax.model.MediaInfo;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Encodes long videos to VP9 by splitting them at keyframes, encoding the
+ * segments concurrently and concatenating the results.
+ * libvpx-vp9 scales poorly beyond a few threads on a single stream, so on
+ * many-core machines several independent encodes finish much sooner.
+ */
+@Service
+public class ParallelSegmentEncoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelSegmentEncoder.class);
+
+    // How long a failed attempt waits for its killed segment encodes before deleting their files
+    private static final long KILL_TIMEOUT_MILLIS = 10_000;
+
+    @Autowired
+    private ProgressUpdateService progressUpdateService;
+
+    @Autowired
+    private MediaToolchain mediaToolchain;
+
+    private final boolean enabled;
+    private final int segmentCount;
+    private final long minDurationMillis;
+    private final int threadsPerSegment;
+
+    // Shared by all jobs so concurrent conversions split the cores between them
+    private final ExecutorService segmentExecutor;
+
+    public ParallelSegmentEncoder(
+            @Value("${conversion.parallel.enabled:true}") boolean enabled,
+            @Value("${conversion.parallel.segments:0}") int segments,
+            @Value("${conversion.parallel.min-duration-seconds:120}") int minDurationSeconds) {
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.enabled = enabled;
+        this.segmentCount = segments > 0 ? segments : cores;
+        this.minDurationMillis = minDurationSeconds * 1000L;
+        this.threadsPerSegment = Math.max(1, cores / this.segmentCount);
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.segmentExecutor = Executors.newFixedThreadPool(Math.max(1, cores / threadsPerSegment), runnable -> {
+            Thread thread = new Thread(runnable, "vp9-segment-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param mediaInfo Probe result of the input
+     * @return true if the input has video and is long enough for splitting to pay off
+     */
+    public boolean isApplicable(MediaInfo mediaInfo) {
+        return enabled && segmentCount > 1 && mediaInfo.hasVideo() && mediaInfo.durationMillis() >= minDurationMillis
+            && mediaToolchain.canEncodeWebM();
+    }
+
+    /**
+     * Encode the input to a VP9/Opus WebM using concurrently encoded segments.
+     * Progress is reported in the same 5-90% band as the sequential FFmpeg path.
+     *
+     * @param inputFile The staged input
+     * @param outputFile The WebM to create
+     * @param fileId The file ID progress updates are sent under
+     * @param durationMillis Duration of the input, used for progress and segment length
+     * @param preset Speed/quality preset of every segment encode
+     * @param audioFile Where to keep the separately encoded audio as an audio-only WebM, or null
+     * @param conversion Cancellation token of the conversion; cancelling kills every segment encode
+     * @return true if the conversion succeeded, false if the caller should fall back. Every
+     *         encode of a failed attempt has been killed by then
+     */
+    public boolean encode(File inputFile, File outputFile, String fileId, long durationMillis,
+                          EncoderPreset preset, File audioFile, ConversionCancellation conversion) {
+        Path workDir = null;
+        // Lets a failure stop the other segment encodes without cancelling the conversion
+        ConversionCancellation cancellation = conversion.startAttempt();
+        try {
+            workDir = Files.createTempDirectory(outputFile.toPath().getParent(), fileId + "-segments");
+
+            // 1. Split the video stream at keyframes without re-encoding
+            double segmentSeconds = Math.max(10.0, durationMillis / 1000.0 / segmentCount);
+            progressUpdateService.sendProgressUpdate(fileId, 5, "processing",
+                "Splitting input into segments for parallel encoding");
+            int splitExit = runFfmpeg(List.of(
+                mediaToolchain.getFfmpegPath(), "-y",
+                "-i", inputFile.getAbsolutePath(),
+                "-map", "0:v:0",
+                "-c", "copy",
+                "-f", "segment",
+                "-segment_time", String.format(Locale.ROOT, "%.3f", segmentSeconds),
+                "-reset_timestamps", "1",
+                workDir.resolve("source_%04d.mkv").toString()
+            ), line -> { }, cancellation);
+            if (splitExit != 0) {
+                logger.warn("Splitting {} failed with exit code {}", inputFile, splitExit);
+                return false;
+            }
+
+            List<Path> sourceSegments;
+            try (Stream<Path> files = Files.list(workDir)) {
+                sourceSegments = files
+                    .filter(p -> p.getFileName().toString().startsWith("source_"))
+                    .sorted(Comparator.comparing(Path::toString))
+                    .toList();
+            }
+            if (sourceSegments.isEmpty()) {
+                return false;
+            }
+
+            // 2. Encode audio and every video segment concurrently
+            AtomicLongArray encodedMicros = new AtomicLongArray(sourceSegments.size());
+            long totalMicros = Math.max(1, durationMillis * 1000);
+            AtomicInteger lastPercent = new AtomicInteger(5);
+            Path audioOutput = workDir.resolve("audio.webm");
+
+            // Inputs without audio make this encode fail, which is fine
+            Future<Integer> audioEncode = segmentExecutor.submit(() -> runFfmpeg(List.of(
+                mediaToolchain.getFfmpegPath(), "-y",
+                "-i", inputFile.getAbsolutePath(),
+                "-map", "0:a:0?",
+                "-vn",
+                "-c:a", mediaToolchain.getWebMAudioEncoder(),
+                "-progress", "pipe:1",
+                audioOutput.toString()
+            ), line -> { }, cancellation));
+
+            List<Future<Integer>> encodes = new ArrayList<>();
+            List<Path> encodedSegments = new ArrayList<>();
+            for (int i = 0; i < sourceSegments.size(); i++) {
+                int index = i;
+                Path encoded = workDir.resolve(String.format("encoded_%04d.webm", i));
+                encodedSegments.add(encoded);
+                List<String> command = new ArrayList<>(List.of(
+                    mediaToolchain.getFfmpegPath(), "-y",
+                    "-i", sourceSegments.get(index).toString(),
+                    "-c:v", MediaToolchain.ENCODER_VP9));
+                command.addAll(preset.ffmpegVideoOptions());
+                command.addAll(List.of(
+                    "-threads", String.valueOf(threadsPerSegment),
+                    "-an",
+                    "-progress", "pipe:1",
+                    encoded.toString()));
+                encodes.add(segmentExecutor.submit(() -> runFfmpeg(command, line -> {
+                    // Encodes of a failed attempt may still be draining their output
+                    if (line.startsWith("out_time_ms=") && !cancellation.isCancelled()) {
+                        encodedMicros.set(index, parseLong(line.substring("out_time_ms=".length())));
+                        reportCombinedProgress(fileId, encodedMicros, totalMicros, lastPercent);
+                    }
+                }, cancellation)));
+            }
+
+            for (Future<Integer> encode : encodes) {
+                if (encode.get() != 0) {
+                    logger.warn("A parallel segment encode of {} failed", inputFile);
+                    // Drop the encodes that haven't started, the others are killed below
+                    encodes.forEach(pending -> pending.cancel(false));
+                    audioEncode.cancel(false);
+                    return false;
+                }
+            }
+
+            // 3. Concatenate the encoded segments and mux the audio back in
+            progressUpdateService.sendProgressUpdate(fileId, 88, "processing", "Joining encoded segments");
+            Path concatList = workDir.resolve("segments.txt");
+            StringBuilder list = new StringBuilder();
+            for (Path encoded : encodedSegments) {
+                list.append("file '").append(encoded.toAbsolutePath()).append("'\n");
+            }
+            Files.writeString(concatList, list.toString());
+
+            List<String> concatCommand = new ArrayList<>(List.of(
+                mediaToolchain.getFfmpegPath(), "-y",
+                "-f", "concat", "-safe", "0",
+                "-i", concatList.toString()
+            ));
+            boolean hasAudio = audioEncode.get() == 0 && Files.exists(audioOutput) && Files.size(audioOutput) > 0;
+            if (hasAudio) {
+                concatCommand.addAll(List.of("-i", audioOutput.toString(), "-map", "0:v", "-map", "1:a"));
+            }
+            concatCommand.addAll(List.of("-c", "copy", "-f", "webm", outputFile.getAbsolutePath()));
+
+            int concatExit = runFfmpeg(concatCommand, line -> { }, cancellation);
+            if (concatExit != 0) {
+                logger.warn("Concatenating segments of {} failed with exit code {}", inputFile, concatExit);
+                return false;
+            }
+
+            // The audio was encoded on its own anyway, so the audio-only rendition comes for free
+            if (hasAudio && audioFile != null) {
+                Files.move(audioOutput, audioFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            progressUpdateService.sendProgressUpdate(fileId, 90, "processing", "Parallel FFmpeg conversion completed");
+            return true;
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.warn("Parallel encoding of {} failed: {}", inputFile, e.getMessage());
+            return false;
+        } finally {
+            conversion.endAttempt(cancellation, KILL_TIMEOUT_MILLIS);
+            deleteRecursively(workDir);
+        }
+    }
+
+    private void reportCombinedProgress(String fileId, AtomicLongArray encodedMicros, long totalMicros,
+                                        AtomicInteger lastPercent) {
+        long done = 0;
+        for (int i = 0; i < encodedMicros.length(); i++) {
+            done += encodedMicros.get(i);
+        }
+        int percent = (int) Math.min(88, 5 + (done * 83 / totalMicros));
+        int previous = lastPercent.get();
+        if (percent > previous && lastPercent.compareAndSet(previous, percent)) {
+            progressUpdateService.sendProgressUpdate(fileId, percent, "processing",
+                "Parallel FFmpeg encoding: " + percent + "%");
+        }
+    }
+
+    private int runFfmpeg(List<String> command, Consumer<String> lineHandler, ConversionCancellation cancellation)
+            throws IOException, InterruptedException {
+        cancellation.throwIfCancelled();
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        Process process = cancellation.register(processBuilder.start());
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineHandler.accept(line);
+            }
+        }
+        return process.waitFor();
+    }
+
+    private long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void deleteRecursively(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    logger.warn("Could not delete {}: {}", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Could not clean up {}: {}", directory, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        segmentExecutor.shutdownNow();
+    }
+}
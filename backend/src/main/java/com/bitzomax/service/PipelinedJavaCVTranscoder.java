@@ -0,0 +1,373 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import jakarta.annotation.PreDestroy;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * VP9/Vorbis WebM encoder built on JavaCV, used when the FFmpeg CLI is missing.
+ * Decoding and encoding run on separate threads joined by a bounded queue, so the
+ * encoder never waits for the demuxer and vice versa. The decoder converts to
+ * YUV 4:2:0 itself (the format VP9 encodes), which keeps pixel conversion off the
+ * encoder thread, and video frames travel in a fixed set of reused buffers.
+ */
+@Service
+public class PipelinedJavaCVTranscoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelinedJavaCVTranscoder.class);
+
+    // Frames in flight between decoder and encoder; bounds memory to a few raw pictures
+    private static final int QUEUE_CAPACITY = 16;
+
+    @Autowired
+    private ProgressUpdateService progressUpdateService;
+
+    private final int cores = Runtime.getRuntime().availableProcessors();
+
+    private final ExecutorService decoderExecutor;
+
+    public PipelinedJavaCVTranscoder() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.decoderExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "javacv-decode-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Convert a media file to WebM, reporting progress in the 30-95% band
+     * @param inputFile The staged input
+     * @param outputFile The WebM to create
+     * @param fileId The file ID progress updates are sent under
+     * @param preset Speed/quality preset of the video encode
+     * @param audioFile Audio-only WebM to record from the same decoded frames, or null
+     * @param derivatives Collector for the poster, thumbnails and peaks, fed every decoded frame; or null
+     * @param cancellation Cancellation token, checked for every frame
+     * @throws java.util.concurrent.CancellationException if the conversion was cancelled
+     */
+    public void transcode(File inputFile, File outputFile, String fileId, EncoderPreset preset, File audioFile,
+                          MediaDerivativesService.Collector derivatives,
+                          ConversionCancellation cancellation) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile);
+        grabber.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+        grabber.setVideoOption("threads", String.valueOf(cores));
+
+        FFmpegFrameRecorder recorder = null;
+        FFmpegFrameRecorder audioRecorder = null;
+        FramePipeline pipeline = null;
+        Future<?> decoder = null;
+        try {
+            grabber.start();
+
+            // Get total frames for progress calculation
+            int totalFrames = grabber.getLengthInFrames();
+            if (totalFrames <= 0) {
+                // If we can't get frame count, estimate based on duration and framerate
+                double duration = grabber.getLengthInTime() / 1000000.0;
+                totalFrames = (int) (duration * grabber.getFrameRate());
+            }
+
+            progressUpdateService.sendProgressUpdate(fileId, 30, "processing", "Starting JavaCV conversion");
+
+            recorder = createRecorder(grabber, outputFile, preset);
+            recorder.start();
+            if (audioFile != null && grabber.hasAudio()) {
+                audioRecorder = createAudioRecorder(grabber, audioFile);
+                audioRecorder.start();
+            }
+
+            progressUpdateService.sendProgressUpdate(fileId, 40, "processing", "JavaCV conversion started");
+
+            FramePipeline activePipeline = new FramePipeline();
+            pipeline = activePipeline;
+            decoder = decoderExecutor.submit(() -> activePipeline.decode(grabber));
+
+            int frameCount = 0;
+            Frame frame;
+            while ((frame = pipeline.take()) != null) {
+                try {
+                    cancellation.throwIfCancelled();
+                    if (derivatives != null) {
+                        derivatives.accept(frame);
+                    }
+                    if (frame.image != null) {
+                        recorder.record(frame, avutil.AV_PIX_FMT_YUV420P);
+                        frameCount++;
+
+                        // Update progress every 10 frames
+                        if (frameCount % 10 == 0 && totalFrames > 0) {
+                            int progressPercent = Math.min(90, 40 + (frameCount * 50 / totalFrames));
+                            progressUpdateService.sendProgressUpdate(fileId, progressPercent, "processing",
+                                "Converting frame " + frameCount + "/" + totalFrames);
+                        }
+                    } else {
+                        if (audioRecorder != null) {
+                            // Recording consumes the sample buffers, so the rendition gets its own copy
+                            try (Frame samples = frame.clone()) {
+                                audioRecorder.record(samples);
+                            }
+                        }
+                        recorder.record(frame);
+                    }
+                } finally {
+                    pipeline.release(frame);
+                }
+            }
+
+            progressUpdateService.sendProgressUpdate(fileId, 90, "processing", "Finalizing conversion");
+            recorder.stop();
+            if (audioRecorder != null) {
+                audioRecorder.stop();
+            }
+            progressUpdateService.sendProgressUpdate(fileId, 95, "processing", "JavaCV conversion completed");
+        } finally {
+            if (pipeline != null) {
+                pipeline.cancel();
+            }
+            if (decoder != null) {
+                // The grabber must not be released while the decoder thread still uses it
+                try {
+                    decoder.get();
+                } catch (Exception e) {
+                    logger.debug("Decoder for {} ended with: {}", fileId, e.getMessage());
+                }
+            }
+            for (FFmpegFrameRecorder activeRecorder : new FFmpegFrameRecorder[] { recorder, audioRecorder }) {
+                if (activeRecorder != null) {
+                    try {
+                        activeRecorder.release();
+                    } catch (Exception e) {
+                        logger.warn("Could not release recorder for {}: {}", fileId, e.getMessage());
+                    }
+                }
+            }
+            try {
+                grabber.release();
+            } catch (Exception e) {
+                logger.warn("Could not release grabber for {}: {}", fileId, e.getMessage());
+            }
+        }
+    }
+
+    private FFmpegFrameRecorder createRecorder(FFmpegFrameGrabber grabber, File outputFile, EncoderPreset preset) {
+        boolean hasVideo = grabber.hasVideo() && grabber.getImageWidth() > 0;
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
+            outputFile,
+            hasVideo ? grabber.getImageWidth() : 0,
+            hasVideo ? grabber.getImageHeight() : 0,
+            grabber.hasAudio() ? grabber.getAudioChannels() : 0
+        );
+
+        recorder.setFormat("webm");
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_VP9);
+
+        // Vorbis accepts any sample rate, Opus only a few
+        recorder.setAudioCodec(avcodec.AV_CODEC_ID_VORBIS);
+
+        // Video quality settings (lower values = higher compression)
+        recorder.setVideoQuality(preset.getCrf());
+        recorder.setVideoBitrate(500000);
+        recorder.setFrameRate(grabber.getFrameRate());
+        recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+
+        // Encoder speed of the preset picked for the current queue load
+        recorder.setVideoOption("deadline", preset.getDeadline());
+        recorder.setVideoOption("cpu-used", String.valueOf(preset.getCpuUsed()));
+
+        // libvpx-vp9 is single-threaded unless told otherwise. Row multithreading works at
+        // any size; tile columns need at least 256 pixels of width each
+        if (hasVideo) {
+            int tileColumnsLog2 = Math.min(log2(cores), log2(Math.max(1, grabber.getImageWidth() / 256)));
+            recorder.setVideoOption("row-mt", "1");
+            recorder.setVideoOption("tile-columns", String.valueOf(tileColumnsLog2));
+            recorder.setVideoOption("threads", String.valueOf(cores));
+        }
+
+        // Audio quality settings
+        recorder.setAudioBitrate(96000);
+        recorder.setSampleRate(grabber.getSampleRate());
+        return recorder;
+    }
+
+    /**
+     * Audio-only WebM with the same audio settings as the full output
+     */
+    private FFmpegFrameRecorder createAudioRecorder(FFmpegFrameGrabber grabber, File audioFile) {
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(audioFile, 0, 0, grabber.getAudioChannels());
+        recorder.setFormat("webm");
+        recorder.setAudioCodec(avcodec.AV_CODEC_ID_VORBIS);
+        recorder.setAudioBitrate(96000);
+        recorder.setSampleRate(grabber.getSampleRate());
+        return recorder;
+    }
+
+    private static int log2(int value) {
+        return 31 - Integer.numberOfLeadingZeros(Math.max(1, value));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        decoderExecutor.shutdownNow();
+    }
+
+    /**
+     * Hands decoded frames from the decoder thread to the encoder thread.
+     * The grabber reuses its frame on every grab, so pictures are copied into pooled
+     * buffers; the pool size caps how far the decoder can run ahead.
+     */
+    private static final class FramePipeline {
+
+        private static final Frame END_OF_STREAM = new Frame();
+
+        private final BlockingQueue<Frame> decoded = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final BlockingQueue<Frame> freeVideoFrames = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final AtomicInteger allocatedVideoFrames = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile Exception failure;
+
+        /**
+         * Decoder thread: grab every frame and queue a copy of it
+         */
+        void decode(FFmpegFrameGrabber grabber) {
+            try {
+                Frame frame;
+                while (!cancelled && (frame = grabber.grab()) != null) {
+                    if (frame.image != null) {
+                        Frame copy = acquireVideoFrame(frame);
+                        if (copy == null) {
+                            return;
+                        }
+                        copyPicture(frame, copy);
+                        put(copy);
+                    } else if (frame.samples != null) {
+                        // Audio frames are small; a plain copy is cheaper than pooling them
+                        put(frame.clone());
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                offerEndOfStream();
+            }
+        }
+
+        /**
+         * Encoder thread: next decoded frame, or null at the end of the input
+         * @throws Exception the decoder's failure, if it failed
+         */
+        Frame take() throws Exception {
+            Frame frame = decoded.take();
+            if (frame == END_OF_STREAM) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return null;
+            }
+            return frame;
+        }
+
+        /**
+         * Return a frame to the pool once it has been recorded
+         */
+        void release(Frame frame) {
+            if (frame.image != null) {
+                freeVideoFrames.offer(frame);
+            } else {
+                frame.close();
+            }
+        }
+
+        /**
+         * Stop the decoder, e.g. because the encoder failed
+         */
+        void cancel() {
+            cancelled = true;
+            // Queued audio copies hold native sample buffers that only close() frees
+            Frame frame;
+            while ((frame = decoded.poll()) != null) {
+                if (frame != END_OF_STREAM) {
+                    release(frame);
+                }
+            }
+            // Unblock a decoder waiting for a free buffer
+            freeVideoFrames.offer(new Frame());
+        }
+
+        private Frame acquireVideoFrame(Frame source) throws InterruptedException {
+            Frame frame = freeVideoFrames.poll();
+            if (frame == null && allocatedVideoFrames.get() < QUEUE_CAPACITY) {
+                allocatedVideoFrames.incrementAndGet();
+                frame = new Frame();
+            }
+            if (frame == null) {
+                frame = freeVideoFrames.take();
+            }
+            return cancelled ? null : frame;
+        }
+
+        private void copyPicture(Frame source, Frame target) {
+            ByteBuffer sourceBuffer = ((ByteBuffer) source.image[0]).duplicate();
+            sourceBuffer.clear();
+
+            ByteBuffer targetBuffer = target.image != null ? (ByteBuffer) target.image[0] : null;
+            if (targetBuffer == null || targetBuffer.capacity() != sourceBuffer.capacity()) {
+                targetBuffer = ByteBuffer.allocateDirect(sourceBuffer.capacity()).order(sourceBuffer.order());
+                target.image = new Buffer[] { targetBuffer };
+            }
+            targetBuffer.clear();
+            targetBuffer.put(sourceBuffer);
+            targetBuffer.flip();
+
+            target.imageWidth = source.imageWidth;
+            target.imageHeight = source.imageHeight;
+            target.imageDepth = source.imageDepth;
+            target.imageChannels = source.imageChannels;
+            target.imageStride = source.imageStride;
+            target.keyFrame = source.keyFrame;
+            target.pictType = source.pictType;
+            target.timestamp = source.timestamp;
+            target.streamIndex = source.streamIndex;
+            target.type = source.type;
+        }
+
+        private void put(Frame frame) throws InterruptedException {
+            while (!cancelled) {
+                if (decoded.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+            if (frame != END_OF_STREAM) {
+                release(frame);
+            }
+        }
+
+        private void offerEndOfStream() {
+            try {
+                put(END_OF_STREAM);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import com.bitzomax.model.MediaInfo;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Low-resolution preview of an upload, encoded before the full-quality conversion so
+ * something is playable within seconds. The preview is scaled down to
+ * {@code conversion.preview.height} and encoded with the fastest VP9 settings at a low
+ * quality; the full encode replaces it when it finishes.
+ */
+@Service
+public class PreviewTranscoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(PreviewTranscoder.class);
+
+    // Constant quality of the preview; far below the presets, it only has to be watchable
+    private static final int PREVIEW_CRF = 42;
+    private static final int PREVIEW_VIDEO_BITRATE = 300000;
+    private static final int PREVIEW_AUDIO_BITRATE = 64000;
+
+    @Autowired
+    private MediaToolchain mediaToolchain;
+
+    private final boolean enabled;
+    private final int height;
+    private final long minDurationMillis;
+
+    public PreviewTranscoder(
+            @Value("${conversion.preview.enabled:true}") boolean enabled,
+            @Value("${conversion.preview.height:240}") int height,
+            @Value("${conversion.preview.min-duration-seconds:30}") long minDurationSeconds) {
+        this.enabled = enabled;
+        this.height = Math.max(2, height - height % 2);
+        this.minDurationMillis = Math.max(0, minDurationSeconds) * 1000;
+    }
+
+    /**
+     * @param mediaInfo Probe result of the upload
+     * @return true if a preview is worth encoding: the upload has video and is long enough
+     *         for its full encode to keep the user waiting
+     */
+    public boolean isApplicable(MediaInfo mediaInfo) {
+        return enabled && mediaInfo.hasVideo() && mediaInfo.durationMillis() >= minDurationMillis;
+    }
+
+    /**
+     * Encode the preview, with the FFmpeg CLI if it can encode VP9 and with JavaCV otherwise
+     * @param inputFile The staged input
+     * @param outputFile The preview WebM to create
+     * @param mediaInfo Probe result of the input
+     * @param cancellation Cancellation token of the conversion
+     * @return true if the preview was written, false if the full encode has to do without one
+     * @throws CancellationException if the conversion was cancelled
+     */
+    public boolean transcode(File inputFile, File outputFile, MediaInfo mediaInfo, ConversionCancellation cancellation) {
+        long started = System.currentTimeMillis();
+        boolean success = mediaToolchain.canEncodeWebM()
+            ? transcodeWithFFmpeg(inputFile, outputFile, mediaInfo, cancellation)
+            : transcodeWithJavaCV(inputFile, outputFile, mediaInfo, cancellation);
+        if (success) {
+            logger.info("Encoded {}p preview of {} in {} ms", targetHeight(mediaInfo), inputFile.getName(),
+                System.currentTimeMillis() - started);
+        }
+        return success;
+    }
+
+    private boolean transcodeWithFFmpeg(File inputFile, File outputFile, MediaInfo mediaInfo,
+                                        ConversionCancellation cancellation) {
+        List<String> command = new ArrayList<>(List.of(
+            mediaToolchain.getFfmpegPath(),
+            "-y",
+            "-i", inputFile.getAbsolutePath(),
+            "-map", "0:V:0",
+            "-map", "0:a:0?",
+            "-vf", "scale=-2:" + targetHeight(mediaInfo),
+            "-c:v", MediaToolchain.ENCODER_VP9
+        ));
+        command.addAll(EncoderPreset.REALTIME.ffmpegSpeedOptions());
+        command.addAll(List.of(
+            "-crf", String.valueOf(PREVIEW_CRF),
+            "-b:v", "0",
+            "-c:a", mediaToolchain.getWebMAudioEncoder(),
+            "-b:a", String.valueOf(PREVIEW_AUDIO_BITRATE),
+            "-f", "webm",
+            outputFile.getAbsolutePath()
+        ));
+
+        try {
+            Process process = cancellation.register(new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start());
+            int exitCode = process.waitFor();
+            cancellation.throwIfCancelled();
+            if (exitCode != 0) {
+                logger.warn("Preview of {} failed with exit code {}", inputFile, exitCode);
+            }
+            return exitCode == 0;
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.warn("Preview of {} failed: {}", inputFile, e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean transcodeWithJavaCV(File inputFile, File outputFile, MediaInfo mediaInfo,
+                                        ConversionCancellation cancellation) {
+        int targetHeight = targetHeight(mediaInfo);
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile);
+        grabber.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+        FFmpegFrameRecorder recorder = null;
+        try {
+            grabber.start();
+
+            // The grabber scales while converting the pixel format, so the encoder only sees small frames
+            int targetWidth = evenWidth(grabber.getImageWidth(), grabber.getImageHeight(), targetHeight);
+            grabber.setImageWidth(targetWidth);
+            grabber.setImageHeight(targetHeight);
+
+            recorder = new FFmpegFrameRecorder(outputFile, targetWidth, targetHeight,
+                grabber.hasAudio() ? grabber.getAudioChannels() : 0);
+            recorder.setFormat("webm");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_VP9);
+            recorder.setAudioCodec(avcodec.AV_CODEC_ID_VORBIS);
+            recorder.setVideoQuality(PREVIEW_CRF);
+            recorder.setVideoBitrate(PREVIEW_VIDEO_BITRATE);
+            recorder.setFrameRate(grabber.getFrameRate());
+            recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+            recorder.setVideoOption("deadline", EncoderPreset.REALTIME.getDeadline());
+            recorder.setVideoOption("cpu-used", String.valueOf(EncoderPreset.REALTIME.getCpuUsed()));
+            recorder.setVideoOption("row-mt", "1");
+            recorder.setAudioBitrate(PREVIEW_AUDIO_BITRATE);
+            recorder.setSampleRate(grabber.getSampleRate());
+            recorder.start();
+
+            Frame frame;
+            while ((frame = grabber.grab()) != null) {
+                cancellation.throwIfCancelled();
+                if (frame.image != null) {
+                    recorder.record(frame, avutil.AV_PIX_FMT_YUV420P);
+                } else if (frame.samples != null) {
+                    recorder.record(frame);
+                }
+            }
+            recorder.stop();
+            return true;
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.warn("Preview of {} failed: {}", inputFile, e.getMessage());
+            return false;
+        } finally {
+            if (recorder != null) {
+                try {
+                    recorder.release();
+                } catch (Exception e) {
+                    logger.warn("Could not release preview recorder for {}: {}", inputFile, e.getMessage());
+                }
+            }
+            try {
+                grabber.release();
+            } catch (Exception e) {
+                logger.warn("Could not release preview grabber for {}: {}", inputFile, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return The preview height; sources smaller than that keep their own height
+     */
+    private int targetHeight(MediaInfo mediaInfo) {
+        if (mediaInfo.height() <= 0) {
+            return height;
+        }
+        int sourceHeight = mediaInfo.height() - mediaInfo.height() % 2;
+        return Math.max(2, Math.min(height, sourceHeight));
+    }
+
+    private static int evenWidth(int sourceWidth, int sourceHeight, int targetHeight) {
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            return targetHeight * 16 / 9 / 2 * 2;
+        }
+        int width = (int) Math.round((double) sourceWidth * targetHeight / sourceHeight);
+        return Math.max(2, width - width % 2);
+    }
+}
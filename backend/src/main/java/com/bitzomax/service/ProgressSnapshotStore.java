@@ -0,0 +1,104 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionProgress;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Keeps the last published progress update of each conversion, so clients that
+ * subscribe late or reconnect can be told where a conversion stands right away.
+ * Holds at most {@code conversion.progress.snapshot.max-entries} files (least recently
+ * updated are dropped first) and forgets a file once its snapshot is older than the TTL.
+ * A finished conversion's completion, error or cancellation snapshot is never replaced by
+ * a progress update; it stays until the file ID is {@link #remove removed} for a new conversion.
+ */
+@Component
+public class ProgressSnapshotStore {
+
+    private static final Set<String> TERMINAL_STATUSES = Set.of("complete", "error", "cancelled");
+
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    // Insertion order is update order: put() re-inserts, so the eldest entry is the stalest
+    private final LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<>();
+
+    public ProgressSnapshotStore(
+            @Value("${conversion.progress.snapshot.max-entries:1000}") int maxEntries,
+            @Value("${conversion.progress.snapshot.ttl-minutes:30}") long ttlMinutes) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = Duration.ofMinutes(ttlMinutes).toMillis();
+    }
+
+    /**
+     * Remember an update as the latest state of its file, unless it is a progress update
+     * for a file whose conversion has finished
+     */
+    public synchronized void put(ConversionProgress update) {
+        Snapshot current = snapshots.get(update.getFileId());
+        if (current != null && isTerminal(current.update()) && !isTerminal(update)) {
+            return;
+        }
+        snapshots.remove(update.getFileId());
+        snapshots.put(update.getFileId(), new Snapshot(update, System.currentTimeMillis()));
+        while (snapshots.size() > maxEntries) {
+            Iterator<String> eldest = snapshots.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Forget the state of a file, so a new conversion under its file ID starts afresh
+     */
+    public synchronized void remove(String fileId) {
+        snapshots.remove(fileId);
+    }
+
+    /**
+     * @param fileId The file ID of a conversion
+     * @return The last published update for the file, unless it has expired
+     */
+    public synchronized Optional<ConversionProgress> get(String fileId) {
+        Snapshot snapshot = snapshots.get(fileId);
+        if (snapshot == null) {
+            return Optional.empty();
+        }
+        if (isExpired(snapshot, System.currentTimeMillis())) {
+            snapshots.remove(fileId);
+            return Optional.empty();
+        }
+        return Optional.of(snapshot.update());
+    }
+
+    /**
+     * Drop expired snapshots. Entries are in update order, so the sweep stops at the first live one
+     */
+    @Scheduled(fixedDelay = 60_000)
+    public synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Snapshot>> entries = snapshots.entrySet().iterator();
+        while (entries.hasNext() && isExpired(entries.next().getValue(), now)) {
+            entries.remove();
+        }
+    }
+
+    private boolean isTerminal(ConversionProgress update) {
+        return TERMINAL_STATUSES.contains(update.getStatus());
+    }
+
+    private boolean isExpired(Snapshot snapshot, long now) {
+        return now - snapshot.updatedAt() > ttlMillis;
+    }
+
+    private record Snapshot(ConversionProgress update, long updatedAt) {
+    }
+}
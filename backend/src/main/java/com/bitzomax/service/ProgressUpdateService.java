@@ -1,25 +1,103 @@
 package com.bitzomax.service;
 
 import com.bitzomax.model.ConversionProgress;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for sending WebSocket progress updates during file conversion
+ * Service for sending WebSocket progress updates during file conversion.
+ * Progress updates are coalesced per file (the latest one wins) and published on a
+ * fixed tick, so encoders can report as often as they like without flooding the
+ * broker. Completion and error updates are sent right away.
+ * The last published update of each file is kept in a {@link ProgressSnapshotStore}
+ * and replayed to every new subscriber of the file's topic.
+ * Every update carries the scheduling state of its conversion (priority, queue position,
+ * time spent waiting for a worker), as last recorded by the conversion queue.
+ * Once a preview of the file is playable, every following progress update carries it as
+ * its result file, until the completion update names the full-quality one.
+ * Once a file's completion, error or cancellation update is out, progress still reported
+ * for it is dropped until {@link #beginConversion} is called for the file again.
  */
 @Service
 public class ProgressUpdateService {
     
     private static final Logger logger = LoggerFactory.getLogger(ProgressUpdateService.class);
     
+    private static final String TOPIC_PREFIX = "/topic/conversion/";
+    
+    // How many finished file IDs are remembered; late progress is only ever a few seconds behind
+    private static final int MAX_FINALIZED = 10_000;
+    
     @Autowired
     private SimpMessagingTemplate messagingTemplate;
     
+    @Autowired
+    private ProgressSnapshotStore progressSnapshotStore;
+    
+    // Messages sent here go to one WebSocket session only, bypassing the broker
+    @Autowired
+    @Qualifier("clientOutboundChannel")
+    private MessageChannel clientOutboundChannel;
+    
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    
+    // Latest unpublished progress update per file ID
+    private final Map<String, ConversionProgress> pendingUpdates = new ConcurrentHashMap<>();
+    
+    // Latest scheduling decision per file ID, stamped onto each of its updates
+    private final Map<String, Scheduling> scheduling = new ConcurrentHashMap<>();
+    
+    // Name of the playable preview per file ID, stamped onto each of its progress updates
+    private final Map<String, String> previews = new ConcurrentHashMap<>();
+    
+    // File IDs whose final update was published, oldest first
+    private final Set<String> finalized = Collections.synchronizedSet(Collections.newSetFromMap(
+        new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_FINALIZED;
+            }
+        }));
+    
+    // Serializes publishing, so a flushed progress update can't overtake a completion or error
+    private final Object publishLock = new Object();
+    
+    /**
+     * Accept updates for a file again and forget its last state, for a new conversion
+     * under a file ID whose previous conversion has finished
+     * 
+     * @param fileId The ID of the file about to be converted
+     */
+    public void beginConversion(String fileId) {
+        finalized.remove(fileId);
+        progressSnapshotStore.remove(fileId);
+    }
+    
     /**
-     * Send a progress update for a file conversion
+     * Queue a progress update for a file conversion. It replaces any update for the
+     * same file that has not been published yet and goes out with the next flush.
+     * Dropped if the conversion has already finished.
      * 
      * @param fileId The ID of the file being converted
      * @param percentComplete The percentage of completion (0-100)
@@ -27,16 +105,48 @@ public class ProgressUpdateService {
      * @param message Additional message about the progress
      */
     public void sendProgressUpdate(String fileId, int percentComplete, String status, String message) {
-        try {
-            String destination = "/topic/conversion/" + fileId;
-            
-            ConversionProgress update = new ConversionProgress(fileId, percentComplete, status, message);
-            
-            logger.info("Sending progress update to {}: {}% - {}", destination, percentComplete, message);
-            messagingTemplate.convertAndSend(destination, update);
-        } catch (Exception e) {
-            logger.error("Failed to send progress update for file {}: {}", fileId, e.getMessage(), e);
+        if (finalized.contains(fileId)) {
+            return;
+        }
+        pendingUpdates.put(fileId, new ConversionProgress(fileId, percentComplete, status, message));
+    }
+    
+    /**
+     * Record where a conversion stands in the queue; its following updates report this
+     * 
+     * @param fileId The ID of the file being converted
+     * @param priority The scheduling class the conversion was queued in
+     * @param queuePosition 1-based position in the queue, or null once a worker picked it up
+     * @param queueWaitMillis Time spent waiting for a worker so far
+     */
+    public void recordScheduling(String fileId, String priority, Integer queuePosition, long queueWaitMillis) {
+        if (finalized.contains(fileId)) {
+            return;
+        }
+        scheduling.put(fileId, new Scheduling(priority, queuePosition, queueWaitMillis));
+    }
+    
+    /**
+     * Publish the latest queued progress update of every file
+     */
+    @Scheduled(fixedDelayString = "${conversion.progress.flush-interval-ms:250}")
+    public void flushProgressUpdates() {
+        if (pendingUpdates.isEmpty()) {
+            return;
+        }
+        
+        int published = 0;
+        for (String fileId : pendingUpdates.keySet()) {
+            synchronized (publishLock) {
+                ConversionProgress update = pendingUpdates.remove(fileId);
+                // Queued just before the final update went out
+                if (update != null && !finalized.contains(fileId)) {
+                    publish(update);
+                    published++;
+                }
+            }
         }
+        logger.debug("Published {} coalesced progress update(s)", published);
     }
     
     /**
@@ -46,16 +156,30 @@ public class ProgressUpdateService {
      * @param resultFile The path or name of the resulting file
      */
     public void sendCompletionUpdate(String fileId, String resultFile) {
-        try {
-            String destination = "/topic/conversion/" + fileId;
-            
-            ConversionProgress update = new ConversionProgress(fileId, 100, "complete", "Conversion completed successfully");
-            update.setResultFile(resultFile);
-            
-            logger.info("Sending completion update to {}: {}", destination, resultFile);
-            messagingTemplate.convertAndSend(destination, update);
-        } catch (Exception e) {
-            logger.error("Failed to send completion update for file {}: {}", fileId, e.getMessage(), e);
+        ConversionProgress update = new ConversionProgress(fileId, 100, "complete", "Conversion completed successfully");
+        update.setResultFile(resultFile);
+        
+        logger.info("Sending completion update for {}: {}", fileId, resultFile);
+        publishFinal(update);
+    }
+    
+    /**
+     * Announce that a low-resolution preview of a file is playable while its full encode runs
+     * 
+     * @param fileId The ID of the file being converted
+     * @param previewFile The name of the preview file
+     */
+    public void sendPreviewUpdate(String fileId, String previewFile) {
+        ConversionProgress update = new ConversionProgress(fileId, 0, "preview", "Preview ready, encoding full quality");
+        
+        logger.info("Sending preview update for {}: {}", fileId, previewFile);
+        synchronized (publishLock) {
+            if (finalized.contains(fileId)) {
+                return;
+            }
+            previews.put(fileId, previewFile);
+            pendingUpdates.remove(fileId);
+            publish(update);
         }
     }
     
@@ -66,15 +190,96 @@ public class ProgressUpdateService {
      * @param errorMessage The error message
      */
     public void sendErrorUpdate(String fileId, String errorMessage) {
+        ConversionProgress update = new ConversionProgress(fileId, 0, "error", errorMessage);
+        
+        logger.info("Sending error update for {}: {}", fileId, errorMessage);
+        publishFinal(update);
+    }
+    
+    /**
+     * Send a cancellation update for a file conversion
+     * 
+     * @param fileId The ID of the file whose conversion was cancelled
+     */
+    public void sendCancelledUpdate(String fileId) {
+        ConversionProgress update = new ConversionProgress(fileId, 0, "cancelled", "Conversion cancelled");
+        
+        logger.info("Sending cancellation update for {}", fileId);
+        publishFinal(update);
+    }
+    
+    /**
+     * @param fileId The ID of a file being converted
+     * @return The last published update for the file, if it is still known
+     */
+    public Optional<ConversionProgress> getLatestProgress(String fileId) {
+        return progressSnapshotStore.get(fileId);
+    }
+    
+    /**
+     * Send the current state of a conversion to a client as soon as it subscribes to
+     * the conversion's topic, so it doesn't have to wait for the next update
+     */
+    @EventListener
+    public void replayLatestProgress(SessionSubscribeEvent event) {
+        StompHeaderAccessor subscribe = StompHeaderAccessor.wrap(event.getMessage());
+        String destination = subscribe.getDestination();
+        if (destination == null || !destination.startsWith(TOPIC_PREFIX)) {
+            return;
+        }
+        
+        progressSnapshotStore.get(destination.substring(TOPIC_PREFIX.length())).ifPresent(update -> {
+            try {
+                StompHeaderAccessor headers = StompHeaderAccessor.create(StompCommand.MESSAGE);
+                headers.setSessionId(subscribe.getSessionId());
+                headers.setSubscriptionId(subscribe.getSubscriptionId());
+                headers.setDestination(destination);
+                headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+                headers.setLeaveMutable(true);
+                
+                byte[] payload = objectMapper.writeValueAsBytes(update);
+                clientOutboundChannel.send(MessageBuilder.createMessage(payload, headers.getMessageHeaders()));
+            } catch (JsonProcessingException e) {
+                logger.error("Failed to replay progress for {}: {}", destination, e.getMessage(), e);
+            }
+        });
+    }
+    
+    /**
+     * Publish a final update at once, dropping progress that is still queued or reported
+     * later for the file
+     */
+    private void publishFinal(ConversionProgress update) {
+        synchronized (publishLock) {
+            finalized.add(update.getFileId());
+            pendingUpdates.remove(update.getFileId());
+            publish(update);
+            scheduling.remove(update.getFileId());
+            previews.remove(update.getFileId());
+        }
+    }
+    
+    private void publish(ConversionProgress update) {
+        String destination = TOPIC_PREFIX + update.getFileId();
+        Scheduling decision = scheduling.get(update.getFileId());
+        if (decision != null) {
+            update.setPriority(decision.priority());
+            update.setQueuePosition(decision.queuePosition());
+            update.setQueueWaitMillis(decision.queueWaitMillis());
+        }
+        String preview = previews.get(update.getFileId());
+        if (preview != null && update.getResultFile() == null) {
+            update.setResultFile(preview);
+        }
+        progressSnapshotStore.put(update);
         try {
-            String destination = "/topic/conversion/" + fileId;
-            
-            ConversionProgress update = new ConversionProgress(fileId, 0, "error", errorMessage);
-            
-            logger.info("Sending error update to {}: {}", destination, errorMessage);
+            logger.debug("Sending progress update to {}: {}% - {}", destination, update.getPercentComplete(), update.getMessage());
             messagingTemplate.convertAndSend(destination, update);
         } catch (Exception e) {
-            logger.error("Failed to send error update for file {}: {}", fileId, e.getMessage(), e);
+            logger.error("Failed to send {} update for file {}: {}", update.getStatus(), update.getFileId(), e.getMessage(), e);
         }
     }
-}
\ No newline at end of file
+    
+    private record Scheduling(String priority, Integer queuePosition, long queueWaitMillis) {
+    }
+}
@@ -0,0 +1,323 @@
+package com.bitzomax.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The few S3 REST calls {@link S3StorageBackend} needs, signed with AWS Signature Version 4.
+ * Works with AWS S3 and S3-compatible stores such as MinIO; with path-style access the
+ * bucket is the first path segment ({@code http://host:9000/bucket/key}) instead of part
+ * of the host name, which is what local stand-ins without wildcard DNS need.
+ * Object bodies are sent as {@code UNSIGNED-PAYLOAD}, so uploads are not read twice.
+ */
+class S3Client {
+
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final String EMPTY_PAYLOAD_HASH = sha256Hex(new byte[0]);
+
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+        .withZone(ZoneOffset.UTC);
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private final HttpClient httpClient;
+    private final URI endpoint;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+    private final boolean pathStyleAccess;
+
+    /**
+     * Metadata of a stored object
+     * @param eTag Entity tag as returned by S3, including the quotes
+     */
+    record ObjectInfo(long contentLength, Instant lastModified, String eTag) {
+    }
+
+    S3Client(URI endpoint, String region, String bucket, String accessKey, String secretKey, boolean pathStyleAccess) {
+        this.httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+        this.endpoint = endpoint;
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.pathStyleAccess = pathStyleAccess;
+    }
+
+    String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @return Size, modification time and ETag of an object; empty if it doesn't exist
+     */
+    Optional<ObjectInfo> headObject(String key) throws IOException {
+        HttpResponse<Void> response = send("HEAD", key, null, Map.of(), HttpRequest.BodyPublishers.noBody(),
+            EMPTY_PAYLOAD_HASH, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) {
+            return Optional.empty();
+        }
+        check(response, "HEAD", key, null);
+        long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        Instant lastModified = response.headers().firstValue("Last-Modified")
+            .map(value -> ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant())
+            .orElse(Instant.EPOCH);
+        return Optional.of(new ObjectInfo(contentLength, lastModified, response.headers().firstValue("ETag").orElse(null)));
+    }
+
+    /**
+     * Read an object from an offset to its end, with a ranged GET unless the offset is 0
+     * @throws NoSuchFileException if the object doesn't exist
+     */
+    InputStream getObject(String key, long offset) throws IOException {
+        Map<String, String> headers = offset > 0 ? Map.of("Range", "bytes=" + offset + "-") : Map.of();
+        HttpResponse<InputStream> response = send("GET", key, null, headers, HttpRequest.BodyPublishers.noBody(),
+            EMPTY_PAYLOAD_HASH, HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() == 404) {
+            response.body().close();
+            throw new NoSuchFileException(key);
+        }
+        if (response.statusCode() / 100 != 2) {
+            String message;
+            try (InputStream body = response.body()) {
+                message = new String(body.readNBytes(512), StandardCharsets.UTF_8);
+            }
+            throw new IOException("S3 GET " + key + " failed with status " + response.statusCode() + ": " + message);
+        }
+        InputStream body = response.body();
+        if (offset > 0 && response.statusCode() == 200) {
+            // The store ignored the range
+            body.skipNBytes(offset);
+        }
+        return body;
+    }
+
+    void putObject(String key, byte[] content) throws IOException {
+        HttpResponse<String> response = send("PUT", key, null, Map.of(), HttpRequest.BodyPublishers.ofByteArray(content),
+            UNSIGNED_PAYLOAD, HttpResponse.BodyHandlers.ofString());
+        check(response, "PUT", key, response.body());
+    }
+
+    /**
+     * @return The ID of the new multipart upload
+     */
+    String createMultipartUpload(String key) throws IOException {
+        HttpResponse<String> response = send("POST", key, "uploads=", Map.of(), HttpRequest.BodyPublishers.noBody(),
+            EMPTY_PAYLOAD_HASH, HttpResponse.BodyHandlers.ofString());
+        check(response, "CreateMultipartUpload", key, response.body());
+        Matcher matcher = UPLOAD_ID.matcher(response.body());
+        if (!matcher.find()) {
+            throw new IOException("S3 CreateMultipartUpload " + key + " returned no upload ID");
+        }
+        return matcher.group(1);
+    }
+
+    /**
+     * @param partNumber 1-based number of the part
+     * @return The ETag of the part, needed to complete the upload
+     */
+    String uploadPart(String key, String uploadId, int partNumber, byte[] content) throws IOException {
+        String query = "partNumber=" + partNumber + "&uploadId=" + encode(uploadId, true);
+        HttpResponse<String> response = send("PUT", key, query, Map.of(), HttpRequest.BodyPublishers.ofByteArray(content),
+            UNSIGNED_PAYLOAD, HttpResponse.BodyHandlers.ofString());
+        check(response, "UploadPart " + partNumber, key, response.body());
+        return response.headers().firstValue("ETag")
+            .orElseThrow(() -> new IOException("S3 UploadPart " + partNumber + " of " + key + " returned no ETag"));
+    }
+
+    /**
+     * @param eTags ETags of the parts, in part number order
+     */
+    void completeMultipartUpload(String key, String uploadId, List<String> eTags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < eTags.size(); i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                .append(eTags.get(i).replace("\"", "&quot;")).append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+        byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+        HttpResponse<String> response = send("POST", key, "uploadId=" + encode(uploadId, true), Map.of(),
+            HttpRequest.BodyPublishers.ofByteArray(body), sha256Hex(body), HttpResponse.BodyHandlers.ofString());
+        // A failure while assembling the parts comes back as 200 with an error document
+        if (response.body().contains("<Error>")) {
+            throw new IOException("S3 CompleteMultipartUpload " + key + " failed: " + response.body());
+        }
+        check(response, "CompleteMultipartUpload", key, response.body());
+    }
+
+    void abortMultipartUpload(String key, String uploadId) throws IOException {
+        HttpResponse<String> response = send("DELETE", key, "uploadId=" + encode(uploadId, true), Map.of(),
+            HttpRequest.BodyPublishers.noBody(), EMPTY_PAYLOAD_HASH, HttpResponse.BodyHandlers.ofString());
+        check(response, "AbortMultipartUpload", key, response.body());
+    }
+
+    private <T> HttpResponse<T> send(String method, String key, String query, Map<String, String> headers,
+                                     HttpRequest.BodyPublisher body, String payloadHash,
+                                     HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        URI uri = objectUri(key, query);
+        Instant now = Instant.now();
+
+        SortedMap<String, String> signedHeaders = new TreeMap<>();
+        headers.forEach((name, value) -> signedHeaders.put(name.toLowerCase(Locale.ROOT), value));
+        signedHeaders.put("host", hostHeader(uri));
+        signedHeaders.put("x-amz-content-sha256", payloadHash);
+        signedHeaders.put("x-amz-date", AMZ_DATE.format(now));
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+            .method(method, body)
+            .timeout(Duration.ofMinutes(5))
+            .header("Authorization", authorization(method, uri, signedHeaders, payloadHash, now));
+        // The client sets Host itself, from the same URI
+        signedHeaders.forEach((name, value) -> {
+            if (!name.equals("host")) {
+                request.header(name, value);
+            }
+        });
+
+        try {
+            return httpClient.send(request.build(), bodyHandler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during S3 " + method + " " + key);
+        }
+    }
+
+    /**
+     * @param query Raw query string, already encoded, or null
+     */
+    URI objectUri(String key, String query) {
+        String base = endpoint.getScheme() + "://" + (pathStyleAccess ? "" : bucket + ".") + endpoint.getRawAuthority();
+        String path = (pathStyleAccess ? "/" + encode(bucket, false) : "") + "/" + encode(key, false);
+        return URI.create(base + path + (query != null ? "?" + query : ""));
+    }
+
+    /**
+     * Signature Version 4 {@code Authorization} header
+     * @param headers Every header to sign, with lower-case names, including host and x-amz-date
+     */
+    String authorization(String method, URI uri, SortedMap<String, String> headers, String payloadHash, Instant time) {
+        String canonicalUri = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+
+        StringBuilder canonicalHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+        }
+        String signedHeaders = String.join(";", headers.keySet());
+
+        String canonicalRequest = method + "\n"
+            + canonicalUri + "\n"
+            + canonicalQuery(uri.getRawQuery()) + "\n"
+            + canonicalHeaders + "\n"
+            + signedHeaders + "\n"
+            + payloadHash;
+
+        String date = AMZ_DATE.format(time).substring(0, 8);
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n"
+            + AMZ_DATE.format(time) + "\n"
+            + scope + "\n"
+            + sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+
+        return "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+            + ", SignedHeaders=" + signedHeaders
+            + ", Signature=" + signature;
+    }
+
+    /**
+     * @return The parameters sorted by name, each as {@code name=value}
+     */
+    private static String canonicalQuery(String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return "";
+        }
+        List<String> parameters = new ArrayList<>();
+        for (String parameter : rawQuery.split("&")) {
+            parameters.add(parameter.contains("=") ? parameter : parameter + "=");
+        }
+        parameters.sort(null);
+        return String.join("&", parameters);
+    }
+
+    private static String hostHeader(URI uri) {
+        int port = uri.getPort();
+        boolean defaultPort = port == -1
+            || (port == 80 && "http".equals(uri.getScheme()))
+            || (port == 443 && "https".equals(uri.getScheme()));
+        return defaultPort ? uri.getHost() : uri.getHost() + ":" + port;
+    }
+
+    /**
+     * URI-encode everything but the unreserved characters, as Signature Version 4 requires
+     * @param encodeSlash false for object keys, whose slashes separate path segments
+     */
+    static String encode(String value, boolean encodeSlash) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(String.format("%02X", b & 0xff));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static void check(HttpResponse<?> response, String action, String key, String body) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("S3 " + action + " " + key + " failed with status " + response.statusCode()
+                + (body != null && !body.isEmpty() ? ": " + body : ""));
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static String sha256Hex(byte[] data) {
+        return HexFormat.of().formatHex(FileStorageService.newContentDigest().digest(data));
+    }
+}
@@ -0,0 +1,303 @@
+package com.bitzomax.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stores files in an S3 bucket (or an S3-compatible store such as MinIO), so every backend
+ * node serves the same songs, covers and converted media without a shared file system.
+ * Objects are keyed {@code songs/<name>}, {@code covers/<name>} and {@code converted/<name>}.
+ * <p>
+ * Objects larger than {@code storage.s3.part-size-mb} are sent as a multipart upload with up
+ * to {@code storage.s3.upload-parallelism} parts in flight, which is what makes uploading a
+ * large converted WebM take seconds rather than minutes. Reads are ranged GETs: a resource
+ * returned by {@link #find} only requests the bytes from where its stream is first skipped
+ * to, so serving a {@code Range} request doesn't download the object from the start.
+ */
+@Service
+@ConditionalOnProperty(name = "storage.backend", havingValue = "s3")
+public class S3StorageBackend implements StorageBackend {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3StorageBackend.class);
+
+    // S3 rejects smaller parts (except the last), and more than 10000 of them
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final S3Client client;
+    private final int partSize;
+    private final int uploadParallelism;
+    private final ExecutorService uploadExecutor;
+
+    public S3StorageBackend(
+            @Value("${storage.s3.endpoint}") String endpoint,
+            @Value("${storage.s3.region:us-east-1}") String region,
+            @Value("${storage.s3.bucket}") String bucket,
+            @Value("${storage.s3.access-key}") String accessKey,
+            @Value("${storage.s3.secret-key}") String secretKey,
+            @Value("${storage.s3.path-style-access:true}") boolean pathStyleAccess,
+            @Value("${storage.s3.part-size-mb:8}") int partSizeMb,
+            @Value("${storage.s3.upload-parallelism:4}") int uploadParallelism) {
+        if (endpoint.isBlank() || bucket.isBlank() || accessKey.isBlank() || secretKey.isBlank()) {
+            throw new IllegalStateException(
+                "storage.backend=s3 needs storage.s3.endpoint, bucket, access-key and secret-key");
+        }
+        this.client = new S3Client(URI.create(endpoint.replaceAll("/+$", "")), region, bucket, accessKey, secretKey,
+            pathStyleAccess);
+        this.partSize = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_PART_SIZE, partSizeMb * 1024L * 1024L));
+        this.uploadParallelism = Math.max(1, uploadParallelism);
+        this.uploadExecutor = Executors.newFixedThreadPool(this.uploadParallelism, runnable -> {
+            Thread thread = new Thread(runnable, "s3-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("Storing media in S3 bucket {} at {}", bucket, endpoint);
+    }
+
+    @Override
+    public boolean exists(Area area, String name) {
+        try {
+            return client.headObject(key(area, name)).isPresent();
+        } catch (IOException e) {
+            logger.warn("Could not look up {}: {}", key(area, name), e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void store(Area area, String name, Path file) throws IOException {
+        // Content-addressed: an existing object already has this content
+        if (!exists(area, name)) {
+            copy(area, name, file);
+        }
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public void copy(Area area, String name, Path file) throws IOException {
+        try (InputStream content = Files.newInputStream(file)) {
+            write(area, name, content);
+        }
+    }
+
+    @Override
+    public void write(Area area, String name, InputStream content) throws IOException {
+        String key = key(area, name);
+        long started = System.currentTimeMillis();
+        byte[] firstPart = content.readNBytes(partSize);
+        if (firstPart.length < partSize) {
+            client.putObject(key, firstPart);
+            logger.debug("Uploaded {} ({} bytes) in {} ms", key, firstPart.length, System.currentTimeMillis() - started);
+            return;
+        }
+
+        String uploadId = client.createMultipartUpload(key);
+        List<Future<String>> parts = new ArrayList<>();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        // Bounds the memory held by parts waiting to be sent
+        Semaphore inFlight = new Semaphore(uploadParallelism);
+        long size = 0;
+        try {
+            byte[] part = firstPart;
+            while (part.length > 0 && failure.get() == null) {
+                inFlight.acquire();
+                int partNumber = parts.size() + 1;
+                byte[] partContent = part;
+                parts.add(uploadExecutor.submit(() -> {
+                    try {
+                        return client.uploadPart(key, uploadId, partNumber, partContent);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                        throw e;
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+                size += part.length;
+                part = content.readNBytes(partSize);
+            }
+
+            List<String> eTags = new ArrayList<>();
+            for (Future<String> future : parts) {
+                eTags.add(future.get());
+            }
+            client.completeMultipartUpload(key, uploadId, eTags);
+            logger.debug("Uploaded {} ({} bytes, {} parts) in {} ms", key, size, parts.size(),
+                System.currentTimeMillis() - started);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(key, uploadId, parts);
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        } catch (ExecutionException e) {
+            abort(key, uploadId, parts);
+            throw e.getCause() instanceof IOException io ? io : new IOException("Could not upload " + key, e.getCause());
+        } catch (IOException | RuntimeException e) {
+            abort(key, uploadId, parts);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop the parts of a failed upload, so the bucket isn't billed for them
+     */
+    private void abort(String key, String uploadId, List<Future<String>> parts) {
+        parts.forEach(part -> part.cancel(true));
+        try {
+            client.abortMultipartUpload(key, uploadId);
+        } catch (IOException e) {
+            logger.warn("Could not abort the multipart upload of {}: {}", key, e.getMessage());
+        }
+    }
+
+    @Override
+    public InputStream openStream(Area area, String name) throws IOException {
+        return client.getObject(key(area, name), 0);
+    }
+
+    @Override
+    public Optional<Resource> find(Area area, String name) {
+        String key;
+        try {
+            key = key(area, name);
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        try {
+            return client.headObject(key).map(info -> new ObjectResource(key, name, info));
+        } catch (IOException e) {
+            logger.warn("Could not look up {}: {}", key, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<Path> localFile(Area area, String name) {
+        return Optional.empty();
+    }
+
+    private static String key(Area area, String name) {
+        if (name == null || name.isEmpty() || name.startsWith("/") || name.contains("\\")) {
+            throw new IllegalArgumentException("Invalid file name " + name);
+        }
+        for (String segment : name.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new IllegalArgumentException("Invalid file name " + name);
+            }
+        }
+        return area.name().toLowerCase(Locale.ROOT) + "/" + name;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        uploadExecutor.shutdownNow();
+    }
+
+    /**
+     * A stored object, with the metadata of the HEAD request that found it
+     */
+    private class ObjectResource extends AbstractResource {
+
+        private final String key;
+        private final String name;
+        private final S3Client.ObjectInfo info;
+
+        ObjectResource(String key, String name, S3Client.ObjectInfo info) {
+            this.key = key;
+            this.name = name;
+            this.info = info;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public long contentLength() {
+            return info.contentLength();
+        }
+
+        @Override
+        public long lastModified() {
+            return info.lastModified().toEpochMilli();
+        }
+
+        @Override
+        public String getFilename() {
+            return name.substring(name.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public String getDescription() {
+            return "S3 object [" + client.getBucket() + "/" + key + "]";
+        }
+
+        /**
+         * @return A stream that sends its GET on the first read, starting where it has
+         *         been skipped to until then
+         */
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                private long offset;
+                private InputStream body;
+
+                private InputStream body() throws IOException {
+                    if (body == null) {
+                        body = client.getObject(key, offset);
+                    }
+                    return body;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    if (body != null) {
+                        return body.skip(n);
+                    }
+                    long skipped = Math.max(0, Math.min(n, info.contentLength() - offset));
+                    offset += skipped;
+                    return skipped;
+                }
+
+                @Override
+                public int read() throws IOException {
+                    return body().read();
+                }
+
+                @Override
+                public int read(byte[] buffer, int off, int len) throws IOException {
+                    return body().read(buffer, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (body != null) {
+                        body.close();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.bitzomax.service;
 
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.MediaInfo;
 import com.bitzomax.model.Song;
+import com.bitzomax.repository.ConversionJobRepository;
 import com.bitzomax.repository.SongRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
@@ -17,6 +20,15 @@ public class SongService {
     @Autowired
     private SongRepository songRepository;
     
+    @Autowired
+    private ConversionJobRepository conversionJobRepository;
+    
+    @Autowired
+    private FileStorageService fileStorageService;
+    
+    @Autowired
+    private MediaProbeService mediaProbeService;
+    
     public List<Song> getAllSongs() {
         return songRepository.findAll();
     }
@@ -62,6 +74,11 @@ public class SongService {
         // Set creation time
         song.setCreatedAt(LocalDateTime.now());
         song.setUpdatedAt(LocalDateTime.now());
+        
+        // Take the duration from the media file unless it was entered by hand
+        if (song.getDurationSeconds() == null) {
+            fillMediaMetadata(song);
+        }
         return songRepository.save(song);
     }
     
@@ -89,6 +106,11 @@ public class SongService {
                     }
                     if (updatedSong.getFilePath() != null) {
                         existingSong.setFilePath(updatedSong.getFilePath());
+                        
+                        // A new media file brings its own duration
+                        if (updatedSong.getDurationSeconds() == null) {
+                            fillMediaMetadata(existingSong);
+                        }
                     }
                     if (updatedSong.getCoverArtUrl() != null) {
                         existingSong.setCoverArtUrl(updatedSong.getCoverArtUrl());
@@ -101,6 +123,33 @@ public class SongService {
                 });
     }
     
+    /**
+     * Fill media-derived fields of a song from the probe result of its file.
+     * Converted files reuse the result stored with their conversion job; other files are probed.
+     */
+    private void fillMediaMetadata(Song song) {
+        if (song.getFilePath() == null || song.getFilePath().isEmpty()) {
+            return;
+        }
+        
+        String filePath = song.getFilePath();
+        String fileName = filePath.substring(Math.max(filePath.lastIndexOf('/'), filePath.lastIndexOf('\\')) + 1);
+        
+        MediaInfo mediaInfo = conversionJobRepository
+                .findFirstByOutputNameAndStatusOrderByUpdatedAtDesc(fileName, ConversionJob.Status.DONE)
+                .map(ConversionJob::getMediaInfo)
+                .orElse(null);
+        if (mediaInfo == null) {
+            mediaInfo = fileStorageService.findStoredMediaFile(fileName)
+                    .map(mediaProbeService::probe)
+                    .orElse(null);
+        }
+        
+        if (mediaInfo != null && mediaInfo.durationSeconds() != null) {
+            song.setDurationSeconds(mediaInfo.durationSeconds());
+        }
+    }
+    
     public void deleteSong(Long id) {
         songRepository.deleteById(id);
     }
@@ -0,0 +1,68 @@
+package com.bitzomax.service;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Where uploaded songs, cover art and converted media are kept. {@link FileStorageService}
+ * names the files (content hashes) and decides what to store; a backend only puts named
+ * blobs somewhere and gets them back, so another store can be plugged in without touching
+ * the controllers. Names are relative: file names, or {@code /}-separated for files that
+ * belong to a group (the segments of a DASH ladder), never with {@code .} or {@code ..} segments.
+ */
+public interface StorageBackend {
+
+    /**
+     * The separate namespaces of stored files
+     */
+    enum Area {
+        SONGS,
+        COVERS,
+        CONVERTED
+    }
+
+    /**
+     * @return true if a file with this name is stored
+     */
+    boolean exists(Area area, String name);
+
+    /**
+     * Store a complete local file under a name. The file is consumed: it is moved into the
+     * store (or deleted once copied), and dropped if the name is already stored
+     * @param file A finished file on local disk, e.g. an upload that has been hashed
+     */
+    void store(Area area, String name, Path file) throws IOException;
+
+    /**
+     * Store a copy of a local file under a name, replacing any file stored with it.
+     * The file is left in place; copying a file onto itself does nothing
+     */
+    void copy(Area area, String name, Path file) throws IOException;
+
+    /**
+     * Store the content of a stream under a name, replacing any file stored with it.
+     * The content only becomes visible once it has been written completely
+     */
+    void write(Area area, String name, InputStream content) throws IOException;
+
+    /**
+     * @return The content of a stored file; the caller closes the stream
+     * @throws java.nio.file.NoSuchFileException if nothing is stored under the name
+     */
+    InputStream openStream(Area area, String name) throws IOException;
+
+    /**
+     * @return The stored file as a resource to serve, if it exists
+     */
+    Optional<Resource> find(Area area, String name);
+
+    /**
+     * @return The stored file on local disk, for code that needs a path (decoders, image
+     *         scaling); empty if it doesn't exist or the backend doesn't keep local files
+     */
+    Optional<Path> localFile(Area area, String name);
+}
@@ -0,0 +1,421 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.UploadSession;
+import com.bitzomax.repository.ConversionJobRepository;
+import com.bitzomax.repository.UploadSessionRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Reclaims disk space that failed, cancelled or abandoned work leaves behind:
+ * <ul>
+ *   <li>staged inputs no conversion needs any more</li>
+ *   <li>partial outputs of encoders that died ({@code .part} files, segment and packaging directories)</li>
+ *   <li>upload sessions nobody has written to for {@code storage.janitor.upload-session-ttl-hours}</li>
+ *   <li>temporary files of uploads that never finished copying</li>
+ * </ul>
+ * Only files older than {@code storage.janitor.min-age-minutes} are touched, and never the
+ * working files of a conversion that is queued or running. Deletes are paced to
+ * {@code storage.janitor.max-bytes-per-second}, so a large sweep doesn't stall uploads and
+ * encoders on the same disk. Scheduled sweeps run on a thread of their own, because the
+ * pacing keeps a sweep busy far longer than the shared scheduler thread may be held.
+ * Reclaimed files and bytes are counted per category.
+ */
+@Service
+public class StorageJanitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageJanitor.class);
+
+    public static final String STAGED_INPUTS = "stagedInputs";
+    public static final String PARTIAL_OUTPUTS = "partialOutputs";
+    public static final String UPLOAD_SESSIONS = "uploadSessions";
+    public static final String TEMP_FILES = "tempFiles";
+
+    @Autowired
+    private ConversionJobRepository conversionJobRepository;
+
+    @Autowired
+    private UploadSessionRepository uploadSessionRepository;
+
+    @Autowired
+    private ConversionJobService conversionJobService;
+
+    @Autowired
+    private UploadSessionService uploadSessionService;
+
+    @Autowired
+    private AdaptivePresetSelector adaptivePresetSelector;
+
+    private final Path songStorageLocation;
+    private final Path coverArtStorageLocation;
+    private final Path convertedStorageLocation;
+    private final Path uploadSessionLocation;
+    private final Path stagingLocation;
+
+    private final boolean enabled;
+    private final Duration minAge;
+    private final Duration failedInputRetention;
+    private final Duration uploadSessionTtl;
+    private final long maxBytesPerSecond;
+
+    // Totals since startup, per category
+    private final Map<String, AtomicLong> reclaimedFiles = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> reclaimedBytes = new LinkedHashMap<>();
+    private volatile Sweep lastSweep;
+
+    private final ExecutorService sweepExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "storage-janitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean sweepQueued = new AtomicBoolean();
+
+    /**
+     * Outcome of one sweep
+     * @param files Files reclaimed per category
+     * @param bytes Bytes reclaimed per category
+     */
+    public record Sweep(Instant startedAt, long durationMillis, Map<String, Long> files, Map<String, Long> bytes) {
+    }
+
+    public StorageJanitor(
+            @Value("${file.upload.songs}") String songUploadDir,
+            @Value("${file.upload.covers}") String coverUploadDir,
+            @Value("${storage.janitor.enabled:true}") boolean enabled,
+            @Value("${storage.janitor.min-age-minutes:360}") long minAgeMinutes,
+            @Value("${storage.janitor.failed-input-retention-hours:72}") long failedInputRetentionHours,
+            @Value("${storage.janitor.upload-session-ttl-hours:24}") long uploadSessionTtlHours,
+            @Value("${storage.janitor.max-bytes-per-second:52428800}") long maxBytesPerSecond) {
+        this.songStorageLocation = Paths.get(songUploadDir).toAbsolutePath().normalize();
+        this.coverArtStorageLocation = Paths.get(coverUploadDir).toAbsolutePath().normalize();
+        this.convertedStorageLocation = Paths.get(songUploadDir, "converted").toAbsolutePath().normalize();
+        this.uploadSessionLocation = Paths.get(songUploadDir, "sessions").toAbsolutePath().normalize();
+        this.stagingLocation = Paths.get(songUploadDir, "staging").toAbsolutePath().normalize();
+        this.enabled = enabled;
+        this.minAge = Duration.ofMinutes(Math.max(0, minAgeMinutes));
+        this.failedInputRetention = Duration.ofHours(Math.max(0, failedInputRetentionHours));
+        this.uploadSessionTtl = Duration.ofHours(Math.max(1, uploadSessionTtlHours));
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        for (String category : List.of(STAGED_INPUTS, PARTIAL_OUTPUTS, UPLOAD_SESSIONS, TEMP_FILES)) {
+            reclaimedFiles.put(category, new AtomicLong());
+            reclaimedBytes.put(category, new AtomicLong());
+        }
+    }
+
+    @Scheduled(initialDelayString = "${storage.janitor.initial-delay-ms:300000}",
+               fixedDelayString = "${storage.janitor.interval-ms:3600000}")
+    public void scheduledSweep() {
+        // A sweep still running from the last trigger is not queued behind
+        if (!enabled || !sweepQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            sweepExecutor.execute(() -> {
+                try {
+                    sweep();
+                } finally {
+                    sweepQueued.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sweepQueued.set(false);
+        }
+    }
+
+    /**
+     * Reclaim everything that is orphaned now
+     * @return What this sweep reclaimed
+     */
+    public synchronized Sweep sweep() {
+        Instant startedAt = Instant.now();
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        reclaimedFiles.keySet().forEach(category -> totals.put(category, new long[2]));
+
+        try {
+            sweepUploadSessions(totals.get(UPLOAD_SESSIONS));
+            sweepStagedInputs(totals.get(STAGED_INPUTS));
+            sweepPartialOutputs(totals.get(PARTIAL_OUTPUTS));
+            sweepTempFiles(totals.get(TEMP_FILES));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Map<String, Long> files = new LinkedHashMap<>();
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        totals.forEach((category, counts) -> {
+            files.put(category, counts[0]);
+            bytes.put(category, counts[1]);
+            reclaimedFiles.get(category).addAndGet(counts[0]);
+            reclaimedBytes.get(category).addAndGet(counts[1]);
+        });
+        Sweep sweep = new Sweep(startedAt, Duration.between(startedAt, Instant.now()).toMillis(), files, bytes);
+        lastSweep = sweep;
+
+        long total = bytes.values().stream().mapToLong(Long::longValue).sum();
+        if (total > 0) {
+            logger.info("Storage sweep reclaimed {} bytes in {} ms: {}", total, sweep.durationMillis(), bytes);
+        }
+        return sweep;
+    }
+
+    /**
+     * @return Files reclaimed per category since startup
+     */
+    public Map<String, Long> getReclaimedFiles() {
+        Map<String, Long> files = new LinkedHashMap<>();
+        reclaimedFiles.forEach((category, count) -> files.put(category, count.get()));
+        return files;
+    }
+
+    /**
+     * @return Bytes reclaimed per category since startup
+     */
+    public Map<String, Long> getReclaimedBytes() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        reclaimedBytes.forEach((category, count) -> bytes.put(category, count.get()));
+        return bytes;
+    }
+
+    /**
+     * @return The most recent sweep, or null if none has run yet
+     */
+    public Sweep getLastSweep() {
+        return lastSweep;
+    }
+
+    /**
+     * Abort sessions that stopped receiving chunks, and delete part files no active session owns
+     */
+    private void sweepUploadSessions(long[] totals) throws InterruptedException {
+        LocalDateTime cutoff = LocalDateTime.now().minus(uploadSessionTtl);
+        for (UploadSession session : uploadSessionRepository.findByStatusAndUpdatedAtBefore(UploadSession.Status.ACTIVE, cutoff)) {
+            Path partFile = uploadSessionLocation.resolve(session.getId() + ".part");
+            boolean existed = Files.exists(partFile);
+            long size = sizeOf(partFile);
+            uploadSessionService.abort(session);
+            if (existed && !Files.exists(partFile)) {
+                count(totals, 1, size);
+                throttle(size);
+            }
+        }
+
+        sweepDirectory(uploadSessionLocation, totals, path -> {
+            String name = path.getFileName().toString();
+            if (!name.endsWith(".part")) {
+                return false;
+            }
+            String sessionId = name.substring(0, name.length() - ".part".length());
+            return uploadSessionRepository.findById(sessionId)
+                .map(session -> session.getStatus() != UploadSession.Status.ACTIVE)
+                .orElse(true);
+        });
+    }
+
+    /**
+     * Delete staged inputs whose conversion is over: done (unless a re-encode is still to
+     * come), cancelled, failed longer ago than the retention, or unknown (e.g. from before a restart)
+     */
+    private void sweepStagedInputs(long[] totals) throws InterruptedException {
+        LocalDateTime failedCutoff = LocalDateTime.now().minus(failedInputRetention);
+        List<Path> deleted = sweepDirectory(stagingLocation, totals, path -> conversionJobRepository
+            .findFirstByInputPathOrderByUpdatedAtDesc(path.toString())
+            .map(job -> switch (job.getStatus()) {
+                case QUEUED, RUNNING -> false;
+                case DONE -> !job.isUpgradePending() || !adaptivePresetSelector.isUpgradeWhenIdle();
+                case FAILED -> job.getUpdatedAt() == null || job.getUpdatedAt().isBefore(failedCutoff);
+                case CANCELLED -> true;
+            })
+            .orElse(true));
+
+        // A re-encode needs the input, so none is pending for the ones that are gone now
+        for (Path path : deleted) {
+            conversionJobRepository.findFirstByInputPathOrderByUpdatedAtDesc(path.toString())
+                .filter(ConversionJob::isUpgradePending)
+                .ifPresent(job -> {
+                    job.setUpgradePending(false);
+                    conversionJobRepository.save(job);
+                });
+        }
+    }
+
+    /**
+     * Delete working files of encoders that never finished. They are all kept at the top of
+     * the converted files' directory, the shards only ever receive finished files. Working
+     * files of a conversion carry its file ID, so those of queued and running conversions are skipped
+     */
+    private void sweepPartialOutputs(long[] totals) throws InterruptedException {
+        Set<String> activeFileIds = conversionJobService.getActiveFileIds();
+        sweepDirectory(convertedStorageLocation, totals, path -> {
+            String name = path.getFileName().toString();
+            boolean partial = name.endsWith(".part") || name.endsWith(".link") || name.contains("-segments");
+            return partial && FileStorageService.workingFileOwners(name).stream().noneMatch(activeFileIds::contains);
+        });
+    }
+
+    /**
+     * Delete temporary files of uploads and cover derivatives that were never moved into place
+     */
+    private void sweepTempFiles(long[] totals) throws InterruptedException {
+        Predicate<Path> uploadTempFile = path -> {
+            String name = path.getFileName().toString();
+            return name.startsWith("upload-") && name.endsWith(".part");
+        };
+        sweepDirectory(songStorageLocation, totals, uploadTempFile);
+        sweepDirectory(coverArtStorageLocation, totals, uploadTempFile);
+        sweepDirectory(coverArtStorageLocation.resolve("derived"), totals, path -> {
+            String name = path.getFileName().toString();
+            return name.startsWith("cover-") && name.endsWith(".part");
+        });
+    }
+
+    /**
+     * Delete the entries of a directory that are orphaned and old enough. A directory
+     * entry counts as old only if nothing inside it was modified recently either, which takes
+     * a walk of the tree, so it is only checked for entries that are orphaned by name
+     * (not for the shards of stored files)
+     * @param orphaned Decides whether an entry is deleted if it is old; must not change anything itself
+     * @return The entries that were deleted
+     */
+    private List<Path> sweepDirectory(Path directory, long[] totals, Predicate<Path> orphaned)
+            throws InterruptedException {
+        List<Path> deleted = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return deleted;
+        }
+        Instant cutoff = Instant.now().minus(minAge);
+        List<Path> candidates = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                candidates.add(entry);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not list {}: {}", directory, e.getMessage());
+            return deleted;
+        }
+
+        for (Path entry : candidates) {
+            if (!orphaned.test(entry) || !lastModified(entry).isBefore(cutoff)) {
+                continue;
+            }
+            if (Files.isDirectory(entry)) {
+                deleteTree(entry, totals);
+            } else {
+                deleteFile(entry, totals);
+            }
+            if (!Files.exists(entry, LinkOption.NOFOLLOW_LINKS)) {
+                deleted.add(entry);
+            }
+        }
+        return deleted;
+    }
+
+    private void deleteTree(Path directory, long[] totals) throws InterruptedException {
+        List<Path> paths;
+        try (Stream<Path> tree = Files.walk(directory)) {
+            paths = tree.sorted(Comparator.reverseOrder()).toList();
+        } catch (IOException e) {
+            logger.warn("Could not list {}: {}", directory, e.getMessage());
+            return;
+        }
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    logger.warn("Could not delete {}: {}", path, e.getMessage());
+                }
+            } else {
+                deleteFile(path, totals);
+            }
+        }
+    }
+
+    private void deleteFile(Path file, long[] totals) throws InterruptedException {
+        long size = sizeOf(file);
+        try {
+            if (Files.deleteIfExists(file)) {
+                logger.debug("Reclaimed {} ({} bytes)", file, size);
+                count(totals, 1, size);
+                throttle(size);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not delete {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Pause after a delete so the sweep averages at most the configured rate
+     */
+    private void throttle(long bytes) throws InterruptedException {
+        if (maxBytesPerSecond > 0 && bytes > 0) {
+            Thread.sleep(Math.min(10_000, bytes * 1000 / maxBytesPerSecond));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweepExecutor.shutdownNow();
+    }
+
+    private static void count(long[] totals, long files, long bytes) {
+        totals[0] += files;
+        totals[1] += bytes;
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.isRegularFile(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return Latest modification time of the path, or of anything below it for a directory
+     */
+    private static Instant lastModified(Path path) {
+        try (Stream<Path> tree = Files.walk(path)) {
+            Instant latest = Instant.MIN;
+            for (Path entry : (Iterable<Path>) tree::iterator) {
+                Instant modified = Files.readAttributes(entry, BasicFileAttributes.class).lastModifiedTime().toInstant();
+                if (modified.isAfter(latest)) {
+                    latest = modified;
+                }
+            }
+            return latest;
+        } catch (IOException | RuntimeException e) {
+            // Vanished or unreadable: treat as new, so it is left alone
+            return Instant.MAX;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.MediaInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fast path for uploads whose streams are already allowed in WebM.
+ * Such files only need to be rewritten into a WebM container (stream copy),
+ * which is bound by I/O instead of by the VP9 encoder.
+ */
+@Service
+public class StreamCopyRemuxer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamCopyRemuxer.class);
+
+    private static final Set<String> WEBM_VIDEO_CODECS = Set.of("vp8", "vp9", "av1");
+    private static final Set<String> WEBM_AUDIO_CODECS = Set.of("opus", "vorbis");
+
+    @Autowired
+    private MediaToolchain mediaToolchain;
+
+    /**
+     * @param mediaInfo Probe result of the input
+     * @return true if every audio and video stream can be copied into WebM as-is
+     */
+    public boolean isWebMCompatible(MediaInfo mediaInfo) {
+        if (!mediaToolchain.isFfmpegAvailable()) {
+            return false;
+        }
+        if (!mediaInfo.hasVideo() && !mediaInfo.hasAudio()) {
+            return false;
+        }
+        return WEBM_VIDEO_CODECS.containsAll(mediaInfo.videoCodecs())
+            && WEBM_AUDIO_CODECS.containsAll(mediaInfo.audioCodecs());
+    }
+
+    /**
+     * Copy the audio and video streams of the input into a WebM container without re-encoding
+     * @param inputFile The staged input
+     * @param outputFile The WebM to create
+     * @param audioFile Audio-only WebM to write in the same pass, or null
+     * @param cancellation Cancellation token of the conversion
+     * @return true if the remux succeeded, false if the caller should encode instead
+     */
+    public boolean remux(File inputFile, File outputFile, File audioFile, ConversionCancellation cancellation) {
+        try {
+            List<String> command = new ArrayList<>(List.of(
+                mediaToolchain.getFfmpegPath(),
+                "-y",
+                "-i", inputFile.getAbsolutePath(),
+                "-map", "0:V?",       // Video streams, but not attached cover art
+                "-map", "0:a?",
+                "-c", "copy",
+                "-f", "webm",
+                outputFile.getAbsolutePath()
+            ));
+            if (audioFile != null) {
+                command.addAll(List.of("-map", "0:a:0", "-c", "copy", "-f", "webm", audioFile.getAbsolutePath()));
+            }
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.redirectErrorStream(true);
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+
+            int exitCode = cancellation.register(processBuilder.start()).waitFor();
+            if (exitCode != 0) {
+                logger.warn("Stream copy of {} failed with exit code {}", inputFile, exitCode);
+            }
+            return exitCode == 0;
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.warn("Stream copy of {} failed: {}", inputFile, e.getMessage());
+            return false;
+        }
+    }
+}
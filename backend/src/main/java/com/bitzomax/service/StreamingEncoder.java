@@ -0,0 +1,166 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts VP9/WebM encodes that read their input from stdin, so a request body
+ * can be piped straight into the encoder without being written to disk first.
+ * Only containers that can be demuxed front to back qualify; MP4/MOV often keep
+ * their index at the end of the file and need the staged path instead.
+ */
+@Service
+public class StreamingEncoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingEncoder.class);
+
+    private static final Set<String> STREAMABLE_EXTENSIONS = Set.of(
+        "webm", "mkv", "ts", "mts", "m2ts", "mpg", "mpeg", "flv", "ogg", "ogv", "mp3", "wav", "flac", "aac");
+
+    // FFmpeg prints the reason for a failure last; the whole log can run to megabytes. The tail
+    // is sized to fit the job's error message column
+    private static final int ERROR_TAIL_LINES = 5;
+    private static final int ERROR_TAIL_LINE_LENGTH = 160;
+    private static final long ERROR_TAIL_WAIT_SECONDS = 5;
+
+    @Autowired
+    private MediaToolchain mediaToolchain;
+
+    @Autowired
+    private ProgressUpdateService progressUpdateService;
+
+    // One progress and one stderr reader per running encode, off the common pool
+    private final ExecutorService outputReaders;
+
+    public StreamingEncoder() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.outputReaders = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "streaming-encoder-output-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A running encode
+     * @param process The FFmpeg process; the caller writes the input to its stdin
+     * @param errorOutput The last lines FFmpeg wrote to stderr, complete once it closes stderr
+     */
+    public record Encode(Process process, CompletableFuture<String> errorOutput) {
+
+        /**
+         * @return The last lines of stderr for an error message; empty if FFmpeg wrote nothing,
+         *         or is still writing shortly after the caller saw it exit
+         */
+        public String errorTail() {
+            try {
+                return errorOutput.get(ERROR_TAIL_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "";
+            } catch (Exception e) {
+                return "";
+            }
+        }
+    }
+
+    /**
+     * @param filename Original name of the upload
+     * @return true if the container can be decoded from a non-seekable stream
+     */
+    public boolean isStreamable(String filename) {
+        String extension = StringUtils.getFilenameExtension(filename);
+        return extension != null && STREAMABLE_EXTENSIONS.contains(extension.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return true if the FFmpeg CLI is available to encode from stdin
+     */
+    public boolean isAvailable() {
+        return mediaToolchain.canEncodeWebM();
+    }
+
+    /**
+     * Start an encode that reads its input from the process's stdin.
+     * The caller writes the input to {@link Process#getOutputStream()} and closes it.
+     *
+     * @param fileId The file ID progress updates are sent under
+     * @param outputFile The WebM to create
+     * @param preset Speed/quality preset of the video encode
+     * @return The running encode
+     */
+    public Encode start(String fileId, File outputFile, EncoderPreset preset) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+            mediaToolchain.getFfmpegPath(),
+            "-y",
+            "-i", "pipe:0",
+            "-c:v", MediaToolchain.ENCODER_VP9));
+        command.addAll(preset.ffmpegVideoOptions());
+        command.addAll(List.of(
+            "-c:a", mediaToolchain.getWebMAudioEncoder(),
+            "-progress", "pipe:1",
+            "-nostats",
+            "-f", "webm",
+            outputFile.getAbsolutePath()));
+        Process process = new ProcessBuilder(command).start();
+
+        // Input size is reported by the caller; this only logs encoder position
+        outputReaders.execute(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("out_time=")) {
+                        logger.debug("Streaming conversion {} at {}", fileId, line.substring("out_time=".length()));
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("Error reading streaming FFmpeg progress for {}: {}", fileId, e.getMessage());
+            }
+        });
+        // Stderr has to be drained too, or FFmpeg blocks once the pipe buffer is full
+        CompletableFuture<String> errorOutput = CompletableFuture.supplyAsync(() -> {
+            Deque<String> tail = new ArrayDeque<>(ERROR_TAIL_LINES);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (tail.size() == ERROR_TAIL_LINES) {
+                        tail.removeFirst();
+                    }
+                    tail.addLast(line.length() > ERROR_TAIL_LINE_LENGTH ? line.substring(0, ERROR_TAIL_LINE_LENGTH) : line);
+                }
+            } catch (IOException e) {
+                logger.debug("Error reading streaming FFmpeg output for {}: {}", fileId, e.getMessage());
+            }
+            return String.join("\n", tail).trim();
+        }, outputReaders);
+
+        progressUpdateService.sendProgressUpdate(fileId, 5, "processing", "Encoding while the upload streams in");
+        return new Encode(process, errorOutput);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        outputReaders.shutdownNow();
+    }
+}
@@ -0,0 +1,232 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.UploadSession;
+import com.bitzomax.repository.UploadSessionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Resumable uploads: a client opens a session with the total length, then sends
+ * the file in chunks, each addressed by the offset it starts at. After a dropped
+ * connection the client asks for the current offset and continues from there,
+ * so bytes that already arrived are never sent again.
+ * Chunks are plain request bodies, so the multipart size limit does not apply.
+ */
+@Service
+public class UploadSessionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadSessionService.class);
+
+    @Autowired
+    private UploadSessionRepository uploadSessionRepository;
+
+    @Autowired
+    private FileStorageService fileStorageService;
+
+    @Autowired
+    private ConversionJobService conversionJobService;
+
+    private final long maxLength;
+
+    // One writer per session; a second chunk for the same session is refused, not queued
+    private final Map<String, ReentrantLock> sessionLocks = new ConcurrentHashMap<>();
+
+    public UploadSessionService(@Value("${upload.sessions.max-length-bytes:10737418240}") long maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Open an upload session
+     * @param fileName Original name of the file, used for its extension
+     * @param totalLength Size of the complete file in bytes
+     * @param target What the file is once complete: a song, a cover or a conversion input
+     * @return The new session
+     * @throws IllegalArgumentException if the name or length is not acceptable
+     */
+    public UploadSession create(String fileName, long totalLength, UploadSession.Target target) {
+        String cleanFilename = StringUtils.cleanPath(fileName);
+        if (cleanFilename.contains("..") || cleanFilename.lastIndexOf('.') < 0) {
+            throw new IllegalArgumentException("Invalid file name " + fileName);
+        }
+        if (totalLength <= 0 || totalLength > maxLength) {
+            throw new IllegalArgumentException("Upload length must be between 1 and " + maxLength + " bytes");
+        }
+
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), cleanFilename, target, totalLength);
+        try {
+            Files.deleteIfExists(fileStorageService.uploadSessionFile(session.getId()));
+            Files.createFile(fileStorageService.uploadSessionFile(session.getId()));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create upload session", e);
+        }
+        return uploadSessionRepository.save(session);
+    }
+
+    public Optional<UploadSession> findSession(String sessionId) {
+        return uploadSessionRepository.findById(sessionId);
+    }
+
+    /**
+     * The part file is the source of truth for the offset: whatever reached the
+     * disk before a connection dropped counts, even if the chunk was cut short.
+     * @return Number of bytes received so far
+     */
+    public long getOffset(UploadSession session) {
+        if (session.getStatus() == UploadSession.Status.COMPLETED) {
+            return session.getTotalLength();
+        }
+        try {
+            Path partFile = fileStorageService.uploadSessionFile(session.getId());
+            return Files.exists(partFile) ? Files.size(partFile) : 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read upload session " + session.getId(), e);
+        }
+    }
+
+    /**
+     * Append a chunk to a session
+     * @param session The session to write to
+     * @param offset The offset the chunk starts at, must equal the current offset
+     * @param body The chunk
+     * @return The offset after the chunk
+     * @throws IllegalStateException if the offset does not match, the session is not active,
+     *         or another chunk for the session is being written
+     * @throws IllegalArgumentException if the chunk runs past the declared length
+     */
+    public long appendChunk(UploadSession session, long offset, InputStream body) throws IOException {
+        if (session.getStatus() != UploadSession.Status.ACTIVE) {
+            throw new IllegalStateException("Upload session " + session.getId() + " is " + session.getStatus());
+        }
+
+        ReentrantLock lock = sessionLocks.computeIfAbsent(session.getId(), id -> new ReentrantLock());
+        if (!lock.tryLock()) {
+            throw new IllegalStateException("Another chunk for upload session " + session.getId() + " is in progress");
+        }
+        try {
+            Path partFile = fileStorageService.uploadSessionFile(session.getId());
+            try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.WRITE)) {
+                long currentOffset = channel.size();
+                if (offset != currentOffset) {
+                    throw new IllegalStateException("Expected offset " + currentOffset + " but got " + offset);
+                }
+
+                long remaining = session.getTotalLength() - currentOffset;
+                channel.position(currentOffset);
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                long written = 0;
+                int read;
+                while ((read = body.read(buffer.array())) != -1) {
+                    if (written + read > remaining) {
+                        // Keep the file at the declared length so the session can still complete
+                        channel.truncate(currentOffset);
+                        throw new IllegalArgumentException("Chunk runs past the declared upload length");
+                    }
+                    buffer.limit(read);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                    written += read;
+                }
+
+                session.setUpdatedAt(LocalDateTime.now());
+                uploadSessionRepository.save(session);
+                return currentOffset + written;
+            } catch (IOException e) {
+                // Bytes that made it to disk stay; the client resumes from the reported offset
+                logger.info("Chunk for upload session {} was cut short: {}", session.getId(), e.getMessage());
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hand a fully received upload to storage, or to the conversion queue.
+     * Completing a session twice returns the first result, so a client whose
+     * completion response got lost can simply retry.
+     * @param session The session to complete
+     * @param submittedBy Who a conversion upload is accounted to in the conversion queue
+     * @param priority Scheduling class of a conversion upload
+     * @return The completed session, carrying the stored file name or the conversion file ID
+     * @throws IllegalStateException if bytes are still missing or the session was aborted
+     * @throws java.util.concurrent.RejectedExecutionException if the conversion queue is full
+     */
+    public UploadSession complete(UploadSession session, String submittedBy, ConversionJob.Priority priority) {
+        if (session.getStatus() == UploadSession.Status.COMPLETED) {
+            return session;
+        }
+        if (session.getStatus() != UploadSession.Status.ACTIVE) {
+            throw new IllegalStateException("Upload session " + session.getId() + " is " + session.getStatus());
+        }
+
+        ReentrantLock lock = sessionLocks.computeIfAbsent(session.getId(), id -> new ReentrantLock());
+        if (!lock.tryLock()) {
+            throw new IllegalStateException("A chunk for upload session " + session.getId() + " is in progress");
+        }
+        try {
+            long offset = getOffset(session);
+            if (offset != session.getTotalLength()) {
+                throw new IllegalStateException("Upload session " + session.getId() + " has "
+                    + offset + " of " + session.getTotalLength() + " bytes");
+            }
+
+            Path partFile = fileStorageService.uploadSessionFile(session.getId());
+            String resultName = switch (session.getTarget()) {
+                case SONG -> fileStorageService.storeAssembledSongFile(partFile, session.getFileName());
+                case COVER -> fileStorageService.storeAssembledCoverArtFile(partFile, session.getFileName());
+                case CONVERT -> {
+                    ConversionJob job = conversionJobService.submitAssembled(partFile, session.getFileName(), session.getId(),
+                        submittedBy, priority);
+                    yield job.getFileId();
+                }
+            };
+
+            session.setResultName(resultName);
+            session.setStatus(UploadSession.Status.COMPLETED);
+            session.setUpdatedAt(LocalDateTime.now());
+            return uploadSessionRepository.save(session);
+        } finally {
+            lock.unlock();
+            sessionLocks.remove(session.getId());
+        }
+    }
+
+    /**
+     * Abort a session and delete the bytes received so far
+     */
+    public void abort(UploadSession session) {
+        if (session.getStatus() != UploadSession.Status.ACTIVE) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(fileStorageService.uploadSessionFile(session.getId()));
+        } catch (IOException e) {
+            logger.warn("Could not delete upload session {}: {}", session.getId(), e.getMessage());
+        }
+        session.setStatus(UploadSession.Status.ABORTED);
+        session.setUpdatedAt(LocalDateTime.now());
+        uploadSessionRepository.save(session);
+        sessionLocks.remove(session.getId());
+    }
+}
@@ -1,7 +1,9 @@
 package com.bitzomax.util;
 
+import com.bitzomax.dto.ConversionJobDTO;
 import com.bitzomax.dto.SongDTO;
 import com.bitzomax.dto.UserDTO;
+import com.bitzomax.model.ConversionJob;
 import com.bitzomax.model.Song;
 import com.bitzomax.model.User;
 
@@ -69,4 +71,20 @@ public class EntityDtoMapper {
                 .map(EntityDtoMapper::toSongDto)
                 .collect(Collectors.toList());
     }
+    
+    // ConversionJob to ConversionJobDTO conversion; staging paths and accounting stay server-side
+    public static ConversionJobDTO toConversionJobDto(ConversionJob job) {
+        if (job == null) {
+            return null;
+        }
+        
+        ConversionJobDTO dto = new ConversionJobDTO();
+        dto.setFileId(job.getFileId());
+        dto.setStatus(job.getStatus() != null ? job.getStatus().name() : null);
+        dto.setOutputName(job.getOutputName());
+        dto.setPriority(job.getPriority() != null ? job.getPriority().name() : null);
+        dto.setErrorMessage(job.getErrorMessage());
+        
+        return dto;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+package com.bitzomax.util;
+
+import com.bitzomax.model.MediaInfo;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores a {@link MediaInfo} probe result as a JSON column
+ */
+@Converter
+public class MediaInfoConverter implements AttributeConverter<MediaInfo, String> {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Override
+    public String convertToDatabaseColumn(MediaInfo mediaInfo) {
+        if (mediaInfo == null) {
+            return null;
+        }
+        try {
+            return objectMapper.writeValueAsString(mediaInfo);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not serialize media info", e);
+        }
+    }
+
+    @Override
+    public MediaInfo convertToEntityAttribute(String json) {
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(json, MediaInfo.class);
+        } catch (JsonProcessingException e) {
+            // An unreadable probe result only means the file has to be probed again
+            return null;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.bitzomax.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.http.converter.ResourceRegionHttpMessageConverter;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SendfileTests {
+
+    private static final String CONTENT = "0123456789";
+
+    @TempDir
+    Path root;
+
+    private final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/file");
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+    private FileSystemResource file;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        file = new FileSystemResource(Files.writeString(root.resolve("abcd.webm"), CONTENT));
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request, response));
+    }
+
+    @AfterEach
+    void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    private void writeWhole(long minLength, Resource resource) throws Exception {
+        new SendfileResourceHttpMessageConverter(minLength).write(resource, null, new ServletServerHttpResponse(response));
+    }
+
+    private void writeRegion(long position, long count) throws Exception {
+        new SendfileResourceRegionHttpMessageConverter(0)
+            .write(new ResourceRegion(file, position, count), null, new ServletServerHttpResponse(response));
+    }
+
+    @Test
+    void wholeFileIsHandedToTheContainer() throws Exception {
+        writeWhole(0, file);
+
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.filename")).isEqualTo(file.getFile().getAbsolutePath());
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.start")).isEqualTo(0L);
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.end")).isEqualTo(10L);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_LENGTH)).isEqualTo("10");
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void smallFileIsCopied() throws Exception {
+        writeWhole(11, file);
+
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.filename")).isNull();
+        assertThat(response.getContentAsString()).isEqualTo(CONTENT);
+    }
+
+    @Test
+    void fileIsCopiedWhenTheContainerCannotSendfile() throws Exception {
+        request.removeAttribute("org.apache.tomcat.sendfile.support");
+
+        writeWhole(0, file);
+
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.filename")).isNull();
+        assertThat(response.getContentAsString()).isEqualTo(CONTENT);
+    }
+
+    @Test
+    void headRequestIsNotHandedToTheContainer() throws Exception {
+        request.setMethod("HEAD");
+
+        writeWhole(0, file);
+
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.filename")).isNull();
+    }
+
+    @Test
+    void resourceWithoutAFileIsCopied() throws Exception {
+        writeWhole(0, new ByteArrayResource(CONTENT.getBytes()));
+
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.filename")).isNull();
+        assertThat(response.getContentAsString()).isEqualTo(CONTENT);
+    }
+
+    @Test
+    void rangeIsHandedToTheContainerWithItsHeaders() throws Exception {
+        writeRegion(2, 4);
+
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.start")).isEqualTo(2L);
+        // The end is exclusive
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.end")).isEqualTo(6L);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 2-5/10");
+        assertThat(response.getHeader(HttpHeaders.CONTENT_LENGTH)).isEqualTo("4");
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void rangePastTheEndIsCutAtTheEndOfTheFile() throws Exception {
+        writeRegion(6, 100);
+
+        assertThat(request.getAttribute("org.apache.tomcat.sendfile.end")).isEqualTo(10L);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 6-9/10");
+        assertThat(response.getHeader(HttpHeaders.CONTENT_LENGTH)).isEqualTo("4");
+    }
+
+    @Test
+    void springsResourceConvertersAreReplacedInPlace() {
+        List<HttpMessageConverter<?>> converters = new ArrayList<>(List.of(new StringHttpMessageConverter(),
+            new ResourceHttpMessageConverter(), new ResourceRegionHttpMessageConverter()));
+
+        new WebMvcConfig(true, 48).extendMessageConverters(converters);
+
+        assertThat(converters).hasExactlyElementsOfTypes(StringHttpMessageConverter.class,
+            SendfileResourceHttpMessageConverter.class, SendfileResourceRegionHttpMessageConverter.class);
+    }
+
+    @Test
+    void convertersAreLeftAloneWhenDisabled() {
+        List<HttpMessageConverter<?>> converters = new ArrayList<>(List.of(new ResourceHttpMessageConverter()));
+
+        new WebMvcConfig(false, 48).extendMessageConverters(converters);
+
+        assertThat(converters).hasExactlyElementsOfTypes(ResourceHttpMessageConverter.class);
+    }
+}
@@ -0,0 +1,311 @@
+package com.bitzomax.controller;
+
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.UploadSession;
+import com.bitzomax.service.ConversionJobService;
+import com.bitzomax.service.CoverArtService;
+import com.bitzomax.service.FileStorageService;
+import com.bitzomax.service.ProgressUpdateService;
+import com.bitzomax.service.StreamingEncoder;
+import com.bitzomax.service.UploadSessionService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.head;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class FileControllerTests {
+
+    private final FileStorageService fileStorageService = mock(FileStorageService.class);
+    private final ConversionJobService conversionJobService = mock(ConversionJobService.class);
+    private final StreamingEncoder streamingEncoder = mock(StreamingEncoder.class);
+    private final UploadSessionService uploadSessionService = mock(UploadSessionService.class);
+    private final ProgressUpdateService progressUpdateService = mock(ProgressUpdateService.class);
+    private final CoverArtService coverArtService = mock(CoverArtService.class);
+    private MockMvc mockMvc;
+
+    @TempDir
+    Path storageDir;
+
+    @BeforeEach
+    void setUp() {
+        FileController controller = new FileController();
+        ReflectionTestUtils.setField(controller, "fileStorageService", fileStorageService);
+        ReflectionTestUtils.setField(controller, "conversionJobService", conversionJobService);
+        ReflectionTestUtils.setField(controller, "streamingEncoder", streamingEncoder);
+        ReflectionTestUtils.setField(controller, "uploadSessionService", uploadSessionService);
+        ReflectionTestUtils.setField(controller, "progressUpdateService", progressUpdateService);
+        ReflectionTestUtils.setField(controller, "coverArtService", coverArtService);
+        mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @Test
+    void conversionJobIsReportedWithoutServerSideDetails() throws Exception {
+        ConversionJob job = new ConversionJob();
+        job.setId(7L);
+        job.setFileId("file-1");
+        job.setStatus(ConversionJob.Status.FAILED);
+        job.setOutputName("abcd.webm");
+        job.setPriority(ConversionJob.Priority.INTERACTIVE);
+        job.setErrorMessage("Conversion failed");
+        job.setInputPath("/srv/bitzomax/songs/staging/file-1-upload.mp4");
+        job.setSourceHash("abcd");
+        job.setSubmittedBy("alice");
+        when(conversionJobService.findJob("file-1")).thenReturn(Optional.of(job));
+
+        mockMvc.perform(get("/api/admin/files/conversions/file-1"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.fileId").value("file-1"))
+            .andExpect(jsonPath("$.status").value("FAILED"))
+            .andExpect(jsonPath("$.outputName").value("abcd.webm"))
+            .andExpect(jsonPath("$.priority").value("INTERACTIVE"))
+            .andExpect(jsonPath("$.errorMessage").value("Conversion failed"))
+            .andExpect(jsonPath("$.inputPath").doesNotExist())
+            .andExpect(jsonPath("$.submittedBy").doesNotExist())
+            .andExpect(jsonPath("$.sourceHash").doesNotExist())
+            .andExpect(jsonPath("$.id").doesNotExist());
+    }
+
+    @Test
+    void unknownConversionJobIsNotFound() throws Exception {
+        when(conversionJobService.findJob("missing")).thenReturn(Optional.empty());
+
+        mockMvc.perform(get("/api/admin/files/conversions/missing"))
+            .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void audioRenditionIsServedAsAudio() throws Exception {
+        when(fileStorageService.findAudioRendition("abcd.webm")).thenReturn(Optional.of(storedFile("abcd.audio.webm", "opus")));
+
+        mockMvc.perform(get("/api/admin/files/converted/abcd.webm/audio"))
+            .andExpect(status().isOk())
+            .andExpect(content().contentType("audio/webm"))
+            .andExpect(content().string("opus"));
+    }
+
+    @Test
+    void missingAudioRenditionIsNotFound() throws Exception {
+        when(fileStorageService.findAudioRendition("silent.webm")).thenReturn(Optional.empty());
+
+        mockMvc.perform(get("/api/admin/files/converted/silent.webm/audio"))
+            .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void cancellingAConversionAnswersByItsState() throws Exception {
+        when(conversionJobService.cancel("running")).thenReturn(true);
+        when(conversionJobService.findJob("finished")).thenReturn(Optional.of(new ConversionJob()));
+        when(conversionJobService.findJob("missing")).thenReturn(Optional.empty());
+
+        mockMvc.perform(post("/api/admin/files/conversions/running/cancel"))
+            .andExpect(status().isAccepted());
+        mockMvc.perform(post("/api/admin/files/conversions/finished/cancel"))
+            .andExpect(status().isConflict());
+        mockMvc.perform(post("/api/admin/files/conversions/missing/cancel"))
+            .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void uploadOffsetIsReportedForResuming() throws Exception {
+        UploadSession session = new UploadSession("session-1", "clip.mkv", UploadSession.Target.CONVERT, 100);
+        when(uploadSessionService.findSession("session-1")).thenReturn(Optional.of(session));
+        when(uploadSessionService.getOffset(session)).thenReturn(40L);
+
+        mockMvc.perform(head("/api/admin/files/upload/sessions/session-1"))
+            .andExpect(status().isOk())
+            .andExpect(header().string("Upload-Offset", "40"))
+            .andExpect(header().string("Upload-Length", "100"))
+            .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-store"));
+    }
+
+    @Test
+    void chunkAtTheWrongOffsetIsAConflictCarryingTheOffsetToResumeFrom() throws Exception {
+        UploadSession session = new UploadSession("session-1", "clip.mkv", UploadSession.Target.CONVERT, 100);
+        when(uploadSessionService.findSession("session-1")).thenReturn(Optional.of(session));
+        when(uploadSessionService.appendChunk(eq(session), eq(0L), any()))
+            .thenThrow(new IllegalStateException("Expected offset 40 but got 0"));
+        when(uploadSessionService.getOffset(session)).thenReturn(40L);
+
+        mockMvc.perform(put("/api/admin/files/upload/sessions/session-1")
+                .header("Upload-Offset", "0")
+                .contentType("application/offset+octet-stream")
+                .content(new byte[10]))
+            .andExpect(status().isConflict())
+            .andExpect(header().string("Upload-Offset", "40"));
+    }
+
+    @Test
+    void acceptedChunkReturnsTheNewOffset() throws Exception {
+        UploadSession session = new UploadSession("session-1", "clip.mkv", UploadSession.Target.CONVERT, 100);
+        when(uploadSessionService.findSession("session-1")).thenReturn(Optional.of(session));
+        when(uploadSessionService.appendChunk(eq(session), eq(40L), any())).thenReturn(50L);
+
+        mockMvc.perform(put("/api/admin/files/upload/sessions/session-1")
+                .header("Upload-Offset", "40")
+                .contentType("application/offset+octet-stream")
+                .content(new byte[10]))
+            .andExpect(status().isNoContent())
+            .andExpect(header().string("Upload-Offset", "50"));
+    }
+
+    private FileSystemResource storedFile(String name, String content) throws Exception {
+        return new FileSystemResource(Files.writeString(storageDir.resolve(name), content));
+    }
+
+    @Test
+    void rangeOfASongIsServedPartially() throws Exception {
+        when(fileStorageService.loadSongAsResource("abcd.mp3")).thenReturn(storedFile("abcd.mp3", "0123456789"));
+
+        mockMvc.perform(get("/api/admin/files/song/abcd.mp3").header(HttpHeaders.RANGE, "bytes=2-5"))
+            .andExpect(status().isPartialContent())
+            .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 2-5/10"))
+            .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+            .andExpect(header().string(HttpHeaders.ETAG, "\"abcd\""))
+            .andExpect(content().string("2345"));
+    }
+
+    @Test
+    void unsatisfiableRangeIsRejected() throws Exception {
+        when(fileStorageService.loadSongAsResource("abcd.mp3")).thenReturn(storedFile("abcd.mp3", "0123456789"));
+
+        mockMvc.perform(get("/api/admin/files/song/abcd.mp3").header(HttpHeaders.RANGE, "bytes=20-30"))
+            .andExpect(status().isRequestedRangeNotSatisfiable());
+    }
+
+    @Test
+    void rangeIsServedWhileIfRangeNamesTheCurrentVersion() throws Exception {
+        when(fileStorageService.loadSongAsResource("abcd.mp3")).thenReturn(storedFile("abcd.mp3", "0123456789"));
+
+        mockMvc.perform(get("/api/admin/files/song/abcd.mp3")
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, "\"abcd\""))
+            .andExpect(status().isPartialContent())
+            .andExpect(content().string("2345"));
+    }
+
+    @Test
+    void staleIfRangeGetsTheWholeFile() throws Exception {
+        FileSystemResource converted = storedFile("abcd.webm", "0123456789");
+        when(fileStorageService.loadConvertedFileAsResource("abcd.webm")).thenReturn(converted);
+        String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+            Instant.ofEpochMilli(converted.lastModified()).minusSeconds(60).atZone(ZoneOffset.UTC));
+
+        mockMvc.perform(get("/api/admin/files/converted/abcd.webm")
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, "\"abcd-a-0\""))
+            .andExpect(status().isOk())
+            .andExpect(header().doesNotExist(HttpHeaders.CONTENT_RANGE))
+            .andExpect(content().string("0123456789"));
+        mockMvc.perform(get("/api/admin/files/converted/abcd.webm")
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, lastModified))
+            .andExpect(status().isOk())
+            .andExpect(content().string("0123456789"));
+    }
+
+    @Test
+    void ifRangeDateOfTheCurrentVersionGetsTheRange() throws Exception {
+        FileSystemResource converted = storedFile("abcd.webm", "0123456789");
+        when(fileStorageService.loadConvertedFileAsResource("abcd.webm")).thenReturn(converted);
+        String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+            Instant.ofEpochMilli(converted.lastModified()).atZone(ZoneOffset.UTC));
+
+        mockMvc.perform(get("/api/admin/files/converted/abcd.webm")
+                .header(HttpHeaders.RANGE, "bytes=2-5")
+                .header(HttpHeaders.IF_RANGE, lastModified))
+            .andExpect(status().isPartialContent())
+            .andExpect(content().string("2345"));
+    }
+
+    @Test
+    void convertedFileIsRevalidatedByItsSizeAndModificationTime() throws Exception {
+        FileSystemResource converted = storedFile("abcd.webm", "0123456789");
+        when(fileStorageService.loadConvertedFileAsResource("abcd.webm")).thenReturn(converted);
+        String eTag = "\"abcd-a-" + Long.toHexString(converted.lastModified() / 1000 * 1000) + "\"";
+
+        mockMvc.perform(get("/api/admin/files/converted/abcd.webm"))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.ETAG, eTag))
+            .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache, private"))
+            .andExpect(content().contentType("video/webm"));
+        mockMvc.perform(get("/api/admin/files/converted/abcd.webm").header(HttpHeaders.IF_NONE_MATCH, eTag))
+            .andExpect(status().isNotModified())
+            .andExpect(content().string(""));
+        mockMvc.perform(get("/api/admin/files/converted/abcd.webm").header(HttpHeaders.IF_NONE_MATCH, "\"abcd-a-0\""))
+            .andExpect(status().isOk());
+    }
+
+    @Test
+    void unchangedSongIsNotSentAgain() throws Exception {
+        FileSystemResource song = storedFile("abcd.mp3", "0123456789");
+        when(fileStorageService.loadSongAsResource("abcd.mp3")).thenReturn(song);
+        String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+            Instant.ofEpochMilli(song.lastModified()).atZone(ZoneOffset.UTC));
+
+        mockMvc.perform(get("/api/admin/files/song/abcd.mp3").header(HttpHeaders.IF_MODIFIED_SINCE, lastModified))
+            .andExpect(status().isNotModified());
+    }
+
+    @Test
+    void coverIsCachedForGood() throws Exception {
+        when(fileStorageService.loadCoverArtAsResource("abcd.jpg")).thenReturn(storedFile("abcd.jpg", "jpeg"));
+
+        mockMvc.perform(get("/api/admin/files/cover/abcd.jpg"))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=31536000, private, immutable"))
+            .andExpect(content().string("jpeg"));
+    }
+
+    @Test
+    void scaledCoverIsCachedForGood() throws Exception {
+        Path derivative = Files.writeString(storageDir.resolve("abcd-64.webp"), "webp");
+        when(coverArtService.findDerivative("abcd.jpg", 64)).thenReturn(Optional.of(derivative));
+
+        mockMvc.perform(get("/api/admin/files/cover/abcd.jpg").param("size", "64"))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=31536000, private, immutable"))
+            .andExpect(content().contentType("image/webp"))
+            .andExpect(content().string("webp"));
+    }
+
+    @Test
+    void originalStandingInForAScaledCoverIsRevalidated() throws Exception {
+        when(coverArtService.findDerivative("abcd.jpg", 64)).thenReturn(Optional.empty());
+        when(fileStorageService.loadCoverArtAsResource("abcd.jpg")).thenReturn(storedFile("abcd.jpg", "jpeg"));
+
+        mockMvc.perform(get("/api/admin/files/cover/abcd.jpg").param("size", "64"))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache, private"))
+            .andExpect(content().string("jpeg"));
+    }
+
+    @Test
+    void coverSizeMustBePositive() throws Exception {
+        mockMvc.perform(get("/api/admin/files/cover/abcd.jpg").param("size", "0"))
+            .andExpect(status().isBadRequest());
+    }
+}
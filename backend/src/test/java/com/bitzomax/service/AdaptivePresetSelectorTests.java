@@ -0,0 +1,57 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class AdaptivePresetSelectorTests {
+
+    // Drain the queue within 100 seconds
+    private final AdaptivePresetSelector selector = new AdaptivePresetSelector(true, 100, false);
+
+    @Test
+    void idleQueueGetsTheQualityPreset() {
+        assertThat(selector.choose(0, 3600, 1)).isEqualTo(EncoderPreset.QUALITY);
+    }
+
+    @Test
+    void picksTheSlowestPresetThatDrainsTheQueueInTime() {
+        // Initial factors: QUALITY 2.0, BALANCED 1.0, FAST 0.5, REALTIME 0.25
+        assertThat(selector.choose(30, 10, 1)).isEqualTo(EncoderPreset.QUALITY);
+        assertThat(selector.choose(90, 10, 1)).isEqualTo(EncoderPreset.BALANCED);
+        assertThat(selector.choose(190, 10, 1)).isEqualTo(EncoderPreset.FAST);
+        assertThat(selector.choose(390, 10, 1)).isEqualTo(EncoderPreset.REALTIME);
+        assertThat(selector.choose(10_000, 10, 1)).isEqualTo(EncoderPreset.REALTIME);
+        // Four workers share the backlog
+        assertThat(selector.choose(190, 10, 4)).isEqualTo(EncoderPreset.QUALITY);
+    }
+
+    @Test
+    void measuredEncodesMoveTheEstimate() {
+        selector.recordEncode(EncoderPreset.QUALITY, 60_000, 60_000);
+
+        // 2.0 * 0.7 + 1.0 * 0.3
+        assertThat(selector.getEncodeFactors().get(EncoderPreset.QUALITY)).isCloseTo(1.7, within(1e-9));
+        assertThat(selector.getEncodeFactors().get(EncoderPreset.BALANCED)).isEqualTo(1.0);
+    }
+
+    @Test
+    void encodesWithoutADurationAreIgnored() {
+        selector.recordEncode(EncoderPreset.FAST, 0, 60_000);
+        selector.recordEncode(EncoderPreset.FAST, 60_000, 0);
+
+        assertThat(selector.getEncodeFactors().get(EncoderPreset.FAST)).isEqualTo(0.5);
+    }
+
+    @Test
+    void fixedPresetWhenNotAdaptive() {
+        AdaptivePresetSelector fixed = new AdaptivePresetSelector(false, 100, true);
+
+        assertThat(fixed.choose(10_000, 10, 1)).isEqualTo(EncoderPreset.QUALITY);
+        assertThat(fixed.isUpgradable(EncoderPreset.FAST)).isTrue();
+        assertThat(fixed.isUpgradable(EncoderPreset.QUALITY)).isFalse();
+        assertThat(selector.isUpgradable(EncoderPreset.FAST)).isFalse();
+    }
+}
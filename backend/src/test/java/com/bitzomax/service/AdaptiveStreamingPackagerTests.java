@@ -0,0 +1,185 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import com.bitzomax.model.MediaInfo;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AdaptiveStreamingPackagerTests {
+
+    private static final MediaInfo HD_VIDEO = new MediaInfo(60_000, "matroska,webm", List.of("vp9"), List.of("opus"),
+        1280, 720, 25, 2_000_000, 48_000, 2);
+
+    @TempDir
+    Path tempDir;
+
+    private final MediaToolchain mediaToolchain = mock(MediaToolchain.class);
+
+    private AdaptiveStreamingPackager packager(String ladder) {
+        AdaptiveStreamingPackager packager = new AdaptiveStreamingPackager(true, ladder, 4);
+        ReflectionTestUtils.setField(packager, "mediaToolchain", mediaToolchain);
+        return packager;
+    }
+
+    @BeforeEach
+    void setUp() {
+        when(mediaToolchain.canEncodeWebM()).thenReturn(true);
+        when(mediaToolchain.getWebMAudioEncoder()).thenReturn(MediaToolchain.ENCODER_OPUS);
+    }
+
+    private static ConversionCancellation running() {
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellation.start();
+        return cancellation;
+    }
+
+    /**
+     * A stand-in ffmpeg that logs its arguments one per line and, if it succeeds, writes an
+     * empty manifest to the path it was given last
+     */
+    private Path fakeFfmpeg(int exitCode) throws Exception {
+        Path args = tempDir.resolve("args");
+        Path ffmpeg = Files.writeString(tempDir.resolve("ffmpeg"), """
+            #!/bin/bash
+            printf '%%s\\n' "$@" > "%s"
+            if [ %d -eq 0 ]; then echo '<MPD/>' > "${@: -1}"; fi
+            exit %d
+            """.formatted(args, exitCode, exitCode));
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwx------"));
+        when(mediaToolchain.getFfmpegPath()).thenReturn(ffmpeg.toString());
+        return args;
+    }
+
+    private static String argumentAfter(List<String> args, String option) {
+        return args.get(args.indexOf(option) + 1);
+    }
+
+    @Test
+    void onlyVideoIsPackaged() {
+        MediaInfo song = new MediaInfo(60_000, "mp3", List.of(), List.of("mp3"), 0, 0, 0, 320_000, 44_100, 2);
+
+        assertThat(packager("240:400k").isApplicable(HD_VIDEO)).isTrue();
+        assertThat(packager("240:400k").isApplicable(song)).isFalse();
+        assertThat(packager("240:400k").isApplicable(null)).isFalse();
+        assertThat(new AdaptiveStreamingPackager(false, "240:400k", 4).isApplicable(HD_VIDEO)).isFalse();
+    }
+
+    @Test
+    void ladderMustBeHeightsAndBitrates() {
+        for (String ladder : List.of("0:400k", "-240:400k", "240", "240:fast", "tall:400k", " ")) {
+            assertThatThrownBy(() -> new AdaptiveStreamingPackager(true, ladder, 4)).as(ladder)
+                .isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void everyRungNoTallerThanTheSourceIsEncodedFromOneDecode() throws Exception {
+        Path args = fakeFfmpeg(0);
+        Path outputDir = Files.createDirectory(tempDir.resolve("dash"));
+
+        boolean packaged = packager("720:2500k,240:400k,1080:5000k,480:1000k").packageForStreaming(
+            tempDir.resolve("abcd.webm").toFile(), HD_VIDEO, outputDir, EncoderPreset.FAST, running());
+
+        assertThat(packaged).isTrue();
+        List<String> command = Files.readAllLines(args);
+        assertThat(argumentAfter(command, "-filter_complex")).isEqualTo("[0:v:0]split=3[s0][s1][s2]"
+            + ";[s0]scale=-2:240[v0];[s1]scale=-2:480[v1];[s2]scale=-2:720[v2]");
+        assertThat(String.join(" ", command))
+            .contains("-map [v0] -map [v1] -map [v2] -map 0:a:0 -c:a libopus")
+            .contains("-b:v:0 400k -b:v:1 1000k -b:v:2 2500k")
+            .contains("-force_key_frames expr:gte(t,n_forced*4)")
+            .doesNotContain("-b:v:3");
+        assertThat(argumentAfter(command, "-adaptation_sets")).isEqualTo("id=0,streams=v id=1,streams=a");
+        assertThat(command.get(command.size() - 1)).isEqualTo(outputDir.resolve("manifest.mpd").toString());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void sourceShorterThanEveryRungGetsOneRenditionAtItsOwnHeight() throws Exception {
+        Path args = fakeFfmpeg(0);
+        MediaInfo small = new MediaInfo(60_000, "matroska,webm", List.of("vp9"), List.of(),
+            320, 180, 25, 500_000, 0, 0);
+
+        packager("240:400k,480:1000k").packageForStreaming(tempDir.resolve("abcd.webm").toFile(), small,
+            Files.createDirectory(tempDir.resolve("dash")), EncoderPreset.FAST, running());
+
+        List<String> command = Files.readAllLines(args);
+        assertThat(argumentAfter(command, "-filter_complex")).isEqualTo("[0:v:0]split=1[s0];[s0]scale=-2:180[v0]");
+        assertThat(argumentAfter(command, "-b:v:0")).isEqualTo("400k");
+        // No audio to map
+        assertThat(command).doesNotContain("0:a:0");
+        assertThat(argumentAfter(command, "-adaptation_sets")).isEqualTo("id=0,streams=v");
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void failedEncodeIsNotPackaged() throws Exception {
+        fakeFfmpeg(1);
+
+        assertThat(packager("240:400k").packageForStreaming(tempDir.resolve("abcd.webm").toFile(), HD_VIDEO,
+            Files.createDirectory(tempDir.resolve("dash")), EncoderPreset.FAST, running())).isFalse();
+    }
+
+    /**
+     * Packages a real clip where an FFmpeg CLI with VP9 is installed; skipped elsewhere
+     */
+    @Test
+    void manifestDescribesOneRepresentationPerApplicableRung() throws Exception {
+        MediaToolchain toolchain = new MediaToolchain("ffmpeg", "ffprobe");
+        toolchain.init();
+        assumeTrue(toolchain.canEncodeWebM(), "FFmpeg CLI with VP9 and Opus/Vorbis");
+        Path source = tempDir.resolve("source.mkv");
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(source.toFile(), 320, 240, 2)) {
+            recorder.setFormat("matroska");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
+            recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+            recorder.setFrameRate(25);
+            recorder.setAudioCodec(avcodec.AV_CODEC_ID_PCM_S16LE);
+            recorder.setSampleRate(48_000);
+            recorder.start();
+            Frame picture = new Frame(320, 240, Frame.DEPTH_UBYTE, 3);
+            for (int i = 0; i < 50; i++) {
+                recorder.record(picture);
+                recorder.recordSamples(48_000, 2, ShortBuffer.wrap(new short[2 * 48_000 / 25]));
+            }
+        }
+        MediaInfo mediaInfo = new MediaInfo(2_000, "matroska,webm", List.of("mpeg4"), List.of("pcm_s16le"),
+            320, 240, 25, 1_000_000, 48_000, 2);
+        AdaptiveStreamingPackager packager = new AdaptiveStreamingPackager(true, "120:100k,180:200k,480:1000k", 1);
+        ReflectionTestUtils.setField(packager, "mediaToolchain", toolchain);
+        Path outputDir = Files.createDirectory(tempDir.resolve("dash"));
+
+        assertThat(packager.packageForStreaming(source.toFile(), mediaInfo, outputDir, EncoderPreset.REALTIME,
+            running())).isTrue();
+
+        String manifest = Files.readString(outputDir.resolve(AdaptiveStreamingPackager.MANIFEST_NAME));
+        Matcher heights = Pattern.compile("<Representation [^>]*height=\"(\\d+)\"").matcher(manifest);
+        List<String> videoHeights = heights.results().map(result -> result.group(1)).toList();
+        assertThat(videoHeights).containsExactlyInAnyOrder("120", "180");
+        assertThat(manifest).contains("audio");
+        assertThat(outputDir.resolve("init-0.webm")).exists();
+    }
+}
@@ -0,0 +1,72 @@
+package com.bitzomax.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DisabledOnOs(OS.WINDOWS)
+class ConversionCancellationTests {
+
+    private final List<Process> processes = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        processes.forEach(Process::destroyForcibly);
+    }
+
+    private Process sleeper() throws IOException {
+        Process process = new ProcessBuilder("sleep", "60").start();
+        processes.add(process);
+        return process;
+    }
+
+    @Test
+    void endingAnAttemptKillsItsProcessesButNotTheConversion() throws Exception {
+        ConversionCancellation conversion = new ConversionCancellation();
+        conversion.start();
+        Process encoder = conversion.register(sleeper());
+        ConversionCancellation attempt = conversion.startAttempt();
+        Process segment = attempt.register(sleeper());
+
+        conversion.endAttempt(attempt, 5000);
+
+        assertThat(segment.isAlive()).isFalse();
+        assertThat(attempt.isCancelled()).isTrue();
+        assertThat(conversion.isCancelled()).isFalse();
+        assertThat(encoder.isAlive()).isTrue();
+    }
+
+    @Test
+    void cancellingTheConversionCancelsItsAttempts() throws Exception {
+        ConversionCancellation conversion = new ConversionCancellation();
+        conversion.start();
+        ConversionCancellation attempt = conversion.startAttempt();
+        Process segment = attempt.register(sleeper());
+
+        conversion.cancel();
+
+        assertThat(attempt.isCancelled()).isTrue();
+        assertThat(segment.waitFor(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void attemptOfACancelledConversionStartsCancelled() throws Exception {
+        ConversionCancellation conversion = new ConversionCancellation();
+        conversion.start();
+        conversion.cancel();
+
+        ConversionCancellation attempt = conversion.startAttempt();
+        Process segment = attempt.register(sleeper());
+
+        assertThat(attempt.isCancelled()).isTrue();
+        assertThat(segment.waitFor(5, TimeUnit.SECONDS)).isTrue();
+    }
+}
@@ -0,0 +1,527 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.MediaInfo;
+import com.bitzomax.repository.ConversionJobRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ConversionJobServiceTests {
+
+    private static final MediaInfo VIDEO = new MediaInfo(60_000, "matroska,webm", List.of("h264"), List.of("aac"),
+        1280, 720, 25, 2_000_000, 48_000, 2);
+
+    @TempDir
+    Path stagingDir;
+
+    private final Map<Long, ConversionJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    // Conversions of these file IDs block in the encoder until counted down
+    private final Map<String, CountDownLatch> blockedConversions = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> startedConversions = new ConcurrentHashMap<>();
+
+    private final FileStorageService fileStorageService = mock(FileStorageService.class);
+    private final ProgressUpdateService progressUpdateService = mock(ProgressUpdateService.class);
+    private final ConversionJobRepository conversionJobRepository = mock(ConversionJobRepository.class);
+    private final MediaProbeService mediaProbeService = mock(MediaProbeService.class);
+    private final AdaptivePresetSelector adaptivePresetSelector = mock(AdaptivePresetSelector.class);
+    private final AdaptiveStreamingPackager adaptiveStreamingPackager = mock(AdaptiveStreamingPackager.class);
+    private final StreamingEncoder streamingEncoder = mock(StreamingEncoder.class);
+
+    private ConversionJobService service;
+
+    @BeforeEach
+    void setUp() {
+        when(conversionJobRepository.save(any())).thenAnswer(invocation -> {
+            ConversionJob job = invocation.getArgument(0);
+            if (job.getId() == null) {
+                job.setId(ids.incrementAndGet());
+            }
+            jobs.put(job.getId(), job);
+            return job;
+        });
+        when(conversionJobRepository.findById(any())).thenAnswer(invocation ->
+            Optional.ofNullable(jobs.get(invocation.<Long>getArgument(0))));
+        when(conversionJobRepository.findByFileId(anyString())).thenAnswer(invocation -> findJob(invocation.getArgument(0)));
+
+        when(fileStorageService.stageForConversion(any(), anyString())).thenAnswer(invocation -> {
+            String fileId = invocation.getArgument(1);
+            Path staged = Files.writeString(stagingDir.resolve(fileId + ".mp4"), fileId);
+            return new FileStorageService.StagedUpload(staged, "hash-of-" + fileId);
+        });
+        when(fileStorageService.convertStagedFile(any(), anyString(), anyString(), any(), any(), any()))
+            .thenAnswer(invocation -> {
+                String fileId = invocation.getArgument(1);
+                startedConversions.computeIfAbsent(fileId, id -> new CountDownLatch(1)).countDown();
+                CountDownLatch blocked = blockedConversions.get(fileId);
+                if (blocked != null) {
+                    blocked.await();
+                }
+                return invocation.getArgument(2);
+            });
+        when(mediaProbeService.probe(any())).thenReturn(VIDEO);
+    }
+
+    @AfterEach
+    void tearDown() {
+        blockedConversions.values().forEach(CountDownLatch::countDown);
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    private ConversionJobService createService(int workerThreads, int queueCapacity) {
+        service = new ConversionJobService(workerThreads, queueCapacity, 3, 10);
+        ReflectionTestUtils.setField(service, "fileStorageService", fileStorageService);
+        ReflectionTestUtils.setField(service, "progressUpdateService", progressUpdateService);
+        ReflectionTestUtils.setField(service, "conversionJobRepository", conversionJobRepository);
+        ReflectionTestUtils.setField(service, "mediaProbeService", mediaProbeService);
+        ReflectionTestUtils.setField(service, "adaptivePresetSelector", adaptivePresetSelector);
+        ReflectionTestUtils.setField(service, "adaptiveStreamingPackager", adaptiveStreamingPackager);
+        ReflectionTestUtils.setField(service, "streamingEncoder", streamingEncoder);
+        return service;
+    }
+
+    private ConversionJob submit(String fileId, String submitter) {
+        return service.submit(new MockMultipartFile("file", fileId + ".mp4", "video/mp4", new byte[] {1}),
+            fileId, submitter, ConversionJob.Priority.INTERACTIVE);
+    }
+
+    private Optional<ConversionJob> findJob(String fileId) {
+        return jobs.values().stream().filter(job -> fileId.equals(job.getFileId())).findFirst();
+    }
+
+    private ConversionJob orphanedJob(String fileId, ConversionJob.Status status, String inputPath, int attempts) {
+        ConversionJob job = new ConversionJob();
+        job.setFileId(fileId);
+        job.setStatus(status);
+        job.setInputPath(inputPath);
+        job.setOutputName(fileId + ".webm");
+        job.setAttempts(attempts);
+        return conversionJobRepository.save(job);
+    }
+
+    private void blockConversion(String fileId) {
+        blockedConversions.put(fileId, new CountDownLatch(1));
+    }
+
+    private void awaitConversionStarted(String fileId) throws InterruptedException {
+        CountDownLatch started = startedConversions.computeIfAbsent(fileId, id -> new CountDownLatch(1));
+        assertThat(started.await(5, TimeUnit.SECONDS)).as("conversion of %s started", fileId).isTrue();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("condition met in time").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void uploadsBeyondTheQueueCapacityAreRejectedBeforeStaging() throws Exception {
+        // One worker and one queue slot
+        createService(1, 1);
+        blockConversion("first");
+
+        submit("first", "alice");
+        awaitConversionStarted("first");
+        submit("second", "alice");
+
+        assertThatThrownBy(() -> submit("third", "alice")).isInstanceOf(RejectedExecutionException.class);
+        verify(fileStorageService, never()).stageForConversion(any(), eq("third"));
+        assertThat(findJob("third")).isEmpty();
+        assertThat(service.getActiveJobCount()).isEqualTo(1);
+        assertThat(service.getQueuedJobCount()).isEqualTo(1);
+
+        // Finished jobs give their slot back
+        blockedConversions.get("first").countDown();
+        await(() -> findJob("second").map(job -> job.getStatus() == ConversionJob.Status.DONE).orElse(false));
+        await(() -> service.getActiveJobCount() == 0);
+        assertThat(submit("third", "alice").getFileId()).isEqualTo("third");
+    }
+
+    @Test
+    void fileIdWithAConversionInProgressIsRejected() throws Exception {
+        createService(1, 1);
+        blockConversion("first");
+        submit("first", "alice");
+        awaitConversionStarted("first");
+
+        assertThatThrownBy(() -> submit("first", "alice"))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("already in progress");
+        verify(fileStorageService).stageForConversion(any(), eq("first"));
+    }
+
+    @Test
+    void failedConversionIsRecordedPublishedAndFreesItsSlot() throws Exception {
+        when(fileStorageService.convertStagedFile(any(), eq("broken"), anyString(), any(), any(), any()))
+            .thenThrow(new RuntimeException("Could not convert the file to WebM format: no encoder"));
+        createService(1, 0);
+
+        submit("broken", "alice");
+
+        await(() -> findJob("broken").map(job -> job.getStatus() == ConversionJob.Status.FAILED).orElse(false));
+        assertThat(findJob("broken")).get().extracting(ConversionJob::getErrorMessage)
+            .isEqualTo("Could not convert the file to WebM format: no encoder");
+        verify(progressUpdateService, timeout(5000))
+            .sendErrorUpdate("broken", "Conversion failed: Could not convert the file to WebM format: no encoder");
+        await(() -> service.getActiveJobCount() == 0);
+        assertThat(submit("next", "alice").getFileId()).isEqualTo("next");
+    }
+
+    @Test
+    void failureOutsideTheEncoderIsPublishedToo() throws Exception {
+        // Probed at admission, so the worker only calls the probe if that result was lost
+        when(mediaProbeService.probe(any())).thenReturn(null).thenThrow(new IllegalStateException("Probe crashed"));
+        createService(1, 1);
+
+        submit("broken", "alice");
+
+        await(() -> findJob("broken").map(job -> job.getStatus() == ConversionJob.Status.FAILED).orElse(false));
+        verify(progressUpdateService, timeout(5000)).sendErrorUpdate("broken", "Conversion failed: Probe crashed");
+    }
+
+    @Test
+    void failuresDuringAdmissionGiveTheSlotBack() throws Exception {
+        // One worker and no queue: a leaked slot would reject every later upload
+        createService(1, 0);
+        when(fileStorageService.stageForConversion(any(), eq("unreadable")))
+            .thenThrow(new RuntimeException("Could not store the file for WebM conversion"));
+        when(fileStorageService.hasConvertedFile("hash-of-lookup.webm")).thenThrow(new IllegalStateException("Storage is down"));
+        when(mediaProbeService.probe(stagingDir.resolve("probe.mp4").toFile())).thenThrow(new IllegalStateException("Probe crashed"));
+        doThrow(new IllegalStateException("Database is down"))
+            .when(conversionJobRepository).save(argThat(job -> "unsaved".equals(job.getFileId())));
+
+        assertThatThrownBy(() -> submit("unreadable", "alice")).hasMessageContaining("Could not store");
+        assertThatThrownBy(() -> submit("lookup", "alice")).hasMessage("Storage is down");
+        assertThatThrownBy(() -> submit("probe", "alice")).hasMessage("Probe crashed");
+        assertThatThrownBy(() -> submit("unsaved", "alice")).hasMessage("Database is down");
+
+        assertThat(stagingDir.resolve("lookup.mp4")).doesNotExist();
+        assertThat(stagingDir.resolve("probe.mp4")).doesNotExist();
+        assertThat(stagingDir.resolve("unsaved.mp4")).doesNotExist();
+        assertThat(submit("next", "alice").getFileId()).isEqualTo("next");
+    }
+
+    @Test
+    void reusingAnEarlierResultGivesTheSlotBack() throws Exception {
+        createService(1, 0);
+        when(fileStorageService.hasConvertedFile(anyString())).thenReturn(true);
+
+        assertThat(submit("first", "alice").getStatus()).isEqualTo(ConversionJob.Status.DONE);
+        assertThat(submit("second", "alice").getStatus()).isEqualTo(ConversionJob.Status.DONE);
+        assertThat(stagingDir.resolve("first.mp4")).doesNotExist();
+        verify(progressUpdateService).sendCompletionUpdate("second", "hash-of-second.webm");
+    }
+
+    @Test
+    void concurrentSubmissionsWithTheSameFileIdAreRejected() throws Exception {
+        createService(1, 1);
+        CountDownLatch staging = new CountDownLatch(1);
+        CountDownLatch stagingMayFinish = new CountDownLatch(1);
+        when(fileStorageService.stageForConversion(any(), eq("same"))).thenAnswer(invocation -> {
+            staging.countDown();
+            stagingMayFinish.await();
+            return new FileStorageService.StagedUpload(Files.writeString(stagingDir.resolve("same.mp4"), "same"),
+                "hash-of-same");
+        });
+
+        Thread first = new Thread(() -> submit("same", "alice"));
+        first.start();
+        assertThat(staging.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // No job is saved yet, so only the reservation of the file ID stops this one
+        assertThatThrownBy(() -> submit("same", "bob"))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("already in progress");
+        stagingMayFinish.countDown();
+        first.join(5000);
+        assertThat(findJob("same")).get().extracting(ConversionJob::getSubmittedBy).isEqualTo("alice");
+        verify(fileStorageService).stageForConversion(any(), eq("same"));
+    }
+
+    @Test
+    void fileIdSavedByAnotherNodeFirstIsRejected() throws Exception {
+        createService(1, 0);
+        doThrow(new DataIntegrityViolationException("Unique index violation: FILE_ID"))
+            .when(conversionJobRepository).save(argThat(job -> "taken".equals(job.getFileId())));
+
+        assertThatThrownBy(() -> submit("taken", "alice"))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("already in progress");
+        assertThat(stagingDir.resolve("taken.mp4")).doesNotExist();
+        assertThat(submit("next", "alice").getFileId()).isEqualTo("next");
+    }
+
+    @Test
+    void cancellingAQueuedJobFreesItsSlotAndDeletesItsInput() throws Exception {
+        createService(1, 1);
+        blockConversion("first");
+        submit("first", "alice");
+        awaitConversionStarted("first");
+        submit("second", "bob");
+        Path secondInput = stagingDir.resolve("second.mp4");
+
+        assertThat(service.cancel("second")).isTrue();
+
+        assertThat(findJob("second")).get().extracting(ConversionJob::getStatus)
+            .isEqualTo(ConversionJob.Status.CANCELLED);
+        assertThat(secondInput).doesNotExist();
+        assertThat(service.getQueuedJobCount()).isZero();
+        verify(progressUpdateService).sendCancelledUpdate("second");
+        // The slot is free again while first is still running
+        assertThat(submit("third", "carol").getFileId()).isEqualTo("third");
+        blockedConversions.get("first").countDown();
+        await(() -> findJob("third").map(job -> job.getStatus() == ConversionJob.Status.DONE).orElse(false));
+        verify(fileStorageService, never()).convertStagedFile(any(), eq("second"), anyString(), any(), any(), any());
+    }
+
+    @Test
+    void cancellingARunningJobStopsItsEncoder() throws Exception {
+        // The encoder runs until its cancellation token is cancelled
+        when(fileStorageService.convertStagedFile(any(), eq("running"), anyString(), any(), any(), any()))
+            .thenAnswer(invocation -> {
+                ConversionCancellation cancellation = invocation.getArgument(5);
+                startedConversions.computeIfAbsent("running", id -> new CountDownLatch(1)).countDown();
+                while (true) {
+                    cancellation.throwIfCancelled();
+                    Thread.sleep(10);
+                }
+            });
+        createService(1, 0);
+        submit("running", "alice");
+        awaitConversionStarted("running");
+
+        assertThat(service.cancel("running")).isTrue();
+
+        await(() -> findJob("running").map(job -> job.getStatus() == ConversionJob.Status.CANCELLED).orElse(false));
+        assertThat(stagingDir.resolve("running.mp4")).doesNotExist();
+        verify(progressUpdateService, timeout(5000)).sendCancelledUpdate("running");
+        await(() -> service.getActiveJobCount() == 0);
+        assertThat(submit("next", "alice").getFileId()).isEqualTo("next");
+    }
+
+    @Test
+    void onlyQueuedOrRunningJobsCanBeCancelled() throws Exception {
+        createService(1, 1);
+        submit("done", "alice");
+        await(() -> findJob("done").map(job -> job.getStatus() == ConversionJob.Status.DONE).orElse(false));
+
+        assertThat(service.cancel("done")).isFalse();
+        assertThat(service.cancel("unknown")).isFalse();
+        verify(progressUpdateService, never()).sendCancelledUpdate(anyString());
+    }
+
+    /**
+     * Let the streaming encoder run a shell command that reads the piped body; $0 is the output file
+     */
+    private void streamingEncoderRuns(String script) throws Exception {
+        streamingEncoderRuns(script, "");
+    }
+
+    private void streamingEncoderRuns(String script, String errorTail) throws Exception {
+        when(streamingEncoder.isAvailable()).thenReturn(true);
+        when(streamingEncoder.start(anyString(), any(), any())).thenAnswer(invocation -> new StreamingEncoder.Encode(
+            new ProcessBuilder("/bin/sh", "-c", script, invocation.<File>getArgument(1).getPath()).start(),
+            CompletableFuture.completedFuture(errorTail)));
+        when(fileStorageService.streamingWorkingFile(anyString())).thenAnswer(invocation ->
+            stagingDir.resolve(invocation.getArgument(0) + ".webm.part"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void streamedBodyIsPipedIntoTheEncoderAndPublishedUnderItsHash() throws Exception {
+        streamingEncoderRuns("cat > \"$0\"");
+        createService(1, 1);
+        byte[] body = "streamed upload".getBytes(StandardCharsets.UTF_8);
+        String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+        Path workingFile = stagingDir.resolve("streamed.webm.part");
+        CountDownLatch published = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            // The encoder received the body as it was sent
+            assertThat(Files.readAllBytes(workingFile)).isEqualTo(body);
+            published.countDown();
+            return null;
+        }).when(fileStorageService).publishConvertedFile(eq(workingFile), anyString());
+
+        ConversionJob job = service.submitStream(new ByteArrayInputStream(body), body.length, "streamed", "alice");
+
+        assertThat(job.getOutputName()).isEqualTo(hash + ".webm");
+        assertThat(published.await(5, TimeUnit.SECONDS)).isTrue();
+        verify(fileStorageService).publishConvertedFile(workingFile, hash + ".webm");
+        await(() -> job.getStatus() == ConversionJob.Status.DONE);
+        assertThat(job.getSourceHash()).isEqualTo(hash);
+        verify(fileStorageService, never()).stageForConversion(any(), anyString());
+        verify(progressUpdateService, timeout(5000)).sendCompletionUpdate("streamed", hash + ".webm");
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void failedStreamingEncodeDiscardsItsOutput() throws Exception {
+        streamingEncoderRuns("cat > \"$0\"; exit 1", "pipe:0: Invalid data found when processing input");
+        createService(1, 1);
+        byte[] body = "not a video".getBytes(StandardCharsets.UTF_8);
+
+        ConversionJob job = service.submitStream(new ByteArrayInputStream(body), body.length, "broken", "alice");
+
+        await(() -> job.getStatus() == ConversionJob.Status.FAILED);
+        assertThat(job.getErrorMessage()).contains("exit code: 1").endsWith("Invalid data found when processing input");
+        assertThat(stagingDir.resolve("broken.webm.part")).doesNotExist();
+        verify(fileStorageService, never()).publishConvertedFile(any(), anyString());
+        verify(progressUpdateService, timeout(5000)).sendErrorUpdate(eq("broken"), anyString());
+        await(() -> service.getActiveJobCount() == 0);
+    }
+
+    @Test
+    void streamingWithoutTheFfmpegCliIsRejected() throws Exception {
+        when(streamingEncoder.isAvailable()).thenReturn(false);
+        createService(1, 1);
+
+        assertThatThrownBy(() -> service.submitStream(new ByteArrayInputStream(new byte[] {1}), 1, "file", "alice"))
+            .isInstanceOf(RejectedExecutionException.class);
+        assertThat(findJob("file")).isEmpty();
+    }
+
+    @Test
+    void backfillPackagingLeavesUploadSlotsAndJobPriorityAlone() throws Exception {
+        CountDownLatch packagingStarted = new CountDownLatch(1);
+        CountDownLatch finishPackaging = new CountDownLatch(1);
+        when(adaptiveStreamingPackager.isApplicable(any())).thenReturn(true);
+        when(fileStorageService.packageAdaptiveStreaming(anyString(), any(), any(), any())).thenAnswer(invocation -> {
+            packagingStarted.countDown();
+            finishPackaging.await();
+            return true;
+        });
+        // One worker and one queue slot: two uploads may be pending
+        createService(1, 1);
+
+        submit("first", "alice");
+        assertThat(packagingStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // The worker is busy packaging, but that is backfill and takes no upload slot
+        submit("second", "alice");
+        submit("third", "bob");
+        assertThat(findJob("first")).get()
+            .extracting(ConversionJob::getStatus, ConversionJob::getPriority)
+            .containsExactly(ConversionJob.Status.DONE, ConversionJob.Priority.INTERACTIVE);
+        finishPackaging.countDown();
+    }
+
+    @Test
+    void queuedBackfillGetsNoQueuePositionUpdates() throws Exception {
+        when(adaptiveStreamingPackager.isApplicable(any())).thenReturn(true);
+        when(fileStorageService.packageAdaptiveStreaming(anyString(), any(), any(), any())).thenReturn(true);
+        createService(1, 5);
+
+        blockConversion("first");
+        blockConversion("second");
+        submit("first", "alice");
+        awaitConversionStarted("first");
+        submit("second", "bob");
+
+        // first finishes and queues its packaging behind second, which publishes the queue positions
+        blockedConversions.get("first").countDown();
+        awaitConversionStarted("second");
+        await(() -> service.getQueuedJobCount() == 1);
+
+        verify(progressUpdateService, never()).sendProgressUpdate(eq("first"), eq(0), eq("queued"), anyString());
+        blockedConversions.get("second").countDown();
+        await(() -> service.getQueuedJobCount() == 0 && service.getActiveJobCount() == 0);
+    }
+
+    @Test
+    void recoveryRequeuesInterruptedJobsWhoseInputSurvived() throws Exception {
+        Path input = Files.writeString(stagingDir.resolve("interrupted.mp4"), "video");
+        ConversionJob interrupted = orphanedJob("interrupted", ConversionJob.Status.RUNNING, input.toString(), 1);
+        ConversionJob queued = orphanedJob("queued", ConversionJob.Status.QUEUED,
+            Files.writeString(stagingDir.resolve("queued.mp4"), "video").toString(), 0);
+        ConversionJob lostInput = orphanedJob("lost", ConversionJob.Status.QUEUED,
+            stagingDir.resolve("lost.mp4").toString(), 0);
+        ConversionJob exhausted = orphanedJob("exhausted", ConversionJob.Status.RUNNING,
+            Files.writeString(stagingDir.resolve("exhausted.mp4"), "video").toString(), 3);
+        ConversionJob streaming = orphanedJob("streaming", ConversionJob.Status.RUNNING, "pipe:0", 1);
+        when(fileStorageService.streamingWorkingFile("streaming")).thenReturn(stagingDir.resolve("streaming.webm.part"));
+        when(conversionJobRepository.findByStatusInOrderByCreatedAtAsc(any()))
+            .thenReturn(List.of(interrupted, queued, lostInput, exhausted, streaming));
+        createService(2, 1);
+
+        service.recoverOrphanedJobs();
+
+        await(() -> interrupted.getStatus() == ConversionJob.Status.DONE && queued.getStatus() == ConversionJob.Status.DONE);
+        assertThat(interrupted.getAttempts()).isEqualTo(2);
+        verify(fileStorageService).convertStagedFile(eq(input), eq("interrupted"), eq("interrupted.webm"), eq(VIDEO), any(), any());
+        assertThat(lostInput.getStatus()).isEqualTo(ConversionJob.Status.FAILED);
+        assertThat(lostInput.getErrorMessage()).contains("Staged input was lost");
+        assertThat(exhausted.getStatus()).isEqualTo(ConversionJob.Status.FAILED);
+        assertThat(exhausted.getErrorMessage()).contains("Giving up after 3 attempt(s)");
+        assertThat(streaming.getStatus()).isEqualTo(ConversionJob.Status.FAILED);
+        verify(fileStorageService, never()).convertStagedFile(any(), eq("exhausted"), anyString(), any(), any(), any());
+        // Clients subscribing again learn that these are over
+        verify(progressUpdateService).sendErrorUpdate(eq("lost"), contains("Staged input was lost"));
+        verify(progressUpdateService).sendErrorUpdate(eq("exhausted"), contains("Giving up after 3 attempt(s)"));
+        verify(progressUpdateService).sendErrorUpdate(eq("streaming"), contains("Streaming upload was interrupted"));
+    }
+
+    @Test
+    void recoveredJobsAreAcceptedBeyondTheQueueCapacity() throws Exception {
+        List<ConversionJob> orphaned = List.of(
+            orphanedJob("one", ConversionJob.Status.QUEUED,
+                Files.writeString(stagingDir.resolve("one.mp4"), "video").toString(), 0),
+            orphanedJob("two", ConversionJob.Status.QUEUED,
+                Files.writeString(stagingDir.resolve("two.mp4"), "video").toString(), 0));
+        when(conversionJobRepository.findByStatusInOrderByCreatedAtAsc(any())).thenReturn(orphaned);
+        blockConversion("one");
+        createService(1, 1);
+
+        service.recoverOrphanedJobs();
+        awaitConversionStarted("one");
+
+        assertThat(findJob("two")).get().extracting(ConversionJob::getStatus).isEqualTo(ConversionJob.Status.QUEUED);
+        assertThatThrownBy(() -> submit("three", "alice")).isInstanceOf(RejectedExecutionException.class);
+        blockedConversions.get("one").countDown();
+        await(() -> findJob("two").map(job -> job.getStatus() == ConversionJob.Status.DONE).orElse(false));
+    }
+}
@@ -0,0 +1,145 @@
+package com.bitzomax.service;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_COLOR;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CoverArtServiceTests {
+
+    private static final String COVER = "abcdef0123456789.jpg";
+
+    @TempDir
+    Path covers;
+
+    private final StorageBackend storageBackend = mock(StorageBackend.class);
+
+    private CoverArtService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new CoverArtService(covers.toString(), "64,128,256", 80);
+        ReflectionTestUtils.setField(service, "storageBackend", storageBackend);
+    }
+
+    private static byte[] jpeg(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+            }
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", encoded);
+        return encoded.toByteArray();
+    }
+
+    private Path storeCover(int width, int height) throws Exception {
+        Path cover = Files.write(covers.resolve(COVER), jpeg(width, height));
+        when(storageBackend.localFile(StorageBackend.Area.COVERS, COVER)).thenReturn(Optional.of(cover));
+        return cover;
+    }
+
+    private Path derived(int size) {
+        return covers.resolve("derived/ab/cd/abcdef0123456789-" + size + ".webp");
+    }
+
+    private static int[] dimensions(Path webp) {
+        try (Mat image = imread(webp.toString(), IMREAD_COLOR)) {
+            assertThat(image.empty()).as("%s decodes", webp).isFalse();
+            return new int[] { image.cols(), image.rows() };
+        }
+    }
+
+    @Test
+    void requestedSizeIsSnappedUpAndCached() throws Exception {
+        storeCover(400, 200);
+
+        Optional<Path> derivative = service.findDerivative(COVER, 100);
+
+        assertThat(derivative).contains(derived(128));
+        assertThat(Files.readAllBytes(derived(128))).startsWith("RIFF".getBytes());
+        assertThat(dimensions(derived(128))).containsExactly(128, 64);
+        assertThat(service.findDerivative(COVER, 1000)).contains(derived(256));
+        assertThat(dimensions(derived(256))).containsExactly(256, 128);
+
+        // A cached derivative is served without going back to the original
+        Files.delete(covers.resolve(COVER));
+        assertThat(service.findDerivative(COVER, 128)).contains(derived(128));
+    }
+
+    @Test
+    void everySizeIsCreatedInTheBackground() throws Exception {
+        storeCover(300, 300);
+
+        service.createDerivativesAsync(COVER);
+
+        // Let the queued work finish
+        ExecutorService executor = (ExecutorService) ReflectionTestUtils.getField(service, "executor");
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(dimensions(derived(64))).containsExactly(64, 64);
+        assertThat(dimensions(derived(128))).containsExactly(128, 128);
+        assertThat(dimensions(derived(256))).containsExactly(256, 256);
+        try (Stream<Path> leftovers = Files.list(covers.resolve("derived"))) {
+            assertThat(leftovers).noneMatch(path -> path.getFileName().toString().endsWith(".part"));
+        }
+    }
+
+    @Test
+    void smallCoverIsNotUpscaled() throws Exception {
+        storeCover(100, 50);
+
+        assertThat(service.findDerivative(COVER, 256)).contains(derived(256));
+
+        assertThat(dimensions(derived(256))).containsExactly(100, 50);
+    }
+
+    @Test
+    void coverWithoutALocalFileIsScaledFromACopy() throws Exception {
+        byte[] content = jpeg(200, 200);
+        when(storageBackend.localFile(StorageBackend.Area.COVERS, COVER)).thenReturn(Optional.empty());
+        when(storageBackend.exists(StorageBackend.Area.COVERS, COVER)).thenReturn(true);
+        when(storageBackend.openStream(StorageBackend.Area.COVERS, COVER)).thenReturn(new ByteArrayInputStream(content));
+
+        assertThat(service.findDerivative(COVER, 64)).contains(derived(64));
+
+        assertThat(dimensions(derived(64))).containsExactly(64, 64);
+        try (Stream<Path> leftovers = Files.list(covers.resolve("derived"))) {
+            assertThat(leftovers).noneMatch(path -> path.getFileName().toString().endsWith(".part"));
+        }
+    }
+
+    @Test
+    void missingOrUndecodableCoverFallsBackToTheOriginal() throws Exception {
+        Path cover = Files.writeString(covers.resolve(COVER), "not an image");
+        when(storageBackend.localFile(StorageBackend.Area.COVERS, COVER)).thenReturn(Optional.of(cover));
+
+        assertThat(service.findDerivative(COVER, 64)).isEmpty();
+        assertThat(derived(64)).doesNotExist();
+
+        assertThat(service.findDerivative("0000ffff.jpg", 64)).isEmpty();
+        assertThat(service.findDerivative("../" + COVER, 64)).isEmpty();
+        verify(storageBackend, never()).localFile(StorageBackend.Area.COVERS, "../" + COVER);
+    }
+}
@@ -0,0 +1,130 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.MediaInfo;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FairShareSchedulerTests {
+
+    private final FairShareScheduler scheduler = new FairShareScheduler();
+
+    private FairShareScheduler.Task queue(String fileId, String submitter, ConversionJob.Priority priority,
+                                          long durationSeconds) {
+        return queue(fileId, submitter, priority, durationSeconds, false);
+    }
+
+    private FairShareScheduler.Task queue(String fileId, String submitter, ConversionJob.Priority priority,
+                                          long durationSeconds, boolean streaming) {
+        ConversionJob job = new ConversionJob();
+        job.setFileId(fileId);
+        job.setSubmittedBy(submitter);
+        job.setPriority(priority);
+        job.setMediaInfo(new MediaInfo(durationSeconds * 1000, "mp3", List.of(), List.of("mp3"),
+            0, 0, 0, 320_000, 44_100, 2));
+        FairShareScheduler.Task task = scheduler.schedule(job, streaming, t -> { });
+        scheduler.getQueue().add(task);
+        return task;
+    }
+
+    private List<String> order() {
+        return scheduler.snapshot().stream().map(FairShareScheduler.Task::getFileId).toList();
+    }
+
+    @Test
+    void bulkUploadInterleavesWithOtherSubmitters() {
+        queue("alice-1", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("alice-2", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("alice-3", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("bob-1", "bob", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("carol-1", "carol", ConversionJob.Priority.INTERACTIVE, 60);
+
+        assertThat(order()).containsExactly("alice-1", "bob-1", "carol-1", "alice-2", "alice-3");
+    }
+
+    @Test
+    void shortJobsOvertakeLongOnes() {
+        queue("long", "alice", ConversionJob.Priority.INTERACTIVE, 600);
+        queue("short", "bob", ConversionJob.Priority.INTERACTIVE, 60);
+
+        assertThat(order()).containsExactly("short", "long");
+    }
+
+    @Test
+    void streamingComesBeforeInteractiveBeforeBackfill() {
+        queue("backfill", "alice", ConversionJob.Priority.BACKFILL, 10);
+        queue("interactive", "alice", ConversionJob.Priority.INTERACTIVE, 600);
+        queue("streaming", "alice", ConversionJob.Priority.INTERACTIVE, 3600, true);
+
+        assertThat(order()).containsExactly("streaming", "interactive", "backfill");
+        assertThat(scheduler.snapshot()).extracting(FairShareScheduler.Task::getPriorityLabel)
+            .containsExactly("streaming", "interactive", "backfill");
+    }
+
+    @Test
+    void backfillDoesNotDelayTheSubmittersOwnUploads() {
+        queue("alice-backfill-1", "alice", ConversionJob.Priority.BACKFILL, 600);
+        queue("alice-backfill-2", "alice", ConversionJob.Priority.BACKFILL, 600);
+        queue("alice-upload", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("bob-upload", "bob", ConversionJob.Priority.INTERACTIVE, 60);
+
+        assertThat(order()).containsExactly("alice-upload", "bob-upload", "alice-backfill-1", "alice-backfill-2");
+    }
+
+    @Test
+    void runningBackfillDoesNotDelayTheSubmittersUploads() {
+        queue("alice-backfill-1", "alice", ConversionJob.Priority.BACKFILL, 600);
+        queue("alice-backfill-2", "alice", ConversionJob.Priority.BACKFILL, 600);
+        // A worker takes both
+        scheduler.getQueue().poll().run();
+        scheduler.getQueue().poll().run();
+
+        queue("bob-1", "bob", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("bob-2", "bob", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("alice-upload", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+
+        // alice has had no interactive work served, so her upload is tagged like bob's first
+        assertThat(order()).containsExactly("bob-1", "alice-upload", "bob-2");
+    }
+
+    @Test
+    void cancelledJobNoLongerCountsAgainstItsSubmitter() {
+        queue("alice-long", "alice", ConversionJob.Priority.INTERACTIVE, 3600);
+
+        assertThat(scheduler.remove(task -> task.getFileId().equals("alice-long"))).isTrue();
+        queue("alice-short", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("bob-short", "bob", ConversionJob.Priority.INTERACTIVE, 60);
+
+        assertThat(order()).containsExactly("alice-short", "bob-short");
+        assertThat(scheduler.backlogSeconds()).isEqualTo(120);
+    }
+
+    @Test
+    void cancellingAnEarlierJobRefundsItsCost() {
+        queue("alice-1", "alice", ConversionJob.Priority.INTERACTIVE, 600);
+        queue("alice-2", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+
+        scheduler.remove(task -> task.getFileId().equals("alice-1"));
+        queue("alice-3", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("bob-1", "bob", ConversionJob.Priority.INTERACTIVE, 100);
+        queue("bob-2", "bob", ConversionJob.Priority.INTERACTIVE, 60);
+
+        // alice-3 is charged after alice-2 only (finish tag 120), not after the cancelled 600 seconds too
+        assertThat(order()).containsExactly("bob-1", "alice-3", "bob-2", "alice-2");
+    }
+
+    @Test
+    void removingAStartedTaskChangesNothing() {
+        FairShareScheduler.Task task = queue("alice-1", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+        scheduler.getQueue().remove(task);
+
+        assertThat(scheduler.remove(t -> t.getFileId().equals("alice-1"))).isFalse();
+        queue("alice-2", "alice", ConversionJob.Priority.INTERACTIVE, 60);
+        queue("bob-1", "bob", ConversionJob.Priority.INTERACTIVE, 60);
+
+        assertThat(order()).containsExactly("bob-1", "alice-2");
+    }
+}
@@ -0,0 +1,292 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import com.bitzomax.model.MediaInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class FileStorageServiceTests {
+
+    private static final MediaInfo VIDEO = new MediaInfo(60_000, "mov,mp4,m4a,3gp,3g2,mj2", List.of("h264"),
+        List.of("aac"), 1280, 720, 25, 2_000_000, 48_000, 2);
+
+    @TempDir
+    Path root;
+
+    private Path songsDir;
+    private Path convertedDir;
+
+    private final ProgressUpdateService progressUpdateService = mock(ProgressUpdateService.class);
+    private final ParallelSegmentEncoder parallelSegmentEncoder = mock(ParallelSegmentEncoder.class);
+    private final StreamCopyRemuxer streamCopyRemuxer = mock(StreamCopyRemuxer.class);
+    private final MediaToolchain mediaToolchain = mock(MediaToolchain.class);
+    private final PipelinedJavaCVTranscoder pipelinedJavaCVTranscoder = mock(PipelinedJavaCVTranscoder.class);
+    private final AdaptivePresetSelector adaptivePresetSelector = mock(AdaptivePresetSelector.class);
+    private final PreviewTranscoder previewTranscoder = mock(PreviewTranscoder.class);
+    private final MediaDerivativesService mediaDerivativesService = mock(MediaDerivativesService.class);
+
+    private FileStorageService service;
+
+    @BeforeEach
+    void setUp() {
+        songsDir = root.resolve("songs");
+        convertedDir = songsDir.resolve("converted");
+        String songs = songsDir.toString();
+        String covers = root.resolve("covers").toString();
+        service = new FileStorageService(songs, covers);
+        ReflectionTestUtils.setField(service, "progressUpdateService", progressUpdateService);
+        ReflectionTestUtils.setField(service, "parallelSegmentEncoder", parallelSegmentEncoder);
+        ReflectionTestUtils.setField(service, "streamCopyRemuxer", streamCopyRemuxer);
+        ReflectionTestUtils.setField(service, "mediaToolchain", mediaToolchain);
+        ReflectionTestUtils.setField(service, "pipelinedJavaCVTranscoder", pipelinedJavaCVTranscoder);
+        ReflectionTestUtils.setField(service, "adaptivePresetSelector", adaptivePresetSelector);
+        ReflectionTestUtils.setField(service, "previewTranscoder", previewTranscoder);
+        ReflectionTestUtils.setField(service, "mediaDerivativesService", mediaDerivativesService);
+        ReflectionTestUtils.setField(service, "storageBackend", new LocalStorageBackend(songs, covers));
+    }
+
+    private static String sha256(String content) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MockMultipartFile upload(String filename, String content) {
+        return new MockMultipartFile("file", filename, "application/octet-stream", content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ConversionCancellation running() {
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellation.start();
+        return cancellation;
+    }
+
+    private static List<String> fileNames(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).map(path -> path.getFileName().toString()).toList();
+        }
+    }
+
+    /**
+     * A stand-in ffmpeg that logs its arguments, writes every working file it is given and succeeds
+     */
+    private void fakeFfmpeg() throws IOException {
+        Path ffmpeg = root.resolve("ffmpeg");
+        Files.writeString(ffmpeg, """
+            #!/bin/bash
+            echo "$*" >> "%s"
+            for arg in "$@"; do
+              case "$arg" in *.audio.part) echo audio > "$arg" ;; *.part) echo webm > "$arg" ;; esac
+            done
+            """.formatted(root.resolve("ffmpeg-calls")));
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwx------"));
+        when(mediaToolchain.canEncodeWebM()).thenReturn(true);
+        when(mediaToolchain.getFfmpegPath()).thenReturn(ffmpeg.toString());
+        when(mediaToolchain.getWebMAudioEncoder()).thenReturn("libopus");
+    }
+
+    @Test
+    void identicalUploadsAreStoredOnceUnderTheirContentHash() throws Exception {
+        String first = service.storeSongFile(upload("take-1.MP3", "same song"));
+        String second = service.storeSongFile(upload("take-2.mp3", "same song"));
+
+        assertThat(first).isEqualTo(sha256("same song") + ".mp3").isEqualTo(second);
+        assertThat(fileNames(songsDir)).containsOnlyOnce(first);
+    }
+
+    @Test
+    void identicalStagedUploadsMapToOneOutput() throws Exception {
+        FileStorageService.StagedUpload first = service.stageForConversion(upload("a.mp4", "same video"), "file-1");
+        FileStorageService.StagedUpload second = service.stageForConversion(upload("b.mp4", "same video"), "file-2");
+
+        assertThat(first.contentHash()).isEqualTo(sha256("same video"));
+        assertThat(first.outputFileName()).isEqualTo(second.outputFileName()).isEqualTo(sha256("same video") + ".webm");
+        assertThat(first.path()).isNotEqualTo(second.path());
+    }
+
+    @Test
+    void existingOutputIsReusedWithoutEncoding() throws Exception {
+        FileStorageService.StagedUpload staged = service.stageForConversion(upload("a.mp4", "converted before"), "file-1");
+        Path output = LocalStorageBackend.shardedPath(convertedDir, staged.outputFileName());
+        Files.createDirectories(output.getParent());
+        Files.writeString(output, "webm");
+
+        String result = service.convertStagedFile(staged.path(), "file-1", staged.outputFileName(), VIDEO,
+            EncoderPreset.QUALITY, running());
+
+        assertThat(result).isEqualTo(staged.outputFileName());
+        assertThat(staged.path()).doesNotExist();
+        verifyNoInteractions(pipelinedJavaCVTranscoder, streamCopyRemuxer, parallelSegmentEncoder);
+        verify(progressUpdateService).sendCompletionUpdate("file-1", staged.outputFileName());
+    }
+
+    @Test
+    void failedEncodeFailsTheConversionInsteadOfPublishingTheUpload() throws Exception {
+        FileStorageService.StagedUpload staged = service.stageForConversion(upload("a.mp4", "not decodable"), "file-1");
+        doThrow(new IOException("Invalid data found when processing input"))
+            .when(pipelinedJavaCVTranscoder).transcode(any(), any(), any(), any(), any(), any(), any());
+
+        assertThatThrownBy(() -> service.convertStagedFile(staged.path(), "file-1", staged.outputFileName(), VIDEO,
+            EncoderPreset.QUALITY, running()))
+            .isInstanceOf(RuntimeException.class)
+            .hasRootCauseMessage("Invalid data found when processing input");
+
+        // A retry, or the next identical upload, is converted again
+        assertThat(service.hasConvertedFile(staged.outputFileName())).isFalse();
+        assertThat(fileNames(convertedDir)).isEmpty();
+        // The job service records the failure and reports it
+        verify(progressUpdateService, never()).sendErrorUpdate(anyString(), anyString());
+        verify(progressUpdateService, never()).sendCompletionUpdate(anyString(), anyString());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void singleFfmpegEncodeTrainsThePresetEstimates() throws Exception {
+        fakeFfmpeg();
+        FileStorageService.StagedUpload staged = service.stageForConversion(upload("a.mp4", "video"), "file-1");
+
+        service.convertStagedFile(staged.path(), "file-1", staged.outputFileName(), VIDEO, EncoderPreset.FAST, running());
+
+        assertThat(service.hasConvertedFile(staged.outputFileName())).isTrue();
+        verify(adaptivePresetSelector).recordEncode(eq(EncoderPreset.FAST), eq(60_000L), anyLong());
+    }
+
+    @Test
+    void parallelAndJavaCVEncodesDoNotTrainThePresetEstimates() throws Exception {
+        when(parallelSegmentEncoder.isApplicable(VIDEO)).thenReturn(true);
+        when(parallelSegmentEncoder.encode(any(), any(), anyString(), anyLong(), any(), any(), any()))
+            .thenAnswer(invocation -> {
+                Files.writeString(invocation.<File>getArgument(1).toPath(), "webm");
+                return true;
+            });
+        FileStorageService.StagedUpload parallel = service.stageForConversion(upload("a.mp4", "long video"), "file-1");
+        service.convertStagedFile(parallel.path(), "file-1", parallel.outputFileName(), VIDEO,
+            EncoderPreset.QUALITY, running());
+
+        when(parallelSegmentEncoder.isApplicable(VIDEO)).thenReturn(false);
+        doAnswer(invocation -> Files.writeString(invocation.<File>getArgument(1).toPath(), "webm"))
+            .when(pipelinedJavaCVTranscoder).transcode(any(), any(), any(), any(), any(), any(), any());
+        FileStorageService.StagedUpload javaCV = service.stageForConversion(upload("b.mp4", "other video"), "file-2");
+        service.convertStagedFile(javaCV.path(), "file-2", javaCV.outputFileName(), VIDEO,
+            EncoderPreset.QUALITY, running());
+
+        assertThat(service.hasConvertedFile(parallel.outputFileName())).isTrue();
+        assertThat(service.hasConvertedFile(javaCV.outputFileName())).isTrue();
+        verify(adaptivePresetSelector, never()).recordEncode(any(), anyLong(), anyLong());
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void videoWithSoundGetsAnAudioRenditionFromTheSameEncode() throws Exception {
+        fakeFfmpeg();
+        FileStorageService.StagedUpload staged = service.stageForConversion(upload("a.mp4", "video"), "file-1");
+
+        service.convertStagedFile(staged.path(), "file-1", staged.outputFileName(), VIDEO, EncoderPreset.FAST, running());
+
+        assertThat(service.findAudioRendition(staged.outputFileName()).orElseThrow().getContentAsString(StandardCharsets.UTF_8))
+            .isEqualTo("audio\n");
+        List<String> calls = Files.readAllLines(root.resolve("ffmpeg-calls"));
+        assertThat(calls).hasSize(1);
+        assertThat(calls.get(0)).contains("-map 0:a:0 -vn -c:a libopus -f webm");
+        assertThat(fileNames(convertedDir)).noneMatch(name -> name.endsWith(".part"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void audioOnlySourceIsItsOwnRendition() throws Exception {
+        fakeFfmpeg();
+        MediaInfo song = new MediaInfo(180_000, "mp3", List.of(), List.of("mp3"), 0, 0, 0, 320_000, 44_100, 2);
+        FileStorageService.StagedUpload staged = service.stageForConversion(upload("a.mp3", "song"), "file-1");
+
+        service.convertStagedFile(staged.path(), "file-1", staged.outputFileName(), song, EncoderPreset.FAST, running());
+
+        assertThat(Files.readAllLines(root.resolve("ffmpeg-calls")).get(0)).doesNotContain("-map 0:a:0");
+        assertThat(service.findAudioRendition(staged.outputFileName()).orElseThrow().getContentAsString(StandardCharsets.UTF_8))
+            .isEqualTo("webm\n");
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void silentVideoHasNoAudioRendition() throws Exception {
+        fakeFfmpeg();
+        MediaInfo silent = new MediaInfo(60_000, "mov,mp4,m4a,3gp,3g2,mj2", List.of("h264"), List.of(),
+            1280, 720, 25, 2_000_000, 0, 0);
+        FileStorageService.StagedUpload staged = service.stageForConversion(upload("a.mp4", "silent"), "file-1");
+
+        service.convertStagedFile(staged.path(), "file-1", staged.outputFileName(), silent, EncoderPreset.FAST, running());
+
+        assertThat(service.hasConvertedFile(staged.outputFileName())).isTrue();
+        assertThat(service.findAudioRendition(staged.outputFileName())).isEmpty();
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void previewIsAnnouncedBeforeTheFullEncodeAndThenReplacedByIt() throws Exception {
+        fakeFfmpeg();
+        when(previewTranscoder.isApplicable(VIDEO)).thenReturn(true);
+        when(previewTranscoder.transcode(any(), any(), any(), any())).thenAnswer(invocation -> {
+            Files.writeString(invocation.<File>getArgument(1).toPath(), "preview");
+            return true;
+        });
+        FileStorageService.StagedUpload staged = service.stageForConversion(upload("a.mp4", "video"), "file-1");
+        String previewName = FileStorageService.previewName(staged.outputFileName());
+        doAnswer(invocation -> {
+            // Playable while the full encode has not started yet
+            assertThat(Files.exists(root.resolve("ffmpeg-calls"))).isFalse();
+            assertThat(Files.readString(LocalStorageBackend.shardedPath(convertedDir, previewName)))
+                .isEqualTo("preview");
+            return null;
+        }).when(progressUpdateService).sendPreviewUpdate("file-1", previewName);
+
+        service.convertStagedFile(staged.path(), "file-1", staged.outputFileName(), VIDEO, EncoderPreset.FAST, running());
+
+        verify(progressUpdateService).sendPreviewUpdate("file-1", previewName);
+        // Players still holding the preview URL now get the full encode
+        assertThat(Files.readString(LocalStorageBackend.shardedPath(convertedDir, previewName)))
+            .isEqualTo("webm\n");
+    }
+
+    @Test
+    void remuxedUploadNeedsNoPreview() throws Exception {
+        when(streamCopyRemuxer.isWebMCompatible(VIDEO)).thenReturn(true);
+        when(streamCopyRemuxer.remux(any(), any(), any(), any())).thenAnswer(invocation -> {
+            Files.writeString(invocation.<File>getArgument(1).toPath(), "webm");
+            return true;
+        });
+        when(previewTranscoder.isApplicable(VIDEO)).thenReturn(true);
+        FileStorageService.StagedUpload staged = service.stageForConversion(upload("a.webm", "webm"), "file-1");
+
+        service.convertStagedFile(staged.path(), "file-1", staged.outputFileName(), VIDEO, EncoderPreset.FAST, running());
+
+        verify(previewTranscoder, never()).transcode(any(), any(), any(), any());
+        assertThat(service.hasConvertedFile(staged.outputFileName())).isTrue();
+    }
+}
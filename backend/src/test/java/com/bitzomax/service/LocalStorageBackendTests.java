@@ -0,0 +1,136 @@
+package com.bitzomax.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LocalStorageBackendTests {
+
+    @TempDir
+    Path root;
+
+    private LocalStorageBackend backend;
+
+    @BeforeEach
+    void setUp() {
+        backend = new LocalStorageBackend(root.resolve("songs").toString(), root.resolve("covers").toString());
+    }
+
+    private Path upload(String content) throws Exception {
+        return Files.writeString(Files.createTempFile(root, "upload-", ".part"), content);
+    }
+
+    @Test
+    void hashNamesAreShardedByTheirLeadingDigits() {
+        Path shards = Path.of("/srv");
+
+        assertThat(LocalStorageBackend.shardedPath(shards, "abcdef.mp3")).isEqualTo(Path.of("/srv/ab/cd/abcdef.mp3"));
+        // Upper case hex lands in the same directories as lower case
+        assertThat(LocalStorageBackend.shardedPath(shards, "ABCDEF.mp3")).isEqualTo(Path.of("/srv/ab/cd/ABCDEF.mp3"));
+    }
+
+    @Test
+    void otherNamesAreShardedByTheHashOfTheName() {
+        Path sharded = LocalStorageBackend.shardedPath(Path.of("/srv"), "cover.jpg");
+
+        assertThat(sharded.getFileName().toString()).isEqualTo("cover.jpg");
+        assertThat(sharded.getNameCount()).isEqualTo(4);
+        assertThat(sharded.getName(1).toString()).matches("[0-9a-f]{2}");
+        assertThat(sharded.getName(2).toString()).matches("[0-9a-f]{2}");
+        assertThat(LocalStorageBackend.shardedPath(Path.of("/srv"), "cover.jpg")).isEqualTo(sharded);
+        // Too short to shard by
+        assertThat(LocalStorageBackend.shardedPath(Path.of("/srv"), "ab.mp3").getName(1).toString())
+            .matches("[0-9a-f]{2}");
+    }
+
+    @Test
+    void storedFileIsMovedIntoItsShard() throws Exception {
+        Path file = upload("song");
+
+        backend.store(StorageBackend.Area.SONGS, "abcd.mp3", file);
+
+        assertThat(file).doesNotExist();
+        assertThat(root.resolve("songs/ab/cd/abcd.mp3")).hasContent("song");
+        assertThat(backend.exists(StorageBackend.Area.SONGS, "abcd.mp3")).isTrue();
+        assertThat(backend.exists(StorageBackend.Area.COVERS, "abcd.mp3")).isFalse();
+    }
+
+    @Test
+    void storingTheSameNameAgainKeepsTheFirstFile() throws Exception {
+        backend.store(StorageBackend.Area.SONGS, "abcd.mp3", upload("first"));
+        Path duplicate = upload("second");
+
+        backend.store(StorageBackend.Area.SONGS, "abcd.mp3", duplicate);
+
+        assertThat(duplicate).doesNotExist();
+        assertThat(root.resolve("songs/ab/cd/abcd.mp3")).hasContent("first");
+    }
+
+    @Test
+    void writtenFileReplacesTheOldOneAndLeavesNoTemporaryFile() throws Exception {
+        backend.write(StorageBackend.Area.CONVERTED, "abcd.webm", new ByteArrayInputStream("old".getBytes(StandardCharsets.UTF_8)));
+        backend.write(StorageBackend.Area.CONVERTED, "abcd.webm", new ByteArrayInputStream("new".getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(root.resolve("songs/converted/ab/cd/abcd.webm")).hasContent("new");
+        try (Stream<Path> files = Files.list(root.resolve("songs/converted"))) {
+            assertThat(files.map(path -> path.getFileName().toString())).containsExactly("ab");
+        }
+        try (InputStream content = backend.openStream(StorageBackend.Area.CONVERTED, "abcd.webm")) {
+            assertThat(new String(content.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("new");
+        }
+    }
+
+    @Test
+    void copyLeavesTheSourceAndIgnoresCopyingAFileOntoItself() throws Exception {
+        Path file = upload("cover");
+
+        backend.copy(StorageBackend.Area.COVERS, "abcd.jpg", file);
+        Path stored = backend.localFile(StorageBackend.Area.COVERS, "abcd.jpg").orElseThrow();
+        backend.copy(StorageBackend.Area.COVERS, "abcd.jpg", stored);
+
+        assertThat(file).exists();
+        assertThat(stored).isEqualTo(root.resolve("covers/ab/cd/abcd.jpg")).hasContent("cover");
+    }
+
+    @Test
+    void groupedNamesAreShardedByTheirFirstSegment() throws Exception {
+        backend.write(StorageBackend.Area.CONVERTED, "abcd.dash/init.mp4", new ByteArrayInputStream(new byte[1]));
+
+        assertThat(root.resolve("songs/converted/ab/cd/abcd.dash/init.mp4")).exists();
+        assertThat(backend.find(StorageBackend.Area.CONVERTED, "abcd.dash/init.mp4")).isPresent();
+    }
+
+    @Test
+    void filesStoredFlatByEarlierVersionsAreStillFound() throws Exception {
+        Path flat = Files.writeString(root.resolve("songs/abcd.mp3"), "legacy");
+
+        assertThat(backend.localFile(StorageBackend.Area.SONGS, "abcd.mp3")).contains(flat);
+        assertThat(backend.find(StorageBackend.Area.SONGS, "abcd.mp3")).isPresent();
+        assertThat(backend.find(StorageBackend.Area.SONGS, "ef01.mp3")).isEmpty();
+    }
+
+    @Test
+    void namesThatEscapeTheirAreaAreRejected() throws Exception {
+        Files.writeString(root.resolve("secret.txt"), "secret");
+
+        for (String name : new String[] { "../secret.txt", "a/../../secret.txt", "./abcd.mp3", "a\\b", "", "a//b", "/abs" }) {
+            assertThat(backend.localFile(StorageBackend.Area.SONGS, name)).as(name).isEmpty();
+            assertThat(backend.exists(StorageBackend.Area.SONGS, name)).as(name).isFalse();
+            assertThatThrownBy(() -> backend.store(StorageBackend.Area.SONGS, name, upload("x")))
+                .as(name).isInstanceOf(IllegalArgumentException.class);
+            assertThatThrownBy(() -> backend.openStream(StorageBackend.Area.SONGS, name))
+                .as(name).isInstanceOf(IllegalArgumentException.class);
+        }
+        assertThat(backend.localFile(StorageBackend.Area.SONGS, null)).isEmpty();
+    }
+}
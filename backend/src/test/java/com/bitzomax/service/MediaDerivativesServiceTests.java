@@ -0,0 +1,158 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.MediaInfo;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bytedeco.javacv.Frame;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MediaDerivativesServiceTests {
+
+    private static final MediaInfo VIDEO = new MediaInfo(30_000, "matroska,webm", List.of("vp9"), List.of(),
+        320, 240, 25, 1_000_000, 0, 0);
+    private static final MediaInfo SONG = new MediaInfo(1_000, "webm", List.of(), List.of("opus"),
+        0, 0, 0, 128_000, 1_000, 2);
+
+    @TempDir
+    Path directory;
+
+    // Thumbnails every 10 seconds, 160 pixels wide, 10 per sprite row; 10 peaks per second
+    private final MediaDerivativesService service = new MediaDerivativesService(true, 10, 160, 10, 10);
+
+    /**
+     * A mid-gray YUV 4:2:0 picture as the transcoders decode it
+     */
+    private static Frame picture(long timestampMicros) {
+        int width = 320;
+        int height = 240;
+        ByteBuffer planes = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        for (int i = 0; i < planes.capacity(); i++) {
+            planes.put(i, (byte) (i < width * height ? 126 : 128));
+        }
+        Frame frame = new Frame();
+        frame.image = new Buffer[] { planes };
+        frame.imageWidth = width;
+        frame.imageHeight = height;
+        frame.imageStride = width;
+        frame.imageDepth = Frame.DEPTH_UBYTE;
+        frame.imageChannels = 1;
+        frame.timestamp = timestampMicros;
+        return frame;
+    }
+
+    /**
+     * Interleaved stereo samples at 1 kHz, all at the given level
+     */
+    private static Frame samples(long timestampMicros, int count, short level) {
+        short[] values = new short[count * 2];
+        Arrays.fill(values, level);
+        Frame frame = new Frame();
+        frame.samples = new Buffer[] { ShortBuffer.wrap(values) };
+        frame.sampleRate = 1_000;
+        frame.audioChannels = 2;
+        frame.timestamp = timestampMicros;
+        return frame;
+    }
+
+    @Test
+    void nothingIsCollectedWhenDisabledOrWithoutStreams() {
+        assertThat(new MediaDerivativesService(false, 10, 160, 10, 10).newCollector(VIDEO)).isNull();
+        assertThat(service.newCollector(MediaInfo.UNKNOWN)).isNull();
+    }
+
+    @Test
+    void picturesAreNeededAtTheThumbnailTimesAndThePosterTime() {
+        MediaDerivativesService.Collector collector = service.newCollector(VIDEO);
+
+        // The poster is taken a tenth into the video
+        assertThat(collector.pictureTimestamps()).containsExactly(0L, 3_000_000L, 10_000_000L, 20_000_000L);
+
+        collector.accept(picture(0));
+        collector.accept(picture(3_000_000));
+        assertThat(collector.pictureTimestamps()).containsExactly(10_000_000L, 20_000_000L);
+    }
+
+    @Test
+    void everyFrameOfAVideoYieldsPosterSpriteAndTrack() throws Exception {
+        MediaDerivativesService.Collector collector = service.newCollector(VIDEO);
+        for (long second = 0; second < 30; second++) {
+            collector.accept(picture(second * 1_000_000));
+        }
+        Path workingDirectory = Files.createDirectory(directory.resolve("working"));
+
+        collector.write(directory, workingDirectory, "abcd.webm");
+
+        try (Stream<Path> workingFiles = Files.list(workingDirectory)) {
+            assertThat(workingFiles).isEmpty();
+        }
+        BufferedImage poster = ImageIO.read(directory.resolve("abcd.poster.jpg").toFile());
+        assertThat(poster.getWidth()).isEqualTo(320);
+        // Mid-gray survives the YUV to RGB conversion
+        int red = (poster.getRGB(100, 100) >> 16) & 0xFF;
+        assertThat(red).isBetween(115, 135);
+        BufferedImage sprite = ImageIO.read(directory.resolve("abcd.sprite.jpg").toFile());
+        assertThat(sprite.getWidth()).isEqualTo(3 * 160);
+        assertThat(sprite.getHeight()).isEqualTo(120);
+        assertThat(Files.readString(directory.resolve("abcd.thumbnails.vtt"))).isEqualTo("""
+            WEBVTT
+
+            00:00:00.000 --> 00:00:10.000
+            sprite#xywh=0,0,160,120
+
+            00:00:10.000 --> 00:00:20.000
+            sprite#xywh=160,0,160,120
+
+            00:00:20.000 --> 00:00:30.000
+            sprite#xywh=320,0,160,120
+            """);
+        // A video without sound has no waveform
+        assertThat(directory.resolve("abcd.peaks.json")).doesNotExist();
+    }
+
+    @Test
+    void oneKeyframeCoversEveryThumbnailSlotUpToIt() throws Exception {
+        MediaDerivativesService.Collector collector = service.newCollector(VIDEO);
+        collector.accept(picture(0));
+        collector.accept(picture(25_000_000));
+
+        collector.write(directory, directory, "abcd.webm");
+
+        assertThat(ImageIO.read(directory.resolve("abcd.sprite.jpg").toFile()).getWidth()).isEqualTo(3 * 160);
+    }
+
+    @Test
+    void peaksAreTheLoudestSampleOfEachBucket() throws Exception {
+        MediaDerivativesService.Collector collector = service.newCollector(SONG);
+        // Half a second at half scale, then half a second of silence
+        collector.accept(samples(0, 500, (short) 16384));
+        collector.accept(samples(500_000, 500, (short) 0));
+
+        collector.write(directory, directory, "abcd.webm");
+
+        JsonNode peaks = new ObjectMapper().readTree(directory.resolve("abcd.peaks.json").toFile());
+        assertThat(peaks.path("version").asInt()).isEqualTo(1);
+        assertThat(peaks.path("peaksPerSecond").asInt()).isEqualTo(10);
+        assertThat(peaks.path("durationMillis").asLong()).isEqualTo(1_000);
+        assertThat(peaks.path("peaks")).hasSize(10);
+        for (int i = 0; i < 10; i++) {
+            assertThat(peaks.path("peaks").get(i).asDouble()).isEqualTo(i < 5 ? 0.5 : 0.0);
+        }
+        // Audio without video has no pictures
+        assertThat(directory.resolve("abcd.poster.jpg")).doesNotExist();
+        assertThat(directory.resolve("abcd.sprite.jpg")).doesNotExist();
+    }
+}
@@ -0,0 +1,124 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.MediaInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@DisabledOnOs(OS.WINDOWS)
+class MediaProbeServiceTests {
+
+    @TempDir
+    Path tempDir;
+
+    private final MediaToolchain mediaToolchain = mock(MediaToolchain.class);
+    private final MediaProbeService probeService = new MediaProbeService();
+
+    @BeforeEach
+    void setUp() {
+        when(mediaToolchain.isFfprobeAvailable()).thenReturn(true);
+        ReflectionTestUtils.setField(probeService, "mediaToolchain", mediaToolchain);
+    }
+
+    /**
+     * A stand-in ffprobe that prints the given JSON and exits with the given code
+     */
+    private void fakeFfprobe(String json, int exitCode) throws Exception {
+        Path output = Files.writeString(tempDir.resolve("probe.json"), json);
+        Path ffprobe = Files.writeString(tempDir.resolve("ffprobe"),
+            "#!/bin/bash\ncat \"" + output + "\"\nexit " + exitCode + "\n");
+        Files.setPosixFilePermissions(ffprobe, PosixFilePermissions.fromString("rwx------"));
+        when(mediaToolchain.getFfprobePath()).thenReturn(ffprobe.toString());
+    }
+
+    @Test
+    void readsStreamsAndFormatFromFfprobe() throws Exception {
+        fakeFfprobe("""
+            {
+              "streams": [
+                {"codec_type": "video", "codec_name": "h264", "width": 1920, "height": 1080,
+                 "avg_frame_rate": "30000/1001", "disposition": {"attached_pic": 0}},
+                {"codec_type": "audio", "codec_name": "aac", "sample_rate": "48000", "channels": 2},
+                {"codec_type": "audio", "codec_name": "ac3", "sample_rate": "44100", "channels": 6},
+                {"codec_type": "subtitle", "codec_name": "mov_text"}
+              ],
+              "format": {"format_name": "mov,mp4,m4a,3gp,3g2,mj2", "duration": "215.480000", "bit_rate": "4500000"}
+            }
+            """, 0);
+
+        MediaInfo info = probeService.probe(tempDir.resolve("input.mp4").toFile());
+
+        assertThat(info.durationMillis()).isEqualTo(215_480);
+        assertThat(info.durationSeconds()).isEqualTo(215);
+        assertThat(info.formatName()).isEqualTo("mov,mp4,m4a,3gp,3g2,mj2");
+        assertThat(info.videoCodecs()).containsExactly("h264");
+        assertThat(info.audioCodecs()).containsExactly("aac", "ac3");
+        assertThat(info.width()).isEqualTo(1920);
+        assertThat(info.height()).isEqualTo(1080);
+        assertThat(info.frameRate()).isCloseTo(29.97, within(0.01));
+        assertThat(info.bitRate()).isEqualTo(4_500_000);
+        // Sample rate and channels come from the first audio stream
+        assertThat(info.sampleRate()).isEqualTo(48_000);
+        assertThat(info.channels()).isEqualTo(2);
+    }
+
+    @Test
+    void embeddedCoverArtIsNotAVideoStream() throws Exception {
+        fakeFfprobe("""
+            {
+              "streams": [
+                {"codec_type": "audio", "codec_name": "mp3", "sample_rate": "44100", "channels": 2},
+                {"codec_type": "video", "codec_name": "mjpeg", "width": 600, "height": 600,
+                 "avg_frame_rate": "0/0", "disposition": {"attached_pic": 1}}
+              ],
+              "format": {"format_name": "mp3", "duration": "180.0", "bit_rate": "320000"}
+            }
+            """, 0);
+
+        MediaInfo info = probeService.probe(tempDir.resolve("song.mp3").toFile());
+
+        assertThat(info.hasVideo()).isFalse();
+        assertThat(info.audioCodecs()).containsExactly("mp3");
+        assertThat(info.width()).isZero();
+        assertThat(info.frameRate()).isZero();
+    }
+
+    @Test
+    void unreadableFileIsUnknown() throws Exception {
+        fakeFfprobe("{}", 1);
+        Path garbage = Files.writeString(tempDir.resolve("garbage.mp4"), "not a media file");
+
+        // ffprobe fails, and so does the JavaCV fallback
+        assertThat(probeService.probe(garbage.toFile())).isEqualTo(MediaInfo.UNKNOWN);
+    }
+
+    @Test
+    void hungFfprobeIsKilledAtTheDeadline() throws Exception {
+        // Keeps stdout open without writing anything
+        Path ffprobe = Files.writeString(tempDir.resolve("ffprobe"), "#!/bin/bash\nexec sleep 60\n");
+        Files.setPosixFilePermissions(ffprobe, PosixFilePermissions.fromString("rwx------"));
+        when(mediaToolchain.getFfprobePath()).thenReturn(ffprobe.toString());
+        ReflectionTestUtils.setField(probeService, "probeTimeoutSeconds", 1L);
+        Path garbage = Files.writeString(tempDir.resolve("garbage.mp4"), "not a media file");
+
+        long started = System.nanoTime();
+        MediaInfo info = probeService.probe(garbage.toFile());
+
+        assertThat(info).isEqualTo(MediaInfo.UNKNOWN);
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started)).isLessThan(10);
+    }
+}
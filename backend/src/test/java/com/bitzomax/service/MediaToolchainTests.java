@@ -0,0 +1,126 @@
+package com.bitzomax.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DisabledOnOs(OS.WINDOWS)
+class MediaToolchainTests {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * A stand-in ffmpeg that logs each call and lists the given encoder lines
+     */
+    private Path fakeFfmpeg(String encoderLines) throws Exception {
+        Path ffmpeg = tempDir.resolve("ffmpeg");
+        Files.writeString(ffmpeg, """
+            #!/bin/bash
+            echo "$*" >> "%s"
+            case "$*" in
+              *-encoders*) cat <<'LIST'
+            Encoders:
+             V..... = Video
+             A..... = Audio
+             ------
+            %s
+            LIST
+              ;;
+              *) echo "ffmpeg version 6.1.1 Copyright (c) 2000-2023"; echo "configuration: --enable-libvpx" ;;
+            esac
+            """.formatted(tempDir.resolve("calls"), encoderLines));
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwx------"));
+        return ffmpeg;
+    }
+
+    private long calls() throws Exception {
+        return Files.readAllLines(tempDir.resolve("calls")).size();
+    }
+
+    @Test
+    void capabilitiesAreProbedOnceAndCached() throws Exception {
+        Path ffmpeg = fakeFfmpeg("""
+             V....D libvpx-vp9           libvpx VP9 (codec vp9)
+             A....D libopus              libopus Opus (codec opus)
+             A....D aac                  AAC (Advanced Audio Coding)""");
+        MediaToolchain toolchain = new MediaToolchain(ffmpeg.toString(), ffmpeg.toString());
+
+        toolchain.init();
+        long probes = calls();
+
+        assertThat(toolchain.isFfmpegAvailable()).isTrue();
+        assertThat(toolchain.getFfmpegVersion()).isEqualTo("ffmpeg version 6.1.1 Copyright (c) 2000-2023");
+        assertThat(toolchain.getFfmpegVersionOutput()).contains("--enable-libvpx");
+        // The legend lines ("V..... = Video") are not encoders
+        assertThat(toolchain.getEncoders()).containsExactly("libvpx-vp9", "libopus", "aac");
+        assertThat(toolchain.canEncodeWebM()).isTrue();
+        assertThat(toolchain.getWebMAudioEncoder()).isEqualTo(MediaToolchain.ENCODER_OPUS);
+        assertThat(calls()).isEqualTo(probes);
+
+        toolchain.refresh();
+        assertThat(calls()).isEqualTo(2 * probes);
+    }
+
+    @Test
+    void vorbisIsUsedWhenOpusIsMissing() throws Exception {
+        Path ffmpeg = fakeFfmpeg("""
+             V....D libvpx-vp9           libvpx VP9 (codec vp9)
+             A....D libvorbis            libvorbis (codec vorbis)""");
+        MediaToolchain toolchain = new MediaToolchain(ffmpeg.toString(), ffmpeg.toString());
+
+        toolchain.init();
+
+        assertThat(toolchain.getWebMAudioEncoder()).isEqualTo(MediaToolchain.ENCODER_VORBIS);
+    }
+
+    @Test
+    void ffmpegWithoutVp9CannotEncodeWebM() throws Exception {
+        Path ffmpeg = fakeFfmpeg(" V....D libx264              libx264 H.264");
+        MediaToolchain toolchain = new MediaToolchain(ffmpeg.toString(), ffmpeg.toString());
+
+        toolchain.init();
+
+        assertThat(toolchain.isFfmpegAvailable()).isTrue();
+        assertThat(toolchain.canEncodeWebM()).isFalse();
+    }
+
+    @Test
+    void missingExecutablesAreReportedAsUnavailable() {
+        String missing = tempDir.resolve("no-such-ffmpeg").toString();
+        MediaToolchain toolchain = new MediaToolchain(missing, missing);
+
+        toolchain.init();
+
+        assertThat(toolchain.isFfmpegAvailable()).isFalse();
+        assertThat(toolchain.isFfprobeAvailable()).isFalse();
+        assertThat(toolchain.getFfmpegVersion()).isNull();
+        assertThat(toolchain.getEncoders()).isEmpty();
+        assertThat(toolchain.canEncodeWebM()).isFalse();
+    }
+
+    @Test
+    void hungExecutableIsKilledAtTheDeadline() throws Exception {
+        // Keeps its output open without writing anything
+        Path ffmpeg = Files.writeString(tempDir.resolve("ffmpeg"), "#!/bin/bash\nexec sleep 60\n");
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwx------"));
+        MediaToolchain toolchain = new MediaToolchain(ffmpeg.toString(), ffmpeg.toString());
+        ReflectionTestUtils.setField(toolchain, "probeTimeoutSeconds", 1L);
+
+        long started = System.nanoTime();
+        toolchain.init();
+
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started)).isLessThan(10);
+        assertThat(toolchain.isFfmpegAvailable()).isFalse();
+        assertThat(toolchain.isFfprobeAvailable()).isFalse();
+    }
+}
@@ -0,0 +1,120 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import com.bitzomax.model.MediaInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ParallelSegmentEncoderTests {
+
+    private static final MediaInfo LONG_VIDEO = new MediaInfo(600_000, "mov,mp4,m4a,3gp,3g2,mj2", List.of("h264"),
+        List.of("aac"), 1920, 1080, 30, 5_000_000, 48_000, 2);
+    private static final MediaInfo LONG_SONG = new MediaInfo(600_000, "mp3", List.of(), List.of("mp3"),
+        0, 0, 0, 320_000, 44_100, 2);
+    private static final MediaInfo SHORT_VIDEO = new MediaInfo(30_000, "mov,mp4,m4a,3gp,3g2,mj2", List.of("h264"),
+        List.of("aac"), 1920, 1080, 30, 5_000_000, 48_000, 2);
+
+    @TempDir
+    Path tempDir;
+
+    private final MediaToolchain mediaToolchain = mock(MediaToolchain.class);
+    private final ProgressUpdateService progressUpdateService = mock(ProgressUpdateService.class);
+    private final ExecutorService segmentExecutor = Executors.newFixedThreadPool(3);
+    private ParallelSegmentEncoder encoder;
+
+    @BeforeEach
+    void setUp() {
+        when(mediaToolchain.canEncodeWebM()).thenReturn(true);
+        when(mediaToolchain.getWebMAudioEncoder()).thenReturn("libopus");
+        encoder = new ParallelSegmentEncoder(true, 2, 120);
+        ReflectionTestUtils.setField(encoder, "mediaToolchain", mediaToolchain);
+        ReflectionTestUtils.setField(encoder, "progressUpdateService", progressUpdateService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        encoder.shutdown();
+        segmentExecutor.shutdownNow();
+    }
+
+    @Test
+    void splitsOnlyLongInputsWithVideo() {
+        assertThat(encoder.isApplicable(LONG_VIDEO)).isTrue();
+        assertThat(encoder.isApplicable(LONG_SONG)).isFalse();
+        assertThat(encoder.isApplicable(SHORT_VIDEO)).isFalse();
+    }
+
+    @Test
+    void splittingNeedsAVp9CapableFfmpeg() {
+        when(mediaToolchain.canEncodeWebM()).thenReturn(false);
+
+        assertThat(encoder.isApplicable(LONG_VIDEO)).isFalse();
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void failedSegmentKillsTheOtherEncodesBeforeFallingBack() throws Exception {
+        // Enough workers for every encode of the attempt to run at once, whatever the core count
+        ReflectionTestUtils.setField(encoder, "segmentExecutor", segmentExecutor);
+        Path pids = tempDir.resolve("pids");
+        Path ffmpeg = tempDir.resolve("ffmpeg");
+        // Splits into two segments; the first fails, the second and the audio encode never finish
+        Files.writeString(ffmpeg, """
+            #!/bin/bash
+            out="${@: -1}"
+            case "$*" in
+              *"-f segment"*) touch "$(dirname "$out")/source_0000.mkv" "$(dirname "$out")/source_0001.mkv" ;;
+              *source_0000*) sleep 0.5; exit 1 ;;
+              *) echo $$ >> "%s"; while true; do echo out_time_ms=1000000; sleep 0.1; done ;;
+            esac
+            """.formatted(pids));
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwx------"));
+        when(mediaToolchain.getFfmpegPath()).thenReturn(ffmpeg.toString());
+        Path input = Files.writeString(tempDir.resolve("input.mp4"), "video");
+        Path output = tempDir.resolve("output.webm");
+        ConversionCancellation conversion = new ConversionCancellation();
+        conversion.start();
+
+        long started = System.currentTimeMillis();
+        boolean encoded = encoder.encode(input.toFile(), output.toFile(), "file-1", LONG_VIDEO.durationMillis(),
+            EncoderPreset.QUALITY, null, conversion);
+
+        assertThat(encoded).isFalse();
+        assertThat(System.currentTimeMillis() - started).isLessThan(10_000);
+        assertThat(conversion.isCancelled()).isFalse();
+        List<Long> encoderPids = Files.readAllLines(pids).stream().map(Long::parseLong).toList();
+        assertThat(encoderPids).hasSize(2);
+        assertThat(encoderPids).noneMatch(pid -> ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files.map(path -> path.getFileName().toString())).noneMatch(name -> name.contains("-segments"));
+        }
+
+        // Nothing reports progress for the abandoned attempt while the fallback encodes
+        clearInvocations(progressUpdateService);
+        Thread.sleep(300);
+        verify(progressUpdateService, never()).sendProgressUpdate(eq("file-1"), anyInt(), anyString(), anyString());
+    }
+}
@@ -0,0 +1,134 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+class PipelinedJavaCVTranscoderTests {
+
+    private static final int FRAMES = 50;
+    private static final int FRAME_RATE = 25;
+    private static final int SAMPLE_RATE = 44_100;
+
+    @TempDir
+    Path tempDir;
+
+    private final PipelinedJavaCVTranscoder transcoder = new PipelinedJavaCVTranscoder();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(transcoder, "progressUpdateService", mock(ProgressUpdateService.class));
+    }
+
+    @AfterEach
+    void tearDown() {
+        transcoder.shutdown();
+    }
+
+    /**
+     * Two seconds of moving gray video with a stereo tone, in a Matroska file
+     */
+    private Path sourceClip() throws Exception {
+        Path clip = tempDir.resolve("source.mkv");
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(clip.toFile(), 64, 48, 2)) {
+            recorder.setFormat("matroska");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
+            recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+            recorder.setFrameRate(FRAME_RATE);
+            recorder.setAudioCodec(avcodec.AV_CODEC_ID_PCM_S16LE);
+            recorder.setSampleRate(SAMPLE_RATE);
+            recorder.start();
+            for (int i = 0; i < FRAMES; i++) {
+                Frame picture = new Frame(64, 48, Frame.DEPTH_UBYTE, 1);
+                ByteBuffer pixels = (ByteBuffer) picture.image[0];
+                for (int p = 0; p < pixels.capacity(); p++) {
+                    pixels.put(p, (byte) (p + i * 5));
+                }
+                recorder.record(picture, avutil.AV_PIX_FMT_GRAY8);
+
+                // Interleaved stereo: FFmpeg's own Vorbis encoder takes two channels only
+                int samplesPerFrame = SAMPLE_RATE / FRAME_RATE;
+                short[] samples = new short[samplesPerFrame * 2];
+                for (int s = 0; s < samplesPerFrame; s++) {
+                    short value = (short) (Math.sin((i * samplesPerFrame + s) * 2 * Math.PI * 440 / SAMPLE_RATE) * 8000);
+                    samples[2 * s] = value;
+                    samples[2 * s + 1] = value;
+                }
+                recorder.recordSamples(SAMPLE_RATE, 2, ShortBuffer.wrap(samples));
+            }
+            recorder.stop();
+        }
+        return clip;
+    }
+
+    @Test
+    void transcodesEveryFrameToVp9WebMWithAnAudioRendition() throws Exception {
+        Path output = tempDir.resolve("output.webm");
+        Path audio = tempDir.resolve("output.audio.webm");
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellation.start();
+
+        transcoder.transcode(sourceClip().toFile(), output.toFile(), "file-1", EncoderPreset.REALTIME, audio.toFile(),
+            null, cancellation);
+
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(output.toFile())) {
+            grabber.start();
+            assertThat(grabber.getFormat()).contains("webm");
+            assertThat(grabber.getVideoCodec()).isEqualTo(avcodec.AV_CODEC_ID_VP9);
+            assertThat(grabber.getAudioCodec()).isEqualTo(avcodec.AV_CODEC_ID_VORBIS);
+            assertThat(grabber.getImageWidth()).isEqualTo(64);
+            int frames = 0;
+            while (grabber.grabImage() != null) {
+                frames++;
+            }
+            // The decoder thread handed over every picture
+            assertThat(frames).isEqualTo(FRAMES);
+        }
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(audio.toFile())) {
+            grabber.start();
+            assertThat(grabber.hasVideo()).isFalse();
+            assertThat(grabber.getAudioCodec()).isEqualTo(avcodec.AV_CODEC_ID_VORBIS);
+            assertThat(grabber.getLengthInTime()).isGreaterThan(1_500_000);
+        }
+    }
+
+    @Test
+    void cancelledConversionStopsAtTheNextFrame() throws Exception {
+        Path source = sourceClip();
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellation.cancel();
+
+        assertThatThrownBy(() -> transcoder.transcode(source.toFile(), tempDir.resolve("output.webm").toFile(),
+            "file-1", EncoderPreset.REALTIME, null, null, cancellation))
+            .isInstanceOf(CancellationException.class);
+    }
+
+    @Test
+    void unreadableInputFails() throws Exception {
+        Path garbage = Files.writeString(tempDir.resolve("garbage.mkv"), "not a media file");
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellation.start();
+
+        assertThatThrownBy(() -> transcoder.transcode(garbage.toFile(), tempDir.resolve("output.webm").toFile(),
+            "file-1", EncoderPreset.REALTIME, null, null, cancellation))
+            .isInstanceOf(Exception.class);
+    }
+}
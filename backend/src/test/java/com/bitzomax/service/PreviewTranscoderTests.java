@@ -0,0 +1,138 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.MediaInfo;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PreviewTranscoderTests {
+
+    private static final MediaInfo LONG_VIDEO = new MediaInfo(600_000, "mov,mp4,m4a,3gp,3g2,mj2", List.of("h264"),
+        List.of("aac"), 1920, 1080, 30, 5_000_000, 48_000, 2);
+
+    @TempDir
+    Path tempDir;
+
+    private final MediaToolchain mediaToolchain = mock(MediaToolchain.class);
+    private final PreviewTranscoder transcoder = new PreviewTranscoder(true, 240, 30);
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(transcoder, "mediaToolchain", mediaToolchain);
+    }
+
+    private static MediaInfo video(long durationMillis, int width, int height) {
+        return new MediaInfo(durationMillis, "matroska,webm", List.of("h264"), List.of("aac"),
+            width, height, 25, 2_000_000, 48_000, 2);
+    }
+
+    private static ConversionCancellation running() {
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellation.start();
+        return cancellation;
+    }
+
+    /**
+     * A stand-in ffmpeg that logs its arguments and exits with the given code
+     */
+    private Path fakeFfmpeg(int exitCode) throws Exception {
+        Path args = tempDir.resolve("args");
+        Path ffmpeg = Files.writeString(tempDir.resolve("ffmpeg"),
+            "#!/bin/bash\necho \"$*\" > \"" + args + "\"\nexit " + exitCode + "\n");
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwx------"));
+        when(mediaToolchain.canEncodeWebM()).thenReturn(true);
+        when(mediaToolchain.getFfmpegPath()).thenReturn(ffmpeg.toString());
+        when(mediaToolchain.getWebMAudioEncoder()).thenReturn(MediaToolchain.ENCODER_OPUS);
+        return args;
+    }
+
+    @Test
+    void onlyLongVideosGetAPreview() {
+        MediaInfo song = new MediaInfo(600_000, "mp3", List.of(), List.of("mp3"), 0, 0, 0, 320_000, 44_100, 2);
+
+        assertThat(transcoder.isApplicable(LONG_VIDEO)).isTrue();
+        assertThat(transcoder.isApplicable(video(29_000, 1920, 1080))).isFalse();
+        assertThat(transcoder.isApplicable(song)).isFalse();
+        assertThat(new PreviewTranscoder(false, 240, 30).isApplicable(LONG_VIDEO)).isFalse();
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void previewIsScaledDownAndEncodedAtTheFastestSettings() throws Exception {
+        Path args = fakeFfmpeg(0);
+
+        boolean encoded = transcoder.transcode(tempDir.resolve("in.mp4").toFile(),
+            tempDir.resolve("preview.part").toFile(), LONG_VIDEO, running());
+
+        assertThat(encoded).isTrue();
+        assertThat(Files.readString(args))
+            .contains("-vf scale=-2:240")
+            .contains("-deadline realtime")
+            .contains("-crf 42");
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void smallSourceKeepsItsHeight() throws Exception {
+        Path args = fakeFfmpeg(0);
+
+        transcoder.transcode(tempDir.resolve("in.mp4").toFile(), tempDir.resolve("preview.part").toFile(),
+            video(600_000, 321, 181), running());
+
+        assertThat(Files.readString(args)).contains("-vf scale=-2:180");
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void failedPreviewIsNoError() throws Exception {
+        fakeFfmpeg(1);
+
+        assertThat(transcoder.transcode(tempDir.resolve("in.mp4").toFile(), tempDir.resolve("preview.part").toFile(),
+            LONG_VIDEO, running())).isFalse();
+    }
+
+    @Test
+    void javaCVPreviewIsScaledToThePreviewHeight() throws Exception {
+        when(mediaToolchain.canEncodeWebM()).thenReturn(false);
+        Path source = tempDir.resolve("source.mkv");
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(source.toFile(), 640, 480, 0)) {
+            recorder.setFormat("matroska");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
+            recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+            recorder.setFrameRate(25);
+            recorder.start();
+            for (int i = 0; i < 10; i++) {
+                recorder.record(new Frame(640, 480, Frame.DEPTH_UBYTE, 1), avutil.AV_PIX_FMT_GRAY8);
+            }
+            recorder.stop();
+        }
+        Path preview = tempDir.resolve("preview.part");
+
+        boolean encoded = transcoder.transcode(source.toFile(), preview.toFile(), video(600_000, 640, 480), running());
+
+        assertThat(encoded).isTrue();
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(preview.toFile())) {
+            grabber.start();
+            assertThat(grabber.getVideoCodec()).isEqualTo(avcodec.AV_CODEC_ID_VP9);
+            assertThat(grabber.getImageHeight()).isEqualTo(240);
+            assertThat(grabber.getImageWidth()).isEqualTo(320);
+        }
+    }
+}
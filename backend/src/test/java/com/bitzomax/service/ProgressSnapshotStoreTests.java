@@ -0,0 +1,82 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionProgress;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProgressSnapshotStoreTests {
+
+    private final ProgressSnapshotStore store = new ProgressSnapshotStore(2, 30);
+
+    private static ConversionProgress update(String fileId, String status) {
+        return new ConversionProgress(fileId, 50, status, status);
+    }
+
+    private String statusOf(String fileId) {
+        return store.get(fileId).map(ConversionProgress::getStatus).orElse(null);
+    }
+
+    @Test
+    void keepsTheLatestUpdateOfEachFile() {
+        store.put(update("file-1", "queued"));
+        store.put(update("file-1", "processing"));
+
+        assertThat(statusOf("file-1")).isEqualTo("processing");
+        assertThat(store.get("file-2")).isEmpty();
+    }
+
+    @Test
+    void finishedConversionIsNotReplacedByLateProgress() {
+        for (String terminal : new String[] {"complete", "error", "cancelled"}) {
+            String fileId = "file-" + terminal;
+            store.put(update(fileId, terminal));
+
+            store.put(update(fileId, "processing"));
+            store.put(update(fileId, "preview"));
+
+            assertThat(statusOf(fileId)).isEqualTo(terminal);
+        }
+    }
+
+    @Test
+    void finishedConversionCanBeReplacedByAnotherFinalUpdate() {
+        store.put(update("file-1", "error"));
+        store.put(update("file-1", "complete"));
+
+        assertThat(statusOf("file-1")).isEqualTo("complete");
+    }
+
+    @Test
+    void removedFileStartsAfresh() {
+        store.put(update("file-1", "complete"));
+
+        store.remove("file-1");
+        store.put(update("file-1", "queued"));
+
+        assertThat(statusOf("file-1")).isEqualTo("queued");
+    }
+
+    @Test
+    void dropsTheLeastRecentlyUpdatedFileBeyondCapacity() {
+        store.put(update("file-1", "processing"));
+        store.put(update("file-2", "processing"));
+        store.put(update("file-1", "processing"));
+        store.put(update("file-3", "processing"));
+
+        assertThat(store.get("file-2")).isEmpty();
+        assertThat(statusOf("file-1")).isEqualTo("processing");
+        assertThat(statusOf("file-3")).isEqualTo("processing");
+    }
+
+    @Test
+    void forgetsExpiredSnapshots() throws Exception {
+        ProgressSnapshotStore expiring = new ProgressSnapshotStore(10, 0);
+        expiring.put(update("file-1", "complete"));
+        Thread.sleep(5);
+
+        expiring.evictExpired();
+
+        assertThat(expiring.get("file-1")).isEmpty();
+    }
+}
@@ -0,0 +1,89 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionProgress;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class ProgressUpdateServiceTests {
+
+    private final SimpMessagingTemplate messagingTemplate = mock(SimpMessagingTemplate.class);
+    private final ProgressSnapshotStore progressSnapshotStore = new ProgressSnapshotStore(100, 30);
+    private ProgressUpdateService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new ProgressUpdateService();
+        ReflectionTestUtils.setField(service, "messagingTemplate", messagingTemplate);
+        ReflectionTestUtils.setField(service, "progressSnapshotStore", progressSnapshotStore);
+    }
+
+    private List<String> publishedStatuses(String fileId) {
+        ArgumentCaptor<Object> updates = ArgumentCaptor.forClass(Object.class);
+        verify(messagingTemplate, atLeastOnce()).convertAndSend(eq("/topic/conversion/" + fileId), updates.capture());
+        return updates.getAllValues().stream().map(update -> ((ConversionProgress) update).getStatus()).toList();
+    }
+
+    @Test
+    void progressIsCoalescedUntilTheNextFlush() {
+        service.sendProgressUpdate("file-1", 10, "processing", "10%");
+        service.sendProgressUpdate("file-1", 20, "processing", "20%");
+        service.flushProgressUpdates();
+
+        assertThat(publishedStatuses("file-1")).containsExactly("processing");
+        assertThat(service.getLatestProgress("file-1")).get()
+            .extracting(ConversionProgress::getPercentComplete).isEqualTo(20);
+    }
+
+    @Test
+    void progressReportedAfterCompletionIsDropped() {
+        service.sendProgressUpdate("file-1", 80, "processing", "80%");
+        service.sendCompletionUpdate("file-1", "output.webm");
+        // An encoder thread that was still draining its output
+        service.sendProgressUpdate("file-1", 85, "processing", "85%");
+        service.sendPreviewUpdate("file-1", "preview.webm");
+        service.recordScheduling("file-1", "INTERACTIVE", 1, 0);
+        service.flushProgressUpdates();
+
+        assertThat(publishedStatuses("file-1")).containsExactly("complete");
+        assertThat(service.getLatestProgress("file-1")).get()
+            .satisfies(update -> {
+                assertThat(update.getStatus()).isEqualTo("complete");
+                assertThat(update.getResultFile()).isEqualTo("output.webm");
+            });
+    }
+
+    @Test
+    void progressReportedAfterAnErrorOrCancellationIsDropped() {
+        service.sendErrorUpdate("file-1", "Conversion failed");
+        service.sendCancelledUpdate("file-2");
+        service.sendProgressUpdate("file-1", 50, "processing", "50%");
+        service.sendProgressUpdate("file-2", 50, "processing", "50%");
+        service.flushProgressUpdates();
+
+        assertThat(publishedStatuses("file-1")).containsExactly("error");
+        assertThat(publishedStatuses("file-2")).containsExactly("cancelled");
+    }
+
+    @Test
+    void nextConversionOfTheFileReportsProgressAgain() {
+        service.sendErrorUpdate("file-1", "Conversion failed");
+
+        service.beginConversion("file-1");
+        assertThat(service.getLatestProgress("file-1")).isEmpty();
+        service.sendProgressUpdate("file-1", 5, "processing", "5%");
+        service.flushProgressUpdates();
+
+        assertThat(publishedStatuses("file-1")).containsExactly("error", "processing");
+    }
+}
@@ -0,0 +1,109 @@
+package com.bitzomax.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class S3StorageBackendTests {
+
+    private static final int MIB = 1024 * 1024;
+
+    private final S3Client client = mock(S3Client.class);
+    private S3StorageBackend backend;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // 5 MiB parts, two in flight
+        backend = new S3StorageBackend("http://localhost:9000", "us-east-1", "media", "key", "secret", true, 5, 2);
+        ReflectionTestUtils.setField(backend, "client", client);
+        when(client.createMultipartUpload(anyString())).thenReturn("upload-1");
+        when(client.uploadPart(anyString(), anyString(), anyInt(), any()))
+            .thenAnswer(invocation -> "etag-" + invocation.getArgument(2));
+    }
+
+    @AfterEach
+    void tearDown() {
+        backend.shutdown();
+    }
+
+    private static ByteArrayInputStream content(int size) {
+        return new ByteArrayInputStream(new byte[size]);
+    }
+
+    @Test
+    void objectSmallerThanAPartIsASinglePut() throws IOException {
+        backend.write(StorageBackend.Area.COVERS, "ab/cd/abcd.jpg", content(1024));
+
+        verify(client).putObject(eq("covers/ab/cd/abcd.jpg"), argThat(bytes -> bytes.length == 1024));
+        verify(client, never()).createMultipartUpload(anyString());
+    }
+
+    @Test
+    void largeObjectIsUploadedInPartsCompletedInOrder() throws IOException {
+        backend.write(StorageBackend.Area.CONVERTED, "abcd.webm", content(11 * MIB));
+
+        verify(client).uploadPart(eq("converted/abcd.webm"), eq("upload-1"), eq(1), argThat(bytes -> bytes.length == 5 * MIB));
+        verify(client).uploadPart(eq("converted/abcd.webm"), eq("upload-1"), eq(2), argThat(bytes -> bytes.length == 5 * MIB));
+        verify(client).uploadPart(eq("converted/abcd.webm"), eq("upload-1"), eq(3), argThat(bytes -> bytes.length == MIB));
+        verify(client).completeMultipartUpload("converted/abcd.webm", "upload-1", List.of("etag-1", "etag-2", "etag-3"));
+        verify(client, never()).putObject(anyString(), any());
+        verify(client, never()).abortMultipartUpload(anyString(), anyString());
+    }
+
+    @Test
+    void objectOfExactlyOnePartHasNoEmptyTrailingPart() throws IOException {
+        backend.write(StorageBackend.Area.SONGS, "abcd.mp3", content(5 * MIB));
+
+        verify(client).completeMultipartUpload("songs/abcd.mp3", "upload-1", List.of("etag-1"));
+    }
+
+    @Test
+    void failedPartAbortsTheUpload() throws IOException {
+        when(client.uploadPart(anyString(), anyString(), eq(2), any())).thenThrow(new IOException("503 Slow Down"));
+
+        assertThatThrownBy(() -> backend.write(StorageBackend.Area.CONVERTED, "abcd.webm", content(11 * MIB)))
+            .isInstanceOf(IOException.class)
+            .hasMessage("503 Slow Down");
+
+        verify(client).abortMultipartUpload("converted/abcd.webm", "upload-1");
+        verify(client, never()).completeMultipartUpload(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    void failedCompletionAbortsTheUpload() throws IOException {
+        doThrow(new IOException("500 Internal Error")).when(client)
+            .completeMultipartUpload(anyString(), anyString(), anyList());
+
+        assertThatThrownBy(() -> backend.write(StorageBackend.Area.CONVERTED, "abcd.webm", content(6 * MIB)))
+            .isInstanceOf(IOException.class);
+
+        verify(client).abortMultipartUpload("converted/abcd.webm", "upload-1");
+    }
+
+    @Test
+    void namesCannotEscapeTheirArea() {
+        assertThat(backend.find(StorageBackend.Area.SONGS, "../converted/abcd.webm")).isEmpty();
+        assertThat(backend.find(StorageBackend.Area.SONGS, "/abcd.mp3")).isEmpty();
+        assertThatThrownBy(() -> backend.write(StorageBackend.Area.SONGS, "ab//cd.mp3", content(1)))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,108 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.MediaInfo;
+import com.bitzomax.model.Song;
+import com.bitzomax.repository.ConversionJobRepository;
+import com.bitzomax.repository.SongRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SongServiceTests {
+
+    private static final MediaInfo SONG = new MediaInfo(215_480, "mp3", List.of(), List.of("mp3"),
+        0, 0, 0, 320_000, 44_100, 2);
+
+    private final SongRepository songRepository = mock(SongRepository.class);
+    private final ConversionJobRepository conversionJobRepository = mock(ConversionJobRepository.class);
+    private final FileStorageService fileStorageService = mock(FileStorageService.class);
+    private final MediaProbeService mediaProbeService = mock(MediaProbeService.class);
+    private final SongService songService = new SongService();
+
+    @BeforeEach
+    void setUp() {
+        when(songRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(conversionJobRepository.findFirstByOutputNameAndStatusOrderByUpdatedAtDesc(anyString(), any()))
+            .thenReturn(Optional.empty());
+        when(fileStorageService.findStoredMediaFile(anyString())).thenReturn(Optional.empty());
+        ReflectionTestUtils.setField(songService, "songRepository", songRepository);
+        ReflectionTestUtils.setField(songService, "conversionJobRepository", conversionJobRepository);
+        ReflectionTestUtils.setField(songService, "fileStorageService", fileStorageService);
+        ReflectionTestUtils.setField(songService, "mediaProbeService", mediaProbeService);
+    }
+
+    private static Song song(String filePath, Integer durationSeconds) {
+        Song song = new Song();
+        song.setTitle("Song");
+        song.setFilePath(filePath);
+        song.setDurationSeconds(durationSeconds);
+        return song;
+    }
+
+    @Test
+    void convertedSongTakesTheDurationProbedForItsConversion() {
+        ConversionJob job = new ConversionJob();
+        job.setMediaInfo(SONG);
+        when(conversionJobRepository.findFirstByOutputNameAndStatusOrderByUpdatedAtDesc("abcd.webm",
+            ConversionJob.Status.DONE)).thenReturn(Optional.of(job));
+
+        Song created = songService.createSong(song("/api/admin/files/songs/abcd.webm", null));
+
+        assertThat(created.getDurationSeconds()).isEqualTo(215);
+        verify(mediaProbeService, never()).probe(any());
+    }
+
+    @Test
+    void songWithoutAConversionIsProbed() {
+        File stored = new File("song.mp3");
+        when(fileStorageService.findStoredMediaFile("song.mp3")).thenReturn(Optional.of(stored));
+        when(mediaProbeService.probe(stored)).thenReturn(SONG);
+
+        Song created = songService.createSong(song("songs/song.mp3", null));
+
+        assertThat(created.getDurationSeconds()).isEqualTo(215);
+    }
+
+    @Test
+    void durationEnteredByHandIsKept() {
+        Song created = songService.createSong(song("songs/song.mp3", 200));
+
+        assertThat(created.getDurationSeconds()).isEqualTo(200);
+        verify(fileStorageService, never()).findStoredMediaFile(anyString());
+    }
+
+    @Test
+    void newFileOfAnExistingSongBringsItsDuration() {
+        Song existing = song("songs/old.mp3", 100);
+        when(songRepository.findById(1L)).thenReturn(Optional.of(existing));
+        File stored = new File("new.mp3");
+        when(fileStorageService.findStoredMediaFile("new.mp3")).thenReturn(Optional.of(stored));
+        when(mediaProbeService.probe(stored)).thenReturn(SONG);
+
+        Optional<Song> updated = songService.updateSong(1L, song("songs/new.mp3", null));
+
+        assertThat(updated).get().extracting(Song::getDurationSeconds).isEqualTo(215);
+    }
+
+    @Test
+    void unknownDurationLeavesTheSongWithoutOne() {
+        File stored = new File("silence.mp3");
+        when(fileStorageService.findStoredMediaFile("silence.mp3")).thenReturn(Optional.of(stored));
+        when(mediaProbeService.probe(stored)).thenReturn(MediaInfo.UNKNOWN);
+
+        assertThat(songService.createSong(song("songs/silence.mp3", null)).getDurationSeconds()).isNull();
+    }
+}
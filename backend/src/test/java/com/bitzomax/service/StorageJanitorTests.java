@@ -0,0 +1,282 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.UploadSession;
+import com.bitzomax.repository.ConversionJobRepository;
+import com.bitzomax.repository.UploadSessionRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StorageJanitorTests {
+
+    @TempDir
+    Path root;
+
+    private final ConversionJobRepository conversionJobRepository = mock(ConversionJobRepository.class);
+    private final UploadSessionRepository uploadSessionRepository = mock(UploadSessionRepository.class);
+    private final ConversionJobService conversionJobService = mock(ConversionJobService.class);
+    private final UploadSessionService uploadSessionService = mock(UploadSessionService.class);
+    private final AdaptivePresetSelector adaptivePresetSelector = mock(AdaptivePresetSelector.class);
+    private StorageJanitor janitor;
+
+    @AfterEach
+    void tearDown() {
+        if (janitor != null) {
+            janitor.shutdown();
+        }
+    }
+
+    private StorageJanitor createJanitor(long maxBytesPerSecond) {
+        when(conversionJobRepository.findFirstByInputPathOrderByUpdatedAtDesc(anyString())).thenReturn(Optional.empty());
+        when(uploadSessionRepository.findById(anyString())).thenReturn(Optional.empty());
+        when(conversionJobService.getActiveFileIds()).thenReturn(Set.of());
+        janitor = new StorageJanitor(root.resolve("songs").toString(), root.resolve("covers").toString(),
+            true, 60, 72, 24, maxBytesPerSecond);
+        ReflectionTestUtils.setField(janitor, "conversionJobRepository", conversionJobRepository);
+        ReflectionTestUtils.setField(janitor, "uploadSessionRepository", uploadSessionRepository);
+        ReflectionTestUtils.setField(janitor, "conversionJobService", conversionJobService);
+        ReflectionTestUtils.setField(janitor, "uploadSessionService", uploadSessionService);
+        ReflectionTestUtils.setField(janitor, "adaptivePresetSelector", adaptivePresetSelector);
+        return janitor;
+    }
+
+    /**
+     * Create a file that is older than the janitor's minimum age
+     */
+    private Path oldFile(String relativePath) throws Exception {
+        Path file = root.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "data");
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+        return file;
+    }
+
+    private ConversionJob stagedJob(Path input, ConversionJob.Status status, boolean upgradePending,
+                                    LocalDateTime updatedAt) {
+        ConversionJob job = new ConversionJob();
+        job.setInputPath(input.toString());
+        job.setStatus(status);
+        job.setUpgradePending(upgradePending);
+        job.setUpdatedAt(updatedAt);
+        when(conversionJobRepository.findFirstByInputPathOrderByUpdatedAtDesc(input.toString()))
+            .thenReturn(Optional.of(job));
+        return job;
+    }
+
+    @Test
+    void stagedInputsAreDeletedOnceTheirConversionIsOver() throws Exception {
+        createJanitor(0);
+        LocalDateTime now = LocalDateTime.now();
+        Path queued = oldFile("songs/staging/queued.mp4");
+        Path running = oldFile("songs/staging/running.mp4");
+        Path done = oldFile("songs/staging/done.mp4");
+        Path cancelled = oldFile("songs/staging/cancelled.mp4");
+        Path failedRecently = oldFile("songs/staging/failed-recently.mp4");
+        Path failedLongAgo = oldFile("songs/staging/failed-long-ago.mp4");
+        Path unknown = oldFile("songs/staging/unknown.mp4");
+        Path fresh = Files.writeString(root.resolve("songs/staging/fresh.mp4"), "data");
+        stagedJob(queued, ConversionJob.Status.QUEUED, false, now);
+        stagedJob(running, ConversionJob.Status.RUNNING, false, now);
+        stagedJob(done, ConversionJob.Status.DONE, false, now);
+        stagedJob(cancelled, ConversionJob.Status.CANCELLED, false, now);
+        stagedJob(failedRecently, ConversionJob.Status.FAILED, false, now.minusHours(1));
+        stagedJob(failedLongAgo, ConversionJob.Status.FAILED, false, now.minusDays(4));
+
+        StorageJanitor.Sweep sweep = janitor.sweep();
+
+        assertThat(queued).exists();
+        assertThat(running).exists();
+        assertThat(failedRecently).exists();
+        assertThat(fresh).exists();
+        assertThat(done).doesNotExist();
+        assertThat(cancelled).doesNotExist();
+        assertThat(failedLongAgo).doesNotExist();
+        assertThat(unknown).doesNotExist();
+        assertThat(sweep.files()).containsEntry(StorageJanitor.STAGED_INPUTS, 4L);
+        assertThat(sweep.bytes()).containsEntry(StorageJanitor.STAGED_INPUTS, 16L);
+        verify(conversionJobRepository, never()).save(any());
+    }
+
+    @Test
+    void inputOfAPendingUpgradeIsKeptWhileUpgradesRun() throws Exception {
+        createJanitor(0);
+        when(adaptivePresetSelector.isUpgradeWhenIdle()).thenReturn(true);
+        Path input = oldFile("songs/staging/upgrade.mp4");
+        ConversionJob job = stagedJob(input, ConversionJob.Status.DONE, true, LocalDateTime.now());
+
+        janitor.sweep();
+
+        assertThat(input).exists();
+        assertThat(job.isUpgradePending()).isTrue();
+        verify(conversionJobRepository, never()).save(any());
+    }
+
+    @Test
+    void pendingUpgradeIsDroppedOnlyOnceItsInputIsDeleted() throws Exception {
+        createJanitor(0);
+        when(adaptivePresetSelector.isUpgradeWhenIdle()).thenReturn(false);
+        Path input = oldFile("songs/staging/upgrade.mp4");
+        ConversionJob job = stagedJob(input, ConversionJob.Status.DONE, true, LocalDateTime.now());
+
+        janitor.sweep();
+
+        assertThat(input).doesNotExist();
+        assertThat(job.isUpgradePending()).isFalse();
+        verify(conversionJobRepository).save(job);
+    }
+
+    @Test
+    void partialOutputsOfActiveConversionsAreKept() throws Exception {
+        createJanitor(0);
+        when(conversionJobService.getActiveFileIds()).thenReturn(Set.of("active"));
+        Path activePart = oldFile("songs/converted/abcd.webm.active.part");
+        Path deadPart = oldFile("songs/converted/abcd.webm.dead.part");
+        Path deadSegments = oldFile("songs/converted/dead-segments123/encoded_0000.webm");
+        Files.setLastModifiedTime(deadSegments.getParent(), Files.getLastModifiedTime(deadSegments));
+        Path output = oldFile("songs/converted/ab/cd/abcd.webm");
+
+        StorageJanitor.Sweep sweep = janitor.sweep();
+
+        assertThat(activePart).exists();
+        assertThat(output).exists();
+        assertThat(deadPart).doesNotExist();
+        assertThat(deadSegments.getParent()).doesNotExist();
+        assertThat(sweep.files()).containsEntry(StorageJanitor.PARTIAL_OUTPUTS, 2L);
+    }
+
+    @Test
+    void workingFilesBelongToTheirConversionByExactFileId() throws Exception {
+        createJanitor(0);
+        when(conversionJobService.getActiveFileIds()).thenReturn(Set.of("a", "clip.audio"));
+        List<Path> kept = List.of(
+            oldFile("songs/converted/abcd.webm.a.part"),
+            oldFile("songs/converted/abcd.webm.a.audio.part"),
+            oldFile("songs/converted/abcd.webm.a.preview.part"),
+            oldFile("songs/converted/stream-a.webm.part"),
+            // The output of a file ID that ends in .audio itself
+            oldFile("songs/converted/abcd.webm.clip.audio.part"));
+        Path activeSegments = oldFile("songs/converted/a-segments123/encoded_0000.webm");
+        Files.setLastModifiedTime(activeSegments.getParent(), Files.getLastModifiedTime(activeSegments));
+        // Names that merely contain an active file ID
+        List<Path> deleted = List.of(
+            oldFile("songs/converted/abcd.webm.banana.part"),
+            oldFile("songs/converted/abcd.webm.clip.part"),
+            oldFile("songs/converted/stream-data.webm.part"),
+            oldFile("songs/converted/abcd.webm.upgrade.part"),
+            oldFile("songs/converted/abcd.poster.jpg.part"),
+            oldFile("songs/converted/abcd.preview.webm.link"));
+
+        janitor.sweep();
+
+        assertThat(kept).allMatch(Files::exists);
+        assertThat(activeSegments).exists();
+        assertThat(deleted).noneMatch(Files::exists);
+    }
+
+    @Test
+    void shardsOfStoredFilesAreLeftAlone() throws Exception {
+        createJanitor(0);
+        Path output = oldFile("songs/converted/ab/cd/abcd.webm");
+        // Only working files at the top of the directory are swept; shards never hold any
+        Path misplaced = oldFile("songs/converted/ab/cd/abcd.preview.webm.link");
+
+        StorageJanitor.Sweep sweep = janitor.sweep();
+
+        assertThat(output).exists();
+        assertThat(misplaced).exists();
+        assertThat(sweep.files()).containsEntry(StorageJanitor.PARTIAL_OUTPUTS, 0L);
+    }
+
+    @Test
+    void uploadSessionPartsAreDeletedUnlessTheSessionIsActive() throws Exception {
+        createJanitor(0);
+        UploadSession active = new UploadSession("active", "a.mp4", UploadSession.Target.CONVERT, 100);
+        UploadSession completed = new UploadSession("completed", "b.mp4", UploadSession.Target.CONVERT, 100);
+        completed.setStatus(UploadSession.Status.COMPLETED);
+        when(uploadSessionRepository.findById("active")).thenReturn(Optional.of(active));
+        when(uploadSessionRepository.findById("completed")).thenReturn(Optional.of(completed));
+        when(uploadSessionRepository.findByStatusAndUpdatedAtBefore(any(), any())).thenReturn(List.of());
+        Path activePart = oldFile("songs/sessions/active.part");
+        Path completedPart = oldFile("songs/sessions/completed.part");
+        Path unknownPart = oldFile("songs/sessions/unknown.part");
+
+        janitor.sweep();
+
+        assertThat(activePart).exists();
+        assertThat(completedPart).doesNotExist();
+        assertThat(unknownPart).doesNotExist();
+    }
+
+    @Test
+    void staleUploadSessionsAreAborted() throws Exception {
+        createJanitor(0);
+        UploadSession stale = new UploadSession("stale", "a.mp4", UploadSession.Target.CONVERT, 100);
+        when(uploadSessionRepository.findByStatusAndUpdatedAtBefore(any(), any())).thenReturn(List.of(stale));
+
+        janitor.sweep();
+
+        verify(uploadSessionService).abort(stale);
+    }
+
+    @Test
+    void onlyTemporaryUploadFilesAreDeleted() throws Exception {
+        createJanitor(0);
+        Path songTemp = oldFile("songs/upload-123.part");
+        Path coverTemp = oldFile("covers/upload-456.part");
+        Path derivedTemp = oldFile("covers/derived/cover-789.part");
+        Path song = oldFile("songs/ab/cd/abcd.mp3");
+        Path cover = oldFile("covers/cover.jpg");
+
+        janitor.sweep();
+
+        assertThat(songTemp).doesNotExist();
+        assertThat(coverTemp).doesNotExist();
+        assertThat(derivedTemp).doesNotExist();
+        assertThat(song).exists();
+        assertThat(cover).exists();
+    }
+
+    @Test
+    void scheduledSweepDoesNotHoldTheCallingThread() throws Exception {
+        // 4 bytes at 2 bytes per second: the sweep paces itself for two seconds
+        createJanitor(2);
+        Path input = oldFile("songs/staging/unknown.mp4");
+
+        long started = System.nanoTime();
+        janitor.scheduledSweep();
+        janitor.scheduledSweep();
+        long elapsedMillis = Duration.ofNanos(System.nanoTime() - started).toMillis();
+
+        assertThat(elapsedMillis).isLessThan(1000);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (janitor.getLastSweep() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(janitor.getLastSweep()).isNotNull();
+        assertThat(input).doesNotExist();
+        // The second trigger came while the first sweep was still running, so it was skipped
+        Thread.sleep(200);
+        verify(conversionJobService, times(1)).getActiveFileIds();
+    }
+}
@@ -0,0 +1,96 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.MediaInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StreamCopyRemuxerTests {
+
+    @TempDir
+    Path tempDir;
+
+    private final MediaToolchain mediaToolchain = mock(MediaToolchain.class);
+    private final StreamCopyRemuxer remuxer = new StreamCopyRemuxer();
+
+    @BeforeEach
+    void setUp() {
+        when(mediaToolchain.isFfmpegAvailable()).thenReturn(true);
+        ReflectionTestUtils.setField(remuxer, "mediaToolchain", mediaToolchain);
+    }
+
+    private static MediaInfo media(List<String> videoCodecs, List<String> audioCodecs) {
+        return new MediaInfo(60_000, "matroska,webm", videoCodecs, audioCodecs, 1280, 720, 25, 2_000_000, 48_000, 2);
+    }
+
+    private Path fakeFfmpeg(String script) throws Exception {
+        Path ffmpeg = Files.writeString(tempDir.resolve("ffmpeg"), "#!/bin/bash\n" + script);
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwx------"));
+        when(mediaToolchain.getFfmpegPath()).thenReturn(ffmpeg.toString());
+        return ffmpeg;
+    }
+
+    @Test
+    void onlyWebMCodecsAreCopied() {
+        assertThat(remuxer.isWebMCompatible(media(List.of("vp9"), List.of("opus")))).isTrue();
+        assertThat(remuxer.isWebMCompatible(media(List.of("av1"), List.of()))).isTrue();
+        assertThat(remuxer.isWebMCompatible(media(List.of(), List.of("vorbis")))).isTrue();
+        assertThat(remuxer.isWebMCompatible(media(List.of("vp8"), List.of("vorbis", "opus")))).isTrue();
+
+        assertThat(remuxer.isWebMCompatible(media(List.of("h264"), List.of("opus")))).isFalse();
+        assertThat(remuxer.isWebMCompatible(media(List.of("vp9"), List.of("aac")))).isFalse();
+        // Every stream has to fit, not just the first
+        assertThat(remuxer.isWebMCompatible(media(List.of("vp9"), List.of("opus", "mp3")))).isFalse();
+    }
+
+    @Test
+    void inputWithoutStreamsOrFfmpegIsEncodedInstead() {
+        assertThat(remuxer.isWebMCompatible(MediaInfo.UNKNOWN)).isFalse();
+
+        when(mediaToolchain.isFfmpegAvailable()).thenReturn(false);
+        assertThat(remuxer.isWebMCompatible(media(List.of("vp9"), List.of("opus")))).isFalse();
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void remuxCopiesStreamsIntoBothOutputsInOnePass() throws Exception {
+        Path args = tempDir.resolve("args");
+        fakeFfmpeg("echo \"$*\" >> \"" + args + "\"\n");
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellation.start();
+
+        boolean remuxed = remuxer.remux(tempDir.resolve("in.webm").toFile(), tempDir.resolve("out.webm").toFile(),
+            tempDir.resolve("out.audio.webm").toFile(), cancellation);
+
+        assertThat(remuxed).isTrue();
+        List<String> invocations = Files.readAllLines(args);
+        assertThat(invocations).hasSize(1);
+        assertThat(invocations.get(0))
+            .contains("-map 0:V? -map 0:a? -c copy -f webm " + tempDir.resolve("out.webm"))
+            .endsWith("-map 0:a:0 -c copy -f webm " + tempDir.resolve("out.audio.webm"))
+            .doesNotContain("libvpx");
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void failedRemuxFallsBackToEncoding() throws Exception {
+        fakeFfmpeg("exit 1\n");
+        ConversionCancellation cancellation = new ConversionCancellation();
+        cancellation.start();
+
+        assertThat(remuxer.remux(tempDir.resolve("in.webm").toFile(), tempDir.resolve("out.webm").toFile(),
+            null, cancellation)).isFalse();
+    }
+}
@@ -0,0 +1,98 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.EncoderPreset;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StreamingEncoderTests {
+
+    @TempDir
+    Path tempDir;
+
+    private final MediaToolchain mediaToolchain = mock(MediaToolchain.class);
+    private final ProgressUpdateService progressUpdateService = mock(ProgressUpdateService.class);
+    private final StreamingEncoder encoder = new StreamingEncoder();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(encoder, "mediaToolchain", mediaToolchain);
+        ReflectionTestUtils.setField(encoder, "progressUpdateService", progressUpdateService);
+    }
+
+    @Test
+    void onlyContainersThatDemuxFrontToBackAreStreamed() {
+        assertThat(encoder.isStreamable("clip.mkv")).isTrue();
+        assertThat(encoder.isStreamable("clip.WEBM")).isTrue();
+        assertThat(encoder.isStreamable("song.flac")).isTrue();
+        // MP4 and MOV may keep their index at the end
+        assertThat(encoder.isStreamable("clip.mp4")).isFalse();
+        assertThat(encoder.isStreamable("clip.mov")).isFalse();
+        assertThat(encoder.isStreamable("no-extension")).isFalse();
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void encoderReadsItsInputFromStdin() throws Exception {
+        Path args = tempDir.resolve("args");
+        Path input = tempDir.resolve("input");
+        Path ffmpeg = Files.writeString(tempDir.resolve("ffmpeg"),
+            "#!/bin/bash\necho \"$*\" > \"" + args + "\"\ncat > \"" + input + "\"\n");
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwx------"));
+        when(mediaToolchain.getFfmpegPath()).thenReturn(ffmpeg.toString());
+        when(mediaToolchain.getWebMAudioEncoder()).thenReturn(MediaToolchain.ENCODER_OPUS);
+        Path output = tempDir.resolve("out.webm.part");
+
+        Process process = encoder.start("file-1", output.toFile(), EncoderPreset.FAST).process();
+        try (OutputStream stdin = process.getOutputStream()) {
+            stdin.write("piped".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertThat(process.waitFor(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(Files.readString(input)).isEqualTo("piped");
+        assertThat(Files.readString(args).trim())
+            .startsWith("-y -i pipe:0 -c:v libvpx-vp9 " + String.join(" ", EncoderPreset.FAST.ffmpegVideoOptions()))
+            .endsWith("-c:a libopus -progress pipe:1 -nostats -f webm " + output);
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void failureReportsTheEndOfTheEncoderLog() throws Exception {
+        // More log than the pipe buffer holds, so an undrained stderr would block the encoder
+        Path ffmpeg = Files.writeString(tempDir.resolve("ffmpeg"), """
+            #!/bin/bash
+            cat > /dev/null
+            for i in $(seq 1 2000); do echo "frame $i: $(printf 'x%.0s' $(seq 1 300))" >&2; done
+            echo "pipe:0: Invalid data found when processing input" >&2
+            exit 1
+            """);
+        Files.setPosixFilePermissions(ffmpeg, PosixFilePermissions.fromString("rwx------"));
+        when(mediaToolchain.getFfmpegPath()).thenReturn(ffmpeg.toString());
+        when(mediaToolchain.getWebMAudioEncoder()).thenReturn(MediaToolchain.ENCODER_OPUS);
+
+        StreamingEncoder.Encode encode = encoder.start("file-1", tempDir.resolve("out.webm.part").toFile(),
+            EncoderPreset.FAST);
+        encode.process().getOutputStream().close();
+
+        assertThat(encode.process().waitFor(30, TimeUnit.SECONDS)).isTrue();
+        assertThat(encode.process().exitValue()).isEqualTo(1);
+        String tail = encode.errorTail();
+        assertThat(tail).endsWith("pipe:0: Invalid data found when processing input")
+            .contains("frame 2000: xxx").doesNotContain("frame 1995:");
+        assertThat(tail.lines()).hasSize(5).allMatch(line -> line.length() <= 160);
+    }
+}
@@ -0,0 +1,191 @@
+package com.bitzomax.service;
+
+import com.bitzomax.model.ConversionJob;
+import com.bitzomax.model.UploadSession;
+import com.bitzomax.repository.UploadSessionRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UploadSessionServiceTests {
+
+    @TempDir
+    Path sessionDir;
+
+    private final UploadSessionRepository uploadSessionRepository = mock(UploadSessionRepository.class);
+    private final FileStorageService fileStorageService = mock(FileStorageService.class);
+    private final ConversionJobService conversionJobService = mock(ConversionJobService.class);
+    private final UploadSessionService service = new UploadSessionService(1024);
+
+    @BeforeEach
+    void setUp() {
+        when(uploadSessionRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(fileStorageService.uploadSessionFile(anyString())).thenAnswer(invocation ->
+            sessionDir.resolve(invocation.getArgument(0) + ".part"));
+        ReflectionTestUtils.setField(service, "uploadSessionRepository", uploadSessionRepository);
+        ReflectionTestUtils.setField(service, "fileStorageService", fileStorageService);
+        ReflectionTestUtils.setField(service, "conversionJobService", conversionJobService);
+    }
+
+    private static InputStream chunk(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Path partFile(UploadSession session) {
+        return sessionDir.resolve(session.getId() + ".part");
+    }
+
+    @Test
+    void chunksAreAppendedAtTheirOffsets() throws Exception {
+        UploadSession session = service.create("song.mp3", 10, UploadSession.Target.SONG);
+        assertThat(service.getOffset(session)).isZero();
+
+        assertThat(service.appendChunk(session, 0, chunk("hello"))).isEqualTo(5);
+        assertThat(service.appendChunk(session, 5, chunk("world"))).isEqualTo(10);
+
+        assertThat(service.getOffset(session)).isEqualTo(10);
+        assertThat(Files.readString(partFile(session))).isEqualTo("helloworld");
+    }
+
+    @Test
+    void chunkAtTheWrongOffsetIsRefused() throws Exception {
+        UploadSession session = service.create("song.mp3", 10, UploadSession.Target.SONG);
+        service.appendChunk(session, 0, chunk("hello"));
+
+        // A retry of the chunk that already arrived
+        assertThatThrownBy(() -> service.appendChunk(session, 0, chunk("hello")))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessage("Expected offset 5 but got 0");
+        assertThatThrownBy(() -> service.appendChunk(session, 7, chunk("ld")))
+            .isInstanceOf(IllegalStateException.class);
+        assertThat(service.getOffset(session)).isEqualTo(5);
+    }
+
+    @Test
+    void bytesOfAChunkThatWasCutShortCount() throws Exception {
+        UploadSession session = service.create("song.mp3", 10, UploadSession.Target.SONG);
+        InputStream droppedConnection = new InputStream() {
+            private boolean sent;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] buffer) throws IOException {
+                if (sent) {
+                    throw new IOException("Connection reset");
+                }
+                sent = true;
+                buffer[0] = 'h';
+                buffer[1] = 'e';
+                buffer[2] = 'l';
+                return 3;
+            }
+        };
+
+        assertThatThrownBy(() -> service.appendChunk(session, 0, droppedConnection)).isInstanceOf(IOException.class);
+
+        // The client resumes from what reached the disk
+        assertThat(service.getOffset(session)).isEqualTo(3);
+        assertThat(service.appendChunk(session, 3, chunk("loworld"))).isEqualTo(10);
+        assertThat(Files.readString(partFile(session))).isEqualTo("helloworld");
+    }
+
+    @Test
+    void chunkPastTheDeclaredLengthIsDropped() throws Exception {
+        UploadSession session = service.create("song.mp3", 10, UploadSession.Target.SONG);
+        service.appendChunk(session, 0, chunk("hello"));
+
+        assertThatThrownBy(() -> service.appendChunk(session, 5, chunk("world!")))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(service.getOffset(session)).isEqualTo(5);
+    }
+
+    @Test
+    void incompleteUploadCannotBeCompleted() throws Exception {
+        UploadSession session = service.create("song.mp3", 10, UploadSession.Target.SONG);
+        service.appendChunk(session, 0, chunk("hello"));
+
+        assertThatThrownBy(() -> service.complete(session, "alice", ConversionJob.Priority.INTERACTIVE))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining("has 5 of 10 bytes");
+        verify(fileStorageService, never()).storeAssembledSongFile(any(), anyString());
+    }
+
+    @Test
+    void completingTwiceReturnsTheFirstResult() throws Exception {
+        UploadSession session = service.create("song.mp3", 10, UploadSession.Target.SONG);
+        service.appendChunk(session, 0, chunk("helloworld"));
+        when(fileStorageService.storeAssembledSongFile(partFile(session), "song.mp3")).thenReturn("abcd.mp3");
+
+        UploadSession completed = service.complete(session, "alice", ConversionJob.Priority.INTERACTIVE);
+        UploadSession retried = service.complete(session, "alice", ConversionJob.Priority.INTERACTIVE);
+
+        assertThat(completed.getStatus()).isEqualTo(UploadSession.Status.COMPLETED);
+        assertThat(retried.getResultName()).isEqualTo("abcd.mp3");
+        assertThat(service.getOffset(session)).isEqualTo(10);
+        verify(fileStorageService, times(1)).storeAssembledSongFile(any(), anyString());
+        assertThatThrownBy(() -> service.appendChunk(session, 10, chunk("")))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void completedConversionUploadIsQueuedUnderTheSessionId() throws Exception {
+        UploadSession session = service.create("clip.mkv", 4, UploadSession.Target.CONVERT);
+        service.appendChunk(session, 0, chunk("clip"));
+        ConversionJob job = new ConversionJob();
+        job.setFileId(session.getId());
+        when(conversionJobService.submitAssembled(partFile(session), "clip.mkv", session.getId(), "alice",
+            ConversionJob.Priority.BACKFILL)).thenReturn(job);
+
+        UploadSession completed = service.complete(session, "alice", ConversionJob.Priority.BACKFILL);
+
+        assertThat(completed.getResultName()).isEqualTo(session.getId());
+    }
+
+    @Test
+    void abortedSessionLosesItsBytes() throws Exception {
+        UploadSession session = service.create("song.mp3", 10, UploadSession.Target.SONG);
+        service.appendChunk(session, 0, chunk("hello"));
+
+        service.abort(session);
+
+        assertThat(session.getStatus()).isEqualTo(UploadSession.Status.ABORTED);
+        assertThat(partFile(session)).doesNotExist();
+        assertThatThrownBy(() -> service.appendChunk(session, 5, chunk("world")))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void sessionNeedsANameWithAnExtensionAndAnAcceptableLength() {
+        assertThatThrownBy(() -> service.create("../song.mp3", 10, UploadSession.Target.SONG))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.create("song", 10, UploadSession.Target.SONG))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.create("song.mp3", 0, UploadSession.Target.SONG))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.create("song.mp3", 1025, UploadSession.Target.SONG))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}